@@ -0,0 +1,226 @@
+package rmi;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the calls a skeleton accepts to run.
+ *
+ * <p>
+ * Two limits protect a skeleton from overload:
+ * <ul>
+ * <li>The number of calls admitted and not yet answered, over all connections, is bounded by {@link #maxConcurrent()}. A call
+ * arriving when the limit is reached is rejected at once, before its payload is even decoded.</li>
+ * <li>The time an admitted call may wait for a thread to run it is bounded by {@link #queueTime(TimeUnit)}. A call that has
+ * waited longer is shed without being run: its stub has likely given up on it, or soon will, and running it would only delay the
+ * calls queued behind it.</li>
+ * </ul>
+ * Calls the service model has no capacity to run are rejected as well. Rejected and shed calls are answered with an
+ * {@link RMIOverloadException}. They have not been run, so stubs retry them a few times, waiting a random and increasingly long
+ * time between attempts; the number of retries is given by the system property {@link #RETRIES_PROPERTY}, and defaults to three.
+ *
+ * <p>
+ * Both limits are off by default. Their initial values, for the skeletons of a virtual machine, are given in milliseconds and
+ * calls by the system properties {@link #QUEUE_TIME_PROPERTY} and {@link #MAX_CONCURRENT_PROPERTY}, and can be changed while
+ * the skeleton runs. As with bounded service models, calls that block until another call arrives - such as a naming server
+ * <code>lock</code> waiting for the matching <code>unlock</code> - count towards the concurrency limit while they wait, which
+ * must be sized accordingly.
+ *
+ * <p>
+ * The counters of every running skeleton are part of the server report of {@link Metrics}.
+ */
+public class AdmissionControl {
+    /** Name of the system property giving the default limit on concurrent calls. Zero means no limit. */
+    public static final String MAX_CONCURRENT_PROPERTY = "rmi.admission.maxConcurrent";
+    /** Name of the system property giving the default queue time budget, in milliseconds. Zero means no limit. */
+    public static final String QUEUE_TIME_PROPERTY = "rmi.admission.queueTime";
+    /** Name of the system property giving the number of times a stub retries a call rejected by an overloaded skeleton. */
+    public static final String RETRIES_PROPERTY = "rmi.admission.retries";
+    /** Time a stub waits before retrying a rejected call for the first time, in milliseconds. */
+    private static final long BACKOFF = 20;
+
+    private static final int retries = Math.max(0, Integer.getInteger(RETRIES_PROPERTY, 3));
+
+    private volatile int maxConcurrent;
+    /** Queue time budget, in nanoseconds. */
+    private volatile long queueTime;
+
+    /** Number of calls admitted and not yet answered. */
+    private final AtomicInteger concurrent = new AtomicInteger();
+    /** Largest number of calls that have been admitted at the same time. */
+    private final AtomicInteger peakConcurrent = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Creates admission control with the given limits.
+     *
+     * @param maxConcurrent
+     *            Maximum number of calls admitted and not yet answered, or zero for no limit.
+     * @param queueTime
+     *            Maximum time a call may wait before it runs, or zero for no limit.
+     * @param unit
+     *            Unit of <code>queueTime</code>.
+     * @throws IllegalArgumentException
+     *             If either limit is negative.
+     */
+    public AdmissionControl(int maxConcurrent, long queueTime, TimeUnit unit) {
+        setMaxConcurrent(maxConcurrent);
+        setQueueTime(queueTime, unit);
+    }
+
+    /** Returns admission control with the limits given by the system properties, or no limits if they are not set. */
+    public static AdmissionControl fromSystemProperties() {
+        int maxConcurrent = Integer.getInteger(MAX_CONCURRENT_PROPERTY, 0);
+        long queueTime = Long.getLong(QUEUE_TIME_PROPERTY, 0);
+        try {
+            return new AdmissionControl(maxConcurrent, queueTime, TimeUnit.MILLISECONDS);
+        } catch (IllegalArgumentException e) {
+            System.err.println("ignoring invalid admission limits: " + e.getMessage());
+            return new AdmissionControl(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns the maximum number of calls admitted and not yet answered, or zero if there is no limit. */
+    public int maxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets the maximum number of calls admitted and not yet answered. Calls already admitted are not affected.
+     *
+     * @param maxConcurrent
+     *            The limit, or zero for no limit.
+     * @throws IllegalArgumentException
+     *             If the limit is negative.
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("Invalid concurrency limit " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /** Returns the maximum time a call may wait before it runs, in the given unit, or zero if there is no limit. */
+    public long queueTime(TimeUnit unit) {
+        return unit.convert(queueTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time a call may wait before it runs.
+     *
+     * @param queueTime
+     *            The limit, or zero for no limit.
+     * @param unit
+     *            Unit of <code>queueTime</code>.
+     * @throws IllegalArgumentException
+     *             If the limit is negative.
+     */
+    public void setQueueTime(long queueTime, TimeUnit unit) {
+        if (queueTime < 0) {
+            throw new IllegalArgumentException("Invalid queue time " + queueTime);
+        }
+        this.queueTime = unit.toNanos(queueTime);
+    }
+
+    /** Returns the number of calls admitted and not yet answered. */
+    public int concurrentCount() {
+        return concurrent.get();
+    }
+
+    /** Returns the largest number of calls that have been admitted at the same time. */
+    public int peakConcurrentCount() {
+        return peakConcurrent.get();
+    }
+
+    /** Returns the number of calls admitted. */
+    public long admittedCount() {
+        return admitted.get();
+    }
+
+    /** Returns the number of calls rejected on arrival, because of the concurrency limit or of a saturated service model. */
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    /** Returns the number of admitted calls shed without being run because they waited too long. */
+    public long shedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Admits a call, if the concurrency limit allows. An admitted call must be released once answered.
+     *
+     * @return <code>true</code> if the call is admitted, <code>false</code> if it must be rejected.
+     */
+    boolean admit() {
+        int now;
+        do {
+            now = concurrent.get();
+            int limit = maxConcurrent;
+            if (limit > 0 && now >= limit) {
+                return false;
+            }
+        } while (!concurrent.compareAndSet(now, now + 1));
+        admitted.incrementAndGet();
+        int peak;
+        while (now + 1 > (peak = peakConcurrent.get()) && !peakConcurrent.compareAndSet(peak, now + 1)) {
+            // retry
+        }
+        return true;
+    }
+
+    /** Releases a call admitted by {@link #admit()}. */
+    void release() {
+        concurrent.decrementAndGet();
+    }
+
+    /** Records the rejection of a call. */
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Checks whether an admitted call has waited too long to be run, recording it as shed if so.
+     *
+     * @param received
+     *            Time at which the call was received, in <code>System.nanoTime</code> units.
+     * @return <code>true</code> if the call must be shed.
+     */
+    boolean overdue(long received) {
+        long budget = queueTime;
+        if (budget > 0 && System.nanoTime() - received > budget) {
+            shed.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of times a stub retries a call rejected by an overloaded skeleton. */
+    static int retries() {
+        return retries;
+    }
+
+    /**
+     * Returns the time a stub waits before retrying a rejected call: a random time up to twice as long after each successive
+     * rejection, so that stubs rejected together do not retry together.
+     *
+     * @param attempt
+     *            Number of times the call has been rejected before, starting at zero.
+     * @return The delay, in milliseconds.
+     */
+    static long backoff(int attempt) {
+        long delay = BACKOFF << Math.min(attempt, 16);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl [maxConcurrent=" + maxConcurrent() + ", queueTime=" + queueTime(TimeUnit.MILLISECONDS)
+                + "ms, concurrent=" + concurrentCount() + ", peak=" + peakConcurrentCount() + ", admitted=" + admittedCount()
+                + ", rejected=" + rejectedCount() + ", shed=" + shedCount() + "]";
+    }
+}
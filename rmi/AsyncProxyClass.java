@@ -0,0 +1,106 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Invocation handler of the asynchronous view of a stub.
+ *
+ * <p>
+ * Each method of the asynchronous interface is mapped, when the view is created, to the method of the remote interface with the
+ * same name and parameter types. Calls are sent through the stub's own handler, and their replies are decoded by the connection's
+ * reader thread.
+ */
+class AsyncProxyClass implements InvocationHandler {
+    /** Asynchronous interface. */
+    private final Class<?> async;
+    /** Handler of the stub whose server is called. */
+    private final ProxyClass<?> stub;
+    /** Method table of the remote interface. */
+    private final MethodTable table;
+    /** Identifier of the remote method called by each method of the asynchronous interface. */
+    private final Map<Method, Integer> ids = new HashMap<Method, Integer>();
+
+    AsyncProxyClass(Class<?> async, ProxyClass<?> stub) {
+        if (!async.isInterface()) {
+            throw new Error(async.getName() + " is not an interface");
+        }
+        this.async = async;
+        this.stub = stub;
+        table = MethodTable.of(stub.c);
+        for (Method method : async.getMethods()) {
+            if (!method.getReturnType().isAssignableFrom(CompletableFuture.class)) {
+                throw new Error(method + " does not return a future");
+            }
+            int id = table.find(method.getName(), method.getParameterTypes());
+            if (id < 0) {
+                throw new Error(method + " has no counterpart in " + stub.c.getName());
+            }
+            if (table.streams(id)) {
+                throw new Error(method + " streams chunks, and cannot be called asynchronously");
+            }
+            ids.put(method, id);
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+
+        int id = ids.get(method);
+        final MethodStats stats = Metrics.client().of(table)[id];
+        final long start = stats.begin();
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        stub.send(new MethodCall(table, id, args), table.bulk[id], stats).whenComplete(new BiConsumer<Frame, Throwable>() {
+            @Override
+            public void accept(Frame reply, Throwable error) {
+                if (error != null) {
+                    stats.end(start, true);
+                    if (error instanceof RMIException) {
+                        result.completeExceptionally(error);
+                    } else if (error instanceof TimeoutException) {
+                        result.completeExceptionally(new RMITimeoutException("Call to skeleton timed out.", error));
+                    } else {
+                        result.completeExceptionally(new RMIException("Could not connect to skeleton.", error));
+                    }
+                    return;
+                }
+                try {
+                    Object value = ProxyClass.result(reply);
+                    stats.end(start, false);
+                    result.complete(value);
+                } catch (Throwable t) {
+                    stats.end(start, true);
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        return result;
+    }
+
+    /** Implements <code>equals</code>, <code>hashCode</code> and <code>toString</code>. */
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("equals")) {
+            Object other = args[0];
+            if (other == null || !Proxy.isProxyClass(other.getClass())
+                    || !(Proxy.getInvocationHandler(other) instanceof AsyncProxyClass)) {
+                return false;
+            }
+            AsyncProxyClass handler = (AsyncProxyClass) Proxy.getInvocationHandler(other);
+            return async.equals(handler.async) && stub.c.equals(handler.stub.c) && stub.port == handler.stub.port
+                    && stub.address.equals(handler.stub.address);
+        }
+        if (method.getName().equals("hashCode")) {
+            return stub.address.hashCode() + stub.port + 33 * async.hashCode();
+        }
+        return async.getName() + stub.address + ":" + stub.port;
+    }
+}
@@ -0,0 +1,170 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of calls sent to a remote server in one round trip.
+ *
+ * <p>
+ * Calls are recorded by invoking methods of the object returned by {@link #recorder()}. Recorded calls are not sent immediately:
+ * each returns <code>null</code>, <code>false</code> or zero at once. {@link #execute()} then sends all the recorded calls to
+ * the server of the stub in a single request. The server makes the calls one after the other, in the order in which they were
+ * recorded, and returns all their outcomes in a single reply. Every call is made, whether or not the calls before it threw an
+ * exception. The outcome of each call is then available from {@link #get(int)}.
+ *
+ * <p>
+ * A batch is executed once, and is not safe for use by multiple threads.
+ *
+ * @param <T>
+ *            Remote interface of the calls.
+ */
+public class Batch<T> {
+    /** Remote interface. */
+    private final Class<T> c;
+    /** Handler of the stub whose server is called. */
+    private final ProxyClass<?> stub;
+    /** Method table of the remote interface. */
+    private final MethodTable table;
+    /** Calls recorded so far. */
+    private final List<MethodCall> calls = new ArrayList<MethodCall>();
+    /** Whether any call recorded so far is in the bulk lane, in which case the batch is sent in that lane. */
+    private boolean bulk;
+    /** Object recording calls. */
+    private final T recorder;
+    /** Outcome of each call: a flag telling whether the call threw, followed by its result. <code>null</code> until executed. */
+    private Object[] outcomes;
+
+    /**
+     * Creates an empty batch of calls to the server of a stub.
+     *
+     * @param c
+     *            A <code>Class</code> object representing the remote interface.
+     * @param stub
+     *            A stub for the remote interface, created by <code>Stub</code>.
+     * @throws NullPointerException
+     *             If any argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If <code>stub</code> is not a stub for the interface <code>c</code>.
+     */
+    public Batch(Class<T> c, T stub) {
+        if (c == null || stub == null) {
+            throw new NullPointerException("One or more arguments are null");
+        }
+        ProxyClass<?> handler = ProxyClass.of(stub);
+        if (handler == null || !handler.c.equals(c)) {
+            throw new IllegalArgumentException("Not a stub for " + c.getName() + ": " + stub);
+        }
+        this.c = c;
+        this.stub = handler;
+        table = MethodTable.of(c);
+        recorder = c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, new Recorder()));
+    }
+
+    /**
+     * Returns an object implementing the remote interface, whose methods record calls into the batch. Its methods throw
+     * <code>IllegalArgumentException</code> for methods streaming chunks, which cannot be batched.
+     *
+     * @return The recorder.
+     */
+    public T recorder() {
+        return recorder;
+    }
+
+    /** Returns the number of calls recorded. */
+    public int size() {
+        return calls.size();
+    }
+
+    /**
+     * Sends the recorded calls to the server and waits for their outcomes.
+     *
+     * @throws RMIException
+     *             If the batch cannot be sent, or its reply cannot be received. In this case, some, all or none of the calls may
+     *             have been made.
+     * @throws IllegalStateException
+     *             If the batch has already been executed.
+     */
+    public void execute() throws RMIException {
+        if (outcomes != null) {
+            throw new IllegalStateException("Batch has already been executed");
+        }
+        if (calls.isEmpty()) {
+            outcomes = new Object[0];
+            return;
+        }
+
+        Object result;
+        try {
+            result = ProxyClass.result(stub.call(Frame.BATCH, calls.toArray(), bulk));
+        } catch (RMIException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RMIException("Batch of calls failed.", t);
+        }
+        if (!(result instanceof Object[]) || ((Object[]) result).length != 2 * calls.size()) {
+            throw new RMIException("Could not read result of batch from skeleton.");
+        }
+        outcomes = (Object[]) result;
+    }
+
+    /**
+     * Returns the outcome of a call in an executed batch.
+     *
+     * @param index
+     *            Position of the call in the batch, starting from zero.
+     * @return The value returned by the call, boxed if it is of a primitive type.
+     * @throws Throwable
+     *             The exception thrown by the call, if any.
+     * @throws IllegalStateException
+     *             If the batch has not been executed.
+     * @throws IndexOutOfBoundsException
+     *             If no call was recorded at the given position.
+     */
+    public Object get(int index) throws Throwable {
+        if (outcomes == null) {
+            throw new IllegalStateException("Batch has not been executed");
+        }
+        if (index < 0 || index >= calls.size()) {
+            throw new IndexOutOfBoundsException("No call " + index + " in batch of " + calls.size());
+        }
+        if ((Boolean) outcomes[2 * index]) {
+            throw (Throwable) outcomes[2 * index + 1];
+        }
+        return outcomes[2 * index + 1];
+    }
+
+    /** Handler of the recorder. */
+    private class Recorder implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "batch of " + calls.size() + " calls to " + c.getName() + stub.address + ":" + stub.port;
+            }
+
+            if (outcomes != null) {
+                throw new IllegalStateException("Batch has already been executed");
+            }
+            int id = table.id(method);
+            if (table.streams(id)) {
+                throw new IllegalArgumentException(method + " streams chunks, and cannot be batched");
+            }
+            calls.add(new MethodCall(table, id, args));
+            bulk |= table.bulk[id];
+
+            // placeholder result: the default value of the return type
+            Class<?> type = method.getReturnType();
+            return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+        }
+    }
+}
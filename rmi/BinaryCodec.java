@@ -0,0 +1,317 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import common.Path;
+
+/**
+ * Compact binary codec.
+ *
+ * <p>
+ * Every value is written as a one-byte tag followed by its contents. Lengths and integers are written as variable-length
+ * quantities, so that the small values making up most filesystem calls take a byte or two. Values of types without a tag are
+ * written with Java serialization, prefixed by their length.
+ */
+class BinaryCodec extends Codec {
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte STRING = 5;
+    private static final byte BYTES = 6;
+    private static final byte PATH = 7;
+    private static final byte STRINGS = 8;
+    private static final byte PATHS = 9;
+    private static final byte OBJECTS = 10;
+    private static final byte STUB = 11;
+    private static final byte CALL = 12;
+    private static final byte SERIALIZED = 13;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    BinaryCodec() {
+        super(Frame.BINARY);
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Output out = new Output();
+        out.writeValue(value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+        Input in = new Input(payload);
+        Object value = in.readValue();
+        if (in.position != payload.length) {
+            throw new IOException("Trailing bytes after encoded value");
+        }
+        return value;
+    }
+
+    /** Growable output buffer. */
+    private static class Output {
+        private byte[] buffer = new byte[64];
+        private int count;
+
+        private void ensure(int length) {
+            if (count + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[count++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        /** Writes a non-negative quantity in groups of seven bits, least significant first. */
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[count++] = (byte) value;
+        }
+
+        /** Writes a signed quantity, mapping small negative values to small unsigned ones. */
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            buffer[count++] = (byte) (value >>> 24);
+            buffer[count++] = (byte) (value >>> 16);
+            buffer[count++] = (byte) (value >>> 8);
+            buffer[count++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarint(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer) {
+                writeByte(INT);
+                writeSigned((Integer) value);
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeSigned((Long) value);
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof byte[]) {
+                writeByte(BYTES);
+                writeVarint(((byte[]) value).length);
+                writeBytes((byte[]) value);
+            } else if (value instanceof Path) {
+                writeByte(PATH);
+                writeString(value.toString());
+            } else if (value.getClass() == String[].class) {
+                writeArray(STRINGS, (Object[]) value);
+            } else if (value.getClass() == Path[].class) {
+                writeArray(PATHS, (Object[]) value);
+            } else if (value.getClass() == Object[].class) {
+                writeArray(OBJECTS, (Object[]) value);
+            } else if (value instanceof MethodCall) {
+                MethodCall call = (MethodCall) value;
+                writeByte(CALL);
+                writeVarint(call.method);
+                writeInt(call.signature);
+                writeValue(call.params);
+            } else if (!writeStub(value)) {
+                writeByte(SERIALIZED);
+                byte[] bytes = Codec.serialization().encode(value);
+                writeVarint(bytes.length);
+                writeBytes(bytes);
+            }
+        }
+
+        private void writeArray(byte tag, Object[] values) throws IOException {
+            writeByte(tag);
+            writeVarint(values.length);
+            for (Object value : values) {
+                writeValue(value);
+            }
+        }
+
+        /** Writes a stub as its interface name and server address. Returns <code>false</code> if the value is not a stub. */
+        private boolean writeStub(Object value) {
+            ProxyClass<?> stub = ProxyClass.of(value);
+            if (stub == null || stub.address == null) {
+                return false;
+            }
+            byte[] address = stub.address.getAddress();
+            writeByte(STUB);
+            writeString(stub.c.getName());
+            writeVarint(address.length);
+            writeBytes(address);
+            writeVarint(stub.port);
+            return true;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, count);
+        }
+    }
+
+    /** Input reading from a payload. */
+    private static class Input {
+        private final byte[] buffer;
+        int position;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() throws IOException {
+            if (position >= buffer.length) {
+                throw new EOFException("Truncated encoded value");
+            }
+            return buffer[position++];
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            if (length > buffer.length - position) {
+                throw new EOFException("Truncated encoded value");
+            }
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable-length quantity");
+        }
+
+        long readSigned() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /** Reads a length, checking that it does not exceed the bytes remaining. */
+        int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > buffer.length - position) {
+                throw new IOException("Malformed length " + length);
+            }
+            return (int) length;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() & 0xff) << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | (readByte() & 0xff);
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String value = new String(buffer, position, length, UTF8);
+            position += length;
+            return value;
+        }
+
+        Object readValue() throws IOException, ClassNotFoundException {
+            byte tag = readByte();
+            switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case INT:
+                return (int) readSigned();
+            case LONG:
+                return readSigned();
+            case STRING:
+                return readString();
+            case BYTES:
+                return readBytes(readLength());
+            case PATH:
+                return readPath();
+            case STRINGS:
+                return readArray(new String[readLength()]);
+            case PATHS:
+                return readArray(new Path[readLength()]);
+            case OBJECTS:
+                return readArray(new Object[readLength()]);
+            case CALL:
+                int method = (int) readVarint();
+                int signature = readInt();
+                Object params = readValue();
+                if (params != null && !(params instanceof Object[])) {
+                    throw new IOException("Malformed method call arguments");
+                }
+                return new MethodCall(method, signature, (Object[]) params);
+            case STUB:
+                return readStub();
+            case SERIALIZED:
+                return Codec.serialization().decode(readBytes(readLength()));
+            default:
+                throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        private Path readPath() throws IOException {
+            try {
+                return new Path(readString());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed path", e);
+            }
+        }
+
+        private Object[] readArray(Object[] values) throws IOException, ClassNotFoundException {
+            try {
+                for (int index = 0; index < values.length; index++) {
+                    values[index] = readValue();
+                }
+            } catch (ArrayStoreException e) {
+                throw new IOException("Malformed array element", e);
+            }
+            return values;
+        }
+
+        private Object readStub() throws IOException, ClassNotFoundException {
+            String name = readString();
+            byte[] address = readBytes(readLength());
+            int port = (int) readVarint();
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Class<?> c = Class.forName(name, false, loader == null ? BinaryCodec.class.getClassLoader() : loader);
+            try {
+                return Stub.create(c, new InetSocketAddress(InetAddress.getByAddress(address), port));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed stub", e);
+            } catch (Error e) {
+                throw new IOException("Malformed stub for " + name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote interface as a bulk transfer, served in the bulk lane rather than the control lane.
+ *
+ * <p>
+ * Calls travel in one of two lanes, each with its own stub connections and its own skeleton threads. Unmarked methods are
+ * control calls: small, frequent requests such as lookups, locks or size queries, whose latency matters. Marked methods, which
+ * move large amounts of data such as file contents, are sent over separate connections, and are run by separate threads of the
+ * skeleton's service model, at a lower scheduling priority. A control call therefore never waits for a bulk call to be written,
+ * read or given a thread, however many bulk calls are in progress; bulk calls only compete with each other.
+ *
+ * <p>
+ * Methods streaming chunks are always in the bulk lane, whether or not they are marked. A batch is sent in the bulk lane if any
+ * of its calls is. Calls to a skeleton in the same virtual machine run in the calling thread, and have no lane. Both lanes
+ * share the skeleton's admission control limits.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Bulk {
+}
@@ -0,0 +1,57 @@
+package rmi;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequence of chunks streamed between a stub and a skeleton.
+ *
+ * <p>
+ * A method of a remote interface may return a chunk source, to stream its result to the caller, and may take one chunk source
+ * parameter, to receive a stream of chunks from the caller. For example:
+ *
+ * <pre>
+ * public ChunkSource&lt;byte[]&gt; read(Path file) throws RMIException, IOException;
+ *
+ * public void write(Path file, ChunkSource&lt;byte[]&gt; data) throws RMIException, IOException;
+ * </pre>
+ *
+ * The server object implements such a method by returning a source producing the chunks, or by reading the chunks of the source
+ * it is given; the stub passes a source of its own, or reads the chunks of the source it is returned. Chunks may be of any type
+ * the stub's codec can encode. A source is read by one thread at a time.
+ *
+ * <p>
+ * Chunks travel over the connection of the call while the reader consumes them. The sending side only sends as many chunks as
+ * the reader has granted it credit for, a small fixed number at first, and the reader grants more as it consumes them: a slow
+ * reader thus holds the sender back, and neither side buffers more than a few chunks, however long the stream. A method returning
+ * a stream has returned, as far as its deadline is concerned, once the stream starts; the skeleton still counts it as running,
+ * for admission control, until the stream ends.
+ *
+ * <p>
+ * Streaming methods cannot be called through asynchronous stubs or batches. A streaming call that fails is not retried, since
+ * part of its stream may already have been consumed. Calls to a skeleton in the same virtual machine pass the chunks directly,
+ * copying each one.
+ *
+ * @param <T>
+ *            Type of the chunks.
+ */
+public interface ChunkSource<T> extends Closeable {
+    /**
+     * Returns the next chunk, waiting for it to arrive if necessary. When reading a stream received from the other side of a
+     * call, the wait is bounded by the deadline in effect in the current thread, if any.
+     *
+     * @return The chunk, or <code>null</code> once the sequence has ended.
+     * @throws IOException
+     *             If the chunk cannot be produced or transferred. A source received from the other side of a call throws the
+     *             exception thrown by the source it streams, the exception with which the connection failed, or an
+     *             <code>InterruptedIOException</code> if the wait for the chunk is interrupted or its deadline passes.
+     */
+    T next() throws IOException;
+
+    /**
+     * Stops reading the sequence, releasing its resources. Closing a source received from the other side of a call before it has
+     * ended stops the sender.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,31 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote interface whose concurrent identical calls may share one execution.
+ *
+ * <p>
+ * When a skeleton receives a call to a marked method while a call to the same method with equal arguments is already running, it
+ * does not run the method again: the new call waits for the running one, and is answered with the same result or exception. A
+ * burst of identical calls, such as hundreds of clients looking up the same popular file at once, then costs the server a single
+ * execution. Arguments are compared with <code>equals</code>, element by element for arrays.
+ *
+ * <p>
+ * Only methods that are idempotent and have no effect other than returning a result may be marked. A call sharing an execution
+ * may observe the state of the server as it was shortly before the call arrived, when the shared execution started; methods whose
+ * callers cannot tolerate this must not be marked. If the call whose execution is shared is cancelled, the calls waiting for it
+ * run the method again themselves. Methods streaming chunks cannot be marked.
+ *
+ * <p>
+ * The number of calls answered by sharing an execution is counted in the skeleton's {@link MethodStats}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Coalesce {
+}
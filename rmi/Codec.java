@@ -0,0 +1,120 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encoding of method calls and their results into frame payloads.
+ *
+ * <p>
+ * Two codecs are provided:
+ * <ul>
+ * <li>{@link #serialization()} uses Java serialization for every value.</li>
+ * <li>{@link #binary()} writes the types used by the filesystem interfaces - paths, byte arrays, strings, primitives, arrays of
+ * paths and strings, and stubs - in a compact hand-written format, and falls back to Java serialization for any other value,
+ * such as exceptions. This is the default.</li>
+ * </ul>
+ *
+ * <p>
+ * The codec used for a call is chosen by the stub, and recorded in the flags of the call frame. The skeleton decodes the call and
+ * encodes its reply with the same codec, so stubs using different codecs can call the same skeleton.
+ */
+public abstract class Codec {
+    /** Name of the system property selecting the codec used by stubs: <code>binary</code> or <code>serialization</code>. */
+    public static final String PROPERTY = "rmi.codec";
+
+    private static final Codec SERIALIZATION = new Serialization();
+    private static final Codec BINARY = new BinaryCodec();
+
+    /** Frame flag identifying the codec, or zero for Java serialization. */
+    final byte flag;
+
+    Codec(byte flag) {
+        this.flag = flag;
+    }
+
+    /** Returns the codec using Java serialization for every value. */
+    public static Codec serialization() {
+        return SERIALIZATION;
+    }
+
+    /** Returns the compact binary codec. */
+    public static Codec binary() {
+        return BINARY;
+    }
+
+    /**
+     * Returns the codec selected by the {@link #PROPERTY} system property. If the property is not set or cannot be understood,
+     * the binary codec is used.
+     *
+     * @return The codec.
+     */
+    public static Codec fromSystemProperty() {
+        String value = System.getProperty(PROPERTY, "binary");
+        if (value.equals("serialization")) {
+            return SERIALIZATION;
+        }
+        if (!value.equals("binary")) {
+            System.err.println("ignoring invalid " + PROPERTY + " setting " + value);
+        }
+        return BINARY;
+    }
+
+    /** Returns the codec with which the payload of a frame was encoded. */
+    static Codec of(Frame frame) {
+        return frame.has(Frame.BINARY) ? BINARY : SERIALIZATION;
+    }
+
+    /**
+     * Encodes a value into a frame payload.
+     *
+     * @param value
+     *            Value to be encoded, or <code>null</code>.
+     * @return The encoded form of the value.
+     * @throws IOException
+     *             If the value cannot be encoded.
+     */
+    public abstract byte[] encode(Object value) throws IOException;
+
+    /**
+     * Decodes a value from a frame payload.
+     *
+     * @param payload
+     *            Encoded form of the value.
+     * @return The value.
+     * @throws IOException
+     *             If the payload is malformed.
+     * @throws ClassNotFoundException
+     *             If the class of the value cannot be loaded.
+     */
+    public abstract Object decode(byte[] payload) throws IOException, ClassNotFoundException;
+
+    /** Codec using Java serialization. */
+    private static class Serialization extends Codec {
+        Serialization() {
+            super((byte) 0);
+        }
+
+        @Override
+        public byte[] encode(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
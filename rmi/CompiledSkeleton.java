@@ -0,0 +1,71 @@
+package rmi;
+
+import java.util.Arrays;
+
+/**
+ * Base class of the skeleton dispatchers generated at build time for remote interfaces marked {@link Precompiled}.
+ *
+ * <p>
+ * A generated dispatcher maps the identifier of each method of its remote interface to a position in its own switch statement,
+ * which calls the method on the server object, casting each argument to its declared type. The mapping is built once, when the
+ * dispatcher class is initialized. Dispatchers are stateless; a skeleton creates one for its server object.
+ *
+ * @param <T>
+ *            Remote interface.
+ */
+public abstract class CompiledSkeleton<T> {
+    /** Creates a dispatcher. */
+    protected CompiledSkeleton() {
+    }
+
+    /**
+     * Returns the identifier of a method of a remote interface.
+     *
+     * @param remote
+     *            Remote interface.
+     * @param name
+     *            Name of the method.
+     * @param parameters
+     *            Parameter types of the method.
+     * @return The identifier.
+     * @throws Error
+     *             If the interface has no such method, because the dispatcher was generated from a different version of it.
+     */
+    protected static int method(Class<?> remote, String name, Class<?>... parameters) {
+        return MethodTable.of(remote).generated(name, parameters);
+    }
+
+    /**
+     * Maps method identifiers to positions in a switch statement.
+     *
+     * @param remote
+     *            Remote interface.
+     * @param ids
+     *            Identifier of the method at each position.
+     * @return The position of each method, indexed by identifier.
+     */
+    protected static int[] positions(Class<?> remote, int... ids) {
+        int[] positions = new int[MethodTable.of(remote).methods.length];
+        Arrays.fill(positions, -1);
+        for (int position = 0; position < ids.length; position++) {
+            positions[ids[position]] = position;
+        }
+        return positions;
+    }
+
+    /**
+     * Calls a method of the server object.
+     *
+     * @param server
+     *            Server object.
+     * @param method
+     *            Identifier of the method.
+     * @param args
+     *            Arguments of the call, with primitive values boxed. Their number has been checked by the skeleton.
+     * @return The value returned by the method, boxed if it is of a primitive type, or <code>null</code> if it returns no value.
+     * @throws Throwable
+     *             The exception thrown by the method, or a <code>ClassCastException</code> if an argument is not of the
+     *             declared type.
+     */
+    protected abstract Object dispatch(T server, int method, Object[] args) throws Throwable;
+}
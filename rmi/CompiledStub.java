@@ -0,0 +1,71 @@
+package rmi;
+
+import java.io.Serializable;
+
+/**
+ * Base class of the stub classes generated at build time for remote interfaces marked {@link Precompiled}.
+ *
+ * <p>
+ * A generated stub implements each method of its remote interface by passing the method's identifier and its arguments to
+ * {@link #invoke(int, Object[])}, which makes the call as a dynamic stub would. The identifiers are looked up once, when the
+ * stub class is initialized. Instances are created by <code>Stub.create</code> only.
+ */
+public abstract class CompiledStub implements Serializable {
+    private static final long serialVersionUID = -3529173186404263513L;
+
+    /** Handler making the calls, and carrying the interface and server address. Set by the stub factory. */
+    ProxyClass<?> handler;
+
+    /** Creates a stub. The stub cannot be used until the stub factory has given it a handler. */
+    protected CompiledStub() {
+    }
+
+    /**
+     * Returns the identifier of a method of a remote interface.
+     *
+     * @param remote
+     *            Remote interface.
+     * @param name
+     *            Name of the method.
+     * @param parameters
+     *            Parameter types of the method.
+     * @return The identifier, to be passed to {@link #invoke(int, Object[])}.
+     * @throws Error
+     *             If the interface has no such method, because the stub was generated from a different version of it.
+     */
+    protected static int method(Class<?> remote, String name, Class<?>... parameters) {
+        return MethodTable.of(remote).generated(name, parameters);
+    }
+
+    /**
+     * Calls a remote method.
+     *
+     * @param method
+     *            Identifier of the method, returned by {@link #method(Class, String, Class...)}.
+     * @param args
+     *            Arguments of the call, with primitive values boxed.
+     * @return The value returned by the remote method, boxed if it is of a primitive type.
+     * @throws RMIException
+     *             If the call cannot be made.
+     * @throws Throwable
+     *             The exception thrown by the remote method, if any.
+     */
+    protected final Object invoke(int method, Object[] args) throws Throwable {
+        return handler.call(method, args);
+    }
+
+    @Override
+    public final boolean equals(Object other) {
+        return handler.sameServer(ProxyClass.of(other));
+    }
+
+    @Override
+    public final int hashCode() {
+        return handler.stubHash();
+    }
+
+    @Override
+    public final String toString() {
+        return handler.stubString();
+    }
+}
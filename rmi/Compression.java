@@ -0,0 +1,222 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frame payloads exchanged over one connection.
+ *
+ * <p>
+ * Compression is negotiated when a connection is opened: the stub sends a {@link Frame#HELLO} frame listing the compression
+ * methods it supports, and the skeleton answers with those it accepts. The stub does not wait for the answer; it sends its calls
+ * uncompressed until the answer arrives. The skeleton may compress its replies from the moment it has accepted.
+ *
+ * <p>
+ * Once negotiated, payloads of at least {@link #THRESHOLD_PROPERTY} bytes (8 KiB by default) are deflated, and sent with the
+ * {@link Frame#DEFLATED} flag if this saves at least an eighth of their size. Each payload that does not is sent as it is, and
+ * for a number of the next payloads, doubling with each successive failure, only a sample of {@link #SAMPLE} bytes is compressed
+ * first, the whole payload being compressed only if the sample compresses well. A connection carrying data that does not
+ * compress, such as images or archives, thus soon stops spending time on it, while still compressing the occasional text.
+ *
+ * <p>
+ * Each connection keeps one <code>Deflater</code> and one <code>Inflater</code>, reused for every payload and released when the
+ * connection is closed. Compression can be disabled by setting the system property {@link #PROPERTY} to <code>false</code>, on
+ * either side.
+ */
+class Compression {
+    /** Name of the system property enabling or disabling compression. Compression is enabled unless it is <code>false</code>. */
+    static final String PROPERTY = "rmi.compression";
+    /** Name of the system property giving the size, in bytes, from which payloads are compressed. */
+    static final String THRESHOLD_PROPERTY = "rmi.compression.threshold";
+    /** Compression method bit in hello frames: raw deflate. */
+    static final byte DEFLATE = 1;
+    /** Request identifier of the hello frame and of its answer. */
+    static final int HELLO_ID = 0;
+    /** Largest number of payloads sampled before being compressed after a failure to compress. */
+    private static final int MAX_BACKOFF = 64;
+    /** Size of the sample of a payload compressed to decide whether the payload is worth compressing. */
+    static final int SAMPLE = 4096;
+    /** Largest ratio of the length of a payload to the length of its deflated form. */
+    private static final int MAX_RATIO = 1032;
+
+    private static final boolean enabled = !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+    private static final int threshold = Math.max(64, Integer.getInteger(THRESHOLD_PROPERTY, 8192));
+
+    private Deflater deflater;
+    private Inflater inflater;
+    /** Number of payloads still to be sampled after the last failure to compress. Guarded by the deflater lock. */
+    private int sampled;
+    /** Number of payloads to be sampled after the next failure. Guarded by the deflater lock. */
+    private int backoff = 1;
+    private volatile boolean closed;
+
+    /** Locks guarding the deflater and the inflater, which are used by several threads of the connection. */
+    private final Object deflating = new Object();
+    private final Object inflating = new Object();
+
+    /** Returns <code>true</code> if compression has not been disabled in this virtual machine. */
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /** Builds the hello frame sent by a stub on a new connection. */
+    static Frame hello() {
+        return new Frame(Frame.HELLO, (byte) 0, HELLO_ID, new byte[] { enabled ? DEFLATE : 0 });
+    }
+
+    /**
+     * Accepts or refuses the compression methods offered by a stub.
+     *
+     * @param hello
+     *            Hello frame received by the skeleton.
+     * @return The compression state of the connection, or <code>null</code> if payloads are not to be compressed.
+     */
+    static Compression accept(Frame hello) {
+        boolean offered = hello.payload.length > 0 && (hello.payload[0] & DEFLATE) != 0;
+        return enabled && offered ? new Compression() : null;
+    }
+
+    /**
+     * Builds the answer of a skeleton to a hello frame.
+     *
+     * @param hello
+     *            Hello frame received.
+     * @param accepted
+     *            Compression state returned by {@link #accept}.
+     * @return The answer frame.
+     */
+    static Frame acknowledge(Frame hello, Compression accepted) {
+        return new Frame(Frame.REPLY, (byte) 0, hello.id, new byte[] { accepted != null ? DEFLATE : 0 });
+    }
+
+    /** Returns <code>true</code> if the answer of a skeleton to a hello frame accepts compressed payloads. */
+    static boolean accepted(Frame acknowledgement) {
+        return acknowledgement.payload.length > 0 && (acknowledgement.payload[0] & DEFLATE) != 0;
+    }
+
+    /**
+     * Compresses the payload of a frame, if it is large enough and compresses well.
+     *
+     * @param frame
+     *            Frame to be sent.
+     * @return A frame carrying the compressed payload with the {@link Frame#DEFLATED} flag, or the given frame.
+     */
+    Frame compress(Frame frame) {
+        byte[] payload = frame.payload;
+        if (payload.length < threshold || closed) {
+            return frame;
+        }
+        synchronized (deflating) {
+            if (closed) {
+                return frame;
+            }
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            if (sampled > 0) {
+                sampled--;
+                int count = Math.min(SAMPLE, payload.length);
+                if (deflate(payload, count, new byte[count - count / 8], 0) < 0) {
+                    return frame;
+                }
+            }
+            // the compressed payload, preceded by the original length, must save at least an eighth of the original
+            byte[] buffer = new byte[payload.length - payload.length / 8];
+            ByteBuffer.wrap(buffer).putInt(payload.length);
+            int length = deflate(payload, payload.length, buffer, 4);
+            if (length < 0) {
+                sampled = backoff;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                return frame;
+            }
+            backoff = 1;
+            return frame.with((byte) (frame.flags | Frame.DEFLATED), Arrays.copyOf(buffer, length));
+        }
+    }
+
+    /**
+     * Compresses the beginning of a payload into a buffer. Must be called with the deflater lock held.
+     *
+     * @return The position in the buffer following the compressed bytes, or -1 if they do not fit.
+     */
+    private int deflate(byte[] payload, int count, byte[] buffer, int offset) {
+        deflater.reset();
+        deflater.setInput(payload, 0, count);
+        deflater.finish();
+        int length = offset;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return deflater.finished() ? length : -1;
+    }
+
+    /**
+     * Restores the payload of a frame compressed by the other end of the connection.
+     *
+     * @param frame
+     *            Frame received with the {@link Frame#DEFLATED} flag.
+     * @return A frame carrying the original payload, without the flag.
+     * @throws IOException
+     *             If the compressed payload is malformed, or the connection has been closed.
+     */
+    Frame decompress(Frame frame) throws IOException {
+        byte[] payload = frame.payload;
+        if (payload.length < 4) {
+            throw new IOException("Malformed compressed payload");
+        }
+        // The original payload would have fit in a frame, and deflate cannot shrink data more than MAX_RATIO times: refuse a
+        // declared length outside these bounds before allocating for it.
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || !Frame.fits(length) || length > (long) (payload.length - 4) * MAX_RATIO) {
+            throw new IOException("Malformed compressed payload length " + length);
+        }
+        byte[] original = new byte[length];
+        synchronized (inflating) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            inflater.reset();
+            inflater.setInput(payload, 4, payload.length - 4);
+            int count = 0;
+            try {
+                while (count < length) {
+                    int inflated = inflater.inflate(original, count, length - count);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed compressed payload", e);
+            }
+            if (count != length) {
+                throw new IOException("Compressed payload ended after " + count + " of " + length + " bytes");
+            }
+        }
+        return frame.with((byte) (frame.flags & ~Frame.DEFLATED), original);
+    }
+
+    /** Releases the deflater and the inflater. Payloads are no longer compressed afterwards. */
+    void close() {
+        closed = true;
+        synchronized (deflating) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+        synchronized (inflating) {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Client side of a persistent, multiplexed connection to a skeleton.
+ *
+ * <p>
+ * Any number of threads may issue calls over one connection at the same time. Each call is sent as a frame carrying a request
+ * identifier unique to the connection; a reader thread owned by the connection receives the replies, in whatever order the
+ * skeleton produces them, and completes the future of the call each one answers. Callers may wait for the reply or, through
+ * {@link #send(byte, byte, int, byte[])}, continue without holding a thread for the outstanding call. A call with a deadline
+ * fails once the deadline passes, and the skeleton is asked to cancel it. One-way calls are sent without registering a future,
+ * under negative identifiers; the skeleton answers them only if they fail. Streaming calls also carry their chunks over the
+ * connection, interleaved with the frames of other calls; see {@link Streams}.
+ *
+ * <p>
+ * The first frame sent over a connection offers compression to the skeleton; see {@link Compression}. A connection carries the
+ * calls of one lane, control or bulk; the calls sent over a connection of the bulk lane are flagged so that the skeleton runs
+ * them apart from control calls. See {@link Bulk}.
+ *
+ * <p>
+ * If the connection fails, every call outstanding on it fails with an <code>IOException</code> and the connection is closed. The
+ * {@link ConnectionPool} then replaces it on the next call.
+ */
+class Connection {
+    /** Address of the skeleton at the other end of the connection. */
+    final InetSocketAddress destination;
+    /** Whether the connection carries the calls of the bulk lane, rather than the control lane. */
+    final boolean bulk;
+    /** Connected socket, or domain socket channel if the skeleton is on this host. See {@link LocalTransport}. */
+    private final Closeable socket;
+    /** Stream to which call frames are written. Writers synchronize on the stream. */
+    private final DataOutputStream out;
+    /** Stream from which reply frames are read by the reader thread. */
+    private final DataInputStream in;
+    /** Calls sent over the connection and not yet answered, by request identifier. */
+    private final ConcurrentHashMap<Integer, CompletableFuture<Frame>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<Frame>>();
+    /** Source of request identifiers. */
+    private final AtomicInteger nextId = new AtomicInteger();
+    /** Source of the identifiers of one-way calls, which are negative so that their failures are told from late replies. */
+    private final AtomicInteger nextOneWay = new AtomicInteger();
+    /** Listener told of the failures of one-way calls, or <code>null</code>. See {@link Stub#setOneWayListener}. */
+    static volatile BiConsumer<InetSocketAddress, Throwable> oneWayListener;
+    /** Set once the connection has failed or has been closed. */
+    private volatile boolean closed;
+    /** Reason the connection failed, if it did. */
+    private volatile IOException failure;
+    /** Time at which the last call over the connection completed, in milliseconds. */
+    volatile long lastUsed;
+    /** Number of calls completed over this connection. */
+    final AtomicInteger calls = new AtomicInteger();
+    /** Compression state of the connection, or <code>null</code> if compression is disabled. */
+    private final Compression compression;
+    /** Set once the skeleton has accepted compressed calls. */
+    private volatile boolean compressing;
+    /**
+     * Failure of a call that was not written whole to the connection, and therefore cannot have been run by the skeleton. Only
+     * such calls may be sent again.
+     */
+    static final class UnsentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /** Streams of the streaming calls in progress on this connection. */
+    private final Streams streams = new Streams(new Streams.Writer() {
+        @Override
+        public void write(Frame frame) throws IOException {
+            if (closed) {
+                throw closedException();
+            }
+            synchronized (out) {
+                frame.write(out);
+                out.flush();
+            }
+        }
+    });
+
+    /**
+     * Opens a connection to the skeleton at the given address and starts its reader thread. A skeleton on this host is reached
+     * over its domain socket, if it has one.
+     *
+     * @param destination
+     *            Skeleton address.
+     * @param bulk
+     *            Whether the connection carries the calls of the bulk lane, rather than the control lane.
+     * @throws IOException
+     *             If the socket cannot be connected.
+     */
+    Connection(InetSocketAddress destination, boolean bulk) throws IOException {
+        this.destination = destination;
+        this.bulk = bulk;
+        SocketChannel local = LocalTransport.connect(destination);
+        socket = local != null ? local : new Socket(destination.getAddress(), destination.getPort());
+        // compressing payloads sent over a domain socket would only cost time
+        compression = Compression.enabled() && local == null ? new Compression() : null;
+        try {
+            if (local != null) {
+                out = new DataOutputStream(new BufferedOutputStream(LocalTransport.output(local)));
+                in = new DataInputStream(new BufferedInputStream(LocalTransport.input(local)));
+            } else {
+                Socket tcp = (Socket) socket;
+                tcp.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+            }
+            if (compression != null) {
+                // the answer is handled by the reader thread; calls are not held back waiting for it
+                Compression.hello().write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, (bulk ? "rmi-bulk-connection-" : "rmi-connection-") + destination);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request and waits for its reply.
+     *
+     * @param type
+     *            Type of the request frame.
+     * @param flags
+     *            Flags of the request frame, naming the codec with which the payload is encoded. The reply is encoded with the
+     *            same codec.
+     * @param timeout
+     *            Time allowed for the reply in milliseconds, or zero if the call has no deadline.
+     * @param payload
+     *            The encoded method call or batch of calls.
+     * @return The reply frame.
+     * @throws IOException
+     *             If the call cannot be sent, or the connection fails before the reply is received.
+     * @throws TimeoutException
+     *             If the reply is not received shortly after the deadline. The skeleton is asked to cancel the call.
+     */
+    Frame call(byte type, byte flags, int timeout, byte[] payload) throws IOException, TimeoutException {
+        int id = nextId.incrementAndGet();
+        return await(id, send(id, type, flags, timeout, payload));
+    }
+
+    /**
+     * Makes a call to a streaming method and waits for its reply. The chunks of the call's upstream source, if any, are sent as
+     * the skeleton grants credit for them, until the source ends or the skeleton stops reading it.
+     *
+     * @param codec
+     *            Codec with which the payload is encoded, and with which the chunks are to be encoded.
+     * @param timeout
+     *            Time allowed for the reply in milliseconds, or zero if the call has no deadline.
+     * @param payload
+     *            The encoded method call, in which the argument of the <code>ChunkSource</code> parameter is <code>null</code>.
+     * @param upstream
+     *            Source of the chunks to be streamed to the skeleton, or <code>null</code> if there are none. It is closed.
+     * @param concurrently
+     *            Whether the chunks are sent by a thread of their own, so that the caller may read the stream resulting from
+     *            the call while the server is still reading the chunks. Otherwise they are sent by the calling thread, before it
+     *            waits for the reply.
+     * @return The reply frame. If it has the {@link Frame#STREAM} flag, the result of the call is the source returned by
+     *         {@link #received(int)} for the identifier of the reply.
+     * @throws IOException
+     *             If the call cannot be sent, or the connection fails before the reply is received.
+     * @throws TimeoutException
+     *             If the reply is not received shortly after the deadline. The skeleton is asked to cancel the call.
+     */
+    Frame stream(final Codec codec, int timeout, byte[] payload, final ChunkSource<?> upstream, boolean concurrently)
+            throws IOException, TimeoutException {
+        if (upstream == null) {
+            return call(Frame.CALL, codec.flag, timeout, payload);
+        }
+        final int id = nextId.incrementAndGet();
+        final Streams.Outbound stream = streams.outbound(id);
+        CompletableFuture<Frame> reply = send(id, Frame.CALL, (byte) (codec.flag | Frame.STREAM), timeout, payload);
+        // once the call has failed or returned a plain result, the rest of its stream is of no use to the skeleton
+        reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+            @Override
+            public void accept(Frame frame, Throwable error) {
+                if (error != null || !frame.has(Frame.STREAM)) {
+                    streams.cancel(id);
+                }
+            }
+        });
+        if (concurrently) {
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pump(stream, upstream, codec);
+                }
+            }, "rmi-stream-" + destination);
+            sender.setDaemon(true);
+            sender.start();
+        } else {
+            pump(stream, upstream, codec);
+        }
+        return await(id, reply);
+    }
+
+    /** Sends the chunks of a source, then the end of the stream. */
+    private void pump(Streams.Outbound stream, ChunkSource<?> source, Codec codec) {
+        try {
+            streams.write(stream.pump(source, codec));
+        } catch (IOException e) {
+            // the connection has failed, which fails the call as well
+        }
+    }
+
+    /**
+     * Returns the stream of chunks resulting from a streaming call.
+     *
+     * @param id
+     *            Identifier of the reply, which has the {@link Frame#STREAM} flag.
+     * @return The stream, or <code>null</code> if it has already been read.
+     */
+    ChunkSource<Object> received(int id) {
+        return streams.inbound(id);
+    }
+
+    /**
+     * Waits for the reply to a call. If the caller is interrupted first, the call is abandoned: the skeleton is asked to cancel
+     * it, and a reply arriving later is discarded.
+     *
+     * @param id
+     *            Request identifier of the call.
+     * @param reply
+     *            Future completed with the reply.
+     * @return The reply frame.
+     * @throws InterruptedIOException
+     *             If the caller is interrupted before the reply is received. The interrupt status of the thread is kept.
+     * @throws IOException
+     *             If the connection fails before the reply is received.
+     * @throws TimeoutException
+     *             If the reply is not received in time.
+     */
+    private Frame await(int id, CompletableFuture<Frame> reply) throws IOException, TimeoutException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return reply.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    // a reply that has already been taken by the reader thread is about to complete the future
+                    if (pending.remove(id, reply)) {
+                        InterruptedIOException abandoned = new InterruptedIOException("Call to " + destination + " interrupted");
+                        reply.completeExceptionally(abandoned);
+                        cancel(id);
+                        throw abandoned;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof TimeoutException) {
+                        throw (TimeoutException) e.getCause();
+                    }
+                    throw (IOException) e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends a request without waiting for its reply.
+     *
+     * <p>
+     * The returned future is completed by the connection's reader thread when the reply arrives. Dependent actions registered
+     * on it without an executor therefore run on the reader thread, and must not block.
+     *
+     * @param type
+     *            Type of the request frame.
+     * @param flags
+     *            Flags of the request frame, naming the codec with which the payload is encoded. The reply is encoded with the
+     *            same codec.
+     * @param timeout
+     *            Time allowed for the reply in milliseconds, or zero if the call has no deadline.
+     * @param payload
+     *            The encoded method call or batch of calls.
+     * @return A future completed with the reply frame, or completed exceptionally with an {@link UnsentException} if the call
+     *         cannot be sent, an <code>IOException</code> if the connection fails before the reply is received, or a
+     *         <code>TimeoutException</code> if the reply is not received in time.
+     */
+    CompletableFuture<Frame> send(byte type, byte flags, int timeout, byte[] payload) {
+        return send(nextId.incrementAndGet(), type, flags, timeout, payload);
+    }
+
+    /** Sends a request with the given identifier without waiting for its reply, as {@link #send(byte, byte, int, byte[])}. */
+    private CompletableFuture<Frame> send(final int id, byte type, byte flags, int timeout, byte[] payload) {
+        final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+        // a request the skeleton would reject is refused without failing the other calls on the connection
+        if (!Frame.fits(payload.length)) {
+            reply.completeExceptionally(tooLarge(payload));
+            return reply;
+        }
+        pending.put(id, reply);
+        try {
+            // the connection may have failed while the call was being registered; the reader thread will not see this call
+            if (closed) {
+                throw closedException();
+            }
+            Frame frame = new Frame(type, bulk ? (byte) (flags | Frame.BULK) : flags, id, timeout, payload);
+            if (compressing) {
+                frame = compression.compress(frame);
+            }
+            synchronized (out) {
+                frame.write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            reply.completeExceptionally(new UnsentException(e));
+            fail(e);
+            return reply;
+        }
+
+        if (timeout > 0) {
+            final ScheduledFuture<?> expiry = Deadline.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(id);
+                }
+            }, timeout + Deadline.GRACE, TimeUnit.MILLISECONDS);
+            reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+                @Override
+                public void accept(Frame frame, Throwable error) {
+                    expiry.cancel(false);
+                }
+            });
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a one-way call, without waiting for its outcome. The skeleton answers the call only if it fails; the failure is
+     * then reported to {@link #oneWayListener}. See {@link OneWay}.
+     *
+     * @param flags
+     *            Flags of the call frame, naming the codec with which the payload is encoded.
+     * @param timeout
+     *            Time allowed for the call to run in milliseconds, or zero if the call has no deadline.
+     * @param payload
+     *            The encoded method call.
+     * @throws UnsentException
+     *             If the call cannot be sent.
+     * @throws IOException
+     *             If the call is too large to be sent in a frame.
+     */
+    void post(byte flags, int timeout, byte[] payload) throws IOException {
+        if (!Frame.fits(payload.length)) {
+            throw tooLarge(payload);
+        }
+        if (closed) {
+            throw new UnsentException(closedException());
+        }
+        Frame frame = new Frame(Frame.ONEWAY, bulk ? (byte) (flags | Frame.BULK) : flags,
+                nextOneWay.incrementAndGet() | Integer.MIN_VALUE, timeout, payload);
+        try {
+            if (compressing) {
+                frame = compression.compress(frame);
+            }
+            synchronized (out) {
+                frame.write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw new UnsentException(e);
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Reports the failure of a one-way call to the listener, if any.
+     *
+     * @param destination
+     *            Address of the skeleton called.
+     * @param cause
+     *            Exception with which the call failed.
+     */
+    static void reportOneWay(InetSocketAddress destination, Throwable cause) {
+        BiConsumer<InetSocketAddress, Throwable> listener = oneWayListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.accept(destination, cause);
+        } catch (RuntimeException e) {
+            // a failing listener must not stop the thread reading replies
+            e.printStackTrace();
+        }
+    }
+
+    /** Reports the failure of a one-way call, answered by the given reply. */
+    private void failedOneWay(Frame reply) {
+        Throwable cause;
+        try {
+            cause = (Throwable) Codec.of(reply).decode(reply.payload);
+        } catch (Exception e) {
+            cause = new RMIException("Could not read the failure of a one-way call.", e);
+        }
+        reportOneWay(destination, cause);
+    }
+
+    /**
+     * Fails a call whose deadline has passed, and asks the skeleton to cancel it. A reply arriving later is discarded.
+     *
+     * @param id
+     *            Request identifier of the call.
+     */
+    private void expire(final int id) {
+        CompletableFuture<Frame> waiting = pending.remove(id);
+        if (waiting == null) {
+            return;
+        }
+        waiting.completeExceptionally(new TimeoutException("Call to " + destination + " timed out"));
+        cancel(id);
+    }
+
+    /**
+     * Asks the skeleton to cancel a call, or to stop sending its stream, without waiting for the frame to be written.
+     *
+     * @param id
+     *            Request identifier of the call.
+     */
+    private void cancel(final int id) {
+        // neither the timer thread nor the reader thread may block on a connection whose skeleton has stopped reading
+        CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (out) {
+                        new Frame(Frame.CANCEL, (byte) 0, id, new byte[0]).write(out);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /** Returns the number of calls currently waiting for a reply, or streaming chunks, on this connection. */
+    int inFlight() {
+        return pending.size() + streams.size();
+    }
+
+    /** Returns <code>true</code> if the connection has already carried at least one call. */
+    boolean reused() {
+        return calls.get() > 0;
+    }
+
+    /** Returns <code>true</code> if the connection has failed or has been closed. */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Closes the connection. Calls outstanding on it fail. */
+    void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+    /** Receives reply frames and delivers them to the waiting callers until the connection fails. */
+    private void readReplies() {
+        boolean negotiated = compression == null;
+        try {
+            while (true) {
+                Frame reply = Frame.read(in);
+                if (!negotiated && reply.id == Compression.HELLO_ID) {
+                    negotiated = true;
+                    compressing = Compression.accepted(reply);
+                    continue;
+                }
+                if (reply.has(Frame.DEFLATED)) {
+                    if (compression == null) {
+                        throw new IOException("Compressed reply received, but compression was not negotiated");
+                    }
+                    reply = compression.decompress(reply);
+                }
+                if (streams.receive(reply)) {
+                    continue;
+                }
+                if (reply.type == Frame.CANCEL) {
+                    // the server has stopped reading the stream of a call
+                    streams.cancel(reply.id);
+                    continue;
+                }
+                CompletableFuture<Frame> waiting = pending.remove(reply.id);
+                if (waiting != null) {
+                    calls.incrementAndGet();
+                    lastUsed = System.currentTimeMillis();
+                    if (reply.has(Frame.STREAM)) {
+                        // the chunks following the reply must find their stream
+                        streams.open(reply.id);
+                    }
+                    waiting.complete(reply);
+                } else if (reply.has(Frame.STREAM)) {
+                    cancel(reply.id);
+                } else if (reply.id < 0 && reply.has(Frame.EXCEPTION)) {
+                    failedOneWay(reply);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Marks the connection as failed, closes the socket and wakes every caller waiting for a reply.
+     *
+     * @param cause
+     *            Reason for the failure. Only the first failure is recorded.
+     */
+    private void fail(IOException cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            failure = cause;
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (compression != null) {
+            compression.close();
+        }
+        IOException error = closedException();
+        streams.fail(error);
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<Frame> waiting = pending.remove(id);
+            if (waiting != null) {
+                waiting.completeExceptionally(error);
+            }
+        }
+    }
+
+    /** Creates the exception reported to callers of a request too large to be sent in a frame. */
+    private static IOException tooLarge(byte[] payload) {
+        return new IOException("Request of " + payload.length + " bytes exceeds the frame limit of " + Frame.MAX_LENGTH
+                + " bytes");
+    }
+
+    /** Creates the exception reported to callers of a failed connection. */
+    private IOException closedException() {
+        return new IOException("Connection to " + destination + " failed", failure);
+    }
+}
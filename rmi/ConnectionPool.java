@@ -0,0 +1,246 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of persistent stub connections, keyed by skeleton address and lane.
+ *
+ * <p>
+ * Connections are multiplexed: every stub for a given skeleton address shares the connections in the pool, and many calls may be
+ * outstanding on one connection at once. A call is sent over the least loaded connection to its destination. Additional
+ * connections, up to {@link #MAX_CONNECTIONS}, are opened only when every existing one already has {@link #PIPELINE_DEPTH} calls
+ * in flight, so that one large transfer does not hold up every other call to the same skeleton. Connections being opened count
+ * toward the limit, so that many callers starting at once on an empty pool share the first connections rather than each opening
+ * one.
+ *
+ * <p>
+ * The control and bulk lanes have connections of their own, each up to the maximum, so that control calls are never queued
+ * behind the frames of bulk transfers on a socket. See {@link Bulk}.
+ *
+ * <p>
+ * Connections without calls in flight that stay idle for longer than {@link #IDLE_TIMEOUT} are closed by a background thread.
+ * The skeleton closes connections that are idle for longer still, so a pooled connection is normally closed by the stub first.
+ *
+ * <p>
+ * All stubs in the virtual machine share the pool returned by {@link #shared()}.
+ */
+class ConnectionPool {
+    /** Time after which an idle connection is closed, in milliseconds. */
+    static final long IDLE_TIMEOUT = 30000;
+    /** Maximum number of connections kept for each skeleton address, in each lane. */
+    static final int MAX_CONNECTIONS = 4;
+    /** Number of calls in flight on a connection above which another connection is opened, if allowed. */
+    static final int PIPELINE_DEPTH = 32;
+
+    /** Pool shared by all stubs. */
+    private static final ConnectionPool shared = new ConnectionPool();
+
+    /** Connections of the control lane for each skeleton address. */
+    private final Map<InetSocketAddress, Destination> control = new HashMap<InetSocketAddress, Destination>();
+    /** Connections of the bulk lane for each skeleton address. */
+    private final Map<InetSocketAddress, Destination> bulk = new HashMap<InetSocketAddress, Destination>();
+    /** Thread closing connections that have been idle for too long. */
+    private Thread evictor;
+
+    /**
+     * Connections of one lane to one skeleton address. A connection being opened holds one of the {@link #MAX_CONNECTIONS}
+     * slots from the time it is decided on, so that callers arriving together do not each open one.
+     */
+    private static final class Destination {
+        /** Open connections. */
+        final List<Connection> connections = new ArrayList<Connection>();
+        /** Number of connections being opened. */
+        int opening;
+
+        /** Drops the closed connections, and returns the least loaded of the others, or of those not yet used if asked. */
+        Connection leastLoaded(boolean unused) {
+            Connection best = null;
+            Iterator<Connection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (connection.isClosed()) {
+                    iterator.remove();
+                } else if ((!unused || !connection.reused()) && (best == null || connection.inFlight() < best.inFlight())) {
+                    best = connection;
+                }
+            }
+            return best;
+        }
+
+        /** Returns <code>true</code> if the destination has no connection, open or being opened. */
+        boolean isEmpty() {
+            return connections.isEmpty() && opening == 0;
+        }
+    }
+
+    /** Returns the pool shared by all stubs. */
+    static ConnectionPool shared() {
+        return shared;
+    }
+
+    /**
+     * Obtains a connection to the given skeleton over which a call can be sent.
+     *
+     * @param destination
+     *            Skeleton address.
+     * @param bulk
+     *            Whether the call is in the bulk lane, rather than the control lane.
+     * @return A connection, possibly shared with other callers.
+     * @throws IOException
+     *             If a new connection is required and cannot be opened.
+     */
+    Connection acquire(InetSocketAddress destination, boolean bulk) throws IOException {
+        return obtain(destination, bulk, false);
+    }
+
+    /**
+     * Obtains a connection to the given skeleton that has not carried calls yet, opening one if there is none.
+     *
+     * <p>
+     * This is used to replace a pooled connection that turned out to have been closed by the skeleton. If the pool already holds
+     * {@link #MAX_CONNECTIONS} connections to the skeleton, all of which have carried calls, the least loaded of them is returned
+     * instead.
+     *
+     * @param destination
+     *            Skeleton address.
+     * @param bulk
+     *            Whether the connection is to carry the calls of the bulk lane, rather than the control lane.
+     * @return The connection.
+     * @throws IOException
+     *             If the connection cannot be opened.
+     */
+    Connection connect(InetSocketAddress destination, boolean bulk) throws IOException {
+        return obtain(destination, bulk, true);
+    }
+
+    /**
+     * Returns a pooled connection, or opens a new one if the pooled connections are all busy and the limit allows it. A caller
+     * finding every slot taken by connections still being opened waits for one of them to open, and shares it.
+     *
+     * @param unused
+     *            Whether only a connection that has not carried calls yet may be shared, while the limit allows opening one.
+     * @throws IOException
+     *             If the connection cannot be opened, or the caller is interrupted while waiting for one.
+     */
+    private Connection obtain(InetSocketAddress address, boolean bulk, boolean unused) throws IOException {
+        Destination destination;
+        synchronized (this) {
+            destination = lane(bulk).get(address);
+            if (destination == null) {
+                destination = new Destination();
+                lane(bulk).put(address, destination);
+            }
+            while (true) {
+                Connection best = destination.leastLoaded(false);
+                Connection candidate = unused ? destination.leastLoaded(true) : best;
+                int slots = destination.connections.size() + destination.opening;
+                if (candidate != null && (candidate.inFlight() < PIPELINE_DEPTH || slots >= MAX_CONNECTIONS)) {
+                    return candidate;
+                }
+                if (slots < MAX_CONNECTIONS) {
+                    destination.opening++;
+                    break;
+                }
+                if (best != null) {
+                    return best;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + address);
+                }
+            }
+        }
+
+        // the slot reserved above keeps the number of connections within the limit while this one is opened
+        Connection connection = null;
+        try {
+            connection = new Connection(address, bulk);
+            return connection;
+        } finally {
+            synchronized (this) {
+                destination.opening--;
+                if (connection != null) {
+                    destination.connections.add(connection);
+                    startEvictor();
+                } else if (destination.isEmpty()) {
+                    lane(bulk).remove(address);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Returns the connections of a lane. */
+    private Map<InetSocketAddress, Destination> lane(boolean bulk) {
+        return bulk ? this.bulk : control;
+    }
+
+    /** Starts the eviction thread, if it is not already running. */
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, "rmi-connection-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Periodically closes connections that have no calls in flight and have been idle for longer than {@link #IDLE_TIMEOUT}.
+     * The thread exits once the pool is empty, and is restarted when the next connection is opened.
+     */
+    private void evictIdle() {
+        while (true) {
+            try {
+                Thread.sleep(IDLE_TIMEOUT / 2);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                evictIdle(control, now);
+                evictIdle(bulk, now);
+                if (control.isEmpty() && bulk.isEmpty()) {
+                    evictor = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Closes the idle connections of a lane. The caller holds the lock of the pool. */
+    private static void evictIdle(Map<InetSocketAddress, Destination> lane, long now) {
+        Iterator<Destination> destinations = lane.values().iterator();
+        while (destinations.hasNext()) {
+            Destination destination = destinations.next();
+            Iterator<Connection> iterator = destination.connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (connection.isClosed()) {
+                    iterator.remove();
+                } else if (connection.inFlight() == 0 && now - connection.lastUsed >= IDLE_TIMEOUT) {
+                    connection.close();
+                    iterator.remove();
+                }
+            }
+            if (destination.isEmpty()) {
+                destinations.remove();
+            }
+        }
+    }
+}
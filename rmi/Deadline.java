@@ -0,0 +1,286 @@
+package rmi;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time by which remote calls must complete.
+ *
+ * <p>
+ * A deadline applies to the calls made by the thread that set it, until it is closed:
+ *
+ * <pre>
+ * try (Deadline deadline = Deadline.after(5, TimeUnit.SECONDS)) {
+ *     storage.read(file);
+ * }
+ * </pre>
+ *
+ * A deadline set while another is in effect can only shorten it. Calls made with no deadline in effect are bounded by the default
+ * timeout given in milliseconds by the system property {@link #PROPERTY}; by default they are not bounded.
+ *
+ * <p>
+ * The time left to a call is sent to the skeleton with the call. The skeleton does not start a call whose deadline has passed,
+ * and cancels a running call when its deadline passes, by interrupting the thread running it; the stub then fails the call with
+ * an {@link RMITimeoutException}. If the skeleton has not answered shortly after the deadline, the stub fails the call anyway and
+ * asks the skeleton to cancel it.
+ * While a call with a deadline runs, its deadline is in effect in the thread running it, so calls it makes to other servers are
+ * bounded by the time left to it; server code may also check {@link #cancelled()} to stop work that is no longer wanted.
+ */
+public class Deadline implements AutoCloseable {
+    /** Name of the system property giving the default timeout of calls, in milliseconds. Zero means no timeout. */
+    public static final String PROPERTY = "rmi.timeout";
+    /**
+     * Time a stub keeps waiting past the deadline of a call, in milliseconds, so that the answer of the skeleton, which tells
+     * whether the call took effect, can still arrive.
+     */
+    static final long GRACE = 100;
+
+    private static final long defaultTimeout = TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROPERTY, 0));
+    /** Deadline in effect in each thread. */
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+    /** Timer expiring calls on stubs and cancelling them on skeletons. */
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "rmi-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Deadline, in <code>System.nanoTime</code> units. */
+    private final long deadline;
+    /** Deadline in effect before this one was set, restored when this one is closed. */
+    private final Deadline enclosing;
+
+    /** Thread running the call bounded by this deadline on a skeleton, while it runs. */
+    private Thread runner;
+    /** Task cancelling the call when its deadline passes. */
+    private ScheduledFuture<?> expiry;
+    private volatile boolean cancelled;
+    /** Set if the runner has been interrupted to cancel the call. */
+    private boolean interrupted;
+    /** Set once the call has taken effect or ended, after which it is no longer cancelled. */
+    private boolean committed;
+
+    private Deadline(long deadline, Deadline enclosing) {
+        this.deadline = deadline;
+        this.enclosing = enclosing;
+    }
+
+    /**
+     * Sets a deadline for the calls made by the current thread.
+     *
+     * @param timeout
+     *            Time allowed, from now.
+     * @param unit
+     *            Unit of <code>timeout</code>.
+     * @return The deadline, to be closed when the calls it bounds have been made. Closing it restores the deadline previously in
+     *         effect.
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        Deadline enclosing = current.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (enclosing != null && enclosing.deadline - deadline < 0) {
+            deadline = enclosing.deadline;
+        }
+        Deadline result = new Deadline(deadline, enclosing);
+        current.set(result);
+        return result;
+    }
+
+    /** Returns the deadline in effect in the current thread, or <code>null</code> if there is none. */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread is running a call on a skeleton, and the call's deadline has passed or the
+     * stub has cancelled it.
+     */
+    public static boolean cancelled() {
+        Deadline call = running();
+        return call != null && (call.cancelled || call.expired());
+    }
+
+    /**
+     * Declares that the call running in the current thread has taken effect, so that it is no longer cancelled. Server code
+     * whose effect must be undone if the stub gives up on the call, such as taking a lock, calls this method once the effect has
+     * taken place, and undoes it if the call has already been cancelled.
+     *
+     * @return <code>false</code> if the call has been cancelled or its deadline has passed, in which case the stub fails the call
+     *         with an <code>RMITimeoutException</code>; <code>true</code> otherwise, including when the current thread is not
+     *         running a call with a deadline.
+     */
+    public static boolean commit() {
+        Deadline call = running();
+        if (call == null) {
+            return true;
+        }
+        synchronized (call) {
+            if (call.cancelled || call.expired()) {
+                call.cancelled = true;
+                return false;
+            }
+            call.committed = true;
+            return true;
+        }
+    }
+
+    /** Returns the deadline of the call the current thread is running on a skeleton, or <code>null</code> if there is none. */
+    private static Deadline running() {
+        for (Deadline deadline = current.get(); deadline != null; deadline = deadline.enclosing) {
+            if (deadline.runner == Thread.currentThread()) {
+                return deadline;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the time left before the deadline, in the given unit. The result is negative once the deadline has passed. */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns <code>true</code> if the deadline has passed. */
+    public boolean expired() {
+        return deadline - System.nanoTime() <= 0;
+    }
+
+    /** Restores the deadline that was in effect when this one was set. */
+    @Override
+    public void close() {
+        if (current.get() == this) {
+            current.set(enclosing);
+        }
+    }
+
+    /**
+     * Returns the timeout of a call made now by the current thread.
+     *
+     * @return The time left to the call in milliseconds, at least one, or zero if the call is not bounded.
+     * @throws RMITimeoutException
+     *             If the deadline in effect has already passed.
+     */
+    static int timeout() throws RMITimeoutException {
+        Deadline deadline = current.get();
+        long nanos;
+        if (deadline != null) {
+            nanos = deadline.deadline - System.nanoTime();
+        } else if (defaultTimeout > 0) {
+            nanos = defaultTimeout;
+        } else {
+            return 0;
+        }
+        if (nanos <= 0) {
+            throw new RMITimeoutException("Deadline passed before the call was made.");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+    }
+
+    /**
+     * Schedules a task to run after a delay.
+     *
+     * @return A future through which the task can be cancelled.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long timeout, TimeUnit unit) {
+        return timer.schedule(task, timeout, unit);
+    }
+
+    /**
+     * Creates the deadline of a call received by a skeleton.
+     *
+     * @param call
+     *            Call frame.
+     * @return The deadline, or <code>null</code> if the call has none.
+     */
+    static Deadline received(Frame call) {
+        if (!call.has(Frame.DEADLINE)) {
+            return null;
+        }
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(call.timeout), null);
+    }
+
+    /**
+     * Creates the deadline of a call dispatched directly to a skeleton in this virtual machine, to be run in the calling thread.
+     * The deadline is that in effect in the thread, or the default timeout from now.
+     *
+     * @return The deadline, or <code>null</code> if the call is not bounded.
+     * @throws RMITimeoutException
+     *             If the deadline in effect has already passed.
+     */
+    static Deadline direct() throws RMITimeoutException {
+        int timeout = timeout();
+        if (timeout == 0) {
+            return null;
+        }
+        Deadline enclosing = current.get();
+        long deadline = enclosing != null ? enclosing.deadline : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        return new Deadline(deadline, enclosing);
+    }
+
+    /**
+     * Starts running the call bounded by this deadline in the current thread, making it the deadline in effect in the thread and
+     * arranging for the thread to be interrupted when it passes.
+     *
+     * @return <code>false</code> if the call has been cancelled or its deadline has passed, in which case it must not be run.
+     */
+    synchronized boolean enter() {
+        if (cancelled || expired()) {
+            cancelled = true;
+            return false;
+        }
+        runner = Thread.currentThread();
+        current.set(this);
+        expiry = schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Ends the call started by {@link #enter()}, restoring the deadline previously in effect in the thread. Clears any interrupt
+     * delivered to cancel the call; the call is not cancelled afterwards.
+     *
+     * @return <code>true</code> if the call was cancelled while it ran, in which case its result only reflects the interruption
+     *         and must not be returned to the stub.
+     */
+    synchronized boolean exit() {
+        expiry.cancel(false);
+        if (enclosing != null) {
+            current.set(enclosing);
+        } else {
+            current.remove();
+        }
+        runner = null;
+        committed = true;
+        if (interrupted) {
+            Thread.interrupted();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancels the call bounded by this deadline, interrupting the thread running it if it has started. A call that has taken
+     * effect is not cancelled.
+     */
+    synchronized void cancel() {
+        if (committed) {
+            return;
+        }
+        cancelled = true;
+        if (runner != null) {
+            runner.interrupt();
+            interrupted = true;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unit of the RMI wire protocol.
+ *
+ * <p>
+ * Every message exchanged between a stub and a skeleton is a frame: a length prefix followed by a frame type, a set of flags, a
+ * request identifier and an opaque payload, encoded by a {@link Codec}. The identifier of a reply is that of the call it
+ * answers, which allows a stub to have many calls outstanding on one connection and a skeleton to answer them in any order. A
+ * request with a {@link Deadline} also carries the time left to it when it was sent. The chunks of a streaming call are sent as
+ * frames of their own, carrying the identifier of the call.
+ *
+ * <pre>
+ * int    length of the remainder of the frame
+ * byte   type
+ * byte   flags
+ * int    request identifier
+ * int    time left to the call, in milliseconds, if the DEADLINE flag is set
+ * byte[] payload
+ * </pre>
+ */
+class Frame {
+    /** Frame carrying a <code>MethodCall</code>. */
+    static final byte CALL = 1;
+    /** Frame carrying the result of a call. */
+    static final byte REPLY = 2;
+    /** Frame carrying an array of <code>MethodCall</code> objects, to be made one after the other. */
+    static final byte BATCH = 3;
+    /**
+     * Frame sent by a stub as the first frame of a connection, carrying the compression methods it supports. The skeleton
+     * answers it with a reply frame of the same identifier. See {@link Compression}.
+     */
+    static final byte HELLO = 4;
+    /**
+     * Frame sent by a stub to cancel a call whose deadline has passed, or by either side to stop the sender of a stream it no
+     * longer reads. It carries the identifier of the call and no payload.
+     */
+    static final byte CANCEL = 5;
+    /** Frame carrying one chunk of the stream of a call. See {@link Streams}. */
+    static final byte DATA = 6;
+    /** Frame ending the stream of a call. Its payload is empty, or is the exception that ended the stream. */
+    static final byte END = 7;
+    /** Frame granting the sender of the stream of a call credit for more chunks. Its payload is the number of chunks. */
+    static final byte CREDIT = 8;
+    /**
+     * Frame carrying a <code>MethodCall</code> whose stub does not wait for its outcome. The skeleton answers it only if it
+     * fails, with an exception reply. See {@link OneWay}.
+     */
+    static final byte ONEWAY = 9;
+
+    /** Reply flag: the payload is an exception thrown by the call, rather than its return value. */
+    static final byte EXCEPTION = 1;
+    /** Flag: the payload is encoded with the binary codec, rather than with Java serialization. */
+    static final byte BINARY = 2;
+    /** Flag: the payload has been compressed after encoding, and must be decompressed before it is decoded. */
+    static final byte DEFLATED = 4;
+    /** Request flag: the header carries the time left to the call. */
+    static final byte DEADLINE = 8;
+    /**
+     * Reply flag: the skeleton refused the call because it is overloaded, without running it. The payload is an
+     * <code>RMIOverloadException</code>, and the call may be retried.
+     */
+    static final byte OVERLOADED = 16;
+    /**
+     * Flag of a call frame: the call is followed by a stream of chunks, the argument of its <code>ChunkSource</code> parameter.
+     * Flag of a reply frame: the result of the call is a stream of chunks, which follows.
+     */
+    static final byte STREAM = 32;
+    /** Request flag: the call was sent over a connection of the bulk lane, and is run by the bulk threads. See {@link Bulk}. */
+    static final byte BULK = 64;
+
+    /** Size of the fields following the length prefix and preceding the payload, in a frame without a deadline. */
+    static final int HEADER_LENGTH = 6;
+    /** Size of the time left to a call, in the header of a frame with a deadline. */
+    static final int TIMEOUT_LENGTH = 4;
+    /** Name of the system property giving the largest frame length, in bytes. */
+    static final String MAX_LENGTH_PROPERTY = "rmi.maxFrameLength";
+    /**
+     * Largest length of a frame, following its length prefix: 16 MiB, unless set by {@link #MAX_LENGTH_PROPERTY}. Longer frames
+     * are refused before they are sent, and rejected as malformed before their payload is allocated when received. File
+     * contents larger than this are moved over the bulk data channel of the storage servers.
+     */
+    static final int MAX_LENGTH = Math.max(1024, Integer.getInteger(MAX_LENGTH_PROPERTY, 16 * 1024 * 1024));
+
+    final byte type;
+    final byte flags;
+    final int id;
+    /** Time left to the call when it was sent, in milliseconds, if the frame has the {@link #DEADLINE} flag; zero otherwise. */
+    final int timeout;
+    final byte[] payload;
+
+    Frame(byte type, byte flags, int id, byte[] payload) {
+        this(type, flags, id, 0, payload);
+    }
+
+    /**
+     * Creates a frame.
+     *
+     * @param timeout
+     *            Time left to the call in milliseconds, or zero if it has no deadline. The {@link #DEADLINE} flag is set if and
+     *            only if the timeout is positive.
+     */
+    Frame(byte type, byte flags, int id, int timeout, byte[] payload) {
+        this.type = type;
+        this.flags = (byte) (timeout > 0 ? flags | DEADLINE : flags & ~DEADLINE);
+        this.id = id;
+        this.timeout = Math.max(timeout, 0);
+        this.payload = payload;
+    }
+
+    /** Returns a copy of the frame with other flags and payload. The timeout is kept if the new flags include a deadline. */
+    Frame with(byte flags, byte[] payload) {
+        return new Frame(type, flags, id, (flags & DEADLINE) != 0 ? timeout : 0, payload);
+    }
+
+    /** Returns <code>true</code> if the frame is a request sent by a stub, to be answered by the skeleton. */
+    boolean isRequest() {
+        return type == CALL || type == BATCH || type == ONEWAY;
+    }
+
+    /** Returns <code>true</code> if a payload of the given length fits in a frame, with or without a deadline. */
+    static boolean fits(int payloadLength) {
+        return payloadLength <= MAX_LENGTH - HEADER_LENGTH - TIMEOUT_LENGTH;
+    }
+
+    /** Returns <code>true</code> if the given flag is set. */
+    boolean has(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Writes the frame. The caller is responsible for flushing the stream, and for preventing concurrent writes to it.
+     *
+     * @param out
+     *            Stream to which the frame is written.
+     * @throws IOException
+     *             If the frame is longer than {@link #MAX_LENGTH}, or cannot be written.
+     */
+    void write(DataOutputStream out) throws IOException {
+        checkLength();
+        out.writeInt(headerLength() + payload.length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(id);
+        if (has(DEADLINE)) {
+            out.writeInt(timeout);
+        }
+        out.write(payload);
+    }
+
+    /** Throws an <code>IOException</code> if the frame is longer than {@link #MAX_LENGTH}, which the peer would reject. */
+    private void checkLength() throws IOException {
+        if (payload.length > MAX_LENGTH - headerLength()) {
+            throw new IOException("Frame payload of " + payload.length + " bytes exceeds the limit of " + MAX_LENGTH + " bytes");
+        }
+    }
+
+    /** Returns the size of the fields following the length prefix and preceding the payload. */
+    private int headerLength() {
+        return has(DEADLINE) ? HEADER_LENGTH + TIMEOUT_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the frame as a header buffer followed by a buffer wrapping the payload, for use with gathering writes. The payload
+     * is not copied.
+     *
+     * @throws IOException
+     *             If the frame is longer than {@link #MAX_LENGTH}.
+     */
+    ByteBuffer[] buffers() throws IOException {
+        checkLength();
+        ByteBuffer header = ByteBuffer.allocate(4 + headerLength());
+        header.putInt(headerLength() + payload.length).put(type).put(flags).putInt(id);
+        if (has(DEADLINE)) {
+            header.putInt(timeout);
+        }
+        header.flip();
+        return new ByteBuffer[] { header, ByteBuffer.wrap(payload) };
+    }
+
+    /**
+     * Extracts a frame from a buffer of received bytes, if the buffer holds a complete one.
+     *
+     * @param buffer
+     *            Buffer in read mode. If a complete frame is present, the buffer position is advanced past it; otherwise the
+     *            position is unchanged.
+     * @return The frame, or <code>null</code> if the buffer does not yet hold a complete frame.
+     * @throws IOException
+     *             If the frame is malformed.
+     */
+    static Frame read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < HEADER_LENGTH || length > MAX_LENGTH) {
+            throw new IOException("Malformed frame length " + length);
+        }
+        if (buffer.remaining() - 4 < length) {
+            return null;
+        }
+        buffer.getInt();
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int id = buffer.getInt();
+        int timeout = 0;
+        if ((flags & DEADLINE) != 0) {
+            length -= TIMEOUT_LENGTH;
+            timeout = length < HEADER_LENGTH ? 0 : buffer.getInt();
+            if (timeout <= 0) {
+                throw new IOException("Malformed frame deadline");
+            }
+        }
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        buffer.get(payload);
+        return new Frame(type, flags, id, timeout, payload);
+    }
+
+    /**
+     * Returns the number of bytes a buffer must be able to hold for the frame starting at its position to be read, or zero if
+     * the length prefix has not yet been received.
+     */
+    static int required(ByteBuffer buffer) {
+        return buffer.remaining() < 4 ? 0 : 4 + buffer.getInt(buffer.position());
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param in
+     *            Stream from which the frame is read.
+     * @return The frame read.
+     * @throws IOException
+     *             If the frame cannot be read or is malformed. <code>EOFException</code> is thrown if the stream ends before a
+     *             complete frame has been read.
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH || length > MAX_LENGTH) {
+            throw new IOException("Malformed frame length " + length);
+        }
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        int id = in.readInt();
+        int timeout = 0;
+        if ((flags & DEADLINE) != 0) {
+            length -= TIMEOUT_LENGTH;
+            timeout = length < HEADER_LENGTH ? 0 : in.readInt();
+            if (timeout <= 0) {
+                throw new IOException("Malformed frame deadline");
+            }
+        }
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(type, flags, id, timeout, payload);
+    }
+}
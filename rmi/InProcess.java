@@ -0,0 +1,135 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+
+/**
+ * Direct dispatch of calls from stubs to skeletons running in the same virtual machine.
+ *
+ * <p>
+ * Every running skeleton is recorded here under the port on which it listens. A stub calling a skeleton at an address of the
+ * local host, for the same remote interface, then invokes the server object directly in the calling thread, without encoding
+ * the call or going through a socket.
+ *
+ * <p>
+ * The server object still sees copies of the arguments, and the caller copies of the result or exception, as it would over the
+ * network, so that neither can observe the other modifying them. Copies are made as cheaply as the values allow: immutable
+ * values such as strings, boxed primitives, paths and stubs are shared, arrays are copied element by element, and any other value
+ * is encoded and decoded with the stub's codec. A <code>ChunkSource</code> is passed as a source copying each chunk read from it.
+ *
+ * <p>
+ * Direct calls are subject to the skeleton's concurrency limit and are recorded in its statistics. A direct call whose deadline
+ * passes is cancelled by interrupting the calling thread, as a call received over a connection would be. Asynchronous stubs and
+ * batches always go through a connection. Direct dispatch can be disabled by setting the system property {@link #PROPERTY} to
+ * <code>false</code>.
+ */
+class InProcess {
+    /** Name of the system property enabling or disabling direct dispatch. It is enabled unless it is <code>false</code>. */
+    static final String PROPERTY = "rmi.inProcess";
+
+    private static final boolean enabled = !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+    /** Running skeletons, by listening port. */
+    private static final ConcurrentHashMap<Integer, Skeleton<?>> skeletons = new ConcurrentHashMap<Integer, Skeleton<?>>();
+
+    /** Records a skeleton that has started listening on the given port. */
+    static void started(int port, Skeleton<?> skeleton) {
+        skeletons.put(port, skeleton);
+    }
+
+    /** Forgets a skeleton that has stopped. */
+    static void stopped(int port, Skeleton<?> skeleton) {
+        skeletons.remove(port, skeleton);
+    }
+
+    /**
+     * Returns the skeleton running in this virtual machine to which calls to the given address may be dispatched directly.
+     *
+     * @param destination
+     *            Address of the skeleton called by a stub.
+     * @param remote
+     *            Remote interface of the stub.
+     * @return The skeleton, or <code>null</code> if the call must go through a connection.
+     */
+    static Skeleton<?> find(InetSocketAddress destination, Class<?> remote) {
+        if (!enabled || skeletons.isEmpty()) {
+            return null;
+        }
+        Skeleton<?> skeleton = skeletons.get(destination.getPort());
+        if (skeleton == null || skeleton.sclass != remote || destination.getAddress() == null
+                || !LocalTransport.isLocal(destination.getAddress())) {
+            return null;
+        }
+        return skeleton;
+    }
+
+    /**
+     * Copies a value passed between a stub and a server object.
+     *
+     * @param value
+     *            Argument, result or exception.
+     * @param codec
+     *            Codec encoding values that cannot be copied otherwise.
+     * @return A copy of the value, or the value itself if it is immutable.
+     * @throws IOException
+     *             If the value cannot be encoded or decoded.
+     */
+    static Object copy(Object value, Codec codec) throws IOException {
+        if (value == null || isImmutable(value)) {
+            return value;
+        }
+        if (value instanceof ChunkSource) {
+            return copying((ChunkSource<?>) value, codec);
+        }
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(type.getComponentType(), length);
+            if (type.getComponentType().isPrimitive()) {
+                System.arraycopy(value, 0, copy, 0, length);
+            } else {
+                Object[] elements = (Object[]) value;
+                Object[] copies = (Object[]) copy;
+                for (int index = 0; index < length; index++) {
+                    copies[index] = copy(elements[index], codec);
+                }
+            }
+            return copy;
+        }
+        try {
+            return codec.decode(codec.encode(value));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot copy " + type.getName(), e);
+        }
+    }
+
+    /** Returns a source reading the chunks of another, and copying each one. */
+    private static ChunkSource<Object> copying(final ChunkSource<?> source, final Codec codec) {
+        return new ChunkSource<Object>() {
+            @Override
+            public Object next() throws IOException {
+                return copy(source.next(), codec);
+            }
+
+            @Override
+            public void close() {
+                source.close();
+            }
+        };
+    }
+
+    /** Returns <code>true</code> if the value can be shared between the stub and the server object. */
+    private static boolean isImmutable(Object value) {
+        Class<?> type = value.getClass();
+        return type == String.class || type == Integer.class || type == Long.class || type == Boolean.class
+                || type == Path.class || type == Short.class || type == Byte.class || type == Character.class
+                || type == Double.class || type == Float.class || value instanceof Enum || value instanceof Class
+                || value instanceof CompiledStub || (Proxy.isProxyClass(type)
+                        && (Proxy.getInvocationHandler(value) instanceof ProxyClass
+                                || Proxy.getInvocationHandler(value) instanceof AsyncProxyClass));
+    }
+}
@@ -0,0 +1,110 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with bounded relative error.
+ *
+ * <p>
+ * Values are counted in buckets whose width grows with the value: each power of two is split into sixteen buckets of equal width,
+ * so that any recorded value is reported within about six percent of its true value, from nanoseconds up to minutes, in a fixed
+ * amount of memory. Recording is lock-free and may be done concurrently with reading; a reader may then see a recording partly
+ * applied.
+ */
+public class LatencyHistogram {
+    /** Number of low-order bits of a value kept within its power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+    /** Number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Largest value counted in its own bucket, in nanoseconds; larger values are counted as this value. */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param nanos
+     *            Latency, in nanoseconds. Negative values are counted as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            // retry
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long count() {
+        return count.get();
+    }
+
+    /** Returns the mean of the values recorded, in nanoseconds, or zero if none has been recorded. */
+    public long mean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /** Returns the largest value recorded, in nanoseconds. */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile of the values recorded.
+     *
+     * @param percentile
+     *            Percentile, between 0 and 100.
+     * @return An upper bound on the value below which the given percentage of the recorded values fall, in nanoseconds, or zero
+     *         if no value has been recorded.
+     */
+    public long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                return Math.min(upperBound(index), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Clears the histogram. */
+    public void reset() {
+        for (int index = 0; index < counts.length(); index++) {
+            counts.set(index, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /** Returns the bucket counting a value. */
+    private static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /** Returns the largest value counted in a bucket. */
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long sub = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,267 @@
+package rmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Unix domain sockets connecting stubs to skeletons on the same host.
+ *
+ * <p>
+ * When the system property {@link #PROPERTY} names a directory, every skeleton started listens, besides its TCP port, on a
+ * domain socket in that directory named after the port: <code>rmi-</code><em>port</em><code>.sock</code>. A stub in a virtual
+ * machine with the same setting, calling a skeleton at an address of the local host, connects to that socket if it exists, and
+ * over TCP otherwise. Skeletons on other hosts, skeletons started without the property, and virtual machines that do not support
+ * domain sockets (before Java 16) are therefore still reached over TCP. Stubs keep being addressed by their TCP address, so they
+ * may still be passed to remote clients.
+ *
+ * <p>
+ * Connections accepted over a domain socket are served as TCP connections are, according to the skeleton's service model.
+ */
+class LocalTransport {
+    /** Name of the system property giving the directory in which skeletons create their domain sockets. */
+    static final String PROPERTY = "rmi.localSockets";
+
+    private static final String directory = System.getProperty(PROPERTY);
+    /** Addresses found to be, or not to be, those of this host. */
+    private static final ConcurrentHashMap<InetAddress, Boolean> interfaces = new ConcurrentHashMap<InetAddress, Boolean>();
+
+    // looked up reflectively so that the library still builds and runs on releases without domain sockets
+    private static final ProtocolFamily family;
+    private static final Method addressOf;
+    private static final Method openChannel;
+    private static final Method openServer;
+
+    static {
+        ProtocolFamily unix = null;
+        Method of = null;
+        Method channel = null;
+        Method server = null;
+        if (directory != null) {
+            try {
+                unix = StandardProtocolFamily.valueOf("UNIX");
+                of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+                channel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+                server = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            } catch (Exception e) {
+                System.err.println("ignoring " + PROPERTY + ": domain sockets are not supported by this virtual machine");
+                unix = null;
+            }
+        }
+        family = unix;
+        addressOf = of;
+        openChannel = channel;
+        openServer = server;
+    }
+
+    /** Returns <code>true</code> if skeletons and stubs use domain sockets. */
+    static boolean enabled() {
+        return family != null;
+    }
+
+    /**
+     * Connects to a skeleton over its domain socket, if it is on this host and has one.
+     *
+     * @param destination
+     *            TCP address of the skeleton.
+     * @return A connected channel in blocking mode, or <code>null</code> if the skeleton must be reached over TCP.
+     */
+    static SocketChannel connect(InetSocketAddress destination) {
+        if (!enabled() || destination.getAddress() == null || !isLocal(destination.getAddress())) {
+            return null;
+        }
+        File file = file(destination.getPort());
+        if (!file.exists()) {
+            return null;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = (SocketChannel) open(openChannel);
+            channel.connect(address(file));
+            return channel;
+        } catch (IOException e) {
+            // a socket left behind by a skeleton that did not stop cleanly; the skeleton may still be reached over TCP
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Starts accepting connections for a skeleton over a domain socket.
+     *
+     * @param skeleton
+     *            The skeleton.
+     * @param port
+     *            TCP port on which the skeleton listens, naming the socket.
+     * @return The listener, or <code>null</code> if domain sockets are not used.
+     * @throws IOException
+     *             If the socket cannot be created.
+     */
+    static Listener listen(Skeleton<?> skeleton, int port) throws IOException {
+        if (!enabled()) {
+            return null;
+        }
+        File file = file(port);
+        // the TCP port is ours, so a socket of the same name was left behind by a skeleton that did not stop cleanly
+        file.delete();
+        ServerSocketChannel server = (ServerSocketChannel) open(openServer);
+        try {
+            server.bind(address(file));
+            Listener listener = new Listener(skeleton, server, file);
+            listener.start();
+            return listener;
+        } catch (IOException e) {
+            server.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /** Returns the domain socket of the skeleton listening on the given TCP port. */
+    private static File file(int port) {
+        return new File(directory, "rmi-" + port + ".sock");
+    }
+
+    /** Returns <code>true</code> if the given address is one of this host's. */
+    static boolean isLocal(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        Boolean local = interfaces.get(address);
+        if (local == null) {
+            try {
+                local = NetworkInterface.getByInetAddress(address) != null;
+            } catch (SocketException e) {
+                local = false;
+            }
+            interfaces.put(address, local);
+        }
+        return local;
+    }
+
+    private static Object open(Method method) throws IOException {
+        try {
+            return method.invoke(null, family);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot open domain socket", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot open domain socket", e);
+        }
+    }
+
+    private static SocketAddress address(File file) throws IOException {
+        try {
+            return (SocketAddress) addressOf.invoke(null, file.getPath());
+        } catch (Exception e) {
+            throw new IOException("Invalid domain socket path " + file, e);
+        }
+    }
+
+    /**
+     * Returns a stream reading from a channel in blocking mode. Unlike the streams of <code>Channels</code>, reading does not
+     * prevent another thread from writing to the channel at the same time.
+     */
+    static InputStream input(final SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return length == 0 ? 0 : channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /** Returns a stream writing to a channel in blocking mode, which may be used while another thread reads from it. */
+    static OutputStream output(final SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /** Thread accepting the connections made to a skeleton over its domain socket. */
+    static class Listener extends Thread {
+        private final Skeleton<?> skeleton;
+        private final ServerSocketChannel server;
+        /** Socket file, removed when the listener stops. */
+        private final File file;
+
+        Listener(Skeleton<?> skeleton, ServerSocketChannel server, File file) {
+            super("rmi-local-listener-" + file.getName());
+            setDaemon(true);
+            this.skeleton = skeleton;
+            this.server = server;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            while (server.isOpen()) {
+                try {
+                    skeleton.accepted(server.accept());
+                } catch (IOException e) {
+                    // the socket has been closed by shutdown, or the stub went away before being served
+                }
+            }
+        }
+
+        /** Stops accepting connections and removes the socket. Connections already accepted are stopped by the skeleton. */
+        void shutdown() throws InterruptedException {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            join();
+            file.delete();
+        }
+    }
+}
@@ -1,21 +1,32 @@
 package rmi;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
 
+/**
+ * A call to a method of a remote interface, as sent from a stub to a skeleton.
+ *
+ * <p>
+ * The method is identified by its position in the interface's {@link MethodTable}, together with a hash of its signature.
+ */
 public class MethodCall implements Serializable {
     /**
-     * 
+     *
      */
-    private static final long serialVersionUID = -4724209998802410954L;
-    String name;
-    Class[] types;
+    private static final long serialVersionUID = -4724209998802410955L;
+    int method;
+    int signature;
     Object[] params;
 
-    public MethodCall(Method method, Object[] params) {
-        name = method.getName();
+    MethodCall(MethodTable table, int method, Object[] params) {
+        this.method = method;
+        signature = table.signatures[method];
+        this.params = params;
+    }
+
+    MethodCall(int method, int signature, Object[] params) {
+        this.method = method;
+        this.signature = signature;
         this.params = params;
-        types = method.getParameterTypes();
     }
 
 }
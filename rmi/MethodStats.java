@@ -0,0 +1,136 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the calls to one method of a remote interface, as seen by skeletons or by stubs.
+ *
+ * <p>
+ * Latencies are measured on the skeleton around the invocation of the server object's method, and on the stub from the moment
+ * the call is made to the moment its result is decoded. Byte counts are those of the encoded calls and results, before any
+ * compression. Calls made as part of a batch count towards calls, errors and latencies, but not towards bytes.
+ */
+public class MethodStats {
+    /** Remote interface. */
+    private final Class<?> remote;
+    /** Method of the interface. */
+    private final Method method;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    MethodStats(Class<?> remote, Method method) {
+        this.remote = remote;
+        this.method = method;
+    }
+
+    /** Returns the remote interface. */
+    public Class<?> remoteInterface() {
+        return remote;
+    }
+
+    /** Returns the method. */
+    public Method method() {
+        return method;
+    }
+
+    /** Returns the number of calls completed. */
+    public long calls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns the number of calls that threw an exception. On a stub, this includes calls that failed in RMI; on a skeleton, only
+     * calls whose method threw.
+     */
+    public long errors() {
+        return errors.get();
+    }
+
+    /** Returns the number of calls currently in progress. */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of calls answered with the outcome of an identical call running at the same time, rather than by
+     * running the method. Only calls to methods marked {@link Coalesce} are counted, on skeletons.
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    /** Returns the number of payload bytes received: calls on a skeleton, results on a stub. */
+    public long bytesIn() {
+        return bytesIn.get();
+    }
+
+    /** Returns the number of payload bytes sent: results on a skeleton, calls on a stub. */
+    public long bytesOut() {
+        return bytesOut.get();
+    }
+
+    /** Returns the histogram of call latencies. */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    /** Records the start of a call. Returns the start time, to be passed to {@link #end}. */
+    long begin() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a call.
+     *
+     * @param start
+     *            Value returned by {@link #begin}.
+     * @param failed
+     *            Whether the call threw an exception.
+     */
+    void end(long start, boolean failed) {
+        latency.record(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+        calls.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /** Records a call answered with the outcome of an identical call. */
+    void shared() {
+        coalesced.incrementAndGet();
+    }
+
+    /** Records payload bytes received and sent. */
+    void traffic(long received, long sent) {
+        bytesIn.addAndGet(received);
+        bytesOut.addAndGet(sent);
+    }
+
+    /** Clears the statistics, except the number of calls in progress. */
+    void reset() {
+        calls.set(0);
+        errors.set(0);
+        coalesced.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        latency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-40s %9d %7d %5d %9.1f %9.1f %9.1f %9.1f %12d %12d", remote.getSimpleName() + "."
+                + method.getName() + "/" + method.getParameterTypes().length, calls(), errors(), inFlight(),
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0, latency.percentile(99.9) / 1000.0,
+                latency.max() / 1000.0, bytesIn(), bytesOut());
+    }
+}
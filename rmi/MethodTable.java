@@ -0,0 +1,200 @@
+package rmi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stable numbering of the methods of a remote interface.
+ *
+ * <p>
+ * Stubs identify the method being called by its position in the table, rather than by name and parameter types. The table is
+ * built the same way on both sides of a connection - the methods are sorted by name and then by parameter types - so the same
+ * interface always yields the same numbering. Each call also carries a hash of the method signature, which lets the skeleton
+ * reject calls from a stub built against a different version of the interface.
+ *
+ * <p>
+ * The table also holds the stub and skeleton classes generated for the interface at build time, if it is marked
+ * {@link Precompiled} and they exist.
+ */
+class MethodTable {
+    /** Tables already built, by interface. */
+    private static final Map<Class<?>, MethodTable> tables = new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    /** Remote interface. */
+    final Class<?> remote;
+    /** Methods of the interface, in table order. */
+    final Method[] methods;
+    /** Signature hash of each method. */
+    final int[] signatures;
+    /** Position of the <code>ChunkSource</code> parameter of each method, streamed from the stub, or -1 if it has none. */
+    final int[] upstream;
+    /** Whether each method returns a <code>ChunkSource</code>, streamed from the skeleton. */
+    final boolean[] downstream;
+    /** Whether concurrent identical calls to each method share one execution. See {@link Coalesce}. */
+    final boolean[] coalesced;
+    /** Whether each method is served in the bulk lane. See {@link Bulk}. */
+    final boolean[] bulk;
+    /** Whether calls to each method are sent without waiting for their outcome. See {@link OneWay}. */
+    final boolean[] oneWay;
+    /** Constructor of the stub class generated for the interface, or <code>null</code> if there is none. */
+    final Constructor<? extends CompiledStub> stub;
+    /**
+     * Constructor of the skeleton dispatcher generated for the interface, a subclass of {@link CompiledSkeleton}, or
+     * <code>null</code> if there is none.
+     */
+    final Constructor<?> skeleton;
+    /** Position of each method in the table. */
+    private final Map<Method, Integer> ids = new HashMap<Method, Integer>();
+
+    private MethodTable(Class<?> remote) {
+        this.remote = remote;
+        methods = remote.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method first, Method second) {
+                return signature(first).compareTo(signature(second));
+            }
+        });
+        signatures = new int[methods.length];
+        upstream = new int[methods.length];
+        downstream = new boolean[methods.length];
+        coalesced = new boolean[methods.length];
+        bulk = new boolean[methods.length];
+        oneWay = new boolean[methods.length];
+        for (int id = 0; id < methods.length; id++) {
+            signatures[id] = signature(methods[id]).hashCode();
+            ids.put(methods[id], id);
+            upstream[id] = -1;
+            Class<?>[] types = methods[id].getParameterTypes();
+            for (int index = 0; index < types.length; index++) {
+                if (types[index] == ChunkSource.class) {
+                    if (upstream[id] >= 0) {
+                        throw new Error(methods[id] + " takes more than one chunk source");
+                    }
+                    upstream[id] = index;
+                }
+            }
+            downstream[id] = methods[id].getReturnType() == ChunkSource.class;
+            coalesced[id] = methods[id].isAnnotationPresent(Coalesce.class);
+            if (coalesced[id] && streams(id)) {
+                throw new Error(methods[id] + " streams chunks, and cannot be coalesced");
+            }
+            bulk[id] = methods[id].isAnnotationPresent(Bulk.class) || streams(id);
+            oneWay[id] = methods[id].isAnnotationPresent(OneWay.class);
+            if (oneWay[id] && (methods[id].getReturnType() != void.class || streams(id))) {
+                throw new Error(methods[id] + " returns a value or streams chunks, and cannot be one-way");
+            }
+        }
+        boolean precompiled = remote.isAnnotationPresent(Precompiled.class);
+        stub = precompiled ? generated(remote, "_Stub", CompiledStub.class) : null;
+        skeleton = precompiled ? generated(remote, "_Skel", CompiledSkeleton.class) : null;
+    }
+
+    /**
+     * Looks up a class generated for a remote interface. The class is not initialized, since initializing it looks up the
+     * table being built.
+     *
+     * @return The constructor of the class, or <code>null</code> if it has not been generated.
+     * @throws Error
+     *             If the class exists but is not a generated class of the expected kind.
+     */
+    private static <C> Constructor<? extends C> generated(Class<?> remote, String suffix, Class<C> base) {
+        Class<?> generated;
+        try {
+            generated = Class.forName(remote.getName() + suffix, false, remote.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        try {
+            return generated.asSubclass(base).getConstructor();
+        } catch (Exception e) {
+            throw new Error(generated.getName() + " is not a generated " + base.getSimpleName() + " for " + remote.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the table for the given remote interface.
+     *
+     * @param remote
+     *            Remote interface.
+     * @return The method table.
+     */
+    static MethodTable of(Class<?> remote) {
+        MethodTable table = tables.get(remote);
+        if (table == null) {
+            table = new MethodTable(remote);
+            tables.put(remote, table);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the position of a method in the table.
+     *
+     * @param method
+     *            Method of the remote interface.
+     * @return The method's identifier.
+     * @throws IllegalArgumentException
+     *             If the method does not belong to the remote interface.
+     */
+    int id(Method method) {
+        Integer id = ids.get(method);
+        if (id == null) {
+            throw new IllegalArgumentException(method + " is not a method of " + remote.getName());
+        }
+        return id;
+    }
+
+    /** Returns <code>true</code> if a method streams chunks in either direction. See {@link ChunkSource}. */
+    boolean streams(int id) {
+        return upstream[id] >= 0 || downstream[id];
+    }
+
+    /**
+     * Finds a method of the remote interface by name and parameter types.
+     *
+     * @param name
+     *            Method name.
+     * @param types
+     *            Parameter types.
+     * @return The method's identifier, or -1 if the interface has no such method.
+     */
+    int find(String name, Class<?>[] types) {
+        for (int id = 0; id < methods.length; id++) {
+            if (methods[id].getName().equals(name) && Arrays.equals(methods[id].getParameterTypes(), types)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a method of the remote interface for a class generated from it.
+     *
+     * @return The method's identifier.
+     * @throws Error
+     *             If the interface has no such method, because the class was generated from a different version of it.
+     */
+    int generated(String name, Class<?>[] types) {
+        int id = find(name, types);
+        if (id < 0) {
+            throw new Error("Generated classes for " + remote.getName() + " are out of date: no method " + name
+                    + Arrays.toString(types));
+        }
+        return id;
+    }
+
+    /** Returns the signature of a method: its name, parameter types and return type. */
+    private static String signature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        for (Class<?> type : method.getParameterTypes()) {
+            signature.append(type.getName()).append(';');
+        }
+        return signature.append(')').append(method.getReturnType().getName()).toString();
+    }
+}
@@ -0,0 +1,175 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-method statistics of RMI calls made in this virtual machine.
+ *
+ * <p>
+ * Two sets of statistics are kept: {@link #server()} records the calls served by skeletons, and {@link #client()} the calls made
+ * through stubs. Statistics are kept for every method of every remote interface used, and are always on; recording a call costs a
+ * few atomic increments. The server report also lists the {@link AdmissionControl} counters of the skeletons running.
+ */
+public class Metrics {
+    private static final Metrics server = new Metrics("server");
+    private static final Metrics client = new Metrics("client");
+
+    /** Name of the side whose calls are recorded. */
+    private final String side;
+    /** Statistics of each interface, indexed as its method table. */
+    private final ConcurrentHashMap<Class<?>, MethodStats[]> interfaces = new ConcurrentHashMap<Class<?>, MethodStats[]>();
+    /** Admission control of the running skeletons, with their remote interfaces. */
+    private final ConcurrentHashMap<AdmissionControl, Class<?>> admissions = new ConcurrentHashMap<AdmissionControl, Class<?>>();
+
+    private Metrics(String side) {
+        this.side = side;
+    }
+
+    /** Returns the statistics of calls served by skeletons. */
+    public static Metrics server() {
+        return server;
+    }
+
+    /** Returns the statistics of calls made through stubs. */
+    public static Metrics client() {
+        return client;
+    }
+
+    /**
+     * Returns the statistics of the methods of an interface, in method table order, creating them if necessary.
+     *
+     * @param table
+     *            Method table of the interface.
+     * @return The statistics of each method.
+     */
+    MethodStats[] of(MethodTable table) {
+        MethodStats[] stats = interfaces.get(table.remote);
+        if (stats == null) {
+            stats = new MethodStats[table.methods.length];
+            for (int id = 0; id < stats.length; id++) {
+                stats[id] = new MethodStats(table.remote, table.methods[id]);
+            }
+            MethodStats[] existing = interfaces.putIfAbsent(table.remote, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the statistics of the methods that have been called, ordered by interface and method.
+     *
+     * @return A list of statistics, one per method.
+     */
+    public List<MethodStats> methods() {
+        List<MethodStats> result = new ArrayList<MethodStats>();
+        for (MethodStats[] stats : interfaces.values()) {
+            for (MethodStats method : stats) {
+                if (method.calls() > 0 || method.inFlight() > 0) {
+                    result.add(method);
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<MethodStats>() {
+            @Override
+            public int compare(MethodStats first, MethodStats second) {
+                int order = first.remoteInterface().getName().compareTo(second.remoteInterface().getName());
+                if (order == 0) {
+                    order = first.method().getName().compareTo(second.method().getName());
+                }
+                return order != 0 ? order : first.method().toString().compareTo(second.method().toString());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the statistics of a method.
+     *
+     * @param remote
+     *            Remote interface.
+     * @param name
+     *            Method name.
+     * @param types
+     *            Parameter types.
+     * @return The statistics of the method.
+     * @throws IllegalArgumentException
+     *             If the interface has no such method.
+     */
+    public MethodStats method(Class<?> remote, String name, Class<?>... types) {
+        MethodTable table = MethodTable.of(remote);
+        int id = table.find(name, types);
+        if (id < 0) {
+            throw new IllegalArgumentException(remote.getName() + " has no method " + name);
+        }
+        return of(table)[id];
+    }
+
+    /**
+     * Adds the admission control of a skeleton to the report, while the skeleton runs.
+     *
+     * @param remote
+     *            Remote interface of the skeleton.
+     * @param admission
+     *            Admission control of the skeleton.
+     */
+    void started(Class<?> remote, AdmissionControl admission) {
+        admissions.put(admission, remote);
+    }
+
+    /** Removes the admission control of a skeleton that has stopped from the report. */
+    void stopped(AdmissionControl admission) {
+        admissions.remove(admission);
+    }
+
+    /** Clears all statistics. */
+    public void reset() {
+        for (MethodStats[] stats : interfaces.values()) {
+            for (MethodStats method : stats) {
+                method.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns a table of the statistics of the methods that have been called, followed on the server side by the admission
+     * counters of the running skeletons. Latencies are given in microseconds.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("RMI %s calls%n", side));
+        report.append(String.format("%-40s %9s %7s %5s %9s %9s %9s %9s %12s %12s%n", "method", "calls", "errors", "busy", "p50",
+                "p99", "p99.9", "max", "bytes in", "bytes out"));
+        for (MethodStats method : methods()) {
+            report.append(method).append(String.format("%n"));
+        }
+        if (!admissions.isEmpty()) {
+            report.append(String.format("%-40s %9s %9s %9s %7s %7s %7s %9s%n", "admission", "admitted", "rejected", "shed",
+                    "busy", "peak", "limit", "queue ms"));
+            List<Map.Entry<AdmissionControl, Class<?>>> skeletons = new ArrayList<Map.Entry<AdmissionControl, Class<?>>>(
+                    admissions.entrySet());
+            Collections.sort(skeletons, new Comparator<Map.Entry<AdmissionControl, Class<?>>>() {
+                @Override
+                public int compare(Map.Entry<AdmissionControl, Class<?>> first,
+                        Map.Entry<AdmissionControl, Class<?>> second) {
+                    return first.getValue().getName().compareTo(second.getValue().getName());
+                }
+            });
+            for (Map.Entry<AdmissionControl, Class<?>> skeleton : skeletons) {
+                AdmissionControl admission = skeleton.getKey();
+                report.append(String.format("%-40s %9d %9d %9d %7d %7d %7d %9d%n", skeleton.getValue().getSimpleName(),
+                        admission.admittedCount(), admission.rejectedCount(), admission.shedCount(),
+                        admission.concurrentCount(), admission.peakConcurrentCount(), admission.maxConcurrent(),
+                        admission.queueTime(TimeUnit.MILLISECONDS)));
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote interface whose calls are sent without waiting for their outcome.
+ *
+ * <p>
+ * A call to a marked method returns as soon as the call has been written to the connection; it does not wait for the server
+ * object to run it. The call throws an <code>RMIException</code> only if it cannot be sent. The skeleton runs it as any other
+ * call, and answers it only if it fails: if the method throws, or the call is rejected by an overloaded skeleton or its
+ * deadline passes. Such failures are reported to the listener set by {@link Stub#setOneWayListener}, if any, and are otherwise
+ * ignored. A failed one-way call is never retried.
+ *
+ * <p>
+ * Only methods returning <code>void</code>, and not streaming chunks, may be marked. One-way calls sent over the same connection
+ * are run in the order in which they were sent only if the skeleton runs calls one at a time; in general they may run in any
+ * order, and concurrently with calls sent after them. Calls to a skeleton in the same virtual machine run in the calling
+ * thread, as other direct calls do, but their failures are reported in the same way. Called in a batch or through an
+ * asynchronous view, a marked method is an ordinary call.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay {
+}
@@ -0,0 +1,30 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a remote interface for which stub and skeleton classes are generated at build time.
+ *
+ * <p>
+ * When the sources are compiled with the annotation processor <code>build.StubCompiler</code>, a stub class
+ * <em>Interface</em><code>_Stub</code> and a skeleton dispatcher <em>Interface</em><code>_Skel</code> are generated in the
+ * package of each marked interface. <code>Stub.create</code> then returns instances of the generated stub class, whose methods
+ * pass their arguments straight to the call machinery, instead of dynamic proxies, which look up every method called and
+ * dispatch it through an invocation handler. Their <code>equals</code> and <code>hashCode</code> methods compare the interface
+ * and server address directly, and the hash code is computed once, which makes them cheap keys for hash maps. Skeletons call
+ * the server object through the generated dispatcher, with a cast for each argument, rather than through method handles.
+ *
+ * <p>
+ * Generated stubs behave exactly as dynamic ones: they are equal to dynamic stubs for the same interface and address, are
+ * serializable, and can be used with batches and asynchronous views. If the generated classes are absent, because the sources
+ * were compiled without the processor, dynamic stubs and method handles are used instead.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Precompiled {
+}
@@ -0,0 +1,515 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Invocation handler of a stub, holding the remote interface and the address of its skeleton.
+ *
+ * <p>
+ * Dynamic stubs are proxies calling this handler, and generated stubs hold one; see {@link CompiledStub}. The handler sends
+ * calls over the pooled connections to the skeleton, or calls a skeleton running in the same virtual machine directly.
+ */
+class ProxyClass<T> implements InvocationHandler, Serializable {
+    private static final long serialVersionUID = 2790612339482467641L;
+
+    /** Connection pool shared by all stubs. */
+    private static final ConnectionPool pool = ConnectionPool.shared();
+    /** Codec with which stubs encode their calls. */
+    private static final Codec codec = Codec.fromSystemProperty();
+
+    InetAddress address;
+    int port;
+    Class<T> c;
+    InetSocketAddress destination;
+    /** Hash code of the stub, or zero until computed. Not serialized, since class hash codes differ between virtual machines. */
+    private transient int hash;
+
+    public ProxyClass(Skeleton<T> skeleton, Class<T> c) {
+        this.address = skeleton.sockaddr.getAddress();
+        port = skeleton.sockaddr.getPort();
+        this.c = c;
+        destination = new InetSocketAddress(address, port);
+    }
+
+    public ProxyClass(InetSocketAddress sockaddr, Class<T> c) {
+        this.address = sockaddr.getAddress();
+        port = sockaddr.getPort();
+        this.c = c;
+        destination = new InetSocketAddress(address, port);
+    }
+
+    /** Returns the handler of a stub, dynamic or generated, or <code>null</code> if the object is not a stub. */
+    static ProxyClass<?> of(Object stub) {
+        if (stub instanceof CompiledStub) {
+            return ((CompiledStub) stub).handler;
+        }
+        if (stub != null && Proxy.isProxyClass(stub.getClass()) && Proxy.getInvocationHandler(stub) instanceof ProxyClass) {
+            return (ProxyClass<?>) Proxy.getInvocationHandler(stub);
+        }
+        return null;
+    }
+
+    /** Returns <code>true</code> if the given handler is that of a stub for the same interface and server address. */
+    boolean sameServer(ProxyClass<?> other) {
+        return other != null && c.equals(other.c) && port == other.port && address.equals(other.address);
+    }
+
+    /** Returns the hash code of the stub, computed once. */
+    int stubHash() {
+        int hash = this.hash;
+        if (hash == 0) {
+            hash = address.hashCode() + port + 33 * c.hashCode();
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    /** Returns the string form of the stub. */
+    String stubString() {
+        return c.toString() + address.toString() + ":" + port;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // stub equals, hashCode and toString
+        if (method.getDeclaringClass() == Object.class) {
+            if (method.getName().equals("equals")) {
+                return sameServer(of(args[0]));
+            }
+            if (method.getName().equals("hashCode")) {
+                return stubHash();
+            }
+            return stubString();
+        }
+        return call(MethodTable.of(c).id(method), args);
+    }
+
+    /**
+     * Calls a remote method, directly if its skeleton runs in this virtual machine, or over a connection.
+     *
+     * @param id
+     *            Identifier of the method.
+     * @param args
+     *            Arguments of the call.
+     * @return The value returned by the remote method.
+     * @throws RMIException
+     *             If the call cannot be made.
+     * @throws Throwable
+     *             The exception thrown by the remote method, if any.
+     */
+    Object call(int id, Object[] args) throws Throwable {
+        MethodTable table = MethodTable.of(c);
+        MethodStats stats = Metrics.client().of(table)[id];
+        long start = stats.begin();
+        boolean failed = true;
+        try {
+            Skeleton<?> skeleton = InProcess.find(destination, c);
+            Object result;
+            if (skeleton != null && table.oneWay[id]) {
+                result = null;
+                try {
+                    direct(skeleton, table, id, args);
+                } catch (Throwable t) {
+                    // reported as the skeleton would have reported it over a connection
+                    Connection.reportOneWay(destination, t);
+                }
+            } else if (skeleton != null) {
+                result = direct(skeleton, table, id, args);
+            } else if (table.oneWay[id]) {
+                post(table, id, args, stats);
+                result = null;
+            } else if (table.streams(id)) {
+                result = stream(table, id, args, stats);
+            } else {
+                result = result(call(Frame.CALL, new MethodCall(table, id, args), table.bulk[id], stats));
+            }
+            failed = false;
+            return result;
+        } finally {
+            stats.end(start, failed);
+        }
+    }
+
+    /**
+     * Calls the server object of a skeleton running in this virtual machine, without going through a connection. The arguments
+     * and the outcome are copied, as they would be over the network; see {@link InProcess}.
+     *
+     * @return The value returned by the remote method.
+     * @throws RMIException
+     *             If the call is rejected by the skeleton, or cannot be made.
+     * @throws Throwable
+     *             The exception thrown by the remote method, if any.
+     */
+    private Object direct(Skeleton<?> skeleton, MethodTable table, int id, Object[] args) throws Throwable {
+        Deadline deadline = Deadline.direct();
+        MethodCall call;
+        try {
+            call = new MethodCall(table, id, (Object[]) InProcess.copy(args, codec));
+        } catch (IOException e) {
+            throw new RMIException("Could not send method call.", e);
+        }
+        Object outcome;
+        int rejections = 0;
+        while (true) {
+            try {
+                outcome = skeleton.invokeDirect(call, deadline);
+                break;
+            } catch (RMIOverloadException e) {
+                if (rejections >= AdmissionControl.retries() || !pause(AdmissionControl.backoff(rejections))) {
+                    throw e;
+                }
+                rejections++;
+            }
+        }
+        boolean thrown = outcome instanceof InvocationTargetException;
+        try {
+            outcome = InProcess.copy(thrown ? ((InvocationTargetException) outcome).getTargetException() : outcome, codec);
+        } catch (IOException e) {
+            throw new RMIException("Could not send result of method call.", e);
+        }
+        if (thrown) {
+            throw (Throwable) outcome;
+        }
+        return outcome;
+    }
+
+    /**
+     * Sends a call to a one-way method, without waiting for its outcome. A call that cannot be written to a pooled connection is
+     * sent once more over a fresh connection.
+     *
+     * @throws RMIException
+     *             If the call cannot be sent.
+     */
+    private void post(MethodTable table, int id, Object[] args, MethodStats stats) throws RMIException {
+        byte[] payload;
+        try {
+            payload = codec.encode(new MethodCall(table, id, args));
+        } catch (IOException e) {
+            throw new RMIException("Could not send method call.", e);
+        }
+        try {
+            Connection connection = pool.acquire(destination, table.bulk[id]);
+            try {
+                connection.post(codec.flag, Deadline.timeout(), payload);
+            } catch (Connection.UnsentException e) {
+                if (!connection.reused()) {
+                    throw e;
+                }
+                pool.connect(destination, table.bulk[id]).post(codec.flag, Deadline.timeout(), payload);
+            }
+        } catch (IOException e) {
+            throw new RMIException("Could not connect to skeleton.", e);
+        }
+        stats.traffic(0, payload.length);
+    }
+
+    /**
+     * Calls a streaming method. The chunks of the source passed as argument, if any, are sent as the skeleton reads them; see
+     * {@link Connection#stream}. A call that fails is not retried, unless it has no argument stream and could not be written to a
+     * pooled connection, in which case it is retried once over a fresh connection.
+     *
+     * @return The value returned by the remote method, which may be a stream of chunks received from the skeleton.
+     * @throws RMIException
+     *             If the call cannot be made.
+     * @throws Throwable
+     *             The exception thrown by the remote method, if any.
+     */
+    private Object stream(MethodTable table, int id, Object[] args, MethodStats stats) throws Throwable {
+        ChunkSource<?> upstream = null;
+        int index = table.upstream[id];
+        if (index >= 0) {
+            // the argument is streamed after the call rather than encoded with it
+            args = args.clone();
+            upstream = (ChunkSource<?>) args[index];
+            args[index] = null;
+        }
+        byte[] payload;
+        try {
+            payload = codec.encode(new MethodCall(table, id, args));
+        } catch (IOException e) {
+            if (upstream != null) {
+                upstream.close();
+            }
+            throw new RMIException("Could not send method call.", e);
+        }
+
+        Connection connection;
+        Frame reply;
+        try {
+            connection = pool.acquire(destination, table.bulk[id]);
+            try {
+                reply = connection.stream(codec, Deadline.timeout(), payload, upstream, table.downstream[id]);
+            } catch (Connection.UnsentException e) {
+                if (upstream != null || !connection.reused()) {
+                    throw e;
+                }
+                connection = pool.connect(destination, table.bulk[id]);
+                reply = connection.stream(codec, Deadline.timeout(), payload, null, false);
+            }
+        } catch (InterruptedIOException e) {
+            throw new RMIException("Call to skeleton was interrupted.", e);
+        } catch (IOException e) {
+            throw new RMIException("Could not connect to skeleton.", e);
+        } catch (TimeoutException e) {
+            throw new RMITimeoutException("Call to skeleton timed out.", e);
+        }
+        stats.traffic(reply.payload.length, payload.length);
+        if (reply.has(Frame.STREAM)) {
+            ChunkSource<Object> result = connection.received(reply.id);
+            if (result == null) {
+                throw new RMIException("Connection to skeleton failed before the result could be read.");
+            }
+            return result;
+        }
+        return result(reply);
+    }
+
+    /**
+     * Sends a request and waits for its reply.
+     *
+     * @param type
+     *            Type of the request frame.
+     * @param request
+     *            The method call or batch of calls.
+     * @param bulk
+     *            Whether the request is sent in the bulk lane, rather than the control lane.
+     * @return The reply frame.
+     * @throws RMIException
+     *             If the request cannot be sent or the reply cannot be received.
+     */
+    Frame call(byte type, Object request, boolean bulk) throws RMIException {
+        return call(type, request, bulk, null);
+    }
+
+    /**
+     * Sends a request and waits for its reply, recording the bytes exchanged. A request rejected by an overloaded skeleton is
+     * retried a few times after increasing delays, within the deadline in effect; the reply to the last attempt is returned.
+     *
+     * @param type
+     *            Type of the request frame.
+     * @param request
+     *            The method call or batch of calls.
+     * @param bulk
+     *            Whether the request is sent in the bulk lane, rather than the control lane.
+     * @param stats
+     *            Statistics of the method called, or <code>null</code> if the traffic is not to be recorded.
+     * @return The reply frame.
+     * @throws RMIException
+     *             If the request cannot be sent or the reply cannot be received.
+     */
+    Frame call(byte type, Object request, boolean bulk, MethodStats stats) throws RMIException {
+        byte[] payload;
+        try {
+            payload = codec.encode(request);
+        } catch (IOException e) {
+            throw new RMIException("Could not send method call.", e);
+        }
+
+        // a call rejected by an overloaded skeleton has not been run, and is retried after a delay
+        Frame reply;
+        int rejections = 0;
+        while ((reply = exchange(type, payload, bulk)).has(Frame.OVERLOADED) && rejections < AdmissionControl.retries()
+                && pause(AdmissionControl.backoff(rejections))) {
+            rejections++;
+        }
+        if (stats != null) {
+            stats.traffic(reply.payload.length, payload.length);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends an encoded request and waits for its reply.
+     *
+     * @throws RMIException
+     *             If the request cannot be sent or the reply cannot be received.
+     */
+    private Frame exchange(byte type, byte[] payload, boolean bulk) throws RMIException {
+        // send the request over a pooled connection; a connection that has carried calls before may have been closed by the
+        // skeleton while idle, in which case the request is retried once over a fresh connection, but only if it was not
+        // written: a request that was may have been run, and is not run twice
+        try {
+            Connection connection = pool.acquire(destination, bulk);
+            try {
+                return connection.call(type, codec.flag, Deadline.timeout(), payload);
+            } catch (Connection.UnsentException e) {
+                if (!connection.reused()) {
+                    throw e;
+                }
+                return pool.connect(destination, bulk).call(type, codec.flag, Deadline.timeout(), payload);
+            }
+        } catch (InterruptedIOException e) {
+            throw new RMIException("Call to skeleton was interrupted.", e);
+        } catch (IOException e) {
+            throw new RMIException("Could not connect to skeleton.", e);
+        } catch (TimeoutException e) {
+            throw new RMITimeoutException("Call to skeleton timed out.", e);
+        }
+    }
+
+    /**
+     * Waits before retrying a rejected call.
+     *
+     * @param delay
+     *            Time to wait, in milliseconds.
+     * @return <code>false</code> if the call must not be retried, because the deadline in effect would pass before the delay
+     *         ends or the thread was interrupted.
+     */
+    private static boolean pause(long delay) {
+        Deadline deadline = Deadline.current();
+        if (deadline != null && deadline.remaining(TimeUnit.MILLISECONDS) <= delay) {
+            return false;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Sends a call without waiting for its reply. As for synchronous calls, a call that cannot be written to a connection which
+     * has carried calls before is retried once over a fresh connection, and a call rejected by an overloaded skeleton is retried
+     * after a delay.
+     *
+     * @param call
+     *            The method call.
+     * @param bulk
+     *            Whether the call is sent in the bulk lane, rather than the control lane.
+     * @param stats
+     *            Statistics of the method called, in which the bytes exchanged are recorded.
+     * @return A future completed with the reply frame, or completed exceptionally with an <code>IOException</code>, a
+     *         <code>TimeoutException</code> if the deadline in effect when the call was made passes first, or an
+     *         <code>RMITimeoutException</code> if it had already passed.
+     */
+    CompletableFuture<Frame> send(MethodCall call, boolean bulk, final MethodStats stats) {
+        final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+        final byte[] payload;
+        final int timeout;
+        try {
+            timeout = Deadline.timeout();
+            payload = codec.encode(call);
+        } catch (Exception e) {
+            reply.completeExceptionally(e);
+            return reply;
+        }
+        reply.thenAccept(new Consumer<Frame>() {
+            @Override
+            public void accept(Frame frame) {
+                stats.traffic(frame.payload.length, payload.length);
+            }
+        });
+        send(payload, bulk, timeout, System.nanoTime(), 0, false, reply);
+        return reply;
+    }
+
+    /**
+     * Makes one attempt at sending a call without waiting for its reply. The attempt is followed by another if the call cannot
+     * be written to a pooled connection, or is rejected by an overloaded skeleton.
+     *
+     * @param payload
+     *            The encoded call.
+     * @param bulk
+     *            Whether the call is sent in the bulk lane, rather than the control lane.
+     * @param timeout
+     *            Timeout of the call in milliseconds, from <code>start</code>, or zero if it is not bounded.
+     * @param start
+     *            Time at which the call was made, in <code>System.nanoTime</code> units.
+     * @param rejections
+     *            Number of times the call has been rejected by the skeleton.
+     * @param fresh
+     *            Whether the call must be sent over a new connection, rather than a pooled one.
+     * @param reply
+     *            Future completed with the reply frame, or exceptionally.
+     */
+    private void send(final byte[] payload, final boolean bulk, final int timeout, final long start, final int rejections,
+            final boolean fresh, final CompletableFuture<Frame> reply) {
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (timeout > 0 && elapsed >= timeout) {
+            reply.completeExceptionally(new TimeoutException("Call to " + destination + " timed out"));
+            return;
+        }
+        final Connection connection;
+        try {
+            connection = fresh ? pool.connect(destination, bulk) : pool.acquire(destination, bulk);
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+            return;
+        }
+        final boolean reused = connection.reused();
+        int left = timeout > 0 ? (int) (timeout - elapsed) : 0;
+        connection.send(Frame.CALL, codec.flag, left, payload).whenComplete(new BiConsumer<Frame, Throwable>() {
+            @Override
+            public void accept(Frame frame, Throwable error) {
+                if (error != null) {
+                    if (fresh || !reused || !(error instanceof Connection.UnsentException)) {
+                        reply.completeExceptionally(error);
+                    } else {
+                        send(payload, bulk, timeout, start, rejections, true, reply);
+                    }
+                    return;
+                }
+                long delay = AdmissionControl.backoff(rejections);
+                long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (!frame.has(Frame.OVERLOADED) || rejections >= AdmissionControl.retries()
+                        || (timeout > 0 && now + delay >= timeout)) {
+                    reply.complete(frame);
+                    return;
+                }
+                // the retry is handed over from the timer thread, which must not block on connecting
+                Deadline.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        CompletableFuture.runAsync(new Runnable() {
+                            @Override
+                            public void run() {
+                                send(payload, bulk, timeout, start, rejections + 1, false, reply);
+                            }
+                        });
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Decodes the reply to a call.
+     *
+     * @param reply
+     *            The reply frame.
+     * @return The value returned by the remote method.
+     * @throws RMIException
+     *             If the reply cannot be decoded.
+     * @throws Throwable
+     *             The exception thrown by the remote method, if any.
+     */
+    static Object result(Frame reply) throws Throwable {
+        Object ret;
+        try {
+            ret = Codec.of(reply).decode(reply.payload);
+        } catch (Exception e) {
+            throw new RMIException("Could not read result from skeleton.", e);
+        }
+
+        // remote method call could throw an exception
+        if (reply.has(Frame.EXCEPTION)) {
+            throw (Throwable) ret;
+        }
+        return ret;
+    }
+
+}
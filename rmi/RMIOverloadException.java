@@ -0,0 +1,21 @@
+package rmi;
+
+/** Exception thrown by a stub when a skeleton refuses a call because it is
+    overloaded. The call has not been carried out by the server, and may be
+    retried after a delay. */
+public class RMIOverloadException extends RMIException
+{
+    /** Creates an <code>RMIOverloadException</code> with the given message
+        string. */
+    public RMIOverloadException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates an <code>RMIOverloadException</code> with a message string and
+        the given cause. */
+    public RMIOverloadException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,20 @@
+package rmi;
+
+/** Exception thrown by a stub when a call does not complete before its deadline.
+    The call may or may not have been carried out by the server. */
+public class RMITimeoutException extends RMIException
+{
+    /** Creates an <code>RMITimeoutException</code> with the given message
+        string. */
+    public RMITimeoutException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates an <code>RMITimeoutException</code> with a message string and
+        the given cause. */
+    public RMITimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,376 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport for a skeleton.
+ *
+ * <p>
+ * Accepted connections are spread over a small, fixed number of event loops. Each event loop owns a selector and reads call
+ * frames from its connections without blocking. Complete frames are handed to the skeleton's service model for processing, and
+ * the replies are queued back to the event loop, which writes them with gathering writes. An idle connection therefore costs a
+ * selection key and a read buffer, rather than a thread.
+ */
+class SelectorTransport {
+    /** Size of a connection's read buffer, unless it is receiving a larger frame. */
+    static final int BUFFER_SIZE = 16 * 1024;
+    /** Interval at which event loops look for idle connections, in milliseconds. */
+    static final long SWEEP_INTERVAL = 1000;
+
+    /** Skeleton served by the transport. */
+    private final Skeleton<?> skeleton;
+    /** Event loops. */
+    private final EventLoop[] loops;
+    /** Index of the event loop to receive the next connection. */
+    private int next;
+
+    /**
+     * Creates the transport and starts its event loops.
+     *
+     * @param skeleton
+     *            Skeleton whose calls are served.
+     * @param count
+     *            Number of event loops.
+     * @throws IOException
+     *             If a selector cannot be opened.
+     */
+    SelectorTransport(Skeleton<?> skeleton, int count) throws IOException {
+        this.skeleton = skeleton;
+        loops = new EventLoop[count];
+        for (int index = 0; index < count; index++) {
+            loops[index] = new EventLoop();
+            Thread thread = new Thread(loops[index], "rmi-event-loop-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands an accepted connection to one of the event loops.
+     *
+     * @param channel
+     *            Connected channel, in blocking mode: a TCP connection, or a domain socket connection from a local stub.
+     * @throws IOException
+     *             If the channel cannot be switched to non-blocking mode.
+     */
+    synchronized void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        loops[next].register(channel);
+        next = (next + 1) % loops.length;
+    }
+
+    /**
+     * Stops the transport. Idle connections are closed at once; connections with calls in progress are closed once their replies
+     * have been written. Each event loop exits when it has no connections left.
+     */
+    void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /** Event loop serving a set of connections from one thread. */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        /** Connections accepted but not yet registered with the selector. */
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        /** Connections with replies waiting to be written. */
+        private final Queue<Peer> writable = new ConcurrentLinkedQueue<Peer>();
+        private volatile boolean stopping;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopping = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (true) {
+                    selector.select(SWEEP_INTERVAL);
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, new Peer(channel));
+                            skeleton.model.connectionOpened();
+                        } catch (ClosedChannelException e) {
+                            // the stub went away before the connection was registered
+                        }
+                    }
+
+                    Peer peer;
+                    while ((peer = writable.poll()) != null) {
+                        peer.flush();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        peer = (Peer) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            peer.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            peer.read();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (stopping || now - lastSweep >= SWEEP_INTERVAL) {
+                        lastSweep = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ((Peer) key.attachment()).sweep(now);
+                        }
+                        if (stopping && selector.keys().isEmpty()) {
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                skeleton.listen_error(e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Peer) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /** State of one connection. Only the event loop thread touches the channel and the buffers. */
+        private class Peer {
+            private final SocketChannel channel;
+            /** Received bytes not yet assembled into frames, in write mode. */
+            private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+            /** Replies queued by worker threads. */
+            private final Queue<Frame> replies = new ConcurrentLinkedQueue<Frame>();
+            /** Buffers of replies being written. */
+            private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+            /** Number of calls received whose replies have not been queued. */
+            private final AtomicInteger inFlight = new AtomicInteger();
+            /** Time of the last frame received, in milliseconds. */
+            private long lastActive = System.currentTimeMillis();
+            private volatile boolean closed;
+            /** Compression state of the connection, once the stub has negotiated compression. */
+            private volatile Compression compression;
+            /** Deadlines of the calls received and not yet answered, by request identifier. */
+            private final ConcurrentHashMap<Integer, Deadline> deadlines = new ConcurrentHashMap<Integer, Deadline>();
+            /** Streams of the streaming calls in progress on this connection. */
+            private final Streams streams = new Streams(new Streams.Writer() {
+                @Override
+                public void write(Frame frame) throws IOException {
+                    if (closed) {
+                        throw new ClosedChannelException();
+                    }
+                    enqueue(frame);
+                }
+            });
+
+            Peer(SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            /** Reads available bytes and dispatches every complete call frame. */
+            void read() {
+                try {
+                    int count = channel.read(input);
+                    if (count < 0) {
+                        close();
+                        return;
+                    }
+                    lastActive = System.currentTimeMillis();
+
+                    input.flip();
+                    Frame frame;
+                    while ((frame = Frame.read(input)) != null) {
+                        if (frame.type == Frame.HELLO) {
+                            compression = Compression.accept(frame);
+                            inFlight.incrementAndGet();
+                            queue(Compression.acknowledge(frame, compression));
+                            continue;
+                        }
+                        if (streams.receive(frame)) {
+                            continue;
+                        }
+                        if (frame.type == Frame.CANCEL) {
+                            Deadline cancelled = deadlines.get(frame.id);
+                            if (cancelled != null) {
+                                cancelled.cancel();
+                            }
+                            streams.cancel(frame.id);
+                            continue;
+                        }
+                        if (!frame.isRequest()) {
+                            throw new IOException("Unexpected frame type " + frame.type);
+                        }
+                        dispatch(frame);
+                    }
+                    // make room for a frame larger than the buffer, whose length Frame.read has checked against the limit,
+                    // and go back to a buffer of the default size once the large frame has been read
+                    int required = Frame.required(input);
+                    if (required > input.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(required);
+                        larger.put(input);
+                        input = larger;
+                    } else if (input.capacity() > BUFFER_SIZE && required <= BUFFER_SIZE
+                            && input.remaining() <= BUFFER_SIZE) {
+                        ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+                        smaller.put(input);
+                        input = smaller;
+                    } else {
+                        input.compact();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            /** Runs a call on the service model, arranging for its reply to be queued to this connection. */
+            private void dispatch(final Frame frame) {
+                inFlight.incrementAndGet();
+                if (stopping) {
+                    // answered rather than dropped, so that the caller does not wait for the deadline of the call
+                    queue(skeleton.refuse(frame));
+                    return;
+                }
+                if (!skeleton.admit()) {
+                    queue(skeleton.reject(frame, false));
+                    return;
+                }
+                final long received = System.nanoTime();
+                final Deadline deadline = Deadline.received(frame);
+                if (deadline != null) {
+                    deadlines.put(frame.id, deadline);
+                }
+                if (frame.has(Frame.STREAM)) {
+                    // chunks may arrive before the call runs
+                    streams.open(frame.id);
+                }
+                try {
+                    skeleton.model.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Frame reply = skeleton.process(frame, compression, deadline, received, streams);
+                            if (deadline != null) {
+                                deadlines.remove(frame.id);
+                            }
+                            queue(reply);
+                        }
+                    }, frame.has(Frame.BULK));
+                } catch (RejectedExecutionException e) {
+                    deadlines.remove(frame.id);
+                    streams.close(frame.id);
+                    queue(skeleton.reject(frame, true));
+                }
+            }
+
+            /**
+             * Queues a reply to be written by the event loop, or only records that a call has completed if the reply is
+             * <code>null</code>. May be called from any thread.
+             */
+            private void queue(Frame reply) {
+                if (reply != null) {
+                    replies.add(reply);
+                }
+                inFlight.decrementAndGet();
+                writable.add(this);
+                selector.wakeup();
+            }
+
+            /** Queues a frame of a stream to be written by the event loop. The call it belongs to is still in progress. */
+            private void enqueue(Frame frame) {
+                replies.add(frame);
+                writable.add(this);
+                selector.wakeup();
+            }
+
+            /** Writes as much of the queued replies as the channel accepts. */
+            void flush() {
+                if (closed) {
+                    return;
+                }
+                Frame reply;
+                try {
+                    while ((reply = replies.poll()) != null) {
+                        for (ByteBuffer buffer : reply.buffers()) {
+                            output.add(buffer);
+                        }
+                    }
+                    while (!output.isEmpty()) {
+                        ByteBuffer[] buffers = output.toArray(new ByteBuffer[output.size()]);
+                        if (channel.write(buffers) == 0) {
+                            break;
+                        }
+                        while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+                            output.pollFirst();
+                        }
+                    }
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+
+            /** Closes the connection if it has been idle for too long, or if the transport is stopping and it is idle. */
+            void sweep(long now) {
+                boolean idle = inFlight.get() == 0 && replies.isEmpty() && output.isEmpty();
+                if (idle && (stopping || now - lastActive >= Skeleton.IDLE_TIMEOUT)) {
+                    close();
+                }
+            }
+
+            void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                skeleton.model.connectionClosed();
+                // calls still running must not wait for chunks, or for credit, that will never arrive
+                streams.fail(new IOException("Connection closed"));
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                if (compression != null) {
+                    compression.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package rmi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threading model used by a skeleton to serve connections and calls.
+ *
+ * <p>
+ * A skeleton runs two kinds of tasks: one long-lived task per connection, which reads call frames, and one short task per call,
+ * which invokes the server object and sends the reply. The service model decides which threads run these tasks. Four models
+ * are provided:
+ * <ul>
+ * <li>{@link #threadPerCall()} starts a new platform thread for every connection and every call. This is the default, and places
+ * no limit on the number of threads.</li>
+ * <li>{@link #boundedPool(int, int)} runs calls on a fixed number of worker threads with a bounded queue of waiting calls. Calls
+ * arriving when the queue is full are rejected with an <code>RMIOverloadException</code>. Connection tasks still run on their own
+ * threads.</li>
+ * <li>{@link #virtualThreads()} runs every connection and every call on its own virtual thread. This requires Java 21 or
+ * later.</li>
+ * <li>{@link #selector(int, int, int)} serves all connections from a few event loops using non-blocking I/O, and runs calls on a
+ * bounded pool of worker threads. Idle connections then hold no thread at all.</li>
+ * </ul>
+ *
+ * <p>
+ * A bounded pool caps memory use under load spikes, but calls that block until another call arrives - such as a naming server
+ * <code>lock</code> waiting for the matching <code>unlock</code> - hold a worker while they wait. The pool must be sized for the
+ * largest expected number of such waiters, or such servers should use virtual threads instead.
+ *
+ * <p>
+ * Calls of the bulk lane, to methods marked {@link Bulk}, are run apart from control calls: each model gives them threads of
+ * their own, at {@link #BULK_PRIORITY}. A bounded pool has a second pool of the same size and queue length for them, so bulk
+ * calls filling their pool neither occupy the workers of control calls nor cause control calls to be rejected.
+ *
+ * <p>
+ * Every model counts the tasks it runs; the counts are available through the accessor methods, and can be used to monitor the
+ * skeleton. A service model belongs to a single skeleton. The threads it keeps, in pools or executors, are released when the
+ * skeleton stops, once the calls already running have finished, and created again if the skeleton is restarted.
+ */
+public abstract class ServiceModel {
+    /** Name of the system property selecting the model used by skeletons created without an explicit model. */
+    public static final String PROPERTY = "rmi.serviceModel";
+    /**
+     * Scheduling priority of the platform threads running bulk calls, below that of the threads running control calls, so that
+     * control calls get the processors first when they are contended.
+     */
+    public static final int BULK_PRIORITY = Thread.MIN_PRIORITY;
+
+    /** Number of connection tasks currently running. */
+    private final AtomicInteger connections = new AtomicInteger();
+    /** Number of call tasks currently running. */
+    private final AtomicInteger active = new AtomicInteger();
+    /** Largest number of call tasks that have been running at the same time. */
+    private final AtomicInteger peakActive = new AtomicInteger();
+    /** Number of call tasks completed. */
+    private final AtomicLong completed = new AtomicLong();
+    /** Number of call tasks rejected. */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Returns a model that starts a new platform thread for every connection and every call. */
+    public static ServiceModel threadPerCall() {
+        return new ThreadPerCall();
+    }
+
+    /**
+     * Returns a model that runs calls on a bounded pool of worker threads.
+     *
+     * @param threads
+     *            Maximum number of worker threads. Idle workers exit after a minute.
+     * @param queue
+     *            Maximum number of calls waiting for a worker. Further calls are rejected.
+     * @return The service model.
+     * @throws IllegalArgumentException
+     *             If <code>threads</code> is not positive or <code>queue</code> is negative.
+     */
+    public static ServiceModel boundedPool(int threads, int queue) {
+        if (threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("Invalid pool size " + threads + " or queue length " + queue);
+        }
+        return new BoundedPool(threads, queue);
+    }
+
+    /**
+     * Returns a model that runs every connection and every call on its own virtual thread.
+     *
+     * @return The service model.
+     * @throws UnsupportedOperationException
+     *             If the virtual machine does not support virtual threads.
+     */
+    public static ServiceModel virtualThreads() {
+        return new VirtualThreads();
+    }
+
+    /**
+     * Returns a model that serves connections from event loops using non-blocking I/O, and runs calls on a bounded pool of
+     * worker threads.
+     *
+     * @param eventLoops
+     *            Number of event loop threads reading and writing frames.
+     * @param threads
+     *            Maximum number of worker threads running calls.
+     * @param queue
+     *            Maximum number of calls waiting for a worker. Further calls are rejected.
+     * @return The service model.
+     * @throws IllegalArgumentException
+     *             If <code>eventLoops</code> or <code>threads</code> is not positive, or <code>queue</code> is negative.
+     */
+    public static ServiceModel selector(int eventLoops, int threads, int queue) {
+        if (eventLoops <= 0 || threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("Invalid event loop count " + eventLoops + ", pool size " + threads
+                    + " or queue length " + queue);
+        }
+        return new BoundedPool(threads, queue, eventLoops);
+    }
+
+    /**
+     * Returns the model selected by the {@link #PROPERTY} system property.
+     *
+     * <p>
+     * The property may be <code>thread</code>, <code>virtual</code>, <code>pool:</code><em>threads</em><code>:</code>
+     * <em>queue</em> or <code>selector:</code><em>loops</em><code>:</code><em>threads</em><code>:</code><em>queue</em>. If the
+     * property is not set or cannot be understood, a new thread is used for every call.
+     *
+     * @return A new service model.
+     */
+    public static ServiceModel fromSystemProperty() {
+        String value = System.getProperty(PROPERTY, "thread");
+        try {
+            if (value.equals("virtual")) {
+                return virtualThreads();
+            }
+            if (value.startsWith("pool:")) {
+                String[] sizes = value.split(":");
+                return boundedPool(Integer.parseInt(sizes[1]), Integer.parseInt(sizes[2]));
+            }
+            if (value.startsWith("selector:")) {
+                String[] sizes = value.split(":");
+                return selector(Integer.parseInt(sizes[1]), Integer.parseInt(sizes[2]), Integer.parseInt(sizes[3]));
+            }
+        } catch (RuntimeException e) {
+            System.err.println("ignoring invalid " + PROPERTY + " setting " + value + ": " + e);
+        }
+        return threadPerCall();
+    }
+
+    /**
+     * Runs a call task.
+     *
+     * @param task
+     *            The task.
+     * @param bulk
+     *            Whether the call is in the bulk lane, rather than the control lane.
+     * @throws RejectedExecutionException
+     *             If the model cannot accept more calls in the lane.
+     */
+    void execute(Runnable task, boolean bulk) {
+        try {
+            submit(new Counted(task, true), bulk);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a connection task.
+     *
+     * @param task
+     *            The task.
+     * @param name
+     *            Name given to the thread running the task, where the model creates one.
+     */
+    void spawn(Runnable task, String name) {
+        start(new Counted(task, false), name);
+    }
+
+    /** Returns the number of event loops serving connections, or zero if each connection is served by its own thread. */
+    int eventLoops() {
+        return 0;
+    }
+
+    /** Records that an event loop has started serving a connection. */
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    /** Records that an event loop has stopped serving a connection. */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /** Prepares the model to serve a skeleton that is starting, creating again the threads released by {@link #shutdown()}. */
+    void open() {
+    }
+
+    /**
+     * Releases the threads kept by the model, once the skeleton has stopped. Calls running or waiting for a thread are left to
+     * finish; calls submitted afterwards are rejected, until {@link #open()} is called.
+     */
+    void shutdown() {
+    }
+
+    /** Runs a call task of the given lane, already wrapped for counting. */
+    abstract void submit(Runnable task, boolean bulk);
+
+    /** Runs a connection task, already wrapped for counting. */
+    abstract void start(Runnable task, String name);
+
+    /** Returns the number of connections currently being served. */
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    /** Returns the number of calls currently being processed. */
+    public int activeCount() {
+        return active.get();
+    }
+
+    /** Returns the largest number of calls that have been processed at the same time. */
+    public int peakActiveCount() {
+        return peakActive.get();
+    }
+
+    /** Returns the number of calls that have been processed. */
+    public long completedCount() {
+        return completed.get();
+    }
+
+    /** Returns the number of calls rejected because the model was saturated. */
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    /** Returns the number of threads currently owned by the model, including idle pool workers. */
+    public abstract int threadCount();
+
+    /** Returns the number of calls waiting for a thread. */
+    public int queueDepth() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [threads=" + threadCount() + ", connections=" + connectionCount() + ", active="
+                + activeCount() + ", peak=" + peakActiveCount() + ", queued=" + queueDepth() + ", completed="
+                + completedCount() + ", rejected=" + rejectedCount() + "]";
+    }
+
+    /** Task wrapper maintaining the counters. */
+    private class Counted implements Runnable {
+        private final Runnable task;
+        private final boolean call;
+
+        Counted(Runnable task, boolean call) {
+            this.task = task;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            if (call) {
+                int now = active.incrementAndGet();
+                int peak;
+                while (now > (peak = peakActive.get()) && !peakActive.compareAndSet(peak, now)) {
+                    // retry
+                }
+            } else {
+                connectionOpened();
+            }
+            try {
+                task.run();
+            } finally {
+                if (call) {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                } else {
+                    connectionClosed();
+                }
+                // the naming server wakes lock waiters by interrupting them; a grant that arrives after the waiter has
+                // returned must not leak into the next task run by the same thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /** Model starting a new platform thread for every task. */
+    private static class ThreadPerCall extends ServiceModel {
+        @Override
+        void submit(Runnable task, boolean bulk) {
+            Thread thread = new Thread(task, bulk ? "rmi-bulk-call" : "rmi-call");
+            if (bulk) {
+                thread.setPriority(BULK_PRIORITY);
+            }
+            thread.start();
+        }
+
+        @Override
+        void start(Runnable task, String name) {
+            new Thread(task, name).start();
+        }
+
+        @Override
+        public int threadCount() {
+            return connectionCount() + activeCount();
+        }
+    }
+
+    /** Model running calls on bounded thread pools, one per lane, and connections on their own threads or on event loops. */
+    private static class BoundedPool extends ServiceModel {
+        private final int threads;
+        private final int queue;
+        private volatile ThreadPoolExecutor pool;
+        private volatile ThreadPoolExecutor bulk;
+        private final int eventLoops;
+
+        BoundedPool(int threads, int queue) {
+            this(threads, queue, 0);
+        }
+
+        BoundedPool(int threads, int queue, int eventLoops) {
+            this.threads = threads;
+            this.queue = queue;
+            this.eventLoops = eventLoops;
+            open();
+        }
+
+        @Override
+        synchronized void open() {
+            if (pool == null || pool.isShutdown()) {
+                pool = pool(threads, queue, "rmi-worker-", Thread.NORM_PRIORITY);
+                bulk = pool(threads, queue, "rmi-bulk-worker-", BULK_PRIORITY);
+            }
+        }
+
+        @Override
+        synchronized void shutdown() {
+            pool.shutdown();
+            bulk.shutdown();
+        }
+
+        /** Creates the pool of one lane. */
+        private static ThreadPoolExecutor pool(int threads, int queue, final String name, final int priority) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    queue == 0 ? new SynchronousQueue<Runnable>()
+                            : new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, name + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setPriority(priority);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+
+        @Override
+        void submit(Runnable task, boolean bulk) {
+            (bulk ? this.bulk : pool).execute(task);
+        }
+
+        @Override
+        void start(Runnable task, String name) {
+            new Thread(task, name).start();
+        }
+
+        @Override
+        int eventLoops() {
+            return eventLoops;
+        }
+
+        @Override
+        public int threadCount() {
+            return pool.getPoolSize() + bulk.getPoolSize() + (eventLoops > 0 ? eventLoops : connectionCount());
+        }
+
+        @Override
+        public int queueDepth() {
+            return pool.getQueue().size() + bulk.getQueue().size();
+        }
+    }
+
+    /** Model running every task on a new virtual thread. */
+    private static class VirtualThreads extends ServiceModel {
+        private volatile ExecutorService executor;
+
+        VirtualThreads() {
+            executor = executor();
+        }
+
+        /** Creates an executor starting a virtual thread for every task. */
+        private static ExecutorService executor() {
+            // looked up reflectively so that the library still builds and runs on releases without virtual threads
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported by this virtual machine", e);
+            }
+        }
+
+        @Override
+        synchronized void open() {
+            if (executor.isShutdown()) {
+                executor = executor();
+            }
+        }
+
+        @Override
+        synchronized void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        void submit(Runnable task, boolean bulk) {
+            // virtual threads have no priority; each call has a thread of its own in either lane
+            executor.execute(task);
+        }
+
+        @Override
+        void start(Runnable task, String name) {
+            executor.execute(task);
+        }
+
+        @Override
+        public int threadCount() {
+            return connectionCount() + activeCount();
+        }
+    }
+}
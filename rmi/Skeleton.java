@@ -1,16 +1,33 @@
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * RMI skeleton
@@ -27,15 +44,44 @@ import java.util.Arrays;
  * desires.
  * 
  * <p>
+ * When the system property <code>rmi.localSockets</code> names a directory, the skeleton also accepts connections from stubs on
+ * the same host over a Unix domain socket in that directory, sparing them the cost of TCP. Stubs in the same virtual machine
+ * bypass the network altogether, and call the server object directly.
+ * 
+ * <p>
  * Exceptions may occur at the top level in the listening and service threads. The skeleton's response to these exceptions can be
  * customized by deriving a class from <code>Skeleton</code> and overriding <code>listen_error</code> or
  * <code>service_error</code>.
  */
 public class Skeleton<T> {
+    /** Time after which an idle connection is closed by the skeleton, in milliseconds. */
+    static final int IDLE_TIMEOUT = 60000;
+
     Class<T> sclass;
     T server;
+    /** Threading model serving connections and calls. */
+    final ServiceModel model;
+    /** Numbering of the methods of the remote interface. */
+    final MethodTable table;
+    /** Method handles bound to the server object, in method table order, or <code>null</code> if there is a dispatcher. */
+    private final MethodHandle[] handles;
+    /** Dispatcher generated for the remote interface at build time, or <code>null</code>. See {@link Precompiled}. */
+    private final CompiledSkeleton<T> compiled;
+    /** Statistics of the calls served, in method table order. */
+    private final MethodStats[] stats;
+    /** Limits on the calls accepted, protecting the server from overload. */
+    private final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    /** Running calls to coalesced methods, whose outcome identical calls wait for. See {@link Coalesce}. */
+    private final ConcurrentHashMap<CallKey, CompletableFuture<Object>> flights =
+            new ConcurrentHashMap<CallKey, CompletableFuture<Object>>();
     public InetSocketAddress sockaddr;
     public ListenerThread slistener;
+    /** Event loops serving connections, when the service model uses non-blocking I/O. */
+    volatile SelectorTransport transport;
+    /** Domain socket accepting connections from stubs on this host, if enabled. See {@link LocalTransport}. */
+    private LocalTransport.Listener local;
+    /** Connections currently being served by their own threads. */
+    final Set<ResponseThread> connections = Collections.newSetFromMap(new ConcurrentHashMap<ResponseThread, Boolean>());
 
     /**
      * Creates a <code>Skeleton</code> with no initial server address. The address will be determined by the system when
@@ -72,6 +118,11 @@ public class Skeleton<T> {
         sclass = c;
         this.server = server;
         sockaddr = new InetSocketAddress(50000);
+        model = ServiceModel.fromSystemProperty();
+        table = MethodTable.of(c);
+        compiled = dispatcher(table);
+        handles = compiled == null ? bind(table, server) : null;
+        stats = Metrics.server().of(table);
     }
 
     /**
@@ -95,8 +146,35 @@ public class Skeleton<T> {
      *             If either of <code>c</code> or <code>server</code> is <code>null</code>.
      */
     public Skeleton(Class<T> c, T server, InetSocketAddress address) {
+        this(c, server, address, ServiceModel.fromSystemProperty());
+    }
+
+    /**
+     * Creates a <code>Skeleton</code> with the given initial server address and service model.
+     * 
+     * <p>
+     * This constructor should be used when the threads serving connections and calls must be controlled, for example to bound
+     * the number of threads a burst of clients can create.
+     * 
+     * @param c
+     *            An object representing the class of the interface for which the skeleton server is to handle method call
+     *            requests.
+     * @param server
+     *            An object implementing said interface. Requests for method calls are forwarded by the skeleton to this object.
+     * @param address
+     *            The address at which the skeleton is to run. If <code>null</code>, the address will be chosen by the system when
+     *            <code>start</code> is called.
+     * @param model
+     *            The service model used to run connections and calls. The model must not be shared with another skeleton.
+     * @throws Error
+     *             If <code>c</code> does not represent a remote interface - an interface whose methods are all marked as throwing
+     *             <code>RMIException</code>.
+     * @throws NullPointerException
+     *             If any of <code>c</code>, <code>server</code> or <code>model</code> is <code>null</code>.
+     */
+    public Skeleton(Class<T> c, T server, InetSocketAddress address, ServiceModel model) {
         // error-checking; nullpointer and remote interface
-        if (c == null || server == null) {
+        if (c == null || server == null || model == null) {
             throw new NullPointerException();
         }
         Method[] mthds = c.getDeclaredMethods();
@@ -110,21 +188,447 @@ public class Skeleton<T> {
         sclass = c;
         this.server = server;
         sockaddr = address;
+        this.model = model;
+        table = MethodTable.of(c);
+        compiled = dispatcher(table);
+        handles = compiled == null ? bind(table, server) : null;
+        stats = Metrics.server().of(table);
+    }
+
+    /** Returns the service model running this skeleton's connections and calls, whose counters describe its load. */
+    public ServiceModel serviceModel() {
+        return model;
     }
 
+    /**
+     * Returns the admission control of this skeleton. Its limits are initially given by system properties, and may be changed
+     * while the skeleton runs; its counters tell how many calls were rejected because the skeleton was overloaded.
+     */
+    public AdmissionControl admissionControl() {
+        return admission;
+    }
+
+    /**
+     * Invokes a method call on the server object.
+     *
+     * @param input
+     *            The <code>MethodCall</code> received from a stub.
+     * @return The value returned by the method, or an <code>InvocationTargetException</code> wrapping the exception it threw.
+     * @throws RMIException
+     *             If the input is not a call to a method of the remote interface.
+     */
     public Object invoke(Object input) throws RMIException {
+        if (!(input instanceof MethodCall)) {
+            throw new RMIException("Could not invoke method call.");
+        }
+        MethodCall call = (MethodCall) input;
+        if (call.method < 0 || call.method >= table.methods.length || table.signatures[call.method] != call.signature) {
+            throw new RMIException("Could not invoke method call: unknown method " + call.method + " of " + sclass.getName());
+        }
+        Object[] params = call.params == null ? new Object[0] : call.params;
+        if (params.length != table.methods[call.method].getParameterTypes().length) {
+            throw new RMIException("Could not invoke method call: wrong number of arguments to " + table.methods[call.method]);
+        }
+        MethodStats stats = this.stats[call.method];
+        long start = stats.begin();
+        Object result = table.coalesced[call.method] ? coalesce(call.method, params, stats) : call(call.method, params);
+        stats.end(start, result instanceof InvocationTargetException);
+        return result;
+    }
+
+    /** Calls a method of the server object. Returns its result, or an <code>InvocationTargetException</code>. */
+    private Object call(int method, Object[] params) {
         try {
-            MethodCall methodCalled = (MethodCall) input;
-            String name = methodCalled.name;
-            Method mthd = server.getClass().getMethod(name, methodCalled.types);
-            return mthd.invoke(server, methodCalled.params);
-        } catch (Exception e) {
-            if (e instanceof InvocationTargetException) {
-                return e;
+            return compiled != null ? compiled.dispatch(server, method, params) : (Object) handles[method].invokeExact(params);
+        } catch (Throwable t) {
+            return new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Calls a coalesced method of the server object, or waits for the outcome of an identical call already running. If the
+     * running call is cancelled, its outcome only reflects the interruption, and the method is called again.
+     *
+     * @return The result of the method, or an <code>InvocationTargetException</code>.
+     */
+    private Object coalesce(int method, Object[] params, MethodStats stats) {
+        CallKey key = new CallKey(method, params);
+        while (true) {
+            CompletableFuture<Object> flight = new CompletableFuture<Object>();
+            CompletableFuture<Object> running = flights.putIfAbsent(key, flight);
+            if (running == null) {
+                Object result = CallKey.CANCELLED;
+                try {
+                    result = call(method, params);
+                    return result;
+                } finally {
+                    flights.remove(key, flight);
+                    flight.complete(Deadline.cancelled() ? CallKey.CANCELLED : result);
+                }
+            }
+            Object result;
+            try {
+                result = running.get();
+            } catch (InterruptedException e) {
+                // the call is being cancelled, and its reply will say so
+                Thread.currentThread().interrupt();
+                return new InvocationTargetException(new RMIException("Interrupted while waiting for an identical call.", e));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+            if (result != CallKey.CANCELLED) {
+                stats.shared();
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Invokes a call made by a stub in this virtual machine, without going through a connection. See {@link InProcess}.
+     *
+     * @param call
+     *            The call, whose arguments have already been copied.
+     * @param deadline
+     *            Deadline of the call, as returned by <code>Deadline.direct</code>, or <code>null</code> if the call has none.
+     *            The call is cancelled when it passes, as calls received over a connection are.
+     * @return The value returned by the method, or an <code>InvocationTargetException</code> wrapping the exception it threw.
+     * @throws RMIOverloadException
+     *             If admission control rejects the call.
+     * @throws RMITimeoutException
+     *             If the call is cancelled.
+     * @throws RMIException
+     *             If the call is not to a method of the remote interface.
+     */
+    Object invokeDirect(MethodCall call, Deadline deadline) throws RMIException {
+        if (!admission.admit()) {
+            admission.rejected();
+            throw new RMIOverloadException("Skeleton is overloaded; call rejected.");
+        }
+        try {
+            if (deadline != null && !deadline.enter()) {
+                throw new RMITimeoutException("Call cancelled before it could run.");
+            }
+            Object result;
+            boolean cancelled = false;
+            try {
+                result = invoke(call);
+            } finally {
+                if (deadline != null) {
+                    cancelled = deadline.exit();
+                }
+            }
+            if (cancelled) {
+                throw new RMITimeoutException("Call cancelled while it was running.");
+            }
+            return result;
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Invokes a batch of method calls, one after the other, in the order in which they were recorded.
+     *
+     * <p>
+     * Every call in the batch is made, whether or not the calls before it succeeded. The outcome of each call is returned as two
+     * elements of the result array: <code>Boolean.TRUE</code> followed by the exception thrown by the call, or
+     * <code>Boolean.FALSE</code> followed by the value it returned.
+     *
+     * @param input
+     *            Array of <code>MethodCall</code> objects received from a stub.
+     * @return The outcomes of the calls.
+     * @throws RMIException
+     *             If the input is not an array of method calls.
+     */
+    private Object[] invokeBatch(Object input) throws RMIException {
+        if (!(input instanceof Object[])) {
+            throw new RMIException("Could not invoke batch of method calls.");
+        }
+        Object[] calls = (Object[]) input;
+        Object[] outcomes = new Object[2 * calls.length];
+        for (int index = 0; index < calls.length; index++) {
+            Object result;
+            try {
+                result = invoke(calls[index]);
+            } catch (RMIException e) {
+                service_error(e);
+                result = new InvocationTargetException(e);
+            }
+            if (result instanceof InvocationTargetException) {
+                outcomes[2 * index] = Boolean.TRUE;
+                outcomes[2 * index + 1] = ((InvocationTargetException) result).getTargetException();
             } else {
-                throw new RMIException("Could not invoke method call.");
+                outcomes[2 * index] = Boolean.FALSE;
+                outcomes[2 * index + 1] = result;
+            }
+        }
+        return outcomes;
+    }
+
+    /** Creates the dispatcher generated for the remote interface, or returns <code>null</code> if there is none. */
+    @SuppressWarnings("unchecked")
+    private static <T> CompiledSkeleton<T> dispatcher(MethodTable table) {
+        if (table.skeleton == null) {
+            return null;
+        }
+        try {
+            return (CompiledSkeleton<T>) table.skeleton.newInstance();
+        } catch (Exception e) {
+            throw new Error("Cannot create generated skeleton for " + table.remote.getName(), e);
+        }
+    }
+
+    /**
+     * Binds every method of the remote interface to the server object, in method table order.
+     *
+     * <p>
+     * Each handle takes the call arguments as an <code>Object[]</code> and returns the result as an <code>Object</code>, so that
+     * calls are dispatched without any reflective lookup.
+     */
+    private MethodHandle[] bind(MethodTable table, T server) {
+        MethodHandle[] handles = new MethodHandle[table.methods.length];
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (int id = 0; id < handles.length; id++) {
+            Method method = table.methods[id];
+            try {
+                MethodHandle handle;
+                try {
+                    handle = lookup.unreflect(method);
+                } catch (IllegalAccessException e) {
+                    // the remote interface is not public; the skeleton is still entitled to call it
+                    method.setAccessible(true);
+                    handle = lookup.unreflect(method);
+                }
+                handles[id] = handle.bindTo(server).asSpreader(Object[].class, method.getParameterTypes().length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch (Exception e) {
+                throw new Error("Cannot bind method " + method + " of the remote interface", e);
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Invokes the call or batch of calls carried by a frame and builds the reply.
+     *
+     * <p>
+     * Errors in decoding or invoking the call are reported to <code>service_error</code> and returned to the stub as an
+     * <code>RMIException</code>.
+     *
+     * @param call
+     *            Call or batch frame.
+     * @param compression
+     *            Compression state of the connection over which the call was received, or <code>null</code> if the connection
+     *            does not compress payloads.
+     * @param deadline
+     *            Deadline of the call, as returned by <code>Deadline.received</code> when the call was received, or
+     *            <code>null</code> if the call has none. A call that is cancelled or whose deadline passes is answered with an
+     *            <code>RMITimeoutException</code>, without being run if it has not yet started.
+     * @param streams
+     *            Streams of the connection over which the call was received. A call with the {@link Frame#STREAM} flag is
+     *            given the stream opened for it as the argument of its <code>ChunkSource</code> parameter. A call returning a
+     *            <code>ChunkSource</code> is answered at once, and the chunks of the source are then sent to the stub.
+     * @return The reply frame, or the frame ending the stream if the result of the call has been streamed.
+     */
+    Frame handle(Frame call, Compression compression, Deadline deadline, Streams streams) {
+        Object request = null;
+        Object result;
+        byte flags = 0;
+        try {
+            if (call.has(Frame.DEFLATED)) {
+                if (compression == null) {
+                    throw new RMIException("Could not read method call: compression was not negotiated.");
+                }
+                call = compression.decompress(call);
+            }
+            request = Codec.of(call).decode(call.payload);
+            if (call.has(Frame.STREAM)) {
+                attach(request, streams.inbound(call.id));
+            }
+            if (deadline != null && !deadline.enter()) {
+                throw new RMITimeoutException("Call cancelled before it could run.");
+            }
+            boolean cancelled = false;
+            try {
+                result = call.type == Frame.BATCH ? invokeBatch(request) : invoke(request);
+            } finally {
+                if (deadline != null) {
+                    cancelled = deadline.exit();
+                }
+            }
+            if (cancelled) {
+                throw new RMITimeoutException("Call cancelled while it was running.");
+            }
+            if (result instanceof InvocationTargetException) {
+                result = ((InvocationTargetException) result).getTargetException();
+                flags = Frame.EXCEPTION;
+            }
+        } catch (Exception e) {
+            RMIException error = e instanceof RMIException ? (RMIException) e : new RMIException("Could not read method call.",
+                    e);
+            // a call given up by its stub is not an error of the skeleton
+            if (!(error instanceof RMITimeoutException)) {
+                service_error(error);
+            }
+            result = error;
+            flags = Frame.EXCEPTION;
+        }
+        if (result instanceof ChunkSource && flags == 0 && call.type == Frame.CALL) {
+            return stream(call, (ChunkSource<?>) result, streams);
+        }
+        Frame reply = reply(call, flags, result);
+        if (call.type != Frame.BATCH && request instanceof MethodCall) {
+            int method = ((MethodCall) request).method;
+            if (method >= 0 && method < stats.length) {
+                stats[method].traffic(call.payload.length, reply.payload.length);
             }
         }
+        return compression == null ? reply : compression.compress(reply);
+    }
+
+    /**
+     * Passes the stream received with a call to the server object, as the argument of the method's <code>ChunkSource</code>
+     * parameter.
+     *
+     * @throws RMIException
+     *             If the call is not to a method taking a chunk source, or its stream is not known.
+     */
+    private void attach(Object request, ChunkSource<?> upstream) throws RMIException {
+        if (!(request instanceof MethodCall) || upstream == null) {
+            throw new RMIException("Could not read method call: unexpected stream.");
+        }
+        MethodCall call = (MethodCall) request;
+        if (call.method < 0 || call.method >= table.upstream.length || table.upstream[call.method] < 0 || call.params == null
+                || call.params.length <= table.upstream[call.method]) {
+            throw new RMIException("Could not read method call: unexpected stream.");
+        }
+        call.params[table.upstream[call.method]] = upstream;
+    }
+
+    /**
+     * Answers a call whose result is a stream, then sends the chunks of the stream as the stub grants credit for them.
+     *
+     * @param call
+     *            Call frame.
+     * @param source
+     *            Source returned by the server object. It is closed.
+     * @param streams
+     *            Streams of the connection over which the call was received.
+     * @return The frame ending the stream.
+     */
+    private Frame stream(Frame call, ChunkSource<?> source, Streams streams) {
+        Codec codec = Codec.of(call);
+        Streams.Outbound stream = streams.outbound(call.id);
+        try {
+            streams.write(new Frame(Frame.REPLY, (byte) (Frame.STREAM | codec.flag), call.id, new byte[0]));
+        } catch (IOException e) {
+            streams.cancel(call.id);
+            source.close();
+            return new Frame(Frame.END, codec.flag, call.id, new byte[0]);
+        }
+        try {
+            return stream.pump(source, codec);
+        } catch (IOException e) {
+            // the connection has failed; the frame returned is not sent
+            return new Frame(Frame.END, codec.flag, call.id, new byte[0]);
+        }
+    }
+
+    /**
+     * Runs a call admitted by admission control and builds the reply, then releases the call. A call that has waited longer
+     * than the queue time budget is shed without being run. A call streaming its result is released once the stream has been
+     * sent.
+     *
+     * @param call
+     *            Call or batch frame.
+     * @param compression
+     *            Compression state of the connection, as for {@link #handle}.
+     * @param deadline
+     *            Deadline of the call, as for {@link #handle}.
+     * @param received
+     *            Time at which the call was received, in <code>System.nanoTime</code> units.
+     * @param streams
+     *            Streams of the connection, as for {@link #handle}. The stream received with the call, if any, is closed once
+     *            the call has run, which stops the stub sending it.
+     * @return The reply frame, the frame ending the stream of the result, or <code>null</code> if the call is one-way and has
+     *         succeeded, in which case nothing is sent.
+     */
+    Frame process(Frame call, Compression compression, Deadline deadline, long received, Streams streams) {
+        try {
+            Frame reply = admission.overdue(received) ? overloaded(call, "Skeleton is overloaded; call waited too long to run.")
+                    : handle(call, compression, deadline, streams);
+            // a one-way call is only answered if it fails
+            return call.type == Frame.ONEWAY && !reply.has(Frame.EXCEPTION) ? null : reply;
+        } finally {
+            if (call.has(Frame.STREAM)) {
+                streams.close(call.id);
+            }
+            admission.release();
+        }
+    }
+
+    /**
+     * Admits a call received from a stub, if admission control allows. An admitted call must be run by {@link #process}, or
+     * released if it is rejected after all.
+     *
+     * @return <code>true</code> if the call is admitted, <code>false</code> if it must be answered by {@link #reject}.
+     */
+    boolean admit() {
+        return admission.admit();
+    }
+
+    /**
+     * Builds the reply to a call that was not admitted, or that the service model had no capacity to run. An admitted call is
+     * released.
+     *
+     * @param call
+     *            Call frame.
+     * @param admitted
+     *            Whether the call had been admitted.
+     * @return The reply frame.
+     */
+    Frame reject(Frame call, boolean admitted) {
+        if (admitted) {
+            admission.release();
+        }
+        admission.rejected();
+        return overloaded(call, "Skeleton is overloaded; call rejected.");
+    }
+
+    /** Builds the reply to a call received while the skeleton is stopping, which is not run. */
+    Frame refuse(Frame call) {
+        return reply(call, Frame.EXCEPTION, new RMIException("Skeleton is stopping; call not run."));
+    }
+
+    /** Builds the reply to a call refused because the skeleton is overloaded. */
+    private Frame overloaded(Frame call, String message) {
+        return reply(call, (byte) (Frame.EXCEPTION | Frame.OVERLOADED), new RMIOverloadException(message));
+    }
+
+    /** Builds a reply frame carrying the given result, or an <code>RMIException</code> if the result cannot be serialized. */
+    private Frame reply(Frame call, byte flags, Object result) {
+        Codec codec = Codec.of(call);
+        byte[] payload;
+        try {
+            payload = codec.encode(result);
+        } catch (IOException e) {
+            try {
+                payload = codec.encode(new RMIException("Could not send result of method call.", e));
+            } catch (IOException unexpected) {
+                throw new IllegalStateException(unexpected);
+            }
+            flags = Frame.EXCEPTION;
+        }
+        if (!Frame.fits(payload.length)) {
+            try {
+                payload = codec.encode(new RMIException("Result of method call is too large to send: " + payload.length
+                        + " bytes, over the frame limit of " + Frame.MAX_LENGTH + " bytes."));
+            } catch (IOException unexpected) {
+                throw new IllegalStateException(unexpected);
+            }
+            flags = Frame.EXCEPTION;
+        }
+        return new Frame(Frame.REPLY, (byte) (flags | codec.flag), call.id, payload);
     }
 
     /**
@@ -186,9 +690,9 @@ public class Skeleton<T> {
      * Starts the skeleton server.
      * 
      * <p>
-     * A thread is created to listen for connection requests, and the method returns immediately. Additional threads are created
-     * when connections are accepted. The network address used for the server is determined by which constructor was used to
-     * create the <code>Skeleton</code> object.
+     * A thread is created to listen for connection requests, and the method returns immediately. Connections and calls are then
+     * served by the skeleton's service model. The network address used for the server is determined by which constructor was used
+     * to create the <code>Skeleton</code> object.
      * 
      * @throws RMIException
      *             When the listening socket cannot be created or bound, when the listening thread cannot be created, or when the
@@ -200,8 +704,27 @@ public class Skeleton<T> {
             throw new RMIException("Server has already been started and has not since stopped.");
         } else {
             try {
-                slistener = new ListenerThread(new ServerSocket(sockaddr.getPort()));
+                model.open();
+                ServerSocket listenerSocket;
+                if (model.eventLoops() > 0) {
+                    // accepted connections are handed to event loops, which need channels rather than plain sockets
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channel.bind(new InetSocketAddress(sockaddr.getPort()));
+                    listenerSocket = channel.socket();
+                    transport = new SelectorTransport(this, model.eventLoops());
+                } else {
+                    listenerSocket = new ServerSocket(sockaddr.getPort());
+                }
+                slistener = new ListenerThread(listenerSocket);
                 slistener.start();
+                try {
+                    local = LocalTransport.listen(this, listenerSocket.getLocalPort());
+                } catch (IOException e) {
+                    // stubs on this host then connect over TCP, as remote ones do
+                    local = null;
+                }
+                Metrics.server().started(sclass, admission);
+                InProcess.started(listenerSocket.getLocalPort(), this);
             } catch (Exception e) {
                 throw new RMIException(
                         "Listening socket could not be created or bound, or listening thread could not be created.");
@@ -220,6 +743,7 @@ public class Skeleton<T> {
     public synchronized void stop() {
         // set run state to false and close socket connection
         if (slistener != null && slistener.isAlive()) {
+            InProcess.stopped(slistener.listenerSocket.getLocalPort(), this);
             slistener.run = false;
             try {
                 if (slistener.listenerSocket != null && !slistener.listenerSocket.isClosed()) {
@@ -231,6 +755,21 @@ public class Skeleton<T> {
             // waits for thread to terminate with or without exception
             try {
                 slistener.join();
+                if (local != null) {
+                    local.shutdown();
+                    local = null;
+                }
+                // stubs keep their connections open between calls, so connections are closed here rather than by the stubs
+                for (ResponseThread connection : connections) {
+                    connection.shutdown();
+                }
+                if (transport != null) {
+                    transport.shutdown();
+                    transport = null;
+                }
+                // calls already running or queued are left to finish
+                model.shutdown();
+                Metrics.server().stopped(admission);
                 stopped(null);
             } catch (Exception e) {
                 stopped(e);
@@ -238,6 +777,54 @@ public class Skeleton<T> {
         }
     }
 
+    /**
+     * Serves a connection accepted over a domain socket, as TCP connections are served.
+     *
+     * @param channel
+     *            Connected channel, in blocking mode.
+     * @throws IOException
+     *             If the connection cannot be handed to the event loops.
+     */
+    void accepted(SocketChannel channel) throws IOException {
+        SelectorTransport transport = this.transport;
+        if (transport != null) {
+            transport.register(channel);
+        } else {
+            model.spawn(new ResponseThread(channel), "rmi-connection");
+        }
+    }
+
+    /** Method and arguments of a call to a coalesced method, identifying the calls that may share its execution. */
+    private static final class CallKey {
+        /** Outcome of a call that was cancelled while it ran, which the calls waiting for it must not share. */
+        static final Object CANCELLED = new Object();
+
+        private final int method;
+        private final Object[] params;
+        private final int hash;
+
+        CallKey(int method, Object[] params) {
+            this.method = method;
+            // the server object may modify the array while other calls compare their arguments with it
+            this.params = params.clone();
+            hash = 31 * method + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CallKey)) {
+                return false;
+            }
+            CallKey call = (CallKey) other;
+            return method == call.method && hash == call.hash && Arrays.deepEquals(params, call.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     public class ListenerThread extends Thread {
 
         boolean run;
@@ -254,8 +841,11 @@ public class Skeleton<T> {
                 try {
                     // begin listening for requests
                     clientSocket = listenerSocket.accept();
-                    ResponseThread rt = new ResponseThread(clientSocket);
-                    rt.start();
+                    if (transport != null) {
+                        transport.register(clientSocket.getChannel());
+                    } else {
+                        model.spawn(new ResponseThread(clientSocket), "rmi-connection");
+                    }
                 } catch (IOException e) {
                     if (run) {
                         listen_error(e);
@@ -265,49 +855,279 @@ public class Skeleton<T> {
         }
     }
 
-    public class ResponseThread extends Thread {
+    public class ResponseThread implements Runnable {
         boolean run;
         Socket clientSocket;
-        ObjectInputStream in;
-        ObjectOutputStream out;
+        /** Connection accepted over a domain socket, if the connection is not a TCP one. */
+        private SocketChannel channel;
+        /** Time at which the last frame was received over a domain socket connection, in milliseconds. */
+        private volatile long lastActive;
+        BufferedInputStream buffered;
+        DataInputStream in;
+        DataOutputStream out;
+        /** Number of calls received over this connection whose replies have not yet been sent. */
+        final AtomicInteger inFlight = new AtomicInteger();
+        /** Compression state of the connection, once the stub has negotiated compression. */
+        private volatile Compression compression;
+        /** Deadlines of the calls received over this connection and not yet answered, by request identifier. */
+        private final ConcurrentHashMap<Integer, Deadline> deadlines = new ConcurrentHashMap<Integer, Deadline>();
+        /** Streams of the streaming calls in progress on this connection. */
+        private final Streams streams = new Streams(new Streams.Writer() {
+            @Override
+            public void write(Frame frame) throws IOException {
+                ResponseThread.this.write(frame);
+            }
+        });
 
         public ResponseThread(Socket clientSocket) {
             this.clientSocket = clientSocket;
+            run = true;
+            connections.add(this);
+        }
+
+        /** Creates the service of a connection accepted over a domain socket. */
+        ResponseThread(SocketChannel channel) {
+            this.channel = channel;
+            run = true;
+            connections.add(this);
         }
 
         public void run() {
             try {
-                if (!clientSocket.isClosed()) {
-                    // initialized object streams for passing methodcall and returning results
-                    out = new ObjectOutputStream(clientSocket.getOutputStream());
-                    out.flush();
-                    in = new ObjectInputStream(clientSocket.getInputStream());
-
-                    Object methodcall = in.readObject();
-                    out.writeObject(invoke(methodcall));
+                if (channel != null ? channel.isOpen() : !clientSocket.isClosed()) {
+                    // the connection serves calls until the stub closes it or it stays idle for too long; each call is
+                    // processed in its own thread, so replies may be sent in a different order from the calls
+                    if (channel != null) {
+                        buffered = new BufferedInputStream(LocalTransport.input(channel));
+                        out = new DataOutputStream(new BufferedOutputStream(LocalTransport.output(channel)));
+                        lastActive = System.currentTimeMillis();
+                        watchIdle();
+                    } else {
+                        clientSocket.setTcpNoDelay(true);
+                        buffered = new BufferedInputStream(clientSocket.getInputStream());
+                        out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+                    }
+                    in = new DataInputStream(buffered);
+
+                    while (awaitFrame()) {
+                        final Frame frame = Frame.read(in);
+                        lastActive = System.currentTimeMillis();
+                        if (frame.type == Frame.HELLO) {
+                            compression = Compression.accept(frame);
+                            inFlight.incrementAndGet();
+                            send(Compression.acknowledge(frame, compression));
+                            continue;
+                        }
+                        if (streams.receive(frame)) {
+                            continue;
+                        }
+                        if (frame.type == Frame.CANCEL) {
+                            Deadline cancelled = deadlines.get(frame.id);
+                            if (cancelled != null) {
+                                cancelled.cancel();
+                            }
+                            streams.cancel(frame.id);
+                            continue;
+                        }
+                        if (!frame.isRequest()) {
+                            throw new IOException("Unexpected frame type " + frame.type);
+                        }
+                        boolean stopping;
+                        synchronized (this) {
+                            inFlight.incrementAndGet();
+                            stopping = !run;
+                        }
+                        if (stopping) {
+                            // answered rather than dropped, so that the caller does not wait for the connection to close
+                            send(refuse(frame));
+                            break;
+                        }
+                        if (!admit()) {
+                            send(reject(frame, false));
+                            continue;
+                        }
+                        final long received = System.nanoTime();
+                        final Deadline deadline = Deadline.received(frame);
+                        if (deadline != null) {
+                            deadlines.put(frame.id, deadline);
+                        }
+                        if (frame.has(Frame.STREAM)) {
+                            // chunks may arrive before the call runs
+                            streams.open(frame.id);
+                        }
+                        try {
+                            model.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(frame, deadline, received);
+                                }
+                            }, frame.has(Frame.BULK));
+                        } catch (RejectedExecutionException e) {
+                            deadlines.remove(frame.id);
+                            streams.close(frame.id);
+                            send(reject(frame, true));
+                        }
+                    }
                 }
             } catch (Exception e) {
-                if (e.getClass().equals(EOFException.class) || e.getClass().equals(SocketException.class)) {
+                if (e.getClass().equals(EOFException.class) || e.getClass().equals(SocketException.class)
+                        || e instanceof ClosedChannelException) {
                     // ignore
                 } else {
                     e.printStackTrace();
                     service_error(new RMIException("Exception thrown in service response."));
                 }
             }
+            // calls still running must not wait for chunks, or for credit, that will never arrive
+            streams.fail(new IOException("Connection closed"));
 
+            synchronized (this) {
+                run = false;
+                if (inFlight.get() == 0) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Waits for the beginning of the next frame.
+         *
+         * <p>
+         * Only the wait for the first byte is subject to the idle timeout, so a timeout never leaves a frame partially read.
+         *
+         * @return <code>true</code> if a frame is available, <code>false</code> if the connection has been idle for too long.
+         * @throws IOException
+         *             If the connection fails or is closed by the stub.
+         */
+        private boolean awaitFrame() throws IOException {
+            if (channel != null) {
+                // domain sockets have no read timeout; idle connections are closed by watchIdle instead
+                buffered.mark(1);
+                if (buffered.read() < 0) {
+                    throw new EOFException();
+                }
+                buffered.reset();
+                return true;
+            }
+            clientSocket.setSoTimeout(IDLE_TIMEOUT);
             try {
-                if (out != null) {
-                    out.close();
+                while (true) {
+                    try {
+                        buffered.mark(1);
+                        if (buffered.read() < 0) {
+                            throw new EOFException();
+                        }
+                        buffered.reset();
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        // keep the connection while calls are still being processed
+                        if (inFlight.get() == 0) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                clientSocket.setSoTimeout(0);
+            }
+        }
+
+        /**
+         * Closes the domain socket connection once it has been idle for too long with no calls in progress, which makes the
+         * thread reading it exit. Checks again later otherwise.
+         */
+        private void watchIdle() {
+            Deadline.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ResponseThread.this) {
+                        if (!run || !channel.isOpen()) {
+                            return;
+                        }
+                        if (inFlight.get() == 0 && System.currentTimeMillis() - lastActive >= IDLE_TIMEOUT) {
+                            run = false;
+                            close();
+                            return;
+                        }
+                    }
+                    watchIdle();
+                }
+            }, IDLE_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Invokes the call carried by a frame and sends the reply.
+         *
+         * @param frame
+         *            Call frame.
+         * @param deadline
+         *            Deadline of the call, or <code>null</code> if it has none.
+         * @param received
+         *            Time at which the call was received, in <code>System.nanoTime</code> units.
+         */
+        private void serve(Frame frame, Deadline deadline, long received) {
+            Frame reply = process(frame, compression, deadline, received, streams);
+            if (deadline != null) {
+                deadlines.remove(frame.id);
+            }
+            send(reply);
+        }
+
+        /**
+         * Sends a reply, and closes the connection if it was waiting for this reply to shut down.
+         *
+         * @param reply
+         *            Reply frame, or <code>null</code> if the call is not to be answered.
+         */
+        private void send(Frame reply) {
+            try {
+                if (reply != null) {
+                    write(reply);
                 }
-                if (in != null) {
-                    in.close();
+            } catch (IOException e) {
+                // the connection has failed; the reading thread will notice
+            } finally {
+                synchronized (this) {
+                    if (inFlight.decrementAndGet() == 0 && !run) {
+                        close();
+                    }
                 }
-                if (!clientSocket.isClosed()) {
+            }
+        }
+
+        /** Writes a frame at once. */
+        private void write(Frame frame) throws IOException {
+            synchronized (out) {
+                frame.write(out);
+                out.flush();
+            }
+        }
+
+        /**
+         * Stops serving the connection. An idle connection is closed immediately; a connection with calls in progress is closed
+         * once their replies have been sent.
+         */
+        synchronized void shutdown() {
+            run = false;
+            if (inFlight.get() == 0) {
+                close();
+            }
+        }
+
+        /** Closes the connection and stops tracking it. */
+        private void close() {
+            connections.remove(this);
+            try {
+                if (channel != null) {
+                    channel.close();
+                } else {
                     clientSocket.close();
                 }
-            } catch (Exception e) {
+            } catch (IOException e) {
                 // ignore
             }
+            if (compression != null) {
+                compression.close();
+            }
         }
     }
 }
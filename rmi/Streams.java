@@ -0,0 +1,361 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk streams of the streaming calls carried by one connection, on either side of it. See {@link ChunkSource}.
+ *
+ * <p>
+ * A stream belongs to a call, and its frames carry the identifier of the call. The stream a stub sends to the skeleton starts
+ * after the call frame, which has the {@link Frame#STREAM} flag; the stream a skeleton sends to the stub starts after the reply
+ * frame, which has the same flag and no payload. Each chunk is sent in a {@link Frame#DATA} frame, and the stream ends with an
+ * {@link Frame#END} frame, carrying the exception that ended it, if any.
+ *
+ * <p>
+ * The sender starts with {@link #WINDOW} chunks of credit and spends one per chunk sent. The receiver grants credit back with
+ * {@link Frame#CREDIT} frames, in batches of half a window, as its reader consumes chunks, so at most a window of chunks is ever
+ * in flight. A receiver closed before the end of its stream sends a {@link Frame#CANCEL} frame, which stops the sender.
+ */
+class Streams {
+    /** Number of chunks a sender may have sent and the receiver not yet consumed. */
+    static final int WINDOW = 16;
+
+    /** Means by which frames are sent over the connection. */
+    interface Writer {
+        /**
+         * Sends a frame at once.
+         *
+         * @throws IOException
+         *             If the connection has failed.
+         */
+        void write(Frame frame) throws IOException;
+    }
+
+    private final Writer writer;
+    /** Streams being received, by call identifier. */
+    private final ConcurrentHashMap<Integer, Inbound> inbound = new ConcurrentHashMap<Integer, Inbound>();
+    /** Streams being sent, by call identifier. */
+    private final ConcurrentHashMap<Integer, Outbound> outbound = new ConcurrentHashMap<Integer, Outbound>();
+    /** Reason the connection failed, once it has. */
+    private volatile IOException failure;
+
+    Streams(Writer writer) {
+        this.writer = writer;
+    }
+
+    /** Sends a frame over the connection. */
+    void write(Frame frame) throws IOException {
+        writer.write(frame);
+    }
+
+    /**
+     * Starts receiving the stream of a call. Its frames must not have been received yet.
+     *
+     * @param id
+     *            Identifier of the call.
+     * @return The stream.
+     */
+    Inbound open(int id) {
+        Inbound stream = new Inbound(id);
+        inbound.put(id, stream);
+        IOException failed = failure;
+        if (failed != null) {
+            stream.fail(failed);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the stream being received for a call, or <code>null</code> if there is none. A stream is forgotten once its reader
+     * has read it to the end or closed it, or once the connection has failed.
+     */
+    Inbound inbound(int id) {
+        return inbound.get(id);
+    }
+
+    /**
+     * Stops receiving the stream of a call, if it is still being received, and asks the sender to stop if the stream has not
+     * ended. Chunks still arriving for it are dropped.
+     */
+    void close(int id) {
+        Inbound stream = inbound.get(id);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Prepares to send the stream of a call. The stream must be registered before the frame announcing it is sent, so that no
+     * credit granted for it is missed.
+     *
+     * @param id
+     *            Identifier of the call.
+     * @return The stream, to be sent by {@link Outbound#pump}.
+     */
+    Outbound outbound(int id) {
+        Outbound stream = new Outbound(id);
+        outbound.put(id, stream);
+        if (failure != null) {
+            stream.cancel();
+        }
+        return stream;
+    }
+
+    /** Stops sending the stream of a call, if one is being sent. */
+    void cancel(int id) {
+        Outbound stream = outbound.remove(id);
+        if (stream != null) {
+            stream.cancel();
+        }
+    }
+
+    /**
+     * Delivers a received stream frame to its stream. Frames of streams no longer known are dropped.
+     *
+     * @param frame
+     *            Frame received over the connection.
+     * @return <code>true</code> if the frame belongs to a stream, <code>false</code> if it must be handled otherwise.
+     * @throws IOException
+     *             If the frame is malformed.
+     */
+    boolean receive(Frame frame) throws IOException {
+        if (frame.type == Frame.DATA || frame.type == Frame.END) {
+            Inbound stream = inbound.get(frame.id);
+            if (stream != null) {
+                stream.deliver(frame);
+            }
+            return true;
+        }
+        if (frame.type == Frame.CREDIT) {
+            if (frame.payload.length != 4) {
+                throw new IOException("Malformed credit frame");
+            }
+            Outbound stream = outbound.get(frame.id);
+            if (stream != null) {
+                stream.grant(ByteBuffer.wrap(frame.payload).getInt());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of streams being sent or received. */
+    int size() {
+        return inbound.size() + outbound.size();
+    }
+
+    /**
+     * Fails every stream, once the connection has failed. Readers of received streams get the failure; senders stop.
+     *
+     * @param cause
+     *            Reason the connection failed.
+     */
+    void fail(IOException cause) {
+        failure = cause;
+        for (Integer id : inbound.keySet()) {
+            Inbound stream = inbound.remove(id);
+            if (stream != null) {
+                stream.fail(cause);
+            }
+        }
+        for (Integer id : outbound.keySet()) {
+            cancel(id);
+        }
+    }
+
+    /** Stream received over the connection, read by server code or by the caller of a stub. */
+    class Inbound implements ChunkSource<Object> {
+        /** Marker queued when the connection fails. */
+        private final Frame failed;
+        private final int id;
+        /** Frames received and not yet consumed. The sender's credit bounds their number. */
+        private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        /** Chunks consumed since credit was last granted. */
+        private int consumed;
+        private boolean ended;
+        private volatile IOException failure;
+
+        Inbound(int id) {
+            this.id = id;
+            failed = new Frame(Frame.END, (byte) 0, id, new byte[0]);
+        }
+
+        void deliver(Frame frame) {
+            frames.add(frame);
+        }
+
+        void fail(IOException cause) {
+            failure = cause;
+            frames.add(failed);
+        }
+
+        @Override
+        public Object next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            Frame frame = take();
+            if (frame.type == Frame.END) {
+                ended = true;
+                inbound.remove(id, this);
+                if (frame == failed) {
+                    throw new IOException("Connection failed while streaming", failure);
+                }
+                if (frame.has(Frame.EXCEPTION)) {
+                    Object error = decode(frame);
+                    if (error instanceof IOException) {
+                        throw (IOException) error;
+                    }
+                    throw new IOException("Stream failed", (Throwable) error);
+                }
+                return null;
+            }
+            Object chunk = decode(frame);
+            if (++consumed >= WINDOW / 2) {
+                write(new Frame(Frame.CREDIT, (byte) 0, id, ByteBuffer.allocate(4).putInt(consumed).array()));
+                consumed = 0;
+            }
+            return chunk;
+        }
+
+        /** Waits for the next frame, within the deadline in effect. */
+        private Frame take() throws IOException {
+            Deadline deadline = Deadline.current();
+            try {
+                Frame frame = deadline == null ? frames.take() : frames.poll(deadline.remaining(TimeUnit.NANOSECONDS),
+                        TimeUnit.NANOSECONDS);
+                if (frame == null) {
+                    throw new InterruptedIOException("Deadline passed while waiting for a chunk");
+                }
+                return frame;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a chunk");
+            }
+        }
+
+        private Object decode(Frame frame) throws IOException {
+            try {
+                return Codec.of(frame).decode(frame.payload);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not read chunk", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            if (inbound.remove(id, this)) {
+                try {
+                    write(new Frame(Frame.CANCEL, (byte) 0, id, new byte[0]));
+                } catch (IOException e) {
+                    // the connection has failed; the sender stops anyway
+                }
+            }
+            frames.clear();
+        }
+    }
+
+    /** Stream sent over the connection, from a source given by server code or by the caller of a stub. */
+    class Outbound {
+        private final int id;
+        /** Number of chunks that may still be sent. */
+        private int credit = WINDOW;
+        private boolean cancelled;
+
+        Outbound(int id) {
+            this.id = id;
+        }
+
+        synchronized void grant(int chunks) {
+            credit += chunks;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /** Waits for credit to send a chunk, and spends it. Returns <code>false</code> if the stream has been cancelled. */
+        private synchronized boolean acquire() throws InterruptedIOException {
+            try {
+                while (credit == 0 && !cancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a chunk");
+            }
+            if (cancelled) {
+                return false;
+            }
+            credit--;
+            return true;
+        }
+
+        /**
+         * Sends the chunks of a source as the receiver grants credit for them, until the source ends or fails, or the stream is
+         * cancelled. The source is closed.
+         *
+         * @param source
+         *            Source of the chunks.
+         * @param codec
+         *            Codec with which the chunks are encoded.
+         * @return The frame ending the stream, to be sent by the caller; it carries the exception thrown by the source, or by the
+         *         codec encoding a chunk, if any.
+         * @throws IOException
+         *             If the connection fails.
+         */
+        Frame pump(ChunkSource<?> source, Codec codec) throws IOException {
+            try {
+                while (acquire()) {
+                    byte[] payload;
+                    try {
+                        Object chunk = source.next();
+                        if (chunk == null) {
+                            break;
+                        }
+                        payload = codec.encode(chunk);
+                        if (!Frame.fits(payload.length)) {
+                            throw new IOException("Chunk of " + payload.length + " bytes exceeds the frame limit of "
+                                    + Frame.MAX_LENGTH + " bytes");
+                        }
+                    } catch (Exception e) {
+                        return end(codec, e);
+                    }
+                    write(new Frame(Frame.DATA, codec.flag, id, payload));
+                }
+                return new Frame(Frame.END, codec.flag, id, new byte[0]);
+            } catch (InterruptedIOException e) {
+                return end(codec, e);
+            } finally {
+                outbound.remove(id, this);
+                source.close();
+            }
+        }
+
+        /** Builds the frame ending the stream with an exception. */
+        private Frame end(Codec codec, Exception error) {
+            byte[] payload;
+            try {
+                payload = codec.encode(error);
+            } catch (IOException e) {
+                try {
+                    payload = codec.encode(new IOException(error.toString()));
+                } catch (IOException unexpected) {
+                    throw new IllegalStateException(unexpected);
+                }
+            }
+            return new Frame(Frame.END, (byte) (Frame.EXCEPTION | codec.flag), id, payload);
+        }
+    }
+}
@@ -1,16 +1,12 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 /**
  * RMI stub factory.
@@ -23,6 +19,10 @@ import java.util.Arrays;
  * The network address of the remote server is set when a stub is created, and may not be modified afterwards. Two stubs are equal
  * if they implement the same interface and carry the same remote server address - and would therefore connect to the same
  * skeleton. Stubs are serializable.
+ * 
+ * <p>
+ * Stubs are dynamic proxies, unless the remote interface is marked {@link Precompiled} and its stub class has been generated
+ * at build time.
  */
 public abstract class Stub {
     /**
@@ -75,8 +75,7 @@ public abstract class Stub {
             throw new IllegalStateException("Skeleton has not been assigned an address and has not yet been started");
         }
         // create stub
-        T result = (T) (Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, new ProxyClass<T>(skeleton, c)));
-        return result;
+        return instantiate(c, new ProxyClass<T>(skeleton, c));
     }
 
     /**
@@ -126,9 +125,7 @@ public abstract class Stub {
             }
         }
         // create stub
-        T result = (T) (Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, new ProxyClass<T>(new InetSocketAddress(
-                hostname, skeleton.sockaddr.getPort()), c)));
-        return result;
+        return instantiate(c, new ProxyClass<T>(new InetSocketAddress(hostname, skeleton.sockaddr.getPort()), c));
     }
 
     /**
@@ -163,89 +160,81 @@ public abstract class Stub {
             }
         }
         // create stub
-        T result = (T) (Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, new ProxyClass<T>(address, c)));
-        return result;
+        return instantiate(c, new ProxyClass<T>(address, c));
     }
-}
 
-class ProxyClass<T> implements InvocationHandler {
-    InetAddress address;
-    int port;
-    Class<T> c;
-
-    public ProxyClass(Skeleton<T> skeleton, Class<T> c) {
-        this.address = skeleton.sockaddr.getAddress();
-        port = skeleton.sockaddr.getPort();
-        this.c = c;
-    }
-
-    public ProxyClass(InetSocketAddress sockaddr, Class<T> c) {
-        this.address = sockaddr.getAddress();
-        port = sockaddr.getPort();
-        this.c = c;
-    }
-
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        // stub equals
-        if (method.toString().equals("public boolean java.lang.Object.equals(java.lang.Object)")) {
-            Object obj = args[0];
-            if (obj == null)
-                return false;
-            if (obj instanceof Proxy) {
-                ProxyClass<T> stub1 = (ProxyClass<T>) Proxy.getInvocationHandler(proxy);
-                ProxyClass<T> stub2 = (ProxyClass<T>) Proxy.getInvocationHandler(obj);
-                if ((stub1.c.equals(stub2.c)) && (stub1.port == stub2.port) && (stub1.address.equals(stub2.address))) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else {
-                return false;
-            }
-        }
-
-        // stub hashcode
-        if (method.toString().equals("public native int java.lang.Object.hashCode()")) {
-            ProxyClass<T> stub = (ProxyClass<T>) Proxy.getInvocationHandler(proxy);
-            return stub.address.hashCode() + port + 33 * c.hashCode();
-        }
-
-        // stub tostring
-        if (method.toString().equals("public java.lang.String java.lang.Object.toString()")) {
-            ProxyClass<T> stub = (ProxyClass<T>) Proxy.getInvocationHandler(proxy);
-            return stub.c.toString() + stub.address.toString() + ":" + stub.port;
+    /**
+     * Creates a stub with the given handler: an instance of the stub class generated for the interface, if there is one, or a
+     * dynamic proxy. See {@link Precompiled}.
+     */
+    private static <T> T instantiate(Class<T> c, ProxyClass<T> handler) {
+        Constructor<? extends CompiledStub> compiled = MethodTable.of(c).stub;
+        if (compiled == null) {
+            return c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, handler));
         }
-
-        Socket clientSocket = null;
-        ObjectOutputStream out = null;
-        ObjectInputStream in = null;
+        CompiledStub stub;
         try {
-            // open stream with skeleton for method call invocation and response
-            clientSocket = new Socket(address, port);
-            out = new ObjectOutputStream(clientSocket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(clientSocket.getInputStream());
-            MethodCall mthd = new MethodCall(method, args);
-            out.writeObject(mthd);
+            stub = compiled.newInstance();
         } catch (Exception e) {
-            e.printStackTrace();
-            throw new RMIException("Could not connect to skeleton.");
+            throw new Error("Cannot create generated stub for " + c.getName(), e);
         }
+        stub.handler = handler;
+        return c.cast(stub);
+    }
 
-        // remote method call could throw an exception
-        Object ret = in.readObject();
-        if (ret instanceof InvocationTargetException) {
-            throw ((InvocationTargetException) ret).getTargetException();
-        }
+    /**
+     * Sets the listener told of the failures of one-way calls made by the stubs of this virtual machine. See {@link OneWay}.
+     *
+     * <p>
+     * The listener is given the address of the skeleton called and the exception with which the call failed: the exception
+     * thrown by the method, or an <code>RMIException</code> if the call was rejected or could not be run. It is called by the
+     * thread reading the replies of the connection, or by the caller for calls to a skeleton in the same virtual machine, and
+     * must not block.
+     *
+     * @param listener
+     *            The listener, or <code>null</code> to ignore failures, as is the default.
+     */
+    public static void setOneWayListener(BiConsumer<InetSocketAddress, Throwable> listener) {
+        Connection.oneWayListener = listener;
+    }
 
-        try {
-            out.close();
-            in.close();
-            clientSocket.close();
-        } catch (Exception e) {
-            throw new RMIException("Could not close connection to skeleton.");
+    /**
+     * Creates an asynchronous view of a stub.
+     *
+     * <p>
+     * The asynchronous interface declares, for each remote method to be called, a method with the same name and parameter types
+     * returning a <code>CompletableFuture</code> of the remote method's result (or of <code>Void</code>). Calling such a method
+     * sends the call and returns at once; the future is completed when the reply arrives, by the thread reading replies from the
+     * connection to the skeleton. No thread is held while a call is outstanding, so a caller may issue calls to many servers and
+     * then wait for all of them. Dependent actions registered on the future without an executor run on the reader thread, and
+     * must not block.
+     *
+     * <p>
+     * If the remote method throws an exception, the future is completed exceptionally with that exception. If the call cannot be
+     * carried out, the future is completed exceptionally with an <code>RMIException</code>.
+     *
+     * @param async
+     *            A <code>Class</code> object representing the asynchronous interface.
+     * @param stub
+     *            A stub created by this class.
+     * @return An object implementing the asynchronous interface, calling the server of the given stub.
+     * @throws NullPointerException
+     *             If any argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If <code>stub</code> is not a stub.
+     * @throws Error
+     *             If <code>async</code> is not an interface, or one of its methods does not return a future, has no
+     *             counterpart in the remote interface of the stub, or has a counterpart streaming chunks.
+     */
+    public static <A> A createAsync(Class<A> async, Object stub) {
+        if (async == null || stub == null) {
+            throw new NullPointerException("One or more arguments are null");
         }
-        return ret;
+        ProxyClass<?> handler = ProxyClass.of(stub);
+        if (handler == null) {
+            throw new IllegalArgumentException("Not a stub: " + stub);
+        }
+        return async.cast(Proxy.newProxyInstance(async.getClassLoader(), new Class<?>[] { async }, new AsyncProxyClass(async,
+                handler)));
     }
-
 }
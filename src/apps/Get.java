@@ -1,8 +1,6 @@
 package apps;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 
 import naming.NamingStubs;
 import naming.Service;
@@ -74,32 +72,17 @@ public class Get extends ClientApplication {
             throw new ApplicationFailure("cannot lock " + source + ": " + t.getMessage());
         }
 
-        // Create an input stream reading bytes from the remote file, and an
-        // output stream for writing bytes to a local copy of the file.
-        // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
-        // write them to the local file.
-        OutputStream output_stream = null;
-
+        // Download the remote file over the storage server's bulk data
+        // channel, straight into the local file.
         try {
             Storage storage = naming_server.getStorage(source.path);
-            byte[] buffer = storage.read(source.path);
-            output_stream = new FileOutputStream(destination);
-            output_stream.write(buffer);
+            storage.download(source.path).receive(destination);
             System.out.println("Get file successfully");
 
         } catch (Throwable t) {
             throw new ApplicationFailure("cannot transfer " + source + ": " + t.getMessage());
         } finally {
-            // In all cases, make an effort to close all streams, and to
-            // unlock the file.
-
-            if (output_stream != null) {
-                try {
-                    output_stream.close();
-                } catch (Throwable t) {
-                }
-            }
-
+            // In all cases, make an effort to unlock the file.
             try {
                 naming_server.unlock(source.path, false);
             } catch (Throwable t) {
@@ -3,12 +3,12 @@ package apps;
 import static Utils.Util.checkSourceFileCurrentDirecotry;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
 
 import naming.NamingStubs;
 import naming.Service;
+import rmi.Batch;
+import storage.Storage;
 
 import common.Path;
 
@@ -87,20 +87,26 @@ public class Put extends ClientApplication {
             throw new ApplicationFailure("cannot lock " + path_to_lock + ": " + t.getMessage());
         }
 
-        byte[] read_buffer;
-        InputStream input_stream = null;
-
         try {
             // Path to receive the new file. This will either be the destination
             // path as provided, or if the path refers to a directory, then a
             // new file within that directory.
             Path destination_path = destination.path;
 
+            // Find out, in a single round trip, whether the destination path
+            // and a file of the same name as the source within it refer to
+            // directories.
+            String filename = source.getName();
+            Batch<Service> lookup = new Batch<Service>(Service.class, naming_server);
+            lookup.recorder().isDirectory(destination.path);
+            if (filename.length() != 0)
+                lookup.recorder().isDirectory(new Path(destination.path, filename));
+            lookup.execute();
+
             // If the destination path refers to a directory, create a new path
             // to point to a new file in that directory.
             try {
-                if (naming_server.isDirectory(destination.path)) {
-                    String filename = source.getName();
+                if ((Boolean) lookup.get(0)) {
                     if (filename.length() == 0)
                         throw new ApplicationFailure("source filename empty");
 
@@ -108,29 +114,34 @@ public class Put extends ClientApplication {
 
                     // If, after modifying the path, the path still refers to a
                     // directory, then the application must terminate.
-                    if (naming_server.isDirectory(destination_path)) {
+                    if ((Boolean) lookup.get(1)) {
                         throw new ApplicationFailure(destination + " is a " + "directory");
                     }
                 }
+            } catch (FileNotFoundException e) {
+            }
 
-                // If control has reached here, the destination path exists, and
-                // it is a regular file. Attempt to delete it.
-                naming_server.delete(destination_path);
+            // Delete any regular file at the destination path and create the
+            // new file, in a single round trip.
+            Batch<Service> replace = new Batch<Service>(Service.class, naming_server);
+            replace.recorder().delete(destination_path);
+            replace.recorder().createFile(destination_path);
+            replace.execute();
+            try {
+                replace.get(0);
             } catch (FileNotFoundException e) {
             }
 
-            if (!naming_server.createFile(destination_path)) {
+            if (!(Boolean) replace.get(1)) {
                 throw new Exception("Error when creating new file + " + destination_path);
             }
 
-            // Obtain the size of the source file.
+            // Upload the source file to every storage server holding a
+            // replica, over their bulk data channels.
             long souce_size = source.length();
-
-            // Allocate the temporary read buffer and open streams.
-            read_buffer = new byte[(int) souce_size];
-            input_stream = new FileInputStream(source);
-            input_stream.read(read_buffer);
-            naming_server.writeFile(destination_path, read_buffer);
+            for (Storage storage : naming_server.getStorages(destination_path)) {
+                storage.upload(destination_path, souce_size).send(source);
+            }
 
             System.out.println("Done! file " + sourceFileString + "has been uploaded to " + destination_path);
 
@@ -139,15 +150,7 @@ public class Put extends ClientApplication {
         } catch (Throwable t) {
             throw new ApplicationFailure("cannot transfer " + source + ": " + t.getMessage());
         } finally {
-            // In all cases, make an effort to close all streams and unlock
-            // the parent directory.
-            if (input_stream != null) {
-                try {
-                    input_stream.close();
-                } catch (Throwable t) {
-                }
-            }
-
+            // In all cases, make an effort to unlock the parent directory.
             try {
                 naming_server.unlock(path_to_lock, true);
             } catch (Throwable t) {
@@ -8,7 +8,7 @@ import java.io.OutputStream;
 
 import naming.NamingStubs;
 import naming.Service;
-import rmi.RMIException;
+import rmi.Batch;
 import storage.Storage;
 
 import common.Path;
@@ -80,20 +80,38 @@ public class RandomRead extends ClientApplication {
 
         Path source_file = source.path;
 
+        // Check that the file exists, lock it and find a storage server holding it, all in a single round trip.
+        Batch<Service> batch = new Batch<Service>(Service.class, naming_server);
+        boolean exists;
         try {
-            if (!naming_server.isFileExist(source_file)) {
-                throw new ApplicationFailure("cannot find your file on servers: " + source_file);
-            }
-        } catch (RMIException e) {
+            Service calls = batch.recorder();
+            calls.isFileExist(source_file);
+            calls.lock(source_file, false);
+            calls.getStorage(source_file);
+            batch.execute();
+            exists = (Boolean) batch.get(0);
+        } catch (Throwable t) {
             throw new ApplicationFailure("RMI error when checking file existence on servers: " + source_file + "\n"
-                    + e.getMessage());
+                    + t.getMessage());
         }
 
         try {
-            naming_server.lock(source_file, false);
+            batch.get(1);
         } catch (Throwable t) {
+            if (!exists) {
+                throw new ApplicationFailure("cannot find your file on servers: " + source_file);
+            }
             throw new ApplicationFailure("cannot lock " + source + ": " + t.getMessage());
         }
+        if (!exists) {
+            // the path refers to a directory, which has been locked nonetheless
+            try {
+                naming_server.unlock(source_file, false);
+            } catch (Throwable t) {
+                fatal("could not unlock " + source + ": " + t.getMessage());
+            }
+            throw new ApplicationFailure("cannot find your file on servers: " + source_file);
+        }
 
         // Create an input stream reading bytes from the remote file, and an
         // output stream for writing bytes to a local copy of the file.
@@ -104,7 +122,7 @@ public class RandomRead extends ClientApplication {
 
         try {
             output_stream = new FileOutputStream(destination);
-            Storage aStorage = naming_server.getStorage(source_file);
+            Storage aStorage = (Storage) batch.get(2);
             data_buffer = aStorage.randomRead(source_file, offset, lenth);
             output_stream.write(data_buffer);
             System.out.println("Done, the random reading has been stored at: " + destination.toString());
@@ -1,9 +1,13 @@
 package apps;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import rmi.Metrics;
+
 /**
  * Base class of server applications.
  * 
@@ -14,7 +18,8 @@ import java.util.TimerTask;
  * <p>
  * In each application, the server runs until the end of file is read from standard input, or until the server stops on its own
  * due to an exception. Server applications also forcefully terminate the JVM if the end of file has been read on standard input,
- * but the server object takes too long to stop.
+ * but the server object takes too long to stop. A line reading <code>stats</code> on standard input prints the latency and
+ * traffic statistics of the RMI calls served and made by the server.
  * 
  * <p>
  * Derived application classes override the <code>serverType</code>, <code>startServer</code>, and <code>stopServer</code> methods
@@ -149,17 +154,23 @@ abstract class ServerApplication extends Application {
         notifyAll();
     }
 
-    /** Thread that monitors standard input for end-of-file. */
+    /** Thread that monitors standard input for end-of-file and console commands. */
     private class EOFThread implements Runnable {
-        /** Monitors standard input for end-of-file. */
+        /** Monitors standard input for end-of-file and console commands. */
         @Override
         public void run() {
-            // Repeatedly try to read from standard input. If the return value
-            // indicates end-of-file, or if an exception occurs, stop the
+            // Repeatedly try to read lines from standard input. If the return
+            // value indicates end-of-file, or if an exception occurs, stop the
             // server.
+            BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
             try {
-                while (System.in.read() != -1)
-                    continue;
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (line.trim().equals("stats")) {
+                        System.out.print(Metrics.server().report());
+                        System.out.print(Metrics.client().report());
+                    }
+                }
             } catch (IOException e) {
             }
 
@@ -0,0 +1,266 @@
+package build;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor generating stub and skeleton classes for remote interfaces marked <code>rmi.Precompiled</code>.
+ *
+ * <p>
+ * For each marked interface <em>I</em>, the processor writes two classes to the package of the interface:
+ * <ul>
+ * <li><em>I</em><code>_Stub</code>, extending <code>rmi.CompiledStub</code>, implements every method of the interface by
+ * passing the method's identifier and its arguments to the call machinery, and rethrows the exceptions the method declares.</li>
+ * <li><em>I</em><code>_Skel</code>, extending <code>rmi.CompiledSkeleton</code>, calls the method designated by an identifier
+ * on the server object, from a switch statement.</li>
+ * </ul>
+ * The processor is run by compiling it first, and then compiling the project with the options
+ * <code>-processorpath</code> and <code>-processor build.StubCompiler</code>. It does not depend on the <code>rmi</code>
+ * package, and can be compiled on its own.
+ */
+public class StubCompiler extends AbstractProcessor {
+    /** Name of the annotation marking the interfaces to process. */
+    private static final String ANNOTATION = "rmi.Precompiled";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.INTERFACE || !((TypeElement) element).getTypeParameters().isEmpty()) {
+                    error(element, "only interfaces without type parameters can be marked " + ANNOTATION);
+                    continue;
+                }
+                TypeElement remote = (TypeElement) element;
+                List<ExecutableElement> methods = methods(remote);
+                if (methods == null) {
+                    continue;
+                }
+                try {
+                    writeStub(remote, methods);
+                    writeSkeleton(remote, methods);
+                } catch (IOException e) {
+                    error(remote, "cannot write generated classes: " + e);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the instance methods of a remote interface, default ones included, or <code>null</code> if one of them cannot be
+     * generated.
+     */
+    private List<ExecutableElement> methods(TypeElement remote) {
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(remote))) {
+            if (method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.PRIVATE)
+                    || ((TypeElement) method.getEnclosingElement()).getQualifiedName().contentEquals("java.lang.Object")) {
+                continue;
+            }
+            if (!method.getTypeParameters().isEmpty()) {
+                error(method, "generic methods cannot be generated");
+                return null;
+            }
+            methods.add(method);
+        }
+        return methods;
+    }
+
+    /** Writes the stub class of a remote interface. */
+    private void writeStub(TypeElement remote, List<ExecutableElement> methods) throws IOException {
+        String name = remote.getSimpleName() + "_Stub";
+        PrintWriter out = open(remote, name);
+        out.println("/** Stub for {@link " + remote.getSimpleName() + "}, generated by {@code " + getClass().getName()
+                + "}. */");
+        out.println("@SuppressWarnings(\"unchecked\")");
+        out.println("public final class " + name + " extends rmi.CompiledStub implements " + remote.getSimpleName() + " {");
+        out.println("    private static final long serialVersionUID = 1L;");
+        out.println();
+        for (int index = 0; index < methods.size(); index++) {
+            out.println("    private static final int M" + index + " = " + lookup("rmi.CompiledStub", remote,
+                    methods.get(index)) + ";");
+        }
+        for (int index = 0; index < methods.size(); index++) {
+            ExecutableElement method = methods.get(index);
+            TypeMirror result = method.getReturnType();
+            out.println();
+            out.println("    @Override");
+            out.print("    public " + result + " " + method.getSimpleName() + "(");
+            for (int parameter = 0; parameter < method.getParameters().size(); parameter++) {
+                out.print((parameter > 0 ? ", " : "") + method.getParameters().get(parameter).asType() + " a" + parameter);
+            }
+            out.print(")");
+            List<? extends TypeMirror> thrown = method.getThrownTypes();
+            for (int exception = 0; exception < thrown.size(); exception++) {
+                out.print((exception > 0 ? ", " : " throws ") + thrown.get(exception));
+            }
+            out.println(" {");
+
+            StringBuilder call = new StringBuilder("invoke(M" + index + ", new Object[] {");
+            for (int parameter = 0; parameter < method.getParameters().size(); parameter++) {
+                call.append(parameter > 0 ? ", a" : " a").append(parameter);
+            }
+            call.append(method.getParameters().isEmpty() ? "})" : " })");
+            String statement = result.getKind() == TypeKind.VOID ? call + ";" : "return (" + boxed(result) + ") " + call + ";";
+
+            List<TypeMirror> rethrown = rethrown(thrown);
+            if (rethrown == null) {
+                out.println("        " + statement);
+            } else {
+                out.println("        try {");
+                out.println("            " + statement);
+                for (TypeMirror exception : rethrown) {
+                    out.println("        } catch (" + exception + " e) {");
+                    out.println("            throw e;");
+                }
+                out.println("        } catch (Throwable t) {");
+                out.println("            throw new java.lang.reflect.UndeclaredThrowableException(t);");
+                out.println("        }");
+            }
+            out.println("    }");
+        }
+        out.println("}");
+        out.close();
+    }
+
+    /** Writes the skeleton dispatcher of a remote interface. */
+    private void writeSkeleton(TypeElement remote, List<ExecutableElement> methods) throws IOException {
+        String name = remote.getSimpleName() + "_Skel";
+        String type = remote.getSimpleName().toString();
+        PrintWriter out = open(remote, name);
+        out.println("/** Skeleton dispatcher for {@link " + type + "}, generated by {@code " + getClass().getName() + "}. */");
+        out.println("@SuppressWarnings(\"unchecked\")");
+        out.println("public final class " + name + " extends rmi.CompiledSkeleton<" + type + "> {");
+        out.println("    private static final int[] POSITIONS = positions(" + type + ".class,");
+        for (int index = 0; index < methods.size(); index++) {
+            out.println("            " + lookup("rmi.CompiledSkeleton", remote, methods.get(index))
+                    + (index < methods.size() - 1 ? "," : ");"));
+        }
+        if (methods.isEmpty()) {
+            out.println("            new int[0]);");
+        }
+        out.println();
+        out.println("    @Override");
+        out.println("    protected Object dispatch(" + type + " server, int method, Object[] args) throws Throwable {");
+        out.println("        switch (POSITIONS[method]) {");
+        for (int index = 0; index < methods.size(); index++) {
+            ExecutableElement method = methods.get(index);
+            StringBuilder call = new StringBuilder("server." + method.getSimpleName() + "(");
+            for (int parameter = 0; parameter < method.getParameters().size(); parameter++) {
+                call.append(parameter > 0 ? ", " : "").append("(").append(boxed(method.getParameters().get(parameter).asType()))
+                        .append(") args[").append(parameter).append("]");
+            }
+            call.append(")");
+            out.println("        case " + index + ":");
+            if (method.getReturnType().getKind() == TypeKind.VOID) {
+                out.println("            " + call + ";");
+                out.println("            return null;");
+            } else {
+                out.println("            return " + call + ";");
+            }
+        }
+        out.println("        default:");
+        out.println("            throw new IllegalArgumentException(\"Unknown method \" + method);");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+        out.close();
+    }
+
+    /** Creates a generated source file in the package of a remote interface, and writes its package declaration. */
+    private PrintWriter open(TypeElement remote, String name) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(remote);
+        String qualified = pkg.isUnnamed() ? name : pkg.getQualifiedName() + "." + name;
+        PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualified, remote).openWriter());
+        if (!pkg.isUnnamed()) {
+            out.println("package " + pkg.getQualifiedName() + ";");
+            out.println();
+        }
+        return out;
+    }
+
+    /** Returns the expression looking up the identifier of a method, through the helper of the given generated base class. */
+    private String lookup(String base, TypeElement remote, ExecutableElement method) {
+        Types types = processingEnv.getTypeUtils();
+        StringBuilder lookup = new StringBuilder(base + ".method(" + remote.getSimpleName() + ".class, \""
+                + method.getSimpleName() + "\"");
+        for (Element parameter : method.getParameters()) {
+            lookup.append(", ").append(types.erasure(parameter.asType())).append(".class");
+        }
+        return lookup.append(")").toString();
+    }
+
+    /** Returns the name of a type, or of its box if it is primitive, for use in a cast. */
+    private String boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    /**
+     * Returns the exceptions a generated stub method rethrows as they are: those the method declares, and unchecked ones, leaving
+     * out the subclasses of others, which are caught with them.
+     *
+     * @return The exceptions, or <code>null</code> if the method may throw anything and needs no handler.
+     */
+    private List<TypeMirror> rethrown(List<? extends TypeMirror> thrown) {
+        List<TypeMirror> candidates = new ArrayList<TypeMirror>(thrown);
+        candidates.add(processingEnv.getElementUtils().getTypeElement("java.lang.RuntimeException").asType());
+        candidates.add(processingEnv.getElementUtils().getTypeElement("java.lang.Error").asType());
+        Types types = processingEnv.getTypeUtils();
+        List<TypeMirror> rethrown = new ArrayList<TypeMirror>();
+        for (TypeMirror candidate : candidates) {
+            boolean covered = false;
+            for (TypeMirror other : candidates) {
+                if (other != candidate && types.isSubtype(candidate, other)
+                        && (!types.isSameType(candidate, other) || candidates.indexOf(other) < candidates.indexOf(candidate))) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                if (types.isSameType(candidate, processingEnv.getElementUtils().getTypeElement("java.lang.Throwable").asType())) {
+                    return null;
+                }
+                rethrown.add(candidate);
+            }
+        }
+        return rethrown;
+    }
+
+    /** Reports an error on an element. */
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
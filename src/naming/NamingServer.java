@@ -9,13 +9,24 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
+import rmi.Deadline;
 import rmi.RMIException;
 import rmi.Skeleton;
+import rmi.Stub;
 import storage.Command;
+import storage.CommandAsync;
 import storage.Storage;
 import Utils.Util;
 
@@ -40,11 +51,23 @@ import common.Path;
  * possible, the client and registration interfaces are available at well-known ports defined in <code>NamingStubs</code>.
  */
 public class NamingServer implements Service, Registration {
+    // maximum number of copies to storage servers outstanding at once during a registration
+    private static final int COPY_WINDOW = 16;
+    // time allowed to a storage server to create or delete a file, in milliseconds
+    private static final long COMMAND_TIMEOUT = 30000;
+    // time allowed to a storage server to copy a file from another, in milliseconds
+    private static final long COPY_TIMEOUT = 300000;
+    // number of times the deletion of a stale replica is sent to a storage server before it is left pending
+    private static final int INVALIDATION_ATTEMPTS = 3;
+
     PathNode root;
     Set<Storage> storageSets;
 
     ConcurrentHashMap<Path, Set<Storage>> pathStorageMap;
     ConcurrentHashMap<Storage, Command> storageCmdMap;
+    ConcurrentHashMap<Storage, CommandAsync> storageAsyncMap;
+    // deletions of stale replicas sent to storage servers and not yet acknowledged, by path
+    ConcurrentHashMap<Path, ConcurrentHashMap<Storage, CompletableFuture<Boolean>>> invalidations;
     Skeleton<Registration> regisSkel;
     Skeleton<Service> servSkel;
 
@@ -62,6 +85,8 @@ public class NamingServer implements Service, Registration {
         storageSets = Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
         pathStorageMap = new ConcurrentHashMap<Path, Set<Storage>>();
         storageCmdMap = new ConcurrentHashMap<Storage, Command>();
+        storageAsyncMap = new ConcurrentHashMap<Storage, CommandAsync>();
+        invalidations = new ConcurrentHashMap<Path, ConcurrentHashMap<Storage, CompletableFuture<Boolean>>>();
         regisSkel = new Skeleton<Registration>(Registration.class, this, new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
         servSkel = new Skeleton<Service>(Service.class, this, new InetSocketAddress(NamingStubs.SERVICE_PORT));
     }
@@ -115,6 +140,11 @@ public class NamingServer implements Service, Registration {
         if (!isValidPath(path))
             throw new FileNotFoundException("Path does not point to a valid " + "file/directory");
         root.lock(path, exclusive);
+        // a client that has given up waiting would never release the lock
+        if (!Deadline.commit()) {
+            root.unlock(path, exclusive);
+            throw new IllegalStateException("Lock attempt cancelled by the client");
+        }
     }
 
     @Override
@@ -133,13 +163,16 @@ public class NamingServer implements Service, Registration {
                 // choose one storage with the file to keep the file on
                 Iterator<Storage> iter = hasFile.iterator();
                 Storage keptCopy = iter.next();
-                // delete on all other storages with the file
-                while (iter.hasNext()) {
-                    Command command_stub = storageCmdMap.get(iter.next());
-                    try {
-                        command_stub.delete(path);
-                    } catch (RMIException e) {
+                // invalidate the copies on all other storages with the file,
+                // without waiting for the deletions; a storage is not chosen
+                // for a new copy of the file until its deletion is acknowledged
+                Deadline deadline = Deadline.after(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+                try {
+                    while (iter.hasNext()) {
+                        invalidate(path, iter.next());
                     }
+                } finally {
+                    deadline.close();
                 }
                 Set<Storage> updatedHasFiles = Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
                 updatedHasFiles.add(keptCopy);
@@ -154,13 +187,18 @@ public class NamingServer implements Service, Registration {
                 Storage copyFrom = hasFile.iterator().next();
                 while (iter.hasNext()) {
                     Storage s = iter.next();
-                    if (!hasFile.contains(s)) {
+                    if (!hasFile.contains(s) && !invalidating(toCopy, s)) {
                         Command command_stub = storageCmdMap.get(s);
+                        // a copy that fails or times out does not make a replica
+                        Deadline deadline = Deadline.after(COPY_TIMEOUT, TimeUnit.MILLISECONDS);
                         try {
-                            command_stub.copy(toCopy, copyFrom);
+                            if (command_stub.copy(toCopy, copyFrom)) {
+                                pathStorageMap.get(toCopy).add(s);
+                            }
                         } catch (Exception e) {
+                        } finally {
+                            deadline.close();
                         }
-                        pathStorageMap.get(toCopy).add(s);
                         break;
                     }
                 }
@@ -169,6 +207,95 @@ public class NamingServer implements Service, Registration {
         }
     }
 
+    // starts deleting the stale replica of a file on a storage server, and
+    // records the deletion until the storage server acknowledges it. The
+    // caller sets the deadline of the deletion.
+    private void invalidate(final Path path, final Storage storage) {
+        invalidate(path, storage, 1);
+    }
+
+    private void invalidate(final Path path, final Storage storage, final int attempt) {
+        final CompletableFuture<Boolean> deletion = storageAsyncMap.get(storage).delete(path);
+        invalidations.compute(path,
+                new BiFunction<Path, ConcurrentHashMap<Storage, CompletableFuture<Boolean>>,
+                        ConcurrentHashMap<Storage, CompletableFuture<Boolean>>>() {
+                    @Override
+                    public ConcurrentHashMap<Storage, CompletableFuture<Boolean>> apply(Path p,
+                            ConcurrentHashMap<Storage, CompletableFuture<Boolean>> storages) {
+                        if (storages == null) {
+                            storages = new ConcurrentHashMap<Storage, CompletableFuture<Boolean>>();
+                        }
+                        storages.put(storage, deletion);
+                        return storages;
+                    }
+                });
+        deletion.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean deleted, Throwable failure) {
+                if (failure == null) {
+                    invalidations.computeIfPresent(path,
+                            new BiFunction<Path, ConcurrentHashMap<Storage, CompletableFuture<Boolean>>,
+                                    ConcurrentHashMap<Storage, CompletableFuture<Boolean>>>() {
+                                @Override
+                                public ConcurrentHashMap<Storage, CompletableFuture<Boolean>> apply(Path p,
+                                        ConcurrentHashMap<Storage, CompletableFuture<Boolean>> storages) {
+                                    storages.remove(storage, deletion);
+                                    return storages.isEmpty() ? null : storages;
+                                }
+                            });
+                    return;
+                }
+                // a storage server that could not be reached may still hold
+                // the stale copy: the deletion is sent again, and after the
+                // last attempt it remains pending until the path is deleted
+                // or created again
+                ConcurrentHashMap<Storage, CompletableFuture<Boolean>> pending = invalidations.get(path);
+                if (attempt < INVALIDATION_ATTEMPTS && pending != null && pending.get(storage) == deletion) {
+                    // sent from another thread: this one may be reading replies
+                    CompletableFuture.runAsync(new Runnable() {
+                        @Override
+                        public void run() {
+                            Deadline deadline = Deadline.after(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+                            try {
+                                invalidate(path, storage, attempt + 1);
+                            } finally {
+                                deadline.close();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // drops the pending deletions of stale replicas of a path and of the
+    // files under it, once the path has been deleted or created again
+    private void forgetInvalidations(Path path) {
+        for (Path p : invalidations.keySet()) {
+            if (p.isSubpath(path)) {
+                invalidations.remove(p);
+            }
+        }
+    }
+
+    // returns whether the deletion of a stale replica of a file on a storage
+    // server is still pending
+    private boolean invalidating(Path path, Storage storage) {
+        ConcurrentHashMap<Storage, CompletableFuture<Boolean>> pending = invalidations.get(path);
+        return pending != null && pending.containsKey(storage);
+    }
+
+    // waits for the pending deletions of stale replicas of a file, so that
+    // they cannot delete a file created again at the same path
+    private void settleInvalidations(Path path) {
+        ConcurrentHashMap<Storage, CompletableFuture<Boolean>> pending = invalidations.get(path);
+        if (pending != null) {
+            for (CompletableFuture<Boolean> deletion : pending.values()) {
+                await(deletion);
+            }
+        }
+    }
+
     // returns whether a given path is valid
     private boolean isValidPath(Path p) {
         try {
@@ -237,6 +364,8 @@ public class NamingServer implements Service, Registration {
         if (parentNode.getChildrenMap().get(file.last()) != null) {
             return false;
         }
+        settleInvalidations(file);
+        forgetInvalidations(file);
         PathNode pN = new PathNode();
         pN.setCurrPath(file);
         pN.setIsDir(false);
@@ -244,23 +373,22 @@ public class NamingServer implements Service, Registration {
         // adds the file to random storage server
         if (storageCmdMap.size() >= 1) {
             Storage aStorage = storageSets.iterator().next();
-            Command cmd = storageCmdMap.get(aStorage);
-            try {
-                cmd.create(file);
-            } catch (RMIException e) {
-                return false;
-            }
-
             Storage secondStorage = null;
-            if (storageSets.size() > 1) {
-                // If we have more than 1 storage server, make the 2nd copy.
-                secondStorage = getADiffStorage(aStorage);
-                Command secondCommand = storageCmdMap.get(secondStorage);
-                try {
-                    secondCommand.create(file);
-                } catch (RMIException e) {
-                    return false;
+            CompletableFuture<Boolean> created;
+            CompletableFuture<Boolean> secondCreated = null;
+            Deadline deadline = Deadline.after(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+            try {
+                created = storageAsyncMap.get(aStorage).create(file);
+                if (storageSets.size() > 1) {
+                    // If we have more than 1 storage server, make the 2nd copy at the same time.
+                    secondStorage = getADiffStorage(aStorage);
+                    secondCreated = storageAsyncMap.get(secondStorage).create(file);
                 }
+            } finally {
+                deadline.close();
+            }
+            if (await(created) == null || (secondCreated != null && await(secondCreated) == null)) {
+                return false;
             }
 
             Set<Storage> fileStorageSets = Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
@@ -398,18 +526,27 @@ public class NamingServer implements Service, Registration {
                 for (Path f : files) {
                     storagesToDeleteFrom.addAll(pathStorageMap.get(f));
                 }
-                for (Storage s : storagesToDeleteFrom) {
-                    Command command_stub = storageCmdMap.get(s);
-                    try {
-                        if (!command_stub.delete(path)) {
-                            result = false;
-                        }
-                    } catch (RMIException e) {
+                ArrayList<CompletableFuture<Boolean>> deletions = new ArrayList<CompletableFuture<Boolean>>();
+                Deadline deadline = Deadline.after(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+                try {
+                    for (Storage s : storagesToDeleteFrom) {
+                        deletions.add(storageAsyncMap.get(s).delete(path));
+                    }
+                } finally {
+                    deadline.close();
+                }
+                for (CompletableFuture<Boolean> deletion : deletions) {
+                    Boolean deleted = await(deletion);
+                    if (deleted == null) {
                         return false;
                     }
-                    pathStorageMap.remove(path);
+                    if (!deleted) {
+                        result = false;
+                    }
                 }
+                pathStorageMap.remove(path);
                 parentNode.getChildrenMap().remove(path.last());
+                forgetInvalidations(path);
                 return result;
             } else {
                 // deletes from tree
@@ -417,17 +554,27 @@ public class NamingServer implements Service, Registration {
                 // deletes from storage servers
                 Set<Storage> hasFile = pathStorageMap.get(path);
                 if (hasFile.isEmpty()) {
+                    forgetInvalidations(path);
                     return true;
                 }
-                for (Storage s : hasFile) {
-                    Command cmd = storageCmdMap.get(s);
-                    try {
-                        result = cmd.delete(path);
-                    } catch (RMIException e) {
+                ArrayList<CompletableFuture<Boolean>> deletions = new ArrayList<CompletableFuture<Boolean>>();
+                Deadline deadline = Deadline.after(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+                try {
+                    for (Storage s : hasFile) {
+                        deletions.add(storageAsyncMap.get(s).delete(path));
+                    }
+                } finally {
+                    deadline.close();
+                }
+                for (CompletableFuture<Boolean> deletion : deletions) {
+                    Boolean deleted = await(deletion);
+                    if (deleted == null) {
                         return false;
                     }
-                    pathStorageMap.remove(path);
+                    result = result && deleted;
                 }
+                pathStorageMap.remove(path);
+                forgetInvalidations(path);
             }
         } else
             throw new FileNotFoundException("Given file/directory does not " + "exist");
@@ -462,6 +609,16 @@ public class NamingServer implements Service, Registration {
         }
     }
 
+    @Override
+    public Storage[] getStorages(Path file) throws FileNotFoundException {
+        checkForNull(file);
+        Set<Storage> hasFileStorages = pathStorageMap.get(file);
+        if (hasFileStorages == null || hasFileStorages.isEmpty()) {
+            throw new FileNotFoundException("File does not exist");
+        }
+        return hasFileStorages.toArray(new Storage[0]);
+    }
+
     public void register(Storage client_stub, Command command_stub, Path[] files) {
         checkForNull(client_stub, command_stub, files);
         if (storageCmdMap.containsKey(client_stub)) {
@@ -469,6 +626,7 @@ public class NamingServer implements Service, Registration {
         }
         out.println("new coming storage is " + client_stub.toString());
         out.println("new coming command is " + command_stub.toString());
+        CommandAsync newAsync = Stub.createAsync(CommandAsync.class, command_stub);
 
         int size = storageSets.size();
 
@@ -495,22 +653,21 @@ public class NamingServer implements Service, Registration {
             out.println("existStorage is " + existStorage);
             Command existCommand = getExistCommand(existStorage);
             out.println("existCommand is " + existCommand);
+            CommandAsync existAsync = storageAsyncMap.get(existStorage);
+            LinkedList<CompletableFuture<Boolean>> copies = new LinkedList<CompletableFuture<Boolean>>();
 
             // The new coming storage server comes here, first we will check each file from new server, if exist server does not
             // have, copy from new to exist
             for (Path path : files) {
                 if (!path.isRoot()) {
                     if (root.addFile(path.iterator())) {
-                        // exists storage server does not have new file. copy from new to exist
-                        try {
-                            existCommand.copy(path, client_stub);
-                        } catch (Throwable e) {
-                            log("error when copy file from the new storage server to existing storage server!\n" + e.getMessage());
-                        }
+                        // exists storage server does not have new file. copy from new to exist; the exist server is
+                        // given to clients as a replica only once the copy has succeeded
                         Set<Storage> hasFile = Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
-                        hasFile.add(existStorage);
                         hasFile.add(client_stub);
                         pathStorageMap.put(path, hasFile);
+                        copies.add(replicate(copy(existAsync, path, client_stub), path, hasFile, existStorage));
+                        awaitCopies(copies, COPY_WINDOW);
                     } else { // exist storage server already had 1 copy of file. so now we have total 2 copies of file
                         // just update the path storage map from 1 to 2
                         pathStorageMap.get(path).add(client_stub);
@@ -527,25 +684,70 @@ public class NamingServer implements Service, Registration {
                 for (Path path : pathStorageMap.keySet()) {
                     Set<Storage> storages = pathStorageMap.get(path);
                     if (storages.size() == 1) {
-                        try {
-                            command_stub.copy(path, existStorage);
-                        } catch (Throwable e) {
-                            log("error when copy file from the exist storage server to new coming storage server!\n"
-                                    + e.getMessage());
-                        }
-                        storages.add(client_stub);
+                        copies.add(replicate(copy(newAsync, path, existStorage), path, storages, client_stub));
+                        awaitCopies(copies, COPY_WINDOW);
                     }
                 }
+                awaitCopies(copies, 0);
                 out.println("copy file from exists to new coming done!");
             }
+            awaitCopies(copies, 0);
         }
 
         storageSets.add(client_stub);
         storageCmdMap.put(client_stub, command_stub);
+        storageAsyncMap.put(client_stub, newAsync);
         out.println("current storage server count is: " + storageSets.size());
         out.println("New storage server has been registered!----------------------------\n");
     }
 
+    // starts copying a file to a storage server, bounded by the copy timeout
+    private static CompletableFuture<Boolean> copy(CommandAsync destination, Path file, Storage source) {
+        Deadline deadline = Deadline.after(COPY_TIMEOUT, TimeUnit.MILLISECONDS);
+        try {
+            return destination.copy(file, source);
+        } finally {
+            deadline.close();
+        }
+    }
+
+    // adds a storage server to the replicas of a file once a copy of the file to it has succeeded, unless the file was
+    // written in the meantime, which replaced its replicas; the returned future completes once the replica is recorded
+    private CompletableFuture<Boolean> replicate(CompletableFuture<Boolean> copy, final Path path, final Set<Storage> replicas,
+            final Storage storage) {
+        return copy.thenApply(new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean copied) {
+                if (Boolean.TRUE.equals(copied) && pathStorageMap.get(path) == replicas) {
+                    replicas.add(storage);
+                }
+                return copied;
+            }
+        });
+    }
+
+    // waits for a command sent to a storage server; returns null if the command failed or timed out
+    private static Boolean await(CompletableFuture<Boolean> command) {
+        try {
+            return command.join();
+        } catch (CompletionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    // waits for the oldest outstanding copies until at most limit remain, logging those that failed
+    private static void awaitCopies(LinkedList<CompletableFuture<Boolean>> copies, int limit) {
+        while (copies.size() > limit) {
+            try {
+                copies.removeFirst().join();
+            } catch (CompletionException e) {
+                log("error when copy file between the new and existing storage servers!\n" + e.getCause().getMessage());
+            }
+        }
+    }
+
     // checks parameters for null values, throws NullPointerException if nulls
     private void checkForNull(Object... objs) {
         for (Object obj : objs) {
@@ -7,6 +7,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 
 import common.Path;
+import rmi.Deadline;
 
 public class PathNode {
     HashMap<String, PathNode> children = new HashMap<String, PathNode>();
@@ -56,6 +57,10 @@ public class PathNode {
         // locks contains a list of locks the thread must obtain
         // before it gets the ok
         ArrayList<BooleanObj> locks = new ArrayList<BooleanObj>();
+        // nodes locked, and the requests queued at them (null where the lock
+        // was granted at once), so that a cancelled attempt can be withdrawn
+        ArrayList<PathNode> nodes = new ArrayList<PathNode>();
+        ArrayList<LockRequest> requests = new ArrayList<LockRequest>();
         synchronized (this) {
             // iterate through the components of the path
             PathNode currNode = this;
@@ -68,13 +73,16 @@ public class PathNode {
                     // list
                     currNode.numReaders++;
                     locks.add(new BooleanObj(true));
+                    requests.add(null);
                 } else { // others can't read from currNode
                     LockRequest lReq = new LockRequest(exclusive, Thread.currentThread());
                     // adds to the current node's queue of locks
                     currNode.lockReqs.add(lReq);
                     // thread can't get a lock from currNode
                     locks.add(lReq.hasLock());
+                    requests.add(lReq);
                 }
+                nodes.add(currNode);
                 currNode = currNode.getChildrenMap().get(nextComp);
             }
             // handles last component of the path separately because must
@@ -85,17 +93,21 @@ public class PathNode {
             if (exclusive && currNode.numReaders == 0 && !writeReqWaiting()) {
                 currNode.numReaders = EXCLUSIVE;
                 locks.add(new BooleanObj(true));
+                requests.add(null);
             }
             // (thread wants to read & currNode isn't locked for exclusive
             // access & no write reqs waiting)
             else if (!exclusive && currNode.numReaders != EXCLUSIVE && !writeReqWaiting()) {
                 currNode.numReaders++;
                 locks.add(new BooleanObj(true));
+                requests.add(null);
             } else { // if above conditions fail, requests are added to the queue
                 LockRequest lReq = new LockRequest(exclusive, Thread.currentThread());
                 currNode.lockReqs.add(lReq);
                 locks.add(lReq.hasLock());
+                requests.add(lReq);
             }
+            nodes.add(currNode);
 
         }
 
@@ -103,12 +115,50 @@ public class PathNode {
         BooleanObj falseBoolObj = new BooleanObj(false);
 
         while (locks.contains(falseBoolObj)) {
+            // a client that has given up waiting would never release the
+            // locks; the call may also be running in the client's own thread,
+            // which must be given back
+            if (Deadline.cancelled()) {
+                withdraw(nodes, requests, exclusive);
+                throw new IllegalStateException("Lock attempt cancelled by the client");
+            }
             try {
                 Thread.currentThread();
                 Thread.sleep(100);
             } catch (InterruptedException e) {
             }
         }
+        synchronized (this) {
+            // grants wake waiters by interrupting them while holding this
+            // lock, so the interrupt has been delivered and can be cleared
+            Thread.interrupted();
+        }
+    }
+
+    // withdraws a cancelled lock attempt: releases the locks already granted
+    // and removes the requests still queued
+    private synchronized void withdraw(ArrayList<PathNode> nodes, ArrayList<LockRequest> requests, boolean exclusive) {
+        for (int i = 0; i < nodes.size(); i++) {
+            PathNode node = nodes.get(i);
+            LockRequest lReq = requests.get(i);
+            if (lReq != null && !lReq.hasLock().getBool()) {
+                // requests queued behind this one may now be granted
+                node.lockReqs.remove(lReq);
+                node.servicePending();
+                continue;
+            }
+            // queued requests are granted in the mode requested; locks granted
+            // at once are shared, except on the last component
+            boolean held = lReq != null ? lReq.isExclusive() : exclusive && i == nodes.size() - 1;
+            if (held)
+                node.numReaders = 0;
+            else
+                node.numReaders--;
+            if (node.numReaders == 0)
+                node.servicePending();
+        }
+        // clears the interrupt of any grant made before the withdrawal
+        Thread.interrupted();
     }
 
     // returns whether there is a write request waiting at this node
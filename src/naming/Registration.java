@@ -1,5 +1,6 @@
 package naming;
 
+import rmi.Precompiled;
 import rmi.RMIException;
 import storage.Command;
 import storage.Storage;
@@ -12,6 +13,7 @@ import common.Path;
  * <p>
  * This interface is used once, on startup, by each storage server.
  */
+@Precompiled
 public interface Registration {
     /**
      * Registers a storage server with the naming server.
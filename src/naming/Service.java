@@ -2,6 +2,9 @@ package naming;
 
 import java.io.FileNotFoundException;
 
+import rmi.Bulk;
+import rmi.Coalesce;
+import rmi.Precompiled;
 import rmi.RMIException;
 import storage.Command;
 import storage.Storage;
@@ -18,6 +21,7 @@ import common.Path;
  * The term <em>object</em> in the documentation below refers to any filesystem object: either a file or a directory.
  */
 
+@Precompiled
 public interface Service {
     /**
      * Locks a file or directory for either shared or exclusive access.
@@ -116,6 +120,7 @@ public interface Service {
      * @throws RMIException
      *             If the call cannot be completed due to a network error.
      */
+    @Coalesce
     public boolean isDirectory(Path path) throws RMIException, FileNotFoundException;
 
     /**
@@ -204,18 +209,39 @@ public interface Service {
      * @throws RMIException
      *             If the call cannot be completed due to a network error.
      */
+    @Coalesce
     public Storage getStorage(Path file) throws RMIException, FileNotFoundException;
 
+    /**
+     * Returns stubs for all the storage servers hosting replicas of a file.
+     * 
+     * <p>
+     * A client replacing the contents of a file directly on the storage servers, rather than through <code>writeFile</code>, must
+     * write every replica.
+     * 
+     * @param file
+     *            Path to the file.
+     * @return Stubs for communicating with the storage servers.
+     * @throws FileNotFoundException
+     *             If the file does not exist.
+     * @throws RMIException
+     *             If the call cannot be completed due to a network error.
+     */
+    public Storage[] getStorages(Path file) throws RMIException, FileNotFoundException;
+
     public int getStorageServerCount() throws RMIException;
 
     public Command getExistCommand(Storage aStorage) throws RMIException;
 
     public Storage getADiffStorage(Storage aStorage) throws RMIException;
 
+    @Bulk
     public boolean writeFile(Path file, byte[] data) throws RMIException, FileNotFoundException;
 
+    @Bulk
     public boolean appendFile(Path file, byte[] data) throws RMIException, FileNotFoundException;
 
+    @Bulk
     public boolean randomWriteFile(Path file, long offset, byte[] data) throws RMIException, FileNotFoundException;
 
     public boolean isFileExist(Path file) throws RMIException;
@@ -0,0 +1,97 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of direct buffers used by the storage server to move file contents.
+ *
+ * <p>
+ * Reading from a file channel into a heap buffer, or writing to it from one, makes the channel copy the contents through a
+ * temporary direct buffer as large as the transfer, which it then caches per thread. Going through a pooled direct buffer of
+ * fixed size instead bounds the memory held outside the heap, and lets the buffers be reused by all the threads serving calls.
+ * A buffer is taken for the length of one call. When the pool is empty, a new buffer is allocated; when it is full, a returned
+ * buffer is dropped.
+ */
+class BufferPool {
+    /** Size of each buffer, in bytes. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    /**
+     * Creates a buffer pool.
+     *
+     * @param buffers
+     *            Largest number of idle buffers kept.
+     */
+    BufferPool(int buffers) {
+        free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+    }
+
+    /** Takes a buffer from the pool, or allocates one if none is idle. The buffer is cleared. */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The buffer must no longer be used by the caller. */
+    void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * Reads a range of a file channel into an array with positional reads, through a pooled buffer.
+     *
+     * @throws EOFException
+     *             If the file ends before the end of the range.
+     */
+    void read(FileChannel channel, long position, byte[] output, int offset, int length) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            int done = 0;
+            while (done < length) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), length - done));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + done + buffer.position()) < 0) {
+                        throw new EOFException("File ends before the end of the sequence");
+                    }
+                }
+                buffer.flip();
+                int count = buffer.remaining();
+                buffer.get(output, offset + done, count);
+                done += count;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /** Writes a range of an array to a file channel at a position with positional writes, through a pooled buffer. */
+    void write(FileChannel channel, long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            int done = 0;
+            while (done < length) {
+                buffer.clear();
+                int count = Math.min(buffer.capacity(), length - done);
+                buffer.put(data, offset + done, count);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + done + buffer.position());
+                }
+                done += count;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+}
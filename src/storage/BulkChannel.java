@@ -0,0 +1,327 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+import common.Path;
+
+/**
+ * Bulk data channel of a storage server.
+ *
+ * <p>
+ * The channel listens on a port of its own. Transfers are offered through RMI and identified by a random ticket; a client carries
+ * out a transfer by connecting to the port and sending the ticket. Each connection is served by its own thread, which copies the
+ * file contents between the file and the socket without buffering them in the heap. Offered transfers that are not carried out
+ * within {@link #TICKET_TIMEOUT} are discarded.
+ *
+ * <p>
+ * A download holds the read lock of its file for the whole transfer, and fails if the file has been changed since the download
+ * was offered; the chunks of a file kept in a chunk store are held until the download is over instead. An upload is received
+ * into a spool file outside the root directory, and then installed in place of the contents of its file under the write lock
+ * of the file; see {@link Upload}.
+ */
+class BulkChannel {
+    /** Time for which an offered transfer remains valid, in milliseconds. */
+    static final long TICKET_TIMEOUT = 60000;
+    /** Time allowed to a client to present its ticket after connecting, in milliseconds. */
+    static final int HANDSHAKE_TIMEOUT = 10000;
+    private final SecureRandom random = new SecureRandom();
+    /** Transfers offered and not yet carried out, by ticket. */
+    private final Map<Long, Offer> offers = new ConcurrentHashMap<Long, Offer>();
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    /** Hostname given to clients. */
+    private final String hostname;
+    /** Locks of the files of the storage server. */
+    private final FileLocks locks;
+    /** Directory receiving uploads before they are installed. */
+    private final File spool;
+
+    /**
+     * Opens the channel and starts accepting connections.
+     *
+     * @param port
+     *            Port on which to listen, or zero if the system should decide the port.
+     * @param hostname
+     *            Externally-routable hostname of the storage server.
+     * @param locks
+     *            Locks of the files of the storage server, taken for the duration of each download.
+     * @param spool
+     *            Existing directory, outside the root directory of the storage server, receiving uploads before they are
+     *            installed.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    BulkChannel(int port, String hostname, FileLocks locks, File spool) throws IOException {
+        this.hostname = hostname;
+        this.locks = locks;
+        this.spool = spool;
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "storage-bulk-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Offers the contents of a file for download. The file is read when the client connects, and the transfer fails if the file
+     * has been changed since it was offered.
+     *
+     * @param path
+     *            Path of the file, whose read lock is held during the transfer.
+     * @param file
+     *            Local file.
+     * @param version
+     *            Tells whether the file is still as offered.
+     * @param done
+     *            Task run once the transfer has been carried out, or once the offer has expired or the channel been closed.
+     * @return The transfer, to be carried out by the client.
+     */
+    Transfer offerDownload(Path path, File file, Version version, Runnable done) {
+        return offer(new Offer(path, new File[] { file }, file.length(), version, null, done));
+    }
+
+    /**
+     * Offers the contents of a file kept in a chunk store for download.
+     *
+     * @param path
+     *            Path of the file, whose read lock is held during the transfer.
+     * @param chunks
+     *            Files holding the chunks of the file, sent one after the other.
+     * @param length
+     *            Length of the file.
+     * @param done
+     *            Task run once the transfer has been carried out, or once the offer has expired or the channel been closed.
+     * @return The transfer, to be carried out by the client.
+     */
+    Transfer offerDownload(Path path, File[] chunks, long length, Runnable done) {
+        return offer(new Offer(path, chunks, length, null, null, done));
+    }
+
+    /**
+     * Offers to replace the contents of a file with uploaded bytes.
+     *
+     * @param length
+     *            Number of bytes to be uploaded.
+     * @param upload
+     *            Destination of the uploaded bytes.
+     * @return The transfer, to be carried out by the client.
+     */
+    Transfer offerUpload(long length, Upload upload) {
+        return offer(new Offer(null, null, length, null, upload, null));
+    }
+
+    private Transfer offer(Offer offer) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Offer> expired : offers.entrySet()) {
+            if (expired.getValue().deadline < now && offers.remove(expired.getKey(), expired.getValue())) {
+                expired.getValue().done();
+            }
+        }
+
+        long ticket;
+        do {
+            ticket = random.nextLong();
+        } while (offers.containsKey(ticket));
+        offers.put(ticket, offer);
+        return new Transfer(hostname, server.socket().getLocalPort(), ticket, offer.length);
+    }
+
+    /** Closes the channel. Transfers in progress are completed. */
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (Long ticket : offers.keySet()) {
+            Offer offer = offers.remove(ticket);
+            if (offer != null) {
+                offer.done();
+            }
+        }
+    }
+
+    /** Accepts connections until the channel is closed. */
+    private void accept() {
+        while (true) {
+            final SocketChannel socket;
+            try {
+                socket = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!server.isOpen()) {
+                    return;
+                }
+                continue;
+            }
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "storage-bulk-transfer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** Carries out the transfer whose ticket is presented on a connection. */
+    private void serve(SocketChannel socket) {
+        Offer offer = null;
+        try {
+            // read the ticket through the socket's stream, so that a client which never sends it times out
+            socket.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+            byte[] header = new byte[8];
+            int count = 0;
+            while (count < header.length) {
+                int read = socket.socket().getInputStream().read(header, count, header.length - count);
+                if (read < 0) {
+                    return;
+                }
+                count += read;
+            }
+            socket.socket().setSoTimeout(0);
+            offer = offers.remove(ByteBuffer.wrap(header).getLong());
+            if (offer == null || offer.deadline < System.currentTimeMillis()) {
+                status(socket, Transfer.FAILED);
+                return;
+            }
+
+            if (offer.upload != null) {
+                byte result = Transfer.FAILED;
+                File uploaded = File.createTempFile("upload", null, spool);
+                try {
+                    FileChannel file = FileChannel.open(uploaded.toPath(), StandardOpenOption.WRITE);
+                    try {
+                        Transfer.transferFrom(socket, file, offer.length);
+                    } finally {
+                        file.close();
+                    }
+                    if (offer.upload.install(uploaded)) {
+                        result = Transfer.OK;
+                    }
+                } finally {
+                    uploaded.delete();
+                    status(socket, result);
+                }
+            } else {
+                Lock lock = locks.read(offer.path);
+                try {
+                    if (offer.version != null && !offer.version.current()) {
+                        status(socket, Transfer.FAILED);
+                        return;
+                    }
+                    status(socket, Transfer.OK);
+                    // the last file sends what remains of the length offered
+                    long remaining = offer.length;
+                    for (int index = 0; index < offer.files.length; index++) {
+                        FileChannel file = FileChannel.open(offer.files[index].toPath(), StandardOpenOption.READ);
+                        try {
+                            long part = index == offer.files.length - 1 ? remaining : Math.min(file.size(), remaining);
+                            Transfer.transferTo(file, socket, part);
+                            remaining -= part;
+                        } finally {
+                            file.close();
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            // the client sees the connection close before the transfer is complete
+        } finally {
+            if (offer != null) {
+                offer.done();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /** Sends a status byte to the client. */
+    private static void status(SocketChannel socket, byte status) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put(status).flip();
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    /** Destination of an upload, installing the uploaded bytes in place of the contents of a file. */
+    interface Upload {
+        /**
+         * Installs the uploaded bytes, taking the write lock of the file.
+         *
+         * @param uploaded
+         *            Spool file holding the uploaded bytes, which may be moved; it is deleted afterwards if it is still there.
+         * @return <code>true</code> if the bytes have been installed; <code>false</code> if the file no longer exists.
+         * @throws IOException
+         *             If the bytes cannot be installed.
+         */
+        boolean install(File uploaded) throws IOException;
+    }
+
+    /** Version of a file offered for download. */
+    interface Version {
+        /**
+         * Returns whether the contents of the file are still those offered. Called under the read lock of the file.
+         *
+         * @return <code>true</code> if the file has not been changed since it was offered.
+         */
+        boolean current();
+    }
+
+    /** Transfer offered to a client. */
+    private static class Offer {
+        /** Path of the file downloaded, or <code>null</code> for an upload. */
+        final Path path;
+        /** Files whose contents are downloaded one after the other, or <code>null</code> for an upload. */
+        final File[] files;
+        final long length;
+        /** Version of the file downloaded, or <code>null</code> if its contents cannot change. */
+        final Version version;
+        /** Destination of an upload, or <code>null</code> for a download. */
+        final Upload upload;
+        /** Task run once the offer is carried out or dropped, or <code>null</code>. */
+        private final Runnable done;
+        final long deadline = System.currentTimeMillis() + TICKET_TIMEOUT;
+
+        Offer(Path path, File[] files, long length, Version version, Upload upload, Runnable done) {
+            this.path = path;
+            this.files = files;
+            this.length = length;
+            this.version = version;
+            this.upload = upload;
+            this.done = done;
+        }
+
+        /** Runs the task of the offer, once it has been removed from the offers. */
+        void done() {
+            if (done != null) {
+                done.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.Path;
+
+/**
+ * Content-addressed store of file contents, split into chunks kept once each.
+ *
+ * <p>
+ * File contents are cut into chunks at boundaries chosen by their contents, with a rolling hash over the last bytes seen: a
+ * boundary is placed where the hash matches a fixed pattern, which happens on average every {@link #AVERAGE_CHUNK} bytes, and
+ * chunks are kept between {@link #MIN_CHUNK} and {@link #MAX_CHUNK} bytes long. Inserting or removing bytes in a file therefore
+ * only changes the chunks around the change, and files with mostly the same contents share most of their chunks. Each chunk is
+ * identified by the SHA-256 hash of its bytes, written in hexadecimal, and is stored once, in a file named after its identifier.
+ * Since every storage server cuts chunks the same way, the identifiers of a file's chunks can be compared across servers.
+ *
+ * <p>
+ * A file kept in the store is described by a {@link Manifest}, listing its chunks in order. Manifests are saved in the store,
+ * under the path of their file. Chunks no manifest refers to are deleted by {@link #collect(Collection)}, which runs while no
+ * chunk is being added: code adding chunks for a new manifest holds the lock returned by {@link #pin()} until the manifest is
+ * passed to the collector. The chunks of a manifest offered for download are kept as well, from {@link #hold(Manifest)} until
+ * {@link #release(Manifest)}, even if the manifest is replaced in the meantime.
+ *
+ * <p>
+ * Storage servers keep their files in a chunk store if the system property {@link #PROPERTY} is <code>true</code>.
+ */
+public class ChunkStore {
+    /** Name of the system property enabling chunk stores on storage servers. */
+    public static final String PROPERTY = "storage.chunkStore";
+    /** Smallest length of a chunk, except the last chunk of a file. */
+    static final int MIN_CHUNK = 2 * 1024;
+    /** Average length of a chunk. */
+    static final int AVERAGE_CHUNK = 8 * 1024;
+    /** Largest length of a chunk. */
+    static final int MAX_CHUNK = 64 * 1024;
+    /** Bits of the rolling hash which must all be zero at a chunk boundary: the thirteen highest, for an 8 KiB average. */
+    private static final long BOUNDARY_MASK = (long) (AVERAGE_CHUNK - 1) << (64 - 13);
+    /** Random value mixed into the rolling hash for each byte value. The seed is fixed, so that all servers cut alike. */
+    private static final long[] GEAR = new long[256];
+    /** First line of a saved manifest. */
+    private static final String MANIFEST_HEADER = "dfs-manifest 1";
+
+    static {
+        Random random = new Random(0x6464752d646673L);
+        for (int index = 0; index < GEAR.length; index++) {
+            GEAR[index] = random.nextLong();
+        }
+    }
+
+    private final File chunks;
+    private final File manifests;
+    private final BufferPool buffers;
+    /** Held for reading while chunks are added, and for writing while unreferenced chunks are deleted. */
+    private final ReentrantReadWriteLock collection = new ReentrantReadWriteLock();
+    /** Number of times each chunk is held by a pending download. */
+    private final Map<String, Integer> held = new HashMap<String, Integer>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong duplicateBytes = new AtomicLong();
+    private final AtomicLong collectedChunks = new AtomicLong();
+
+    /** Contents of a file kept in the store, as the list of its chunks. */
+    static final class Manifest {
+        /** Identifiers of the chunks, in order. */
+        final String[] ids;
+        /** Offset in the file of the end of each chunk. */
+        final long[] ends;
+
+        Manifest(String[] ids, long[] lengths) {
+            this.ids = ids;
+            this.ends = new long[lengths.length];
+            long end = 0;
+            for (int index = 0; index < lengths.length; index++) {
+                end += lengths[index];
+                ends[index] = end;
+            }
+        }
+
+        /** Returns the length of the file. */
+        long length() {
+            return ends.length == 0 ? 0 : ends[ends.length - 1];
+        }
+
+        /** Returns the length of a chunk. */
+        long length(int index) {
+            return ends[index] - (index == 0 ? 0 : ends[index - 1]);
+        }
+
+        /** Returns the index of the chunk holding a byte of the file. */
+        int chunkAt(long offset) {
+            int found = Arrays.binarySearch(ends, offset);
+            return found >= 0 ? found + 1 : -found - 1;
+        }
+    }
+
+    /**
+     * Creates a chunk store, or opens an existing one.
+     *
+     * @param directory
+     *            Directory of the store, created if necessary.
+     * @param buffers
+     *            Buffers used to read and write chunks.
+     */
+    ChunkStore(File directory, BufferPool buffers) {
+        this.chunks = new File(directory, "chunks");
+        this.manifests = new File(directory, "files");
+        this.buffers = buffers;
+        chunks.mkdirs();
+        manifests.mkdirs();
+    }
+
+    /** Returns the number of bytes of the chunks added to the store. */
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    /** Returns the number of bytes of file contents found to be in the store already, and not stored again. */
+    public long duplicateBytes() {
+        return duplicateBytes.get();
+    }
+
+    /** Returns the number of chunks deleted because no file used them any more. */
+    public long collectedChunks() {
+        return collectedChunks.get();
+    }
+
+    /** Takes the lock keeping the collector from running while chunks are added. The caller releases it. */
+    Lock pin() {
+        Lock lock = collection.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Cuts contents into chunks, and adds those not in the store yet. The caller holds the lock returned by {@link #pin()}.
+     *
+     * @param source
+     *            Contents, read until their end.
+     * @return The manifest of the contents.
+     * @throws IOException
+     *             If the contents cannot be read or a chunk cannot be written.
+     */
+    Manifest put(ReadableByteChannel source) throws IOException {
+        ArrayList<String> ids = new ArrayList<String>();
+        ArrayList<Long> lengths = new ArrayList<Long>();
+        ByteBuffer input = buffers.acquire();
+        byte[] chunk = new byte[MAX_CHUNK];
+        int size = 0;
+        long hash = 0;
+        try {
+            while (source.read(input) >= 0 || input.position() > 0) {
+                input.flip();
+                while (input.hasRemaining()) {
+                    byte value = input.get();
+                    chunk[size++] = value;
+                    hash = (hash << 1) + GEAR[value & 0xff];
+                    if (size == MAX_CHUNK || (size >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0)) {
+                        ids.add(add(chunk, size));
+                        lengths.add((long) size);
+                        size = 0;
+                        hash = 0;
+                    }
+                }
+                input.clear();
+            }
+        } finally {
+            buffers.release(input);
+        }
+        if (size > 0) {
+            ids.add(add(chunk, size));
+            lengths.add((long) size);
+        }
+        long[] ends = new long[lengths.size()];
+        for (int index = 0; index < ends.length; index++) {
+            ends[index] = lengths.get(index);
+        }
+        return new Manifest(ids.toArray(new String[ids.size()]), ends);
+    }
+
+    /**
+     * Adds a chunk received from another server. The caller holds the lock returned by {@link #pin()}.
+     *
+     * @throws IOException
+     *             If the bytes do not match the identifier, or the chunk cannot be written.
+     */
+    void put(String id, byte[] data) throws IOException {
+        if (!id.equals(add(data, data.length))) {
+            throw new IOException("Chunk " + id + " received with other contents");
+        }
+    }
+
+    /** Stores a chunk unless it is in the store already, and returns its identifier. */
+    private String add(byte[] data, int length) throws IOException {
+        String id = hash(data, length);
+        File file = file(id);
+        if (file.isFile()) {
+            duplicateBytes.addAndGet(length);
+            return id;
+        }
+        File parent = file.getParentFile();
+        parent.mkdirs();
+        File temporary = File.createTempFile(".chunk", ".tmp", parent);
+        try {
+            FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE);
+            try {
+                buffers.write(channel, 0, data, 0, length);
+            } finally {
+                channel.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+        storedBytes.addAndGet(length);
+        return id;
+    }
+
+    /** Returns the identifier of a chunk. */
+    private static String hash(byte[] data, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(data, 0, length);
+        StringBuilder id = new StringBuilder();
+        for (byte value : digest.digest()) {
+            id.append(Character.forDigit((value >> 4) & 0xf, 16)).append(Character.forDigit(value & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    /** Returns whether the store has a chunk. */
+    boolean has(String id) {
+        return isId(id) && file(id).isFile();
+    }
+
+    /**
+     * Returns the contents of a chunk.
+     *
+     * @return The contents, or <code>null</code> if the store does not have the chunk.
+     * @throws IOException
+     *             If the chunk cannot be read.
+     */
+    byte[] get(String id) throws IOException {
+        if (!isId(id)) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file(id).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int) channel.size()];
+            buffers.read(channel, 0, data, 0, data.length);
+            return data;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the manifest of contents made of chunks in the store.
+     *
+     * @throws FileNotFoundException
+     *             If the store does not have one of the chunks.
+     */
+    Manifest manifest(String[] ids) throws FileNotFoundException {
+        long[] lengths = new long[ids.length];
+        for (int index = 0; index < ids.length; index++) {
+            if (!has(ids[index])) {
+                throw new FileNotFoundException("Chunk " + ids[index] + " is not in the store");
+            }
+            lengths[index] = file(ids[index]).length();
+        }
+        return new Manifest(ids.clone(), lengths);
+    }
+
+    /** Returns the files holding the chunks of a manifest, in order. */
+    File[] files(Manifest manifest) {
+        File[] files = new File[manifest.ids.length];
+        for (int index = 0; index < files.length; index++) {
+            files[index] = file(manifest.ids[index]);
+        }
+        return files;
+    }
+
+    /**
+     * Reads bytes of contents kept in the store.
+     *
+     * @param manifest
+     *            Manifest of the contents.
+     * @param offset
+     *            Offset of the first byte. The range read lies within the contents.
+     * @param output
+     *            Array receiving the bytes, from its start.
+     * @param length
+     *            Number of bytes to read.
+     * @throws IOException
+     *             If a chunk cannot be read.
+     */
+    void read(Manifest manifest, long offset, byte[] output, int length) throws IOException {
+        int done = 0;
+        for (int index = manifest.chunkAt(offset); done < length; index++) {
+            long start = manifest.ends[index] - manifest.length(index);
+            long from = offset + done - start;
+            int part = (int) Math.min(manifest.length(index) - from, length - done);
+            FileChannel channel = FileChannel.open(file(manifest.ids[index]).toPath(), StandardOpenOption.READ);
+            try {
+                buffers.read(channel, from, output, done, part);
+            } finally {
+                channel.close();
+            }
+            done += part;
+        }
+    }
+
+    /**
+     * Saves the manifest of a file, replacing the one saved before, if any.
+     *
+     * @throws IOException
+     *             If the manifest cannot be written.
+     */
+    void save(Path file, Manifest manifest) throws IOException {
+        File saved = file.toFile(manifests);
+        saved.getParentFile().mkdirs();
+        File temporary = File.createTempFile(".manifest", ".tmp", saved.getParentFile());
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(temporary.toPath()),
+                    StandardCharsets.US_ASCII));
+            try {
+                writer.println(MANIFEST_HEADER);
+                for (int index = 0; index < manifest.ids.length; index++) {
+                    writer.println(manifest.ids[index] + " " + manifest.length(index));
+                }
+            } finally {
+                writer.close();
+            }
+            if (writer.checkError()) {
+                throw new IOException("Cannot write the manifest of " + file);
+            }
+            Files.move(temporary.toPath(), saved.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    /** Deletes the manifest saved for a file, or for the files of a directory. */
+    void remove(Path path) {
+        delete(path.toFile(manifests));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Loads the saved manifests of the files of a directory. Manifests of files that no longer exist in the directory are
+     * deleted.
+     *
+     * @param root
+     *            Directory whose files were saved in the store.
+     * @return The manifest of each file.
+     * @throws IOException
+     *             If a manifest cannot be read.
+     */
+    Map<Path, Manifest> load(File root) throws IOException {
+        Map<Path, Manifest> loaded = new HashMap<Path, Manifest>();
+        load(new Path(), manifests, root, loaded);
+        return loaded;
+    }
+
+    private void load(Path directory, File saved, File root, Map<Path, Manifest> loaded) throws IOException {
+        File[] files = saved.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().startsWith(".manifest") && f.getName().endsWith(".tmp")) {
+                f.delete();
+                continue;
+            }
+            Path path = new Path(directory, f.getName());
+            if (f.isDirectory()) {
+                load(path, f, root, loaded);
+            } else if (!path.toFile(root).isFile()) {
+                f.delete();
+            } else {
+                loaded.put(path, parse(f));
+            }
+        }
+    }
+
+    private static Manifest parse(File saved) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(saved.toPath()),
+                StandardCharsets.US_ASCII));
+        try {
+            if (!MANIFEST_HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a manifest: " + saved);
+            }
+            ArrayList<String> ids = new ArrayList<String>();
+            ArrayList<Long> lengths = new ArrayList<Long>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0 || !isId(line.substring(0, space))) {
+                    throw new IOException("Malformed manifest: " + saved);
+                }
+                ids.add(line.substring(0, space));
+                lengths.add(Long.parseLong(line.substring(space + 1)));
+            }
+            long[] array = new long[lengths.size()];
+            for (int index = 0; index < array.length; index++) {
+                array[index] = lengths.get(index);
+            }
+            return new Manifest(ids.toArray(new String[ids.size()]), array);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed manifest: " + saved, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Keeps the chunks of a manifest from being collected until they are released, whether or not the manifest is still used.
+     * The manifest must be used when its chunks are held.
+     */
+    void hold(Manifest manifest) {
+        // waits for a collection in progress, which sees the manifest as used
+        collection.readLock().lock();
+        try {
+            synchronized (held) {
+                for (String id : manifest.ids) {
+                    Integer count = held.get(id);
+                    held.put(id, count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            collection.readLock().unlock();
+        }
+    }
+
+    /** Releases the chunks of a manifest held by {@link #hold(Manifest)}. */
+    void release(Manifest manifest) {
+        synchronized (held) {
+            for (String id : manifest.ids) {
+                Integer count = held.get(id);
+                if (count == null || count == 1) {
+                    held.remove(id);
+                } else {
+                    held.put(id, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the chunks that no manifest refers to and no download holds, waiting for chunks being added to be referred to
+     * first.
+     *
+     * @param live
+     *            Manifests of the files kept in the store. They are read once chunks are no longer being added.
+     */
+    void collect(Collection<Manifest> live) {
+        collection.writeLock().lock();
+        try {
+            Set<String> used = new HashSet<String>();
+            for (Manifest manifest : live) {
+                used.addAll(Arrays.asList(manifest.ids));
+            }
+            synchronized (held) {
+                used.addAll(held.keySet());
+            }
+            File[] directories = chunks.listFiles();
+            if (directories == null) {
+                return;
+            }
+            for (File directory : directories) {
+                File[] files = directory.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File f : files) {
+                    if (!used.contains(f.getName()) && f.delete() && isId(f.getName())) {
+                        collectedChunks.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            collection.writeLock().unlock();
+        }
+    }
+
+    /** Returns the file of a chunk, in a subdirectory named after the first two digits of its identifier. */
+    private File file(String id) {
+        return new File(new File(chunks, id.substring(0, 2)), id);
+    }
+
+    /** Returns whether a string is a chunk identifier, so that identifiers received cannot name other files. */
+    private static boolean isId(String id) {
+        if (id.length() != 64) {
+            return false;
+        }
+        for (int index = 0; index < id.length(); index++) {
+            char digit = id.charAt(index);
+            if ((digit < '0' || digit > '9') && (digit < 'a' || digit > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
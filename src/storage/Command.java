@@ -3,6 +3,8 @@ package storage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import rmi.Bulk;
+import rmi.Precompiled;
 import rmi.RMIException;
 
 import common.Path;
@@ -16,7 +18,11 @@ import common.Path;
  * <p>
  * All methods in this interface may raise {@link NullPointerException} if passed <code>null</code> for arguments or
  * {@link SecurityException} if the security manager on the server does not allow an operation.
+ * 
+ * <p>
+ * <code>copy</code> is marked {@link Bulk}, so that replicating a file does not delay the creation or deletion of others.
  */
+@Precompiled
 public interface Command {
     /**
      * Creates a file on the storage server.
@@ -60,5 +66,6 @@ public interface Command {
      *             If the call cannot be completed due to a network error, whether between the caller and this storage server, or
      *             between the two storage servers.
      */
+    @Bulk
     public boolean copy(Path file, Storage server) throws RMIException, FileNotFoundException, IOException;
 }
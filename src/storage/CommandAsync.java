@@ -0,0 +1,25 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.Path;
+
+/**
+ * Asynchronous form of the storage server command interface.
+ *
+ * <p>
+ * Objects implementing this interface are obtained from <code>Command</code> stubs using <code>rmi.Stub.createAsync</code>. Each
+ * method sends the corresponding <code>Command</code> call and returns without waiting for the reply. This allows the naming
+ * server to issue a command to several storage servers at once. The future returned by each method completes with the result of
+ * the call, or exceptionally with the exception documented for the corresponding <code>Command</code> method.
+ */
+public interface CommandAsync {
+    /** Creates a file on the storage server. See {@link Command#create(Path)}. */
+    public CompletableFuture<Boolean> create(Path file);
+
+    /** Deletes a file or directory on the storage server. See {@link Command#delete(Path)}. */
+    public CompletableFuture<Boolean> delete(Path path);
+
+    /** Copies a file from another storage server. See {@link Command#copy(Path, Storage)}. */
+    public CompletableFuture<Boolean> copy(Path file, Storage server);
+}
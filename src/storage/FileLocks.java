@@ -0,0 +1,215 @@
+package storage;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import rmi.LatencyHistogram;
+
+import common.Path;
+
+/**
+ * Striped table of read-write locks guarding the files of a storage server.
+ *
+ * <p>
+ * Each path is guarded by one of a fixed number of locks, chosen by the hash code of the path. Calls reading a file take the read
+ * lock of its stripe, and may run together; calls changing a file take the write lock, and run alone. Calls on files guarded by
+ * different stripes never wait for each other. Two files may share a stripe, in which case writing one delays access to the
+ * other; the number of stripes keeps this rare. A lock only guards the path it was taken for, so a call changing a directory and
+ * the files under it, such as deleting it, takes the locks of all of them with {@link #write(Collection)}.
+ *
+ * <p>
+ * The time spent waiting for each lock is recorded, separately for read and write locks. Locks taken without waiting are
+ * recorded as waits of zero nanoseconds, and are also counted as uncontended.
+ */
+public class FileLocks {
+    /** Name of the system property giving the number of stripes. It is rounded up to a power of two. */
+    public static final String STRIPES_PROPERTY = "storage.lockStripes";
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final LatencyHistogram readWait = new LatencyHistogram();
+    private final LatencyHistogram writeWait = new LatencyHistogram();
+    private final AtomicLong contended = new AtomicLong();
+
+    /** Creates a lock table with the number of stripes given by {@link #STRIPES_PROPERTY}, or 64 stripes by default. */
+    public FileLocks() {
+        this(Integer.getInteger(STRIPES_PROPERTY, 64));
+    }
+
+    /**
+     * Creates a lock table.
+     *
+     * @param stripes
+     *            Number of locks. It is rounded up to a power of two.
+     * @throws IllegalArgumentException
+     *             If <code>stripes</code> is not positive.
+     */
+    public FileLocks(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int index = 0; index < size; index++) {
+            this.stripes[index] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Takes the read lock guarding a file, waiting if it is being written.
+     *
+     * @param file
+     *            Path to the file.
+     * @return The lock taken, to be released by the caller.
+     */
+    public Lock read(Path file) {
+        return acquire(stripe(file).readLock(), readWait);
+    }
+
+    /**
+     * Takes the write lock guarding a file, waiting while it is being read or written.
+     *
+     * @param file
+     *            Path to the file.
+     * @return The lock taken, to be released by the caller.
+     */
+    public Lock write(Path file) {
+        return acquire(stripe(file).writeLock(), writeWait);
+    }
+
+    /**
+     * Takes the write locks guarding several files, waiting while any of them is being read or written. The locks are taken in
+     * the order of their stripes, so that calls locking overlapping sets of files do not deadlock.
+     *
+     * @param files
+     *            Paths to the files.
+     * @return A lock whose <code>unlock</code> releases all the locks taken, to be called by the caller.
+     */
+    public Lock write(Collection<Path> files) {
+        TreeSet<Integer> indices = new TreeSet<Integer>();
+        for (Path file : files) {
+            indices.add(index(file));
+        }
+        Lock[] taken = new Lock[indices.size()];
+        int count = 0;
+        for (int index : indices) {
+            taken[count++] = acquire(stripes[index].writeLock(), writeWait);
+        }
+        return new Group(taken);
+    }
+
+    /** Returns the lock guarding a path. */
+    private ReentrantReadWriteLock stripe(Path file) {
+        return stripes[index(file)];
+    }
+
+    /** Returns the index of the stripe guarding a path. */
+    private int index(Path file) {
+        int hash = file.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (stripes.length - 1);
+    }
+
+    /** Locks taken together by {@link FileLocks#write(Collection)}, which can only be released. */
+    private static final class Group implements Lock {
+        private final Lock[] locks;
+
+        Group(Lock[] locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void unlock() {
+            for (int index = locks.length - 1; index >= 0; index--) {
+                locks[index].unlock();
+            }
+        }
+
+        @Override
+        public void lock() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void lockInterruptibly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean tryLock() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Takes a lock, recording the time spent waiting for it. */
+    private Lock acquire(Lock lock, LatencyHistogram waits) {
+        if (lock.tryLock()) {
+            waits.record(0);
+            return lock;
+        }
+        contended.incrementAndGet();
+        long start = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - start);
+        return lock;
+    }
+
+    /** Returns the number of stripes. */
+    public int stripes() {
+        return stripes.length;
+    }
+
+    /** Returns the times spent waiting for read locks. */
+    public LatencyHistogram readWait() {
+        return readWait;
+    }
+
+    /** Returns the times spent waiting for write locks. */
+    public LatencyHistogram writeWait() {
+        return writeWait;
+    }
+
+    /** Returns the number of locks that could not be taken without waiting. */
+    public long contendedCount() {
+        return contended.get();
+    }
+
+    /** Clears the statistics. */
+    public void reset() {
+        readWait.reset();
+        writeWait.reset();
+        contended.set(0);
+    }
+
+    /** Returns a table of the lock wait times. Times are given in microseconds. */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Storage file locks: %d stripes, %d contended%n", stripes.length, contended.get()));
+        report.append(String.format("%-10s %9s %9s %9s %9s %9s%n", "lock", "taken", "p50", "p99", "p99.9", "max"));
+        report.append(row("read", readWait)).append(row("write", writeWait));
+        return report.toString();
+    }
+
+    private static String row(String name, LatencyHistogram waits) {
+        return String.format("%-10s %9d %9d %9d %9d %9d%n", name, waits.count(),
+                TimeUnit.NANOSECONDS.toMicros(waits.percentile(50)), TimeUnit.NANOSECONDS.toMicros(waits.percentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(waits.percentile(99.9)), TimeUnit.NANOSECONDS.toMicros(waits.max()));
+    }
+}
@@ -0,0 +1,397 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+import common.Path;
+
+/**
+ * Layout of a file receiving insertions in the middle, as a table of pieces over its original contents and a journal of the
+ * inserted bytes.
+ *
+ * <p>
+ * While a file has a piece table, its contents on disk are left as they were when the table was opened. Each insertion appends
+ * a record to a journal, holding the offset and the inserted bytes, and splits the piece of the table in which it falls. An
+ * insertion therefore costs the writing of the inserted bytes, however large the file. Reads follow the pieces, from the
+ * original file or from the journal.
+ *
+ * <p>
+ * A piece table is compacted by merging the pieces into a new file, which then replaces the original, and deleting the journal.
+ * The journal records the length of the original file: after a crash, {@link #recover(File, File, BufferPool)} replays the
+ * journals whose file still has that length, and deletes the others, whose compaction had already replaced the file.
+ *
+ * <p>
+ * Journals and merged files are kept in a directory of their own outside the directory served, under the path of their file,
+ * so that they are neither listed with the files nor mistaken for them.
+ *
+ * <p>
+ * Piece tables are not thread-safe. The storage server guards each one with the lock of its file: insertions and replacement of
+ * the file are made under the write lock, and reads and merging under the read lock.
+ */
+class PieceTable {
+    /** Subdirectory of the journal directory holding the journal of each file, under the path of the file. */
+    static final String JOURNALS = "inserts";
+    /** Subdirectory of the journal directory holding the file being merged from each piece table, under the path of the file. */
+    static final String MERGED = "merged";
+    /** First bytes of a journal. */
+    private static final long MAGIC = 0x444655696e736572L;
+    /** Size of the header of a journal: its magic number and the length of the original file. */
+    private static final int HEADER = 16;
+    /** Size of the header of a journal record: the offset of the insertion and the number of bytes inserted. */
+    private static final int RECORD = 12;
+
+    private final File file;
+    private final File journalFile;
+    private final File mergedFile;
+    private final BufferPool buffers;
+    private final FileChannel original;
+    private final FileChannel journal;
+    /** Pieces making the contents of the file, in order. */
+    private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+    /** Length of the contents of the file. */
+    private long length;
+    /** Offset in the journal at which the next record is written. */
+    private long journalEnd;
+    /** Number of insertions made, used to detect insertions made while the pieces are being merged. */
+    private int version;
+    /** Time of the last insertion, as given by <code>System.nanoTime</code>. */
+    private volatile long lastInsert = System.nanoTime();
+    /** Pending compaction of the table, scheduled by the storage server. */
+    volatile ScheduledFuture<?> compaction;
+
+    /** Range of bytes of the original file or of the journal. */
+    private static final class Piece {
+        /** Whether the bytes are in the journal, rather than the original file. */
+        final boolean inserted;
+        /** Offset of the bytes in the original file or in the journal. */
+        final long source;
+        final long length;
+
+        Piece(boolean inserted, long source, long length) {
+            this.inserted = inserted;
+            this.source = source;
+            this.length = length;
+        }
+    }
+
+    private PieceTable(File file, File journals, Path path, BufferPool buffers, FileChannel journal) throws IOException {
+        this.file = file;
+        this.journalFile = path.toFile(new File(journals, JOURNALS));
+        this.mergedFile = path.toFile(new File(journals, MERGED));
+        this.buffers = buffers;
+        this.journal = journal;
+        try {
+            original = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a piece table for a file, creating an empty journal.
+     *
+     * @param root
+     *            Directory served, holding the file.
+     * @param path
+     *            Path of the file, which is not written to until the table is compacted or discarded.
+     * @param journals
+     *            Directory of the journals of the files of <code>root</code>, outside it and on the same filesystem.
+     * @param buffers
+     *            Buffers used to read and write the journal.
+     * @return The piece table, with one piece covering the whole file.
+     * @throws IOException
+     *             If the journal cannot be created, or the file cannot be opened.
+     */
+    static PieceTable open(File root, Path path, File journals, BufferPool buffers) throws IOException {
+        File journalFile = path.toFile(new File(journals, JOURNALS));
+        journalFile.getParentFile().mkdirs();
+        FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PieceTable table = new PieceTable(path.toFile(root), journals, path, buffers, journal);
+        long originalLength = table.original.size();
+        byte[] header = ByteBuffer.allocate(HEADER).putLong(MAGIC).putLong(originalLength).array();
+        try {
+            buffers.write(journal, 0, header, 0, HEADER);
+        } catch (IOException e) {
+            table.discard();
+            throw e;
+        }
+        table.journalEnd = HEADER;
+        table.length = originalLength;
+        if (originalLength > 0) {
+            table.pieces.add(new Piece(false, 0, originalLength));
+        }
+        return table;
+    }
+
+    /**
+     * Completes the compaction of the piece tables left by a storage server that did not stop cleanly, and deletes the
+     * journals and merged files left over.
+     *
+     * @param root
+     *            Directory served, whose files are recovered.
+     * @param journals
+     *            Directory of the journals of the files of <code>root</code>.
+     * @param buffers
+     *            Buffers used to read the journals.
+     * @throws IOException
+     *             If a piece table cannot be compacted.
+     */
+    static void recover(File root, File journals, BufferPool buffers) throws IOException {
+        delete(new File(journals, MERGED));
+        recover(root, new Path(), new File(journals, JOURNALS), journals, buffers);
+    }
+
+    private static void recover(File root, Path directory, File saved, File journals, BufferPool buffers) throws IOException {
+        File[] files = saved.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            Path path = new Path(directory, f.getName());
+            if (f.isDirectory()) {
+                recover(root, path, f, journals, buffers);
+                // the directories of the journals are dropped once they are empty
+                f.delete();
+                continue;
+            }
+            PieceTable table = path.toFile(root).isFile() ? replay(root, path, journals, buffers) : null;
+            if (table == null) {
+                f.delete();
+            } else {
+                try {
+                    table.install(table.merge());
+                } catch (IOException e) {
+                    table.close();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Rebuilds the piece table of a file from its journal, or returns <code>null</code> if the journal is out of date. */
+    private static PieceTable replay(File root, Path path, File journals, BufferPool buffers) throws IOException {
+        FileChannel journal = FileChannel.open(path.toFile(new File(journals, JOURNALS)).toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        PieceTable table = new PieceTable(path.toFile(root), journals, path, buffers, journal);
+        long size = journal.size();
+        byte[] header = new byte[HEADER];
+        if (size < HEADER) {
+            table.close();
+            return null;
+        }
+        buffers.read(journal, 0, header, 0, HEADER);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        long originalLength = table.original.size();
+        if (fields.getLong() != MAGIC || fields.getLong() != originalLength) {
+            table.close();
+            return null;
+        }
+        table.length = originalLength;
+        if (originalLength > 0) {
+            table.pieces.add(new Piece(false, 0, originalLength));
+        }
+        // a record cut short by the crash is dropped
+        long position = HEADER;
+        byte[] record = new byte[RECORD];
+        while (position + RECORD <= size) {
+            buffers.read(journal, position, record, 0, RECORD);
+            fields = ByteBuffer.wrap(record);
+            long offset = fields.getLong();
+            int count = fields.getInt();
+            if (offset < 0 || offset > table.length || count <= 0 || position + RECORD + count > size) {
+                break;
+            }
+            table.apply(offset, position + RECORD, count);
+            position += RECORD + count;
+        }
+        table.journalEnd = position;
+        return table;
+    }
+
+    /** Returns the length of the contents of the file. */
+    long length() {
+        return length;
+    }
+
+    /** Returns the number of pieces of the table. */
+    int pieces() {
+        return pieces.size();
+    }
+
+    /** Returns the number of insertions made. */
+    int version() {
+        return version;
+    }
+
+    /** Returns the time since the last insertion, in nanoseconds. */
+    long idle() {
+        return System.nanoTime() - lastInsert;
+    }
+
+    /**
+     * Inserts bytes in the file, shifting the bytes following the offset.
+     *
+     * @param offset
+     *            Offset of the insertion, between zero and the length of the file.
+     * @param data
+     *            Bytes to insert.
+     * @throws IOException
+     *             If the bytes cannot be written to the journal. The table is left unchanged.
+     */
+    void insert(long offset, byte[] data) throws IOException {
+        if (data.length == 0) {
+            return;
+        }
+        byte[] record = ByteBuffer.allocate(RECORD + data.length).putLong(offset).putInt(data.length).put(data).array();
+        buffers.write(journal, journalEnd, record, 0, record.length);
+        apply(offset, journalEnd + RECORD, data.length);
+        journalEnd += record.length;
+        version++;
+        lastInsert = System.nanoTime();
+    }
+
+    /** Adds a piece of inserted bytes to the table, splitting the piece in which the offset falls. */
+    private void apply(long offset, long source, long count) {
+        int index = 0;
+        long start = 0;
+        while (index < pieces.size() && start + pieces.get(index).length <= offset) {
+            start += pieces.get(index).length;
+            index++;
+        }
+        Piece added = new Piece(true, source, count);
+        if (index < pieces.size() && offset > start) {
+            Piece split = pieces.get(index);
+            long head = offset - start;
+            pieces.set(index, new Piece(split.inserted, split.source, head));
+            pieces.add(index + 1, added);
+            pieces.add(index + 2, new Piece(split.inserted, split.source + head, split.length - head));
+        } else {
+            pieces.add(index, added);
+        }
+        length += count;
+    }
+
+    /**
+     * Reads bytes of the file.
+     *
+     * @param offset
+     *            Offset of the first byte. The range read lies within the file.
+     * @param count
+     *            Number of bytes to read.
+     * @return The bytes read.
+     * @throws IOException
+     *             If the original file or the journal cannot be read.
+     */
+    byte[] read(long offset, int count) throws IOException {
+        byte[] output = new byte[count];
+        long start = 0;
+        int done = 0;
+        for (int index = 0; index < pieces.size() && done < count; index++) {
+            Piece piece = pieces.get(index);
+            long end = start + piece.length;
+            if (end > offset + done) {
+                long from = offset + done - start;
+                int part = (int) Math.min(piece.length - from, count - done);
+                buffers.read(piece.inserted ? journal : original, piece.source + from, output, done, part);
+                done += part;
+            }
+            start = end;
+        }
+        return output;
+    }
+
+    /**
+     * Writes the contents of the file, as given by the pieces, to a new file in the journal directory.
+     *
+     * @return The new file, to be passed to {@link #install(File)}.
+     * @throws IOException
+     *             If the new file cannot be written. It is then deleted.
+     */
+    File merge() throws IOException {
+        mergedFile.getParentFile().mkdirs();
+        FileChannel output = FileChannel.open(mergedFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        boolean done = false;
+        try {
+            for (Piece piece : pieces) {
+                FileChannel source = piece.inserted ? journal : original;
+                long copied = 0;
+                while (copied < piece.length) {
+                    long count = source.transferTo(piece.source + copied, piece.length - copied, output);
+                    if (count <= 0) {
+                        throw new EOFException("Piece table refers past the end of "
+                                + (piece.inserted ? "its journal" : "the file"));
+                    }
+                    copied += count;
+                }
+            }
+            done = true;
+        } finally {
+            output.close();
+            if (!done) {
+                mergedFile.delete();
+            }
+        }
+        return mergedFile;
+    }
+
+    /**
+     * Replaces the file by the file merged from the table, deletes the journal and closes the table.
+     *
+     * @param merged
+     *            File returned by {@link #merge()}, with no insertion made since.
+     * @throws IOException
+     *             If the file cannot be replaced. The merged file is then deleted, and the table can still be used.
+     */
+    void install(File merged) throws IOException {
+        try {
+            Files.move(merged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            merged.delete();
+            throw e;
+        }
+        // the channels still read the replaced file until they are closed
+        close();
+        journalFile.delete();
+    }
+
+    /** Closes the table and deletes its journal, dropping the insertions. Used when the file is deleted or replaced. */
+    void discard() {
+        close();
+        journalFile.delete();
+    }
+
+    /** Closes the original file and the journal. */
+    private void close() {
+        try {
+            original.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
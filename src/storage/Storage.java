@@ -3,6 +3,9 @@ package storage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import rmi.Bulk;
+import rmi.Coalesce;
+import rmi.Precompiled;
 import rmi.RMIException;
 
 import common.Path;
@@ -13,7 +16,11 @@ import common.Path;
  * <p>
  * All methods in this interface may raise {@link NullPointerException} if passed <code>null</code> for arguments or
  * {@link SecurityException} if the security manager on the server does not allow an operation.
+ * 
+ * <p>
+ * Methods moving file contents are marked {@link Bulk}, so that they do not delay the other calls to the storage server.
  */
+@Precompiled
 public interface Storage {
     /**
      * Returns the length of a file, in bytes.
@@ -26,6 +33,7 @@ public interface Storage {
      * @throws RMIException
      *             If the call cannot be completed due to a network error.
      */
+    @Coalesce
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /**
@@ -49,6 +57,7 @@ public interface Storage {
      * @throws RMIException
      *             If the call cannot be completed due to a network error.
      */
+    @Bulk
     public byte[] read(Path file, long offset, int length) throws RMIException, FileNotFoundException, IOException;
 
     /**
@@ -69,18 +78,107 @@ public interface Storage {
      * @throws RMIException
      *             If the call cannot be completed due to a network error.
      */
+    @Bulk
     public void write(Path file, long offset, byte[] data) throws RMIException, FileNotFoundException, IOException;
 
+    @Bulk
     public void write(Path file, byte[] data) throws RMIException, FileNotFoundException, IOException;
 
+    @Bulk
     public void append(Path file, byte[] data) throws RMIException, FileNotFoundException, IOException;
 
+    @Bulk
     public byte[] randomRead(Path file, long offset, int length) throws RMIException, FileNotFoundException, IOException;
 
+    @Bulk
     public void randomWrite(Path file, long offset, byte[] data) throws RMIException, FileNotFoundException, IOException;
 
+    @Bulk
     public byte[] read(Path file) throws RMIException, FileNotFoundException, IOException;
 
     public boolean isFileExist(Path path) throws RMIException;
 
+    /**
+     * Prepares to send the contents of a file over the storage server's bulk data channel.
+     * 
+     * <p>
+     * The contents are not returned by this call. Instead, the caller receives them by calling <code>receive</code> on the
+     * returned transfer. The bytes are copied directly from the file to the network, so large files do not pass through RMI.
+     * 
+     * @param file
+     *            Path to the file.
+     * @return The transfer, which must be carried out within a minute.
+     * @throws FileNotFoundException
+     *             If the file cannot be found or the path refers to a directory.
+     * @throws IOException
+     *             If the transfer cannot be prepared on the server.
+     * @throws RMIException
+     *             If the call cannot be completed due to a network error.
+     */
+    public Transfer download(Path file) throws RMIException, FileNotFoundException, IOException;
+
+    /**
+     * Prepares to replace the contents of a file with bytes sent over the storage server's bulk data channel.
+     * 
+     * <p>
+     * The caller sends the new contents by calling <code>send</code> on the returned transfer. The bytes are copied directly from
+     * the network to a file on the server, so large files do not pass through RMI, and replace the contents of the file when
+     * they have all been received.
+     * 
+     * @param file
+     *            Path to the file.
+     * @param length
+     *            Length of the new contents, in bytes.
+     * @return The transfer, which must be carried out within a minute.
+     * @throws IndexOutOfBoundsException
+     *             If <code>length</code> is negative.
+     * @throws FileNotFoundException
+     *             If the file cannot be found or the path refers to a directory.
+     * @throws IOException
+     *             If the transfer cannot be prepared on the server.
+     * @throws RMIException
+     *             If the call cannot be completed due to a network error.
+     */
+    public Transfer upload(Path file, long length) throws RMIException, FileNotFoundException, IOException;
+
+    /**
+     * Returns the identifiers of the chunks making the contents of a file, if the storage server keeps its files in a chunk
+     * store.
+     * 
+     * <p>
+     * Another storage server copying the file fetches only the chunks it does not have, with {@link #readChunks(String[])}. The
+     * default implementation returns <code>null</code>, for servers without a chunk store.
+     * 
+     * @param file
+     *            Path to the file.
+     * @return The identifiers of the chunks, in order, or <code>null</code> if the server does not keep the file as chunks, as
+     *         for a file changed in place since it was last written whole.
+     * @throws FileNotFoundException
+     *             If the file cannot be found or the path refers to a directory.
+     * @throws IOException
+     *             If the chunks of the file cannot be listed.
+     * @throws RMIException
+     *             If the call cannot be completed due to a network error.
+     */
+    public default String[] chunks(Path file) throws RMIException, FileNotFoundException, IOException {
+        return null;
+    }
+
+    /**
+     * Returns the contents of chunks from the storage server's chunk store.
+     * 
+     * @param ids
+     *            Identifiers of the chunks, as returned by {@link #chunks(Path)}.
+     * @return The contents of each chunk, or <code>null</code> for the chunks the server does not have. The default
+     *         implementation has none.
+     * @throws IOException
+     *             If a chunk cannot be read.
+     * @throws RMIException
+     *             If the call cannot be completed due to a network error.
+     */
+    @Bulk
+    public default byte[][] readChunks(String[] ids) throws RMIException, IOException {
+        return new byte[ids.length][];
+    }
+
 }
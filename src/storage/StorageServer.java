@@ -1,16 +1,32 @@
 package storage;
 
-import static java.lang.System.out;
-
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 import naming.Registration;
 import rmi.RMIException;
@@ -25,6 +41,26 @@ import common.Path;
  * <p>
  * Storage servers respond to client file access requests. The files accessible through a storage server are those accessible
  * under a given directory of the local filesystem.
+ *
+ * <p>
+ * Calls on different files are served in parallel. Each call takes the lock guarding its file in a {@link FileLocks} table: a
+ * read lock to read a file or its size, and a write lock to create, change, copy or delete it. A download over the bulk data
+ * channel holds the read lock for the whole transfer, and an upload replaces the contents of its file under the write lock once
+ * it has been received; see {@link BulkChannel}. Files are read with positional reads on a file channel, and written in place
+ * at an offset with positional writes, through direct buffers taken from a {@link BufferPool}.
+ *
+ * <p>
+ * Random writes insert their bytes into a file through a {@link PieceTable}, at a cost proportional to the bytes inserted, and
+ * journaled in a directory next to the root directory. The table of a file is compacted into a plain file again in the
+ * background, once no insertion has been made for {@link #COMPACTION_DELAY} milliseconds or once it has more than
+ * {@link #MAX_PIECES} pieces, and before any other change to the file or transfer of its contents.
+ *
+ * <p>
+ * If the system property {@link ChunkStore#PROPERTY} is <code>true</code>, the contents of files written whole, uploaded or
+ * copied are kept in a {@link ChunkStore} next to the root directory, cut into content-defined chunks stored once each, and the
+ * files themselves are left empty. Copying a file from another server with a chunk store fetches only the chunks missing from
+ * this one. A file is unpacked into a plain file again before it is changed in place, and stays so until its contents are
+ * replaced whole.
  */
 public class StorageServer implements Storage, Command {
     File root;
@@ -32,6 +68,32 @@ public class StorageServer implements Storage, Command {
     Skeleton<Command> commandSkeleton;
     int clientPort;
     int commandPort;
+    int dataPort;
+    BulkChannel bulk;
+    final FileLocks locks = new FileLocks();
+    final BufferPool buffers = new BufferPool(Runtime.getRuntime().availableProcessors() * 4);
+    /** Piece tables of the files receiving insertions. */
+    final ConcurrentHashMap<Path, PieceTable> pieceTables = new ConcurrentHashMap<Path, PieceTable>();
+    /** Thread compacting piece tables and collecting unused chunks, created when first needed. */
+    private ScheduledThreadPoolExecutor compactor;
+    /** Store keeping the contents of files as chunks, or <code>null</code> if files are kept as plain files. */
+    final ChunkStore chunks;
+    /** Manifests of the files whose contents are kept in the chunk store. */
+    final ConcurrentHashMap<Path, ChunkStore.Manifest> manifests = new ConcurrentHashMap<Path, ChunkStore.Manifest>();
+    /** Directory next to the root directory receiving uploads before they are installed. */
+    final File uploads;
+    /** Directory next to the root directory keeping the journals of the piece tables. See {@link PieceTable}. */
+    final File journals;
+    /** Changes made to the files with a plain download pending, by path. Guarded by its own lock. */
+    private final HashMap<Path, Watch> watched = new HashMap<Path, Watch>();
+    /** Whether a collection of the unused chunks is pending. */
+    private final AtomicBoolean collectionScheduled = new AtomicBoolean();
+    /** Time without insertions after which the piece table of a file is compacted, in milliseconds. */
+    static final long COMPACTION_DELAY = 10000;
+    /** Number of pieces above which the piece table of a file is compacted without waiting. */
+    static final int MAX_PIECES = 1024;
+    /** Largest number of chunks fetched in one call when copying a file from another server. */
+    static final int CHUNK_BATCH = 64;
     static int DEFAULT_CLIENT_PORT = 7225;
     static int DEFAULT_COMMAND_PORT = 9325;
 
@@ -52,6 +114,25 @@ public class StorageServer implements Storage, Command {
      *             If <code>root</code> is <code>null</code>.
      */
     public StorageServer(File root, int client_port, int command_port) {
+        this(root, client_port, command_port, 0);
+    }
+
+    /**
+     * Creates a storage server, given a directory on the local filesystem, and ports to use for the client and command
+     * interfaces and for the bulk data channel.
+     * 
+     * @param root
+     *            Directory on the local filesystem. The contents of this directory will be accessible through the storage server.
+     * @param client_port
+     *            Port to use for the client interface, or zero if the system should decide the port.
+     * @param command_port
+     *            Port to use for the command interface, or zero if the system should decide the port.
+     * @param data_port
+     *            Port to use for the bulk data channel, or zero if the system should decide the port.
+     * @throws NullPointerException
+     *             If <code>root</code> is <code>null</code>.
+     */
+    public StorageServer(File root, int client_port, int command_port, int data_port) {
         if (root == null) {
             throw new NullPointerException("Root is null");
         }
@@ -61,6 +142,14 @@ public class StorageServer implements Storage, Command {
         }
 
         this.root = root;
+        uploads = new File(root.getAbsoluteFile().getParentFile(), "." + root.getName() + ".uploads");
+        journals = new File(root.getAbsoluteFile().getParentFile(), "." + root.getName() + ".journals");
+        if (Boolean.getBoolean(ChunkStore.PROPERTY)) {
+            chunks = new ChunkStore(new File(root.getAbsoluteFile().getParentFile(), "." + root.getName() + ".chunks"), buffers);
+        } else {
+            chunks = null;
+        }
+        dataPort = data_port;
         InetSocketAddress clientAddr;
         InetSocketAddress commandAddr;
         // initializes the client port only if it is a valid port
@@ -116,8 +205,42 @@ public class StorageServer implements Storage, Command {
         if (!root.exists() || root.isFile()) {
             throw new FileNotFoundException("Directory with which the server was" + "created does not exist or is in fact a file");
         }
+        try {
+            PieceTable.recover(root, journals, buffers);
+        } catch (IOException e) {
+            throw new RMIException("Cannot recover the insertions left pending in a previous run", e);
+        }
+        if (chunks != null) {
+            try {
+                manifests.putAll(chunks.load(root));
+                // a file is emptied after its manifest is saved, which a crash may have prevented
+                for (Path file : manifests.keySet()) {
+                    File f = file.toFile(root);
+                    if (f.length() > 0) {
+                        truncate(f);
+                    }
+                }
+                // chunks left unused by a previous run are deleted once the server is running
+                scheduleCollection();
+            } catch (IOException e) {
+                throw new RMIException("Cannot load the manifests of the chunk store", e);
+            }
+        }
+        // uploads left by a previous run were never installed
+        File[] spooled = uploads.listFiles();
+        if (spooled != null) {
+            for (File upload : spooled) {
+                upload.delete();
+            }
+        }
+        uploads.mkdirs();
         clientSkeleton.start();
         commandSkeleton.start();
+        try {
+            bulk = new BulkChannel(dataPort, hostname, locks, uploads);
+        } catch (IOException e) {
+            throw new RMIException("Cannot open the bulk data channel", e);
+        }
         Storage clientStub = (Storage) Stub.create(Storage.class, clientSkeleton, hostname);
         Command commandStub = (Command) Stub.create(Command.class, commandSkeleton, hostname);
         Path[] files = Path.list(root);
@@ -155,6 +278,25 @@ public class StorageServer implements Storage, Command {
     public void stop() {
         clientSkeleton.stop();
         commandSkeleton.stop();
+        if (bulk != null) {
+            bulk.close();
+        }
+        synchronized (this) {
+            // a compaction running is left to finish: interrupting it would close the channels of its piece table
+            if (compactor != null) {
+                compactor.shutdown();
+            }
+        }
+        for (Path file : pieceTables.keySet()) {
+            Lock lock = locks.write(file);
+            try {
+                flatten(file);
+            } catch (IOException e) {
+                // the journal is kept, and replayed when the server is next started
+            } finally {
+                lock.unlock();
+            }
+        }
         stopped(null);
     }
 
@@ -167,61 +309,131 @@ public class StorageServer implements Storage, Command {
     protected void stopped(Throwable cause) {
     }
 
+    /** Returns the table of locks guarding the files of the storage server, with its wait time statistics. */
+    public FileLocks locks() {
+        return locks;
+    }
+
+    /** Returns the chunk store of the storage server, with its statistics, or <code>null</code> if it has none. */
+    public ChunkStore chunkStore() {
+        return chunks;
+    }
+
+    /**
+     * Deletes the chunks of the chunk store no file uses any more, without waiting for the collection scheduled when files were
+     * changed or deleted. Does nothing if the server has no chunk store.
+     */
+    public void collectChunks() {
+        if (chunks != null) {
+            chunks.collect(manifests.values());
+        }
+    }
+
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException {
-        File f = file.toFile(root);
-        if (!f.exists() || f.isDirectory()) {
-            throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+    public long size(Path file) throws FileNotFoundException {
+        Lock lock = locks.read(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            return length(file, f);
+        } finally {
+            lock.unlock();
         }
-        return f.length();
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException {
-        File f = file.toFile(root);
-        out.println("the fire to read is " + f.toString());
-        if (!f.exists() || f.isDirectory()) {
-            throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
-        }
-        if ((offset < 0) || (length < 0) || (offset + length > f.length())) {
-            throw new IndexOutOfBoundsException("Sequence specified is outside"
-                    + "of the bounds of the file, or length is negative");
+    public byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException {
+        Lock lock = locks.read(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            if ((offset < 0) || (length < 0) || (offset + length > length(file, f))) {
+                throw new IndexOutOfBoundsException("Sequence specified is outside"
+                        + "of the bounds of the file, or length is negative");
+            }
+            return readAt(file, f, offset, length);
+        } finally {
+            lock.unlock();
         }
-        // reads from the file using FileInputStream and returns the content
-        InputStream reader = new FileInputStream(f);
-        byte[] output = new byte[length];
-        reader.read(output, (int) offset, length);
-        reader.close();
-        return output;
     }
 
-    @SuppressWarnings("resource")
     @Override
     public byte[] read(Path file) throws RMIException, FileNotFoundException, IOException {
-        File file2 = file.toFile(root);
-        out.println("file to be read is " + file.toString());
-        if (!file2.exists()) {
-            out.println("error file does not exists!");
+        Lock lock = locks.read(file);
+        try {
+            File file2 = file.toFile(root);
+            if (!file2.exists() || file2.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            return readAt(file, file2, 0, (int) length(file, file2));
+        } finally {
+            lock.unlock();
         }
-        InputStream reader = new FileInputStream(file2);
-
-        byte[] buffer = new byte[(int) file2.length()];
+    }
 
-        reader.read(buffer);
+    /**
+     * Returns the length of a file, including the bytes inserted into it or kept in the chunk store. The caller holds a lock of
+     * the file.
+     */
+    private long length(Path file, File f) {
+        PieceTable table = pieceTables.get(file);
+        if (table != null) {
+            return table.length();
+        }
+        ChunkStore.Manifest manifest = manifests.get(file);
+        return manifest != null ? manifest.length() : f.length();
+    }
 
-        reader.close();
-        return buffer;
+    /**
+     * Reads a range of a file with positional reads, through a pooled buffer, or through the piece table of the file or from
+     * the chunk store if it has a table or a manifest. The caller holds the read lock of the file.
+     * 
+     * @throws EOFException
+     *             If the file ends before the end of the range.
+     */
+    private byte[] readAt(Path file, File f, long offset, int length) throws IOException {
+        PieceTable table = pieceTables.get(file);
+        if (table != null) {
+            return table.read(offset, length);
+        }
+        byte[] output = new byte[length];
+        ChunkStore.Manifest manifest = manifests.get(file);
+        if (manifest != null) {
+            chunks.read(manifest, offset, output, length);
+            return output;
+        }
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            buffers.read(channel, offset, output, 0, length);
+        } finally {
+            channel.close();
+        }
+        return output;
     }
 
     @Override
-    public synchronized void append(Path file, byte[] data) throws RMIException, FileNotFoundException, IOException {
-        this.write(file, data, true);
+    public void append(Path file, byte[] data) throws RMIException, FileNotFoundException, IOException {
+        Lock lock = locks.write(file);
+        try {
+            this.write(file, data, true);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void write(Path file, byte[] data) throws RMIException, FileNotFoundException, IOException {
-        this.write(file, data, false);
+        Lock lock = locks.write(file);
+        try {
+            this.write(file, data, false);
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void write(Path file, byte[] data, boolean append) throws RMIException, FileNotFoundException, IOException {
@@ -229,6 +441,19 @@ public class StorageServer implements Storage, Command {
         if (!f.exists() || f.isDirectory()) {
             throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
         }
+        changed(file);
+        // the insertions pending in the file are kept by an append, and replaced by a write
+        if (append) {
+            flatten(file);
+            unpack(file, f);
+        } else {
+            discard(file);
+            if (chunks != null && data.length > 0) {
+                pack(file, f, Channels.newChannel(new ByteArrayInputStream(data)));
+                return;
+            }
+            forget(file);
+        }
 
         FileOutputStream writer = new FileOutputStream(f, append);
         writer.write(data);
@@ -237,31 +462,207 @@ public class StorageServer implements Storage, Command {
 
     @Override
     public void write(Path file, long offset, byte[] data) throws FileNotFoundException, IOException {
+        Lock lock = locks.write(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            if (offset < 0) {
+                throw new IndexOutOfBoundsException("The offset is negative");
+            }
+            changed(file);
+            flatten(file);
+            unpack(file, f);
+            writeAt(f, offset, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes bytes to a file in place with positional writes, through a pooled buffer. The bytes of the file outside the range
+     * written are left as they are. Writing past the end of the file extends it, leaving the gap as a hole that reads as zeros
+     * and, on filesystems supporting sparse files, takes no space. The caller holds the write lock of the file.
+     */
+    private void writeAt(File f, long offset, byte[] data) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+        try {
+            buffers.write(channel, offset, data, 0, data.length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public Transfer download(final Path file) throws FileNotFoundException, IOException {
+        File f = file.toFile(root);
+        if (!f.exists() || f.isDirectory()) {
+            throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+        }
+        Lock lock = locks.write(file);
+        try {
+            flatten(file);
+            final ChunkStore.Manifest manifest = manifests.get(file);
+            if (manifest == null) {
+                // a plain file is read when the client connects, and the download fails if the file was changed meanwhile
+                final Watch watch = watch(file);
+                final long offered = watch.changes;
+                return bulkChannel().offerDownload(file, f, new BulkChannel.Version() {
+                    @Override
+                    public boolean current() {
+                        synchronized (watched) {
+                            return watch.changes == offered;
+                        }
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        unwatch(file, watch);
+                    }
+                });
+            }
+            // the chunks offered are kept until the download is over, even if the file is changed meanwhile
+            chunks.hold(manifest);
+            return bulkChannel().offerDownload(file, chunks.files(manifest), manifest.length(), new Runnable() {
+                @Override
+                public void run() {
+                    chunks.release(manifest);
+                    if (manifests.get(file) != manifest) {
+                        scheduleCollection();
+                    }
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Transfer upload(final Path file, long length) throws FileNotFoundException, IOException {
         File f = file.toFile(root);
         if (!f.exists() || f.isDirectory()) {
             throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
         }
-        if (offset < 0) {
-            throw new IndexOutOfBoundsException("The offset is negative");
+        if (length < 0) {
+            throw new IndexOutOfBoundsException("The length is negative");
         }
-        InputStream reader = new FileInputStream(f);
-        FileOutputStream writer = new FileOutputStream(f);
+        return bulkChannel().offerUpload(length, new BulkChannel.Upload() {
+            @Override
+            public boolean install(File uploaded) throws IOException {
+                return StorageServer.this.install(file, uploaded);
+            }
+        });
+    }
 
-        // determinds how many bytes are to be read
-        long readLength = Math.min(offset, f.length());
-        byte[] offsetBytes = new byte[(int) readLength];
-        // reads from the data and writes to the file
-        reader.read(offsetBytes);
-        writer.write(offsetBytes, 0, (int) readLength);
-        long fillLength = offset - f.length();
-        if (fillLength > 0) {
-            for (int i = 0; i < (int) fillLength; i++) {
-                writer.write(0);
+    /** Changes made to a file offered for download as a plain file, counted while downloads of it are pending. */
+    private static final class Watch {
+        /** Number of changes made to the file. */
+        long changes;
+        /** Number of downloads of the file pending. */
+        int downloads;
+    }
+
+    /** Starts counting the changes made to a file offered for download. The caller holds the write lock of the file. */
+    private Watch watch(Path file) {
+        synchronized (watched) {
+            Watch watch = watched.get(file);
+            if (watch == null) {
+                watch = new Watch();
+                watched.put(file, watch);
             }
+            watch.downloads++;
+            return watch;
+        }
+    }
+
+    /** Stops counting the changes made to a file for a download that is over. */
+    private void unwatch(Path file, Watch watch) {
+        synchronized (watched) {
+            if (--watch.downloads == 0) {
+                watched.remove(file, watch);
+            }
+        }
+    }
+
+    /**
+     * Records a change to the contents of a file, or of the files under a directory, for the downloads of them pending. The
+     * caller holds the write locks of the files.
+     */
+    private void changed(Path path) {
+        synchronized (watched) {
+            for (Map.Entry<Path, Watch> entry : watched.entrySet()) {
+                if (entry.getKey().isSubpath(path)) {
+                    entry.getValue().changes++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of a file with the bytes of an upload, dropping the insertions pending in the file. Takes the write
+     * lock of the file.
+     *
+     * @return <code>true</code> if the contents have been replaced; <code>false</code> if the file no longer exists.
+     */
+    private boolean install(Path file, File uploaded) throws IOException {
+        Lock lock = locks.write(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.isFile()) {
+                return false;
+            }
+            changed(file);
+            discard(file);
+            if (chunks != null && uploaded.length() > 0) {
+                FileChannel source = FileChannel.open(uploaded.toPath(), StandardOpenOption.READ);
+                try {
+                    pack(file, f, source);
+                } finally {
+                    source.close();
+                }
+            } else {
+                forget(file);
+                Files.move(uploaded.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
-        reader.close();
-        writer.write(data);
-        writer.close();
+    }
+
+    @Override
+    public String[] chunks(Path file) throws FileNotFoundException, IOException {
+        Lock lock = locks.read(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            // a file changed in place since it was last written whole is a plain file, copied whole
+            ChunkStore.Manifest manifest = chunks != null ? manifests.get(file) : null;
+            return manifest != null ? manifest.ids.clone() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[][] readChunks(String[] ids) throws IOException {
+        byte[][] contents = new byte[ids.length][];
+        if (chunks != null) {
+            for (int index = 0; index < ids.length; index++) {
+                contents[index] = chunks.get(ids[index]);
+            }
+        }
+        return contents;
+    }
+
+    private BulkChannel bulkChannel() {
+        if (bulk == null) {
+            throw new IllegalStateException("Storage server has not been started");
+        }
+        return bulk;
     }
 
     // The following methods are documented in Command.java.
@@ -270,47 +671,90 @@ public class StorageServer implements Storage, Command {
         if (file == null) {
             throw new NullPointerException("Given a null argument");
         }
-        if (file.isRoot()) {
-            out.println("file is root!");
-            return false;
-        }
+        Lock lock = locks.write(file);
+        try {
+            if (file.isRoot()) {
+                return false;
+            }
 
-        out.println("create file path is " + file.toString());
+            Path parent = file.parent();
 
-        Path parent = file.parent();
+            // check parent dir exists
+            File parentFile = parent.toFile(root);
 
-        // check parent dir exists
-        File parentFile = parent.toFile(root);
+            if (!parentFile.exists()) {
+                parentFile.mkdirs();
+            }
 
-        if (!parentFile.exists()) {
-            parentFile.mkdirs();
+            // creates the file
+            File f = file.toFile(root);
+            try {
+                return f.createNewFile();
+            } catch (IOException e) {
+                return false;
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // creates the file
-        File f = file.toFile(root);
+    @Override
+    public boolean delete(Path path) {
+        // the locks of the files under a directory are taken as well, since they guard only their own paths
+        Lock lock = locks.write(subtree(path));
         try {
-            return f.createNewFile();
-        } catch (IOException e) {
-            return false;
+            // cannot delete the root
+            if (path.isRoot()) {
+                return false;
+            }
+            changed(path);
+            // drops the insertions pending in the file, or in the files of the directory
+            for (Path file : pieceTables.keySet()) {
+                if (file.isSubpath(path)) {
+                    discard(file);
+                }
+            }
+            forget(path);
+            // deletes the file
+            File f = path.toFile(root);
+            if (f.isFile()) {
+                return f.delete();
+            } else {
+                return deleteHelper(f);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    @Override
-    public synchronized boolean delete(Path path) {
-        // cannot delete the root
-        if (path.isRoot()) {
-            return false;
+    // a helper method for the delete method
+    /** Returns a path with the paths of the files and directories under it, on disk or with insertions or chunks pending. */
+    private Set<Path> subtree(Path path) {
+        Set<Path> paths = new HashSet<Path>();
+        subtree(path, path.toFile(root), paths);
+        for (Path file : pieceTables.keySet()) {
+            if (file.isSubpath(path)) {
+                paths.add(file);
+            }
         }
-        // deletes the file
-        File f = path.toFile(root);
-        if (f.isFile()) {
-            return f.delete();
-        } else {
-            return deleteHelper(f);
+        for (Path file : manifests.keySet()) {
+            if (file.isSubpath(path)) {
+                paths.add(file);
+            }
+        }
+        return paths;
+    }
+
+    private static void subtree(Path path, File f, Set<Path> paths) {
+        paths.add(path);
+        String[] children = f.list();
+        if (children != null) {
+            for (String child : children) {
+                subtree(new Path(path, child), new File(f, child), paths);
+            }
         }
     }
 
-    // a helper method for the delete method
     private boolean deleteHelper(File f) {
         if (f.isDirectory()) {
             File[] subfiles = f.listFiles();
@@ -325,131 +769,358 @@ public class StorageServer implements Storage, Command {
 
     @Override
     public boolean copy(Path file, Storage server) throws RMIException, FileNotFoundException, IOException {
+        Lock lock = locks.write(file);
+        try {
+            // deletes the given file if it already exists on the server
+            File f = file.toFile(root);
+            if (f.isDirectory()) {
+                return true;
+            }
+            changed(file);
+            // fetches only the chunks missing from the local store, if the other server keeps the file as chunks too
+            String[] ids = chunks != null ? server.chunks(file) : null;
+            if (ids != null) {
+                copyChunks(file, f, ids, server);
+                return true;
+            }
+            // fails before touching the local file if the other server does not have the file
+            Transfer transfer = server.download(file);
+            if (f.exists()) {
+                delete(file);
+            }
+            // creates the file on this server and copies bytes over from the other, over its bulk data channel
+            create(file);
 
-        out.println("coming to copy!");
-
-        // deletes the given file if it already exists on the server
-        File f = file.toFile(root);
-        if (f.isDirectory()) {
+            transfer.receive(f);
+            if (chunks != null) {
+                pack(file, f);
+            }
+            //
+            // long fileSize = server.size(file);
+            // long offset = 0;
+            // while (offset < fileSize) {
+            // int bytesToCopy = (int) Math.min(Integer.MAX_VALUE, fileSize - offset);
+            // byte[] data = server.read(file, offset, bytesToCopy);
+            // write(file, offset, data);
+            // offset += bytesToCopy;
+            // }
             return true;
+        } finally {
+            lock.unlock();
         }
-        if (f.exists()) {
-            delete(file);
-        }
-        // creates the file on this server and copies bytes over from the other
-        create(file);
-
-        byte[] data = server.read(file);
+    }
 
-        this.write(file, data);
+    /**
+     * Copies a file from another server keeping it as chunks, fetching the chunks missing from the local store in batches of
+     * {@link #CHUNK_BATCH}. The caller holds the write lock of the file.
+     */
+    private void copyChunks(Path file, File f, String[] ids, Storage server) throws RMIException, IOException {
+        Lock pin = chunks.pin();
+        try {
+            Set<String> missing = new LinkedHashSet<String>();
+            for (String id : ids) {
+                if (!chunks.has(id)) {
+                    missing.add(id);
+                }
+            }
+            Iterator<String> iter = missing.iterator();
+            while (iter.hasNext()) {
+                String[] batch = new String[Math.min(CHUNK_BATCH, missing.size())];
+                int count = 0;
+                while (count < batch.length && iter.hasNext()) {
+                    batch[count++] = iter.next();
+                }
+                if (count < batch.length) {
+                    String[] last = new String[count];
+                    System.arraycopy(batch, 0, last, 0, count);
+                    batch = last;
+                }
+                byte[][] contents = server.readChunks(batch);
+                for (int index = 0; index < batch.length; index++) {
+                    if (contents[index] == null) {
+                        throw new FileNotFoundException("Chunk " + batch[index] + " of " + file
+                                + " is missing on the other server");
+                    }
+                    chunks.put(batch[index], contents[index]);
+                }
+            }
+            // fails before touching the local file if a chunk is still missing
+            ChunkStore.Manifest manifest = chunks.manifest(ids);
+            if (f.exists()) {
+                delete(file);
+            }
+            create(file);
+            if (ids.length > 0) {
+                keep(file, f, manifest);
+            }
+        } finally {
+            pin.unlock();
+        }
+    }
 
-        out.println("copy file done!");
-        //
-        // long fileSize = server.size(file);
-        // long offset = 0;
-        // while (offset < fileSize) {
-        // int bytesToCopy = (int) Math.min(Integer.MAX_VALUE, fileSize - offset);
-        // byte[] data = server.read(file, offset, bytesToCopy);
-        // write(file, offset, data);
-        // offset += bytesToCopy;
-        // }
-        return true;
+    @Override
+    public byte[] randomRead(Path file, long offset, int length) throws RMIException, FileNotFoundException, IOException {
+        Lock lock = locks.read(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            if ((offset < 0) || (length < 0) || (offset + length > length(file, f))) {
+                throw new IndexOutOfBoundsException("Sequence specified is outside"
+                        + "of the bounds of the file, or length is negative");
+            }
+            return readAt(file, f, offset, length);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized byte[] randomRead(Path file, long offset, int length) throws RMIException, FileNotFoundException,
-            IOException {
-        File f = file.toFile(root);
-        if (!f.exists() || f.isDirectory()) {
-            throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+    public void randomWrite(Path file, long offset, byte[] data) throws RMIException, FileNotFoundException, IOException {
+        Lock lock = locks.write(file);
+        try {
+            File f = file.toFile(root);
+            if (!f.exists() || f.isDirectory()) {
+                throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+            }
+            if ((offset < 0) || (offset > length(file, f))) {
+                throw new IndexOutOfBoundsException("Sequence specified is outside"
+                        + "of the bounds of the file, or length is negative");
+            }
+            changed(file);
+            // inserts the data through the piece table of the file, opened by the first insertion
+            PieceTable table = pieceTables.get(file);
+            if (table == null) {
+                unpack(file, f);
+                table = PieceTable.open(root, file, journals, buffers);
+                pieceTables.put(file, table);
+                schedule(file, table, COMPACTION_DELAY);
+            }
+            table.insert(offset, data);
+            if (table.pieces() > MAX_PIECES && cancelCompaction(table)) {
+                schedule(file, table, 0);
+            }
+        } finally {
+            lock.unlock();
         }
-        if ((offset < 0) || (length < 0) || (offset + length > f.length())) {
-            throw new IndexOutOfBoundsException("Sequence specified is outside"
-                    + "of the bounds of the file, or length is negative");
+    }
+
+    /**
+     * Compacts the piece table of a file, if it has one, so that the file on disk holds its whole contents. The caller holds
+     * the write lock of the file.
+     */
+    private void flatten(Path file) throws IOException {
+        PieceTable table = pieceTables.get(file);
+        if (table != null) {
+            cancelCompaction(table);
+            table.install(table.merge());
+            pieceTables.remove(file);
         }
-        // reads from the file using FileInputStream and returns the content
-        RandomAccessFile raf = new RandomAccessFile(f, "r");
+    }
 
-        System.out.println("RandomAccessFile pointer start at " + raf.getFilePointer());
-        raf.seek(offset);
-        System.out.println("RandomAccessFile pointer now at " + raf.getFilePointer());
+    /** Drops the piece table of a file, if it has one, with the insertions it holds. */
+    private void discard(Path file) {
+        PieceTable table = pieceTables.remove(file);
+        if (table != null) {
+            cancelCompaction(table);
+            table.discard();
+        }
+    }
 
-        byte[] output = new byte[length];
-        raf.read(output);
-        return output;
+    /** Cancels the pending compaction of a piece table, and returns whether it had not started running. */
+    private static boolean cancelCompaction(PieceTable table) {
+        ScheduledFuture<?> compaction = table.compaction;
+        return compaction == null || compaction.cancel(false);
     }
 
-    @SuppressWarnings("resource")
-    @Override
-    public synchronized void randomWrite(Path file, long offset, byte[] data) throws RMIException, FileNotFoundException,
-            IOException {
-        File f = file.toFile(root);
-        if (!f.exists() || f.isDirectory()) {
-            throw new FileNotFoundException("File cannot be found or refers to" + "a directory");
+    /** Schedules the compaction of a piece table, unless the server has been stopped. */
+    private synchronized void schedule(final Path file, final PieceTable table, long delay) {
+        if (!background().isShutdown()) {
+            table.compaction = compactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    compact(file, table);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
-        if (offset > f.length()) {
-            throw new IndexOutOfBoundsException("Sequence specified is outside"
-                    + "of the bounds of the file, or length is negative");
+    }
+
+    /** Returns the thread running compactions and collections, creating it if needed. */
+    private synchronized ScheduledThreadPoolExecutor background() {
+        if (compactor == null) {
+            compactor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "storage-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
         }
+        return compactor;
+    }
 
-        System.out.print("randomWrite input file is " + file.toString());
-        File tmp = createTmpFileInCurrentFileDiretory(file);
-        System.out.print("randomWrite tmp file is " + tmp.toString());
-        tmp.deleteOnExit();// 在JVM退出时删除
+    /**
+     * Compacts a piece table in the background, if it is due. The pieces are merged under the read lock of the file, so that
+     * the file can still be read, and the merged file replaces the file under the write lock, unless insertions were made in
+     * the meantime.
+     */
+    private void compact(Path file, PieceTable table) {
+        File merged;
+        int version;
+        Lock lock = locks.read(file);
+        try {
+            if (pieceTables.get(file) != table) {
+                return;
+            }
+            long wait = COMPACTION_DELAY - TimeUnit.NANOSECONDS.toMillis(table.idle());
+            if (wait > 0 && table.pieces() <= MAX_PIECES) {
+                schedule(file, table, wait);
+                return;
+            }
+            version = table.version();
+            merged = table.merge();
+        } catch (IOException e) {
+            schedule(file, table, COMPACTION_DELAY);
+            return;
+        } finally {
+            lock.unlock();
+        }
 
-        // 创建一个临时文件来保存插入点后的数据
-        FileOutputStream tmpOut = new FileOutputStream(tmp);
-        FileInputStream tmpIn = new FileInputStream(tmp);
+        lock = locks.write(file);
+        try {
+            if (pieceTables.get(file) != table || table.version() != version) {
+                merged.delete();
+                if (pieceTables.get(file) == table) {
+                    schedule(file, table, 0);
+                }
+                return;
+            }
+            table.install(merged);
+            pieceTables.remove(file);
+        } catch (IOException e) {
+            schedule(file, table, COMPACTION_DELAY);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // reads from the file using FileInputStream and returns the content
-        RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        System.out.println("offset is " + offset);
-        raf.seek(offset);
+    /**
+     * Keeps the contents of a file in the chunk store, and empties the file. The caller holds the write lock of the file, which
+     * has no piece table, and the lock returned by {@link ChunkStore#pin()}.
+     *
+     * @param manifest
+     *            Manifest of the new contents of the file, replacing its contents on disk and its previous manifest.
+     */
+    private void keep(Path file, File f, ChunkStore.Manifest manifest) throws IOException {
+        // the manifest is saved before the file is emptied, so that a crash in between loses neither
+        chunks.save(file, manifest);
+        ChunkStore.Manifest replaced = manifests.put(file, manifest);
+        truncate(f);
+        if (replaced != null) {
+            scheduleCollection();
+        }
+    }
 
-        byte[] buff = new byte[1024];
-        // 用于保存临时读取的字节数
-        int hasRead = 0;
-        // 循环读取插入点后的内容
-        while ((hasRead = raf.read(buff)) > 0) {
-            // 将读取的数据写入临时文件中
-            System.out.println("write tmp hasRead value is" + hasRead);
-            System.out.println("buff is " + new String(buff, 0, hasRead));
-            tmpOut.write(buff, 0, hasRead);
+    /** Keeps contents read from a source as the contents of a file in the chunk store. The caller holds the write lock. */
+    private void pack(Path file, File f, ReadableByteChannel source) throws IOException {
+        Lock pin = chunks.pin();
+        try {
+            keep(file, f, chunks.put(source));
+        } finally {
+            pin.unlock();
         }
-        // 返回原来的插入处
-        raf.seek(offset);
-        raf.write(data);
+    }
 
-        // 最后追加临时文件中的内容
-        while ((hasRead = tmpIn.read(buff)) > 0) {
-            System.out.println("read tmp hasRead value is" + hasRead);
-            raf.write(buff, 0, hasRead);
+    /** Moves the contents of a plain, non-empty file into the chunk store. The caller holds the write lock of the file. */
+    private void pack(Path file, File f) throws IOException {
+        if (f.length() == 0) {
+            return;
+        }
+        FileChannel source = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            pack(file, f, source);
+        } finally {
+            source.close();
         }
+    }
 
-        if (tmpIn != null) {
-            try {
-                tmpIn.close();
-            } catch (Throwable t) {
+    /**
+     * Writes the contents of a file kept in the chunk store back into the file, if it is kept there, so that it can be changed
+     * in place. The caller holds the write lock of the file.
+     */
+    private void unpack(Path file, File f) throws IOException {
+        ChunkStore.Manifest manifest = manifests.get(file);
+        if (manifest == null) {
+            return;
+        }
+        FileChannel output = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            long position = 0;
+            for (File chunk : chunks.files(manifest)) {
+                FileChannel input = FileChannel.open(chunk.toPath(), StandardOpenOption.READ);
+                try {
+                    long size = input.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        long count = output.transferFrom(input, position + copied, size - copied);
+                        if (count <= 0) {
+                            break;
+                        }
+                        copied += count;
+                    }
+                    position += copied;
+                } finally {
+                    input.close();
+                }
+            }
+            if (position != manifest.length()) {
+                throw new EOFException("Chunks of " + file + " are shorter than its manifest");
             }
+        } finally {
+            output.close();
         }
+        // the file holds its contents before the manifest is deleted
+        forget(file);
+    }
 
-        if (tmpOut != null) {
-            try {
-                tmpOut.close();
-            } catch (Throwable t) {
+    /** Drops the manifests of a file, or of the files of a directory, whose contents are deleted or replaced. */
+    private void forget(Path path) {
+        boolean removed = false;
+        for (Path file : manifests.keySet()) {
+            if (file.isSubpath(path) && manifests.remove(file) != null) {
+                removed = true;
             }
         }
-
-        deleteHelper(tmp);
-
+        if (removed) {
+            chunks.remove(path);
+            scheduleCollection();
+        }
     }
 
-    private File createTmpFileInCurrentFileDiretory(Path file) {
-
-        Path parent = file.parent();
-        Path tmp = new Path(parent, "tmasfefas123d66fp.txt");
-        return tmp.toFile(root);
+    /** Schedules the deletion of the chunks no longer used, unless one is pending or the server has been stopped. */
+    private void scheduleCollection() {
+        if (!collectionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (!background().isShutdown()) {
+                compactor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        collectionScheduled.set(false);
+                        chunks.collect(manifests.values());
+                    }
+                }, COMPACTION_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
+    /** Empties a file. */
+    private static void truncate(File f) throws IOException {
+        FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
     }
 
     @Override
@@ -0,0 +1,165 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transfer of file contents over the bulk data channel of a storage server.
+ *
+ * <p>
+ * A transfer is negotiated through RMI, by a call to <code>Storage.download</code> or <code>Storage.upload</code>, and then
+ * carried out by connecting to the storage server's data port and presenting the ticket of the transfer. The bytes are copied
+ * directly between the file and the socket with <code>FileChannel.transferTo</code> and <code>FileChannel.transferFrom</code>,
+ * so neither the client nor the storage server holds the contents of the file in memory.
+ *
+ * <p>
+ * Each transfer may be carried out once, and must be carried out shortly after it has been negotiated.
+ */
+public class Transfer implements Serializable {
+    private static final long serialVersionUID = -2318467012748316590L;
+
+    /** Status sent by the storage server when a transfer succeeds. */
+    static final byte OK = 0;
+    /** Status sent by the storage server when a transfer fails. */
+    static final byte FAILED = 1;
+
+    /** Hostname of the storage server. */
+    final String hostname;
+    /** Data port of the storage server. */
+    final int port;
+    /** Secret identifying the transfer to the storage server. */
+    final long ticket;
+    /** Number of bytes to be transferred. */
+    final long length;
+
+    Transfer(String hostname, int port, long ticket, long length) {
+        this.hostname = hostname;
+        this.port = port;
+        this.ticket = ticket;
+        this.length = length;
+    }
+
+    /** Returns the number of bytes to be transferred. */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Receives the contents of a file being downloaded, replacing the contents of a local file.
+     *
+     * @param destination
+     *            Local file receiving the contents. The file is created if it does not exist.
+     * @throws IOException
+     *             If the storage server cannot be reached, refuses the transfer, or the transfer ends prematurely.
+     */
+    public void receive(File destination) throws IOException {
+        SocketChannel socket = connect();
+        try {
+            expectStatus(socket);
+            FileChannel file = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                transferFrom(socket, file, length);
+            } finally {
+                file.close();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends the contents of a local file being uploaded. The method returns once the storage server has stored the contents.
+     *
+     * @param source
+     *            Local file whose first <code>length()</code> bytes are sent.
+     * @throws IOException
+     *             If the storage server cannot be reached, refuses the transfer or fails to store the contents, or if the local
+     *             file is shorter than the length of the transfer.
+     */
+    public void send(File source) throws IOException {
+        SocketChannel socket = connect();
+        try {
+            FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            try {
+                transferTo(file, socket, length);
+            } finally {
+                file.close();
+            }
+            expectStatus(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** Connects to the data port and presents the ticket. */
+    private SocketChannel connect() throws IOException {
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(hostname, port));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(ticket).flip();
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /** Reads the status byte sent by the storage server, and throws if it does not indicate success. */
+    private static void expectStatus(SocketChannel socket) throws IOException {
+        ByteBuffer status = ByteBuffer.allocate(1);
+        while (status.hasRemaining()) {
+            if (socket.read(status) < 0) {
+                throw new EOFException("Storage server closed the transfer");
+            }
+        }
+        if (status.get(0) != OK) {
+            throw new IOException("Storage server refused or failed the transfer");
+        }
+    }
+
+    /**
+     * Copies bytes from a file to a socket.
+     *
+     * @throws EOFException
+     *             If the file is shorter than <code>length</code> bytes.
+     */
+    static void transferTo(FileChannel file, SocketChannel socket, long length) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long sent = file.transferTo(position, length - position, socket);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("File ended after " + position + " of " + length + " bytes");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * Copies bytes from a socket to a file, starting at the beginning of the file.
+     *
+     * @throws EOFException
+     *             If the connection is closed before <code>length</code> bytes have been received.
+     */
+    static void transferFrom(SocketChannel socket, FileChannel file, long length) throws IOException {
+        long position = 0;
+        while (position < length) {
+            // on a blocking channel, nothing is transferred only when the stream has ended
+            long received = file.transferFrom(socket, position, length - position);
+            if (received <= 0) {
+                throw new EOFException("Transfer ended after " + position + " of " + length + " bytes");
+            }
+            position += received;
+        }
+    }
+}
@@ -15,10 +15,25 @@ import test.Test;
  * <li>{@link conformance.rmi.StubTest}</li>
  * <li>{@link conformance.rmi.ConnectionTest}</li>
  * <li>{@link conformance.rmi.ThreadTest}</li>
+ * <li>{@link conformance.rmi.PipelineTest}</li>
+ * <li>{@link conformance.rmi.BatchTest}</li>
+ * <li>{@link conformance.rmi.DeadlineTest}</li>
+ * <li>{@link conformance.rmi.FrameLimitTest}</li>
+ * <li>{@link conformance.rmi.AdmissionTest}</li>
+ * <li>{@link conformance.rmi.CompressionTest}</li>
+ * <li>{@link conformance.rmi.StreamTest}</li>
+ * <li>{@link conformance.rmi.CoalesceTest}</li>
+ * <li>{@link conformance.rmi.PrecompiledTest}</li>
+ * <li>{@link conformance.rmi.OneWayTest}</li>
  * <li>{@link conformance.storage.RegistrationTest}</li>
  * <li>{@link conformance.storage.AccessTest}</li>
  * <li>{@link conformance.storage.DirectoryTest}</li>
  * <li>{@link conformance.storage.ReplicationTest}</li>
+ * <li>{@link conformance.storage.RecoveryTest}</li>
+ * <li>{@link conformance.storage.ChunkStoreTest}</li>
+ * <li>{@link conformance.storage.LockingTest}</li>
+ * <li>{@link conformance.storage.PositionalTest}</li>
+ * <li>{@link conformance.storage.BulkTest}</li>
  * <li>{@link conformance.naming.ContactTest}</li>
  * <li>{@link conformance.naming.RegistrationTest}</li>
  * <li>{@link conformance.naming.ListingTest}</li>
@@ -42,8 +57,17 @@ public class ConformanceTests {
         @SuppressWarnings("unchecked")
         Class<? extends Test>[] tests = new Class[] { conformance.common.PathTest.class, conformance.rmi.SkeletonTest.class,
                 conformance.rmi.StubTest.class, conformance.rmi.ConnectionTest.class, conformance.rmi.ThreadTest.class,
+                conformance.rmi.PipelineTest.class, conformance.rmi.BatchTest.class,
+                conformance.rmi.DeadlineTest.class, conformance.rmi.FrameLimitTest.class,
+                conformance.rmi.AdmissionTest.class, conformance.rmi.CompressionTest.class,
+                conformance.rmi.StreamTest.class, conformance.rmi.CoalesceTest.class,
+                conformance.rmi.PrecompiledTest.class,
+                conformance.rmi.OneWayTest.class,
                 conformance.storage.RegistrationTest.class, conformance.storage.AccessTest.class,
                 conformance.storage.DirectoryTest.class, conformance.storage.ReplicationTest.class,
+                conformance.storage.RecoveryTest.class, conformance.storage.ChunkStoreTest.class,
+                conformance.storage.LockingTest.class, conformance.storage.PositionalTest.class,
+                conformance.storage.BulkTest.class,
                 conformance.naming.ContactTest.class, conformance.naming.RegistrationTest.class,
                 conformance.naming.ListingTest.class, conformance.naming.CreationTest.class,
                 conformance.naming.StubRetrievalTest.class, conformance.naming.LockTest.class,
@@ -10,6 +10,7 @@ import rmi.Skeleton;
 import rmi.Stub;
 import storage.Command;
 import storage.Storage;
+import storage.Transfer;
 import test.Test;
 import test.TestFailed;
 
@@ -234,6 +235,22 @@ class TestStorageServer implements Storage, Command {
         }
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public Transfer download(Path file) {
+        test.failure(new TestFailed("unexpected call to download method in " + "storage server"));
+
+        throw new UnsupportedOperationException("download method not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public Transfer upload(Path file, long length) {
+        test.failure(new TestFailed("unexpected call to upload method in " + "storage server"));
+
+        throw new UnsupportedOperationException("upload method not implemented");
+    }
+
     @Override
     public void write(Path file, byte[] data) throws FileNotFoundException, IOException {
         // TODO Auto-generated method stub
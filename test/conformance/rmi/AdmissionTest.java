@@ -0,0 +1,236 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that an overloaded skeleton rejects and sheds calls.
+
+    <p>
+    This test starts a skeleton running calls on a single worker thread, and
+    keeps the worker busy with a call to <code>sleep</code> while it makes
+    other calls.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>With at most one call admitted at a time, a second call is rejected,
+        and fails with <code>RMIOverloadException</code> once the stub has run
+        out of retries. The rejections are counted.</li>
+    <li>With a queue time budget shorter than the time a call waits for the
+        worker, the waiting call is shed and counted, and succeeds when the stub
+        retries it once the worker is free.</li>
+    </ul>
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call admission control";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Time for which the call keeping the worker busy sleeps, in
+        milliseconds. */
+    private static final long   SLEEP = 800;
+    /** Queue time budget of the skeleton when calls are shed, in
+        milliseconds. */
+    private static final long   QUEUE_TIME = 50;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        EchoInterface           stub;
+        EchoInterface.Async     async;
+
+        try
+        {
+            stub = Stub.create(EchoInterface.class, skeleton);
+            async = Stub.createAsync(EchoInterface.Async.class, stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        checkRejection(stub, async);
+        checkShedding(async);
+    }
+
+    /** Checks that a call beyond the concurrency limit is rejected.
+
+        @param stub Stub through which the rejected call is made.
+        @param async Asynchronous view through which the call keeping the worker
+                     busy is made.
+        @throws TestFailed If the call is not rejected, or the rejection is not
+                           counted.
+     */
+    private void checkRejection(EchoInterface stub, EchoInterface.Async async)
+        throws TestFailed
+    {
+        AdmissionControl        admission = skeleton.admissionControl();
+
+        admission.setMaxConcurrent(1);
+
+        CompletableFuture<Void> busy = async.sleep(SLEEP);
+
+        awaitAdmitted(admission);
+
+        try
+        {
+            stub.repeat(new byte[] {1}, 1);
+            throw new TestFailed("call beyond concurrency limit completed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIOverloadException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call beyond concurrency limit failed with " +
+                                 "the wrong exception", t);
+        }
+
+        if(admission.rejectedCount() == 0)
+            throw new TestFailed("rejected call not counted");
+
+        complete(busy);
+
+        admission.setMaxConcurrent(0);
+    }
+
+    /** Checks that a call waiting for the worker longer than the queue time
+        budget is shed, and then retried.
+
+        @param async Asynchronous view through which the calls are made.
+        @throws TestFailed If the call is not shed, or fails.
+     */
+    private void checkShedding(EchoInterface.Async async) throws TestFailed
+    {
+        AdmissionControl        admission = skeleton.admissionControl();
+
+        admission.setQueueTime(QUEUE_TIME, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Void> busy = async.sleep(SLEEP);
+
+        awaitAdmitted(admission);
+
+        byte[]                  data = new byte[] {1, 2, 3};
+        byte[]                  result = complete(async.repeat(data, 2));
+
+        if(!Arrays.equals(result, new byte[] {1, 2, 3, 1, 2, 3}))
+            throw new TestFailed("retried call returned wrong result");
+
+        if(admission.shedCount() == 0)
+            throw new TestFailed("call waiting too long not shed");
+
+        complete(busy);
+    }
+
+    /** Waits for the call keeping the worker busy to be admitted.
+
+        @param admission Admission control of the skeleton.
+        @throws TestFailed If the call is not admitted in time.
+     */
+    private static void awaitAdmitted(AdmissionControl admission)
+        throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + SLEEP / 2;
+
+        try
+        {
+            while(admission.concurrentCount() == 0)
+            {
+                if(System.currentTimeMillis() > deadline)
+                {
+                    throw new TestFailed("call keeping worker busy not " +
+                                         "admitted");
+                }
+
+                Thread.sleep(5);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+    }
+
+    /** Waits for a call made through the asynchronous view to complete.
+
+        @param call The call.
+        @return The value returned by the call.
+        @throws TestFailed If the call fails.
+     */
+    private static <V> V complete(CompletableFuture<V> call) throws TestFailed
+    {
+        try
+        {
+            return call.get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class running calls on a single worker thread, that fails
+        the test when an exception is received in one of the skeleton's
+        threads. */
+    private class TestSkeleton extends Skeleton<EchoInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(EchoInterface.class, new EchoServer(),
+                  new InetSocketAddress(50000), ServiceModel.boundedPool(1, 4));
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
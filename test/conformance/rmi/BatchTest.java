@@ -0,0 +1,156 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.FileNotFoundException;
+
+/** Checks that a batch of calls is carried out in one round trip.
+
+    <p>
+    This test starts a skeleton and records calls to <code>method</code> into a
+    batch for a stub of type <code>TestInterface</code>, some of which throw an
+    exception. It then executes the batch and checks that each call has the
+    outcome expected for its position: the calls following a call that threw
+    must still be made.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Number of calls in the batch. */
+    private static final int    CALLS = 16;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Batch<TestInterface>    batch;
+
+        try
+        {
+            batch = new Batch<TestInterface>(TestInterface.class,
+                        Stub.create(TestInterface.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create batch", t);
+        }
+
+        // Record the calls. Every third call throws an exception.
+        TestInterface           recorder = batch.recorder();
+
+        try
+        {
+            for(int index = 0; index < CALLS; ++index)
+            {
+                if(recorder.method(index % 3 == 0) != null)
+                    throw new TestFailed("recorded call returned a result");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to record call", t);
+        }
+
+        if(batch.size() != CALLS)
+            throw new TestFailed("batch has the wrong number of calls");
+
+        try
+        {
+            batch.execute();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to execute batch", t);
+        }
+
+        for(int index = 0; index < CALLS; ++index)
+        {
+            boolean     thrown = false;
+
+            try
+            {
+                if(batch.get(index) != null)
+                    throw new TestFailed("call returned the wrong result");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(FileNotFoundException e)
+            {
+                thrown = true;
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("call failed with the wrong exception",
+                                     t);
+            }
+
+            if(thrown != (index % 3 == 0))
+            {
+                throw new TestFailed("call received the outcome of another " +
+                                     "call");
+            }
+        }
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<TestInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(TestInterface.class, new TestServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
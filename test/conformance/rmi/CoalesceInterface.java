@@ -0,0 +1,22 @@
+package conformance.rmi;
+
+import rmi.*;
+
+/** Remote interface with a method whose identical calls may share one
+    execution.
+
+    <p>
+    This interface is used by the test of coalesced calls.
+ */
+public interface CoalesceInterface
+{
+    /** Looks up a key.
+
+        @param key The key.
+        @return The value of the key.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    @Coalesce
+    public String lookup(String key) throws RMIException;
+}
@@ -0,0 +1,311 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that concurrent identical calls to a coalesced method share one
+    execution.
+
+    <p>
+    This test starts a skeleton for <code>CoalesceInterface</code>, whose server
+    holds every call to <code>lookup</code> until the test releases it. It makes
+    several concurrent calls with the same key, and then concurrent calls with
+    different keys.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Calls with the same key arriving while one of them runs are answered
+        with its result, the server running the method once. The shared
+        answers are counted.</li>
+    <li>Calls with different keys each run the method.</li>
+    </ul>
+ */
+public class CoalesceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking coalesced calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Number of concurrent calls with the same key. */
+    private static final int    CALLS = 8;
+    /** Time given to the calls to reach the server, in milliseconds. */
+    private static final long   WAIT = 1000;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Stub for the skeleton. */
+    private CoalesceInterface   stub;
+
+    /** Number of times the server has run <code>lookup</code>. */
+    private final AtomicInteger executions = new AtomicInteger();
+    /** Latch holding the calls in the server until released. */
+    private volatile CountDownLatch release;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            stub = Stub.create(CoalesceInterface.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        checkIdentical();
+        checkDifferent();
+    }
+
+    /** Checks that concurrent calls with the same key share one execution.
+
+        @throws TestFailed If the method runs more than once, or a call
+                           receives the wrong result.
+     */
+    private void checkIdentical() throws TestFailed
+    {
+        Caller[]        callers = new Caller[CALLS];
+
+        executions.set(0);
+        release = new CountDownLatch(1);
+
+        for(int index = 0; index < CALLS; ++index)
+            callers[index] = new Caller("key");
+
+        // Every call is in the skeleton once it is counted as in flight, and
+        // only the first is running the method. No call has shared its
+        // execution before it is released.
+        long            deadline = System.currentTimeMillis() + WAIT;
+        MethodStats     stats;
+
+        while((stats = stats()) == null || stats.inFlight() < CALLS)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("calls did not reach the skeleton");
+
+            pause();
+        }
+
+        long            coalesced = stats.coalesced();
+
+        release.countDown();
+
+        for(Caller caller : callers)
+            caller.check("key");
+
+        if(executions.get() != 1)
+        {
+            throw new TestFailed("method ran " + executions.get() + " times " +
+                                 "for identical calls");
+        }
+
+        if(stats.coalesced() - coalesced != CALLS - 1)
+            throw new TestFailed("shared executions not counted");
+    }
+
+    /** Checks that concurrent calls with different keys each run the method.
+
+        @throws TestFailed If the calls share an execution, or receive the
+                           wrong result.
+     */
+    private void checkDifferent() throws TestFailed
+    {
+        executions.set(0);
+        release = new CountDownLatch(1);
+
+        Caller          first = new Caller("first");
+        Caller          second = new Caller("second");
+        long            deadline = System.currentTimeMillis() + WAIT;
+
+        // Both calls run at once if they do not share an execution.
+        while(executions.get() < 2)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                release.countDown();
+                throw new TestFailed("calls with different arguments shared " +
+                                     "an execution");
+            }
+
+            pause();
+        }
+
+        release.countDown();
+
+        first.check("first");
+        second.check("second");
+    }
+
+    /** Returns the statistics of <code>lookup</code>, or <code>null</code> if
+        it has not been called yet. */
+    private static MethodStats stats()
+    {
+        for(MethodStats stats : Metrics.server().methods())
+        {
+            if(stats.remoteInterface() == CoalesceInterface.class)
+                return stats;
+        }
+
+        return null;
+    }
+
+    /** Waits briefly for the calls to progress.
+
+        @throws TestFailed If the thread is interrupted.
+     */
+    private static void pause() throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(5);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for calls", e);
+        }
+    }
+
+    /** Releases the calls held in the server, and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(release != null)
+            release.countDown();
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Thread making one call to <code>lookup</code>. */
+    private class Caller extends Thread
+    {
+        /** Key looked up. */
+        private final String        key;
+        /** Value returned by the call. */
+        private volatile String     result = null;
+        /** Exception thrown by the call, if any. */
+        private volatile Throwable  error = null;
+
+        /** Starts the call.
+
+            @param key Key looked up.
+         */
+        Caller(String key)
+        {
+            this.key = key;
+            setDaemon(true);
+            start();
+        }
+
+        /** Makes the call. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                result = stub.lookup(key);
+            }
+            catch(Throwable t)
+            {
+                error = t;
+            }
+        }
+
+        /** Waits for the call, and checks its result.
+
+            @param expected Key whose value the call must have returned.
+            @throws TestFailed If the call fails, does not complete in time, or
+                               returns the wrong value.
+         */
+        void check(String expected) throws TestFailed
+        {
+            try
+            {
+                join(WAIT);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+
+            if(isAlive())
+                throw new TestFailed("call did not complete");
+
+            if(error != null)
+                throw new TestFailed("call failed", error);
+
+            if(!("value of " + expected).equals(result))
+                throw new TestFailed("call returned the wrong value");
+        }
+    }
+
+    /** Server holding every call until the test releases it. */
+    private class CoalesceServer implements CoalesceInterface
+    {
+        @Override
+        public String lookup(String key)
+        {
+            executions.incrementAndGet();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+
+            return "value of " + key;
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<CoalesceInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(CoalesceInterface.class, new CoalesceServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks that large payloads are compressed, and that malformed compressed
+    payloads are rejected.
+
+    <p>
+    This test starts a skeleton, and a relay forwarding connections to it and
+    counting the bytes forwarded in each direction. It calls
+    <code>repeat</code> through the relay with arguments and a result well above
+    the compression threshold, and made of text that compresses well. It then
+    connects to the skeleton directly and sends, by hand, a compressed call
+    whose payload declares an original length longer than the frame limit.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The arguments and the result are received unchanged.</li>
+    <li>Each is carried in much fewer bytes than its original length.</li>
+    <li>The call declaring too long an original length is answered with an
+        exception, rather than the skeleton allocating for it.</li>
+    </ul>
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking payload compression";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Port of the skeleton. */
+    private static final int    PORT = 50000;
+    /** Largest length of a frame, in bytes. */
+    private static final int    LIMIT =
+        Integer.getInteger("rmi.maxFrameLength", 16 * 1024 * 1024);
+    /** Length of the arguments of the call, in bytes. */
+    private static final int    LENGTH = 64 * 1024;
+    /** Number of times the arguments are repeated in the result. */
+    private static final int    TIMES = 16;
+
+    /** Frame types and flags, as sent over a connection. */
+    private static final byte   CALL = 1;
+    private static final byte   REPLY = 2;
+    private static final byte   HELLO = 4;
+    private static final byte   EXCEPTION = 1;
+    private static final byte   DEFLATED = 4;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Relay forwarding connections to the skeleton. */
+    private Relay               relay;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        try
+        {
+            relay = new Relay(PORT);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start relay", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkRoundTrip();
+        checkDeclaredLength();
+    }
+
+    /** Checks that a call whose arguments and result compress well is carried
+        compressed.
+
+        @throws TestFailed If the call fails, or its payloads are not
+                           compressed.
+     */
+    private void checkRoundTrip() throws TestFailed
+    {
+        EchoInterface.Async     stub;
+
+        // The asynchronous view is used so that the call is carried over a
+        // connection even to a skeleton in the same virtual machine.
+        try
+        {
+            stub = Stub.createAsync(EchoInterface.Async.class,
+                Stub.create(EchoInterface.class, relay.address()));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create asynchronous stub", t);
+        }
+
+        byte[]                  data = new byte[LENGTH];
+        byte[]                  text = "compressible text ".getBytes();
+        byte[]                  result;
+
+        for(int index = 0; index < LENGTH; ++index)
+            data[index] = text[index % text.length];
+
+        // The first call negotiates compression, which the stub only uses once
+        // the skeleton has accepted it.
+        try
+        {
+            stub.repeat(new byte[] {1}, 1).get();
+
+            relay.reset();
+
+            result = stub.repeat(data, TIMES).get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        if(result.length != LENGTH * TIMES)
+            throw new TestFailed("result has the wrong length");
+
+        for(int copy = 0; copy < TIMES; ++copy)
+        {
+            if(!Arrays.equals(Arrays.copyOfRange(result, copy * LENGTH,
+                                                 (copy + 1) * LENGTH), data))
+            {
+                throw new TestFailed("result received wrongly");
+            }
+        }
+
+        if(relay.sent.get() > LENGTH / 4)
+            throw new TestFailed("arguments not compressed");
+
+        if(relay.received.get() > LENGTH * TIMES / 4)
+            throw new TestFailed("result not compressed");
+    }
+
+    /** Checks that a compressed call declaring an original length longer than
+        the frame limit is answered with an exception.
+
+        @throws TestFailed If the call is not answered with an exception.
+     */
+    private void checkDeclaredLength() throws TestFailed
+    {
+        Socket      socket = null;
+
+        try
+        {
+            socket = new Socket("127.0.0.1", PORT);
+            socket.setSoTimeout(1000);
+
+            DataOutputStream    out =
+                new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            DataInputStream     in =
+                new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+
+            // Offer compression, and wait for the skeleton to accept it.
+            writeFrame(out, HELLO, (byte)0, 0, new byte[] {1});
+
+            byte[]              frame = readFrame(in);
+
+            if(frame[0] != REPLY || frame.length < 7 || frame[6] == 0)
+                throw new TestFailed("skeleton did not accept compression");
+
+            // The payload is long enough for deflate to have produced the
+            // declared length, which only the frame limit rules out.
+            byte[]              payload = new byte[LIMIT / 1000];
+
+            payload[0] = (byte)(LIMIT >>> 24);
+            payload[1] = (byte)(LIMIT >>> 16);
+            payload[2] = (byte)(LIMIT >>> 8);
+            payload[3] = (byte)LIMIT;
+
+            writeFrame(out, CALL, DEFLATED, 1, payload);
+
+            frame = readFrame(in);
+
+            if(frame[0] != REPLY || (frame[1] & EXCEPTION) == 0)
+                throw new TestFailed("malformed call not answered with an " +
+                                     "exception");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send malformed call", t);
+        }
+        finally
+        {
+            try
+            {
+                if(socket != null)
+                    socket.close();
+            }
+            catch(Throwable t) { }
+        }
+
+        if(skeleton.error == null)
+            throw new TestFailed("malformed call not reported");
+    }
+
+    /** Writes a frame without a deadline.
+
+        @param out Stream to the skeleton.
+        @param type Type of the frame.
+        @param flags Flags of the frame.
+        @param id Identifier of the frame.
+        @param payload Payload of the frame.
+        @throws IOException If the frame cannot be written.
+     */
+    private static void writeFrame(DataOutputStream out, byte type, byte flags,
+                                   int id, byte[] payload) throws IOException
+    {
+        out.writeInt(6 + payload.length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(id);
+        out.write(payload);
+        out.flush();
+    }
+
+    /** Reads a frame.
+
+        @param in Stream from the skeleton.
+        @return The frame following its length: its type, flags and identifier,
+                followed by its payload.
+        @throws IOException If the frame cannot be read.
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException
+    {
+        byte[]      frame = new byte[in.readInt()];
+
+        in.readFully(frame);
+
+        return frame;
+    }
+
+    /** Stops the relay and the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        the listening thread, and records the exception received in a service
+        thread, which the malformed call causes. */
+    private class TestSkeleton extends Skeleton<EchoInterface>
+    {
+        /** Exception received in a service thread, if any. */
+        volatile RMIException   error = null;
+
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(EchoInterface.class, new EchoServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Records an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            error = e;
+        }
+    }
+}
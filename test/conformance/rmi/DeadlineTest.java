@@ -0,0 +1,204 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Checks that calls are bounded by the deadline in effect when they are made.
+
+    <p>
+    This test starts a skeleton and calls <code>sleep</code>, both through a
+    stub of type <code>EchoInterface</code> and through its asynchronous view,
+    with a deadline shorter than the time the server sleeps. It checks that each
+    call fails with <code>RMITimeoutException</code> soon after the deadline,
+    and that calls made once the deadline has been closed are not bounded by it.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Deadline of the calls that must time out, in milliseconds. */
+    private static final long   DEADLINE = 200;
+    /** Time the server sleeps in calls that must time out, in milliseconds. */
+    private static final long   SLEEP = 10000;
+    /** Time after which a call that should have timed out is considered to
+        have ignored its deadline, in milliseconds. */
+    private static final long   LATE = 1000;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        EchoInterface           stub;
+        EchoInterface.Async     async;
+
+        try
+        {
+            stub = Stub.create(EchoInterface.class, skeleton);
+            async = Stub.createAsync(EchoInterface.Async.class, stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        checkSynchronous(stub);
+        checkAsynchronous(async);
+
+        // Check that the deadline no longer applies once closed.
+        try
+        {
+            stub.sleep(DEADLINE * 2);
+            async.sleep(DEADLINE * 2).get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed after its deadline was closed",
+                                 t);
+        }
+    }
+
+    /** Checks that a call made through a stub times out.
+
+        @param stub Stub through which the call is made.
+        @throws TestFailed If the call does not time out, or takes too long to
+                           do so.
+     */
+    private void checkSynchronous(EchoInterface stub) throws TestFailed
+    {
+        long        start = System.currentTimeMillis();
+        Deadline    deadline = Deadline.after(DEADLINE, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            stub.sleep(SLEEP);
+
+            throw new TestFailed("call completed after its deadline");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMITimeoutException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed with the wrong exception", t);
+        }
+        finally
+        {
+            deadline.close();
+        }
+
+        if(System.currentTimeMillis() - start > LATE)
+            throw new TestFailed("call timed out too late");
+    }
+
+    /** Checks that a call made through an asynchronous view of a stub times
+        out.
+
+        @param async Asynchronous view through which the call is made.
+        @throws TestFailed If the call does not time out, or takes too long to
+                           do so.
+     */
+    private void checkAsynchronous(EchoInterface.Async async) throws TestFailed
+    {
+        long                        start = System.currentTimeMillis();
+        CompletableFuture<Void>     reply;
+        Deadline                    deadline =
+            Deadline.after(DEADLINE, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            reply = async.sleep(SLEEP);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send call", t);
+        }
+        finally
+        {
+            deadline.close();
+        }
+
+        try
+        {
+            reply.get();
+
+            throw new TestFailed("call completed after its deadline");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMITimeoutException))
+            {
+                throw new TestFailed("call failed with the wrong exception",
+                                     e.getCause());
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to wait for reply", t);
+        }
+
+        if(System.currentTimeMillis() - start > LATE)
+            throw new TestFailed("call timed out too late");
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<EchoInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(EchoInterface.class, new EchoServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
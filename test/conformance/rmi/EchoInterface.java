@@ -0,0 +1,43 @@
+package conformance.rmi;
+
+import rmi.RMIException;
+import java.util.concurrent.CompletableFuture;
+
+/** Remote interface returning data built from its arguments.
+
+    <p>
+    This interface is used by the tests of pipelined and batched calls, of call
+    deadlines, and of the limit on the size of frames.
+ */
+public interface EchoInterface
+{
+    /** Returns the given bytes, repeated.
+
+        @param data Bytes to be returned.
+        @param times Number of copies of <code>data</code> to be returned.
+        @return The bytes, repeated <code>times</code> times.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    public byte[] repeat(byte[] data, int times) throws RMIException;
+
+    /** Returns after the given time, or as soon as the thread running the
+        call is interrupted.
+
+        @param millis Time to wait, in milliseconds.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    public void sleep(long millis) throws RMIException;
+
+    /** Asynchronous view of <code>EchoInterface</code>, created by
+        <code>Stub.createAsync</code>. */
+    public interface Async
+    {
+        /** Calls <code>repeat</code> without waiting for the reply. */
+        public CompletableFuture<byte[]> repeat(byte[] data, int times);
+
+        /** Calls <code>sleep</code> without waiting for the reply. */
+        public CompletableFuture<Void> sleep(long millis);
+    }
+}
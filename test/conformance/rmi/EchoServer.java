@@ -0,0 +1,33 @@
+package conformance.rmi;
+
+import rmi.*;
+
+/** Simple implementation of <code>EchoInterface</code>.
+
+    <p>
+    This class is used in multiple tests.
+ */
+public class EchoServer implements EchoInterface
+{
+    // Methods documented in EchoInterface.java.
+    @Override
+    public byte[] repeat(byte[] data, int times) throws RMIException
+    {
+        byte[]      result = new byte[data.length * times];
+
+        for(int copy = 0; copy < times; ++copy)
+            System.arraycopy(data, 0, result, copy * data.length, data.length);
+
+        return result;
+    }
+
+    @Override
+    public void sleep(long millis) throws RMIException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e) { }
+    }
+}
@@ -0,0 +1,155 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Checks that frames longer than the frame limit are neither sent nor
+    received.
+
+    <p>
+    This test starts a skeleton and creates an asynchronous view of a stub of
+    type <code>EchoInterface</code>. It then makes a call whose arguments do
+    not fit in a frame, and a call whose result does not fit in a frame, and
+    checks that each fails with an <code>RMIException</code>. Finally, it checks
+    that the connection still carries calls of ordinary size.
+ */
+public class FrameLimitTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the frame length limit";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Largest length of a frame, in bytes. */
+    private static final int    LIMIT =
+        Integer.getInteger("rmi.maxFrameLength", 16 * 1024 * 1024);
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        EchoInterface.Async     stub;
+
+        // Calls to a skeleton in the same virtual machine made through a
+        // synchronous stub are not carried in frames, so the asynchronous view
+        // is used throughout.
+        try
+        {
+            stub = Stub.createAsync(EchoInterface.Async.class,
+                                    Stub.create(EchoInterface.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create asynchronous stub", t);
+        }
+
+        expectRejected(stub.repeat(new byte[LIMIT], 1),
+                       "call longer than the frame limit");
+        expectRejected(stub.repeat(new byte[LIMIT / 2 + 1], 2),
+                       "result longer than the frame limit");
+
+        byte[]                  result;
+
+        try
+        {
+            result = stub.repeat(new byte[] {1, 2, 3}, 2).get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed after a frame was rejected", t);
+        }
+
+        if(result.length != 6 || result[3] != 1 || result[5] != 3)
+            throw new TestFailed("call received the wrong result");
+    }
+
+    /** Checks that a call fails with an <code>RMIException</code>.
+
+        @param reply Future completed with the reply to the call.
+        @param what Description of what the call carries.
+        @throws TestFailed If the call succeeds, or fails with an exception of
+                           another type.
+     */
+    private void expectRejected(CompletableFuture<byte[]> reply, String what)
+        throws TestFailed
+    {
+        try
+        {
+            reply.get();
+
+            throw new TestFailed(what + " was carried");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMIException))
+            {
+                throw new TestFailed(what + " failed with the wrong exception",
+                                     e.getCause());
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to wait for reply", t);
+        }
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<EchoInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(EchoInterface.class, new EchoServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
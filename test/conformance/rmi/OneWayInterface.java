@@ -0,0 +1,24 @@
+package conformance.rmi;
+
+import rmi.*;
+import java.io.IOException;
+
+/** Remote interface with a method whose calls do not wait for their outcome.
+
+    <p>
+    This interface is used by the test of one-way calls.
+ */
+public interface OneWayInterface
+{
+    /** Posts a message.
+
+        @param message The message. The server holds the call until released
+                       by the test, and fails it if the message is
+                       <code>"fail"</code>.
+        @throws IOException If the message is <code>"fail"</code>.
+        @throws RMIException If the call cannot be sent due to a network
+                             error.
+     */
+    @OneWay
+    public void post(String message) throws RMIException, IOException;
+}
@@ -0,0 +1,288 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Checks that one-way calls return without waiting for the server, and that
+    their failures are reported to the listener.
+
+    <p>
+    This test starts a skeleton for <code>OneWayInterface</code>, and calls it
+    through a relay, so that the calls are carried over a connection even though
+    the skeleton runs in the same virtual machine. Failing calls are also made
+    at the address of the skeleton.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A one-way call returns while the server is still running it.</li>
+    <li>An exception thrown by the server reaches the listener set by
+        <code>Stub.setOneWayListener</code>, together with the address called,
+        and is not thrown to the caller.</li>
+    </ul>
+ */
+public class OneWayTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking one-way calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Port of the skeleton. */
+    private static final int    PORT = 50000;
+    /** Time allowed for each step of the test, in milliseconds. */
+    private static final long   WAIT = 1000;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Relay forwarding connections to the skeleton. */
+    private Relay               relay;
+
+    /** Latch holding the calls in the server until released. */
+    private volatile CountDownLatch release;
+    /** Set once the server has finished running a call. */
+    private volatile boolean    finished;
+    /** Address reported with the last failure given to the listener. */
+    private volatile InetSocketAddress  failed_address;
+    /** Failures given to the listener. */
+    private final BlockingQueue<Throwable>  failures =
+        new LinkedBlockingQueue<Throwable>();
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        try
+        {
+            relay = new Relay(PORT);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start relay", t);
+        }
+
+        Stub.setOneWayListener(
+            new BiConsumer<InetSocketAddress, Throwable>()
+            {
+                @Override
+                public void accept(InetSocketAddress address, Throwable cause)
+                {
+                    failed_address = address;
+                    failures.add(cause);
+                }
+            });
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkReturn();
+        checkFailure(relay.address());
+        checkFailure(new InetSocketAddress("127.0.0.1", PORT));
+    }
+
+    /** Checks that a one-way call returns while the server runs it.
+
+        @throws TestFailed If the call waits for the server.
+     */
+    private void checkReturn() throws TestFailed
+    {
+        release = new CountDownLatch(1);
+        finished = false;
+
+        long                deadline = System.currentTimeMillis() + WAIT;
+
+        try
+        {
+            stub(relay.address()).post("hold");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("one-way call failed", t);
+        }
+
+        if(finished)
+            throw new TestFailed("one-way call waited for the server");
+
+        if(System.currentTimeMillis() > deadline)
+            throw new TestFailed("one-way call did not return in time");
+
+        release.countDown();
+
+        while(!finished)
+        {
+            if(System.currentTimeMillis() > deadline + WAIT)
+                throw new TestFailed("one-way call not run by the server");
+
+            pause();
+        }
+
+        if(!failures.isEmpty())
+            throw new TestFailed("successful one-way call reported as failed");
+    }
+
+    /** Checks that the failure of a one-way call reaches the listener.
+
+        @param address Address called.
+        @throws TestFailed If the failure is thrown to the caller, is not
+                           reported, or is reported wrongly.
+     */
+    private void checkFailure(InetSocketAddress address) throws TestFailed
+    {
+        release = new CountDownLatch(0);
+
+        try
+        {
+            stub(address).post("fail");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("failure of one-way call thrown to caller", t);
+        }
+
+        Throwable           cause;
+
+        try
+        {
+            cause = failures.poll(WAIT, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for failure", e);
+        }
+
+        if(cause == null)
+            throw new TestFailed("failure of one-way call not reported");
+
+        if(!(cause instanceof IOException) ||
+           !"fail".equals(cause.getMessage()))
+        {
+            throw new TestFailed("wrong failure reported for one-way call",
+                                 cause);
+        }
+
+        if(!address.equals(failed_address))
+            throw new TestFailed("wrong address reported for one-way call");
+    }
+
+    /** Creates a stub for <code>OneWayInterface</code>.
+
+        @param address Address of the skeleton.
+        @return The stub.
+        @throws TestFailed If the stub cannot be created.
+     */
+    private static OneWayInterface stub(InetSocketAddress address)
+        throws TestFailed
+    {
+        try
+        {
+            return Stub.create(OneWayInterface.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+    }
+
+    /** Waits briefly for the call to progress.
+
+        @throws TestFailed If the thread is interrupted.
+     */
+    private static void pause() throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(5);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+    }
+
+    /** Removes the listener, releases the calls held in the server, and stops
+        the relay and the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        Stub.setOneWayListener(null);
+
+        if(release != null)
+            release.countDown();
+
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Server holding every call until the test releases it. */
+    private class OneWayServer implements OneWayInterface
+    {
+        @Override
+        public void post(String message) throws IOException
+        {
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+
+            finished = true;
+
+            if(message.equals("fail"))
+                throw new IOException("fail");
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<OneWayInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(OneWayInterface.class, new OneWayServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that calls can be pipelined over a connection.
+
+    <p>
+    This test starts a skeleton and creates an asynchronous view of a stub of
+    type <code>EchoInterface</code>. It then sends many calls before waiting for
+    any of their replies, and checks that each reply carries the result of its
+    own call.
+ */
+public class PipelineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking pipelined calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Number of calls sent before waiting for replies. */
+    private static final int    CALLS = 64;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        EchoInterface.Async     stub;
+
+        try
+        {
+            stub = Stub.createAsync(EchoInterface.Async.class,
+                                    Stub.create(EchoInterface.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create asynchronous stub", t);
+        }
+
+        // Send all the calls, each with its own arguments, before waiting for
+        // the first reply.
+        List<CompletableFuture<byte[]>>     replies =
+            new ArrayList<CompletableFuture<byte[]>>();
+
+        try
+        {
+            for(int index = 0; index < CALLS; ++index)
+            {
+                replies.add(stub.repeat(new byte[] {(byte)index},
+                                        index % 8 + 1));
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send pipelined call", t);
+        }
+
+        for(int index = 0; index < CALLS; ++index)
+        {
+            byte[]      result;
+
+            try
+            {
+                result = replies.get(index).get();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("pipelined call failed", t);
+            }
+
+            if(result.length != index % 8 + 1)
+            {
+                throw new TestFailed("pipelined call received the result " +
+                                     "of another call");
+            }
+
+            for(byte b : result)
+            {
+                if(b != (byte)index)
+                {
+                    throw new TestFailed("pipelined call received the " +
+                                         "result of another call");
+                }
+            }
+        }
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<EchoInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(EchoInterface.class, new EchoServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
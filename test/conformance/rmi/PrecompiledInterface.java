@@ -0,0 +1,23 @@
+package conformance.rmi;
+
+import rmi.*;
+
+/** Remote interface for which stub and skeleton classes are generated at build
+    time.
+
+    <p>
+    This interface is used by the test of generated stubs.
+ */
+@Precompiled
+public interface PrecompiledInterface
+{
+    /** Adds two numbers.
+
+        @param first The first number.
+        @param second The second number.
+        @return The sum of the numbers.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    public int add(int first, int second) throws RMIException;
+}
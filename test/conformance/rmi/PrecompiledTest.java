@@ -0,0 +1,239 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import naming.*;
+import java.io.*;
+import java.net.*;
+
+/** Checks that stubs of the classes generated at build time are used for
+    interfaces marked <code>Precompiled</code>.
+
+    <p>
+    This test requires the sources to have been compiled with the annotation
+    processor <code>build.StubCompiler</code>, as the build does. It creates
+    stubs for the naming server <code>Service</code> interface and for
+    <code>PrecompiledInterface</code>, and calls the latter both at the address
+    of its skeleton and through a relay, so that the call is also carried over
+    a connection when the skeleton runs in the same virtual machine.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li><code>Stub.create</code> returns instances of <code>CompiledStub</code>.
+        </li>
+    <li>Generated stubs for the same interface and address are equal and have
+        the same hash code, and remain so once serialized and deserialized.</li>
+    <li>Calls made through a generated stub reach the server object, and return
+        its result.</li>
+    </ul>
+ */
+public class PrecompiledTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking generated stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Port of the skeleton. */
+    private static final int    PORT = 50000;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Relay forwarding connections to the skeleton. */
+    private Relay               relay;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        try
+        {
+            relay = new Relay(PORT);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start relay", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", 7000);
+        Service                 service;
+        Service                 same;
+
+        try
+        {
+            service = Stub.create(Service.class, address);
+            same = Stub.create(Service.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        if(!(service instanceof CompiledStub))
+        {
+            throw new TestFailed("generated stub not used; the sources must " +
+                                 "be compiled with build.StubCompiler");
+        }
+
+        if(!service.equals(same) || service.hashCode() != same.hashCode())
+            throw new TestFailed("generated stubs for one address differ");
+
+        Object                  copy = copy(service);
+
+        if(!(copy instanceof CompiledStub) || !copy.equals(service) ||
+           copy.hashCode() != service.hashCode())
+        {
+            throw new TestFailed("generated stub changed by serialization");
+        }
+
+        checkCall(stub(new InetSocketAddress("127.0.0.1", PORT)),
+                  "to skeleton");
+        checkCall(stub(relay.address()), "through relay");
+    }
+
+    /** Creates a stub for <code>PrecompiledInterface</code>.
+
+        @param address Address of the skeleton.
+        @return The stub.
+        @throws TestFailed If the stub is not an instance of the generated
+                           class.
+     */
+    private static PrecompiledInterface stub(InetSocketAddress address)
+        throws TestFailed
+    {
+        PrecompiledInterface    stub;
+
+        try
+        {
+            stub = Stub.create(PrecompiledInterface.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        if(!(stub instanceof CompiledStub))
+            throw new TestFailed("generated stub not used for test interface");
+
+        return stub;
+    }
+
+    /** Makes a call through a generated stub.
+
+        @param stub The stub.
+        @param how Description of the way the call is carried.
+        @throws TestFailed If the call fails or returns the wrong result.
+     */
+    private static void checkCall(PrecompiledInterface stub, String how)
+        throws TestFailed
+    {
+        try
+        {
+            if(stub.add(2, 3) != 5)
+                throw new TestFailed("call " + how + " returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call " + how + " failed", t);
+        }
+    }
+
+    /** Serializes and deserializes an object.
+
+        @param object The object.
+        @return The copy.
+        @throws TestFailed If the object cannot be copied.
+     */
+    private static Object copy(Object object) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+
+            out.writeObject(object);
+            out.close();
+
+            return new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to serialize stub", t);
+        }
+    }
+
+    /** Stops the relay and the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Server adding numbers. */
+    private static class PrecompiledServer implements PrecompiledInterface
+    {
+        @Override
+        public int add(int first, int second)
+        {
+            return first + second;
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<PrecompiledInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(PrecompiledInterface.class, new PrecompiledServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package conformance.rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Relay forwarding each connection it accepts to a skeleton, counting the
+    bytes forwarded.
+
+    <p>
+    Stubs created for the address of the relay reach the skeleton over a
+    connection, even when the skeleton runs in the same virtual machine and
+    calls to it would otherwise be dispatched directly.
+ */
+class Relay extends Thread
+{
+    /** Bytes forwarded to the skeleton. */
+    final AtomicLong            sent = new AtomicLong();
+    /** Bytes forwarded from the skeleton. */
+    final AtomicLong            received = new AtomicLong();
+
+    /** Port of the skeleton on the local host. */
+    private final int           port;
+    /** Socket accepting connections. */
+    private final ServerSocket  listening;
+    /** Sockets of the connections forwarded. */
+    private final List<Socket>  sockets = new ArrayList<Socket>();
+
+    /** Starts the relay on a port chosen by the system.
+
+        @param port Port of the skeleton on the local host.
+        @throws IOException If the listening socket cannot be created.
+     */
+    Relay(int port) throws IOException
+    {
+        this.port = port;
+        listening = new ServerSocket(0);
+        setDaemon(true);
+        start();
+    }
+
+    /** Returns the address at which the relay accepts connections. */
+    InetSocketAddress address()
+    {
+        return new InetSocketAddress("127.0.0.1", listening.getLocalPort());
+    }
+
+    /** Clears the byte counts. */
+    void reset()
+    {
+        sent.set(0);
+        received.set(0);
+    }
+
+    /** Accepts connections and forwards them. */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(true)
+            {
+                Socket  client = listening.accept();
+                Socket  server = new Socket("127.0.0.1", port);
+
+                synchronized(sockets)
+                {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+
+                new Pump(client, server, sent).start();
+                new Pump(server, client, received).start();
+            }
+        }
+        catch(IOException e) { }
+    }
+
+    /** Stops the relay and closes the connections forwarded. */
+    void close()
+    {
+        try
+        {
+            listening.close();
+        }
+        catch(IOException e) { }
+
+        synchronized(sockets)
+        {
+            for(Socket socket : sockets)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Thread copying the bytes received by one socket to another. */
+    private static class Pump extends Thread
+    {
+        /** Socket from which bytes are read. */
+        private final Socket        from;
+        /** Socket to which bytes are written. */
+        private final Socket        to;
+        /** Count of the bytes copied. */
+        private final AtomicLong    count;
+
+        /** Creates the pump. */
+        Pump(Socket from, Socket to, AtomicLong count)
+        {
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            setDaemon(true);
+        }
+
+        /** Copies bytes until either socket is closed. */
+        @Override
+        public void run()
+        {
+            byte[]      buffer = new byte[8192];
+
+            try
+            {
+                InputStream     in = from.getInputStream();
+                OutputStream    out = to.getOutputStream();
+                int             read;
+
+                while((read = in.read(buffer)) >= 0)
+                {
+                    count.addAndGet(read);
+                    out.write(buffer, 0, read);
+                }
+            }
+            catch(IOException e) { }
+            finally
+            {
+                try
+                {
+                    to.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package conformance.rmi;
+
+import rmi.*;
+import java.io.IOException;
+
+/** Remote interface streaming chunks in either direction.
+
+    <p>
+    This interface is used by the test of chunk streams.
+ */
+public interface StreamInterface
+{
+    /** Streams chunks to the caller.
+
+        @param count Number of chunks to be streamed.
+        @return A source of <code>count</code> chunks, the chunk of index
+                <em>i</em> being filled with the byte <em>i</em>.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    public ChunkSource<byte[]> produce(int count) throws RMIException;
+
+    /** Reads the chunks streamed by the caller, slowly.
+
+        @param chunks Source of the chunks.
+        @return The number of chunks read.
+        @throws IOException If the chunks cannot be read.
+        @throws RMIException If the call cannot be complete due to a network
+                             error.
+     */
+    public int consume(ChunkSource<byte[]> chunks)
+        throws RMIException, IOException;
+}
@@ -0,0 +1,392 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that chunk streams are carried in both directions, and that the
+    sender of a stream is held back by its reader.
+
+    <p>
+    This test starts a skeleton for <code>StreamInterface</code>, and calls it
+    through a relay, so that the streams are carried over a connection even
+    though the skeleton runs in the same virtual machine. Each stream is several
+    times longer than the window of chunks a sender may send ahead of its
+    reader, and is read slowly.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A stream returned by the server, and a stream passed to the server,
+        are received whole and in order.</li>
+    <li>The sender never gets more than a window of chunks ahead of the
+        reader.</li>
+    <li>Closing a stream returned by the server before its end closes the
+        server's source, and stops the server producing chunks.</li>
+    </ul>
+ */
+public class StreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking chunk streams";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {SkeletonTest.class, StubTest.class};
+
+    /** Port of the skeleton. */
+    private static final int    PORT = 50000;
+    /** Number of chunks a sender may send ahead of the reader. */
+    private static final int    WINDOW = 16;
+    /** Number of chunks in each stream read to its end. */
+    private static final int    COUNT = 4 * WINDOW;
+    /** Length of each chunk, in bytes. */
+    private static final int    LENGTH = 1024;
+    /** Time the reader of a stream waits after each chunk, in milliseconds. */
+    private static final long   DELAY = 5;
+    /** Number of chunks read from the stream closed before its end. */
+    private static final int    READ = 3;
+
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Relay forwarding connections to the skeleton. */
+    private Relay               relay;
+
+    /** Number of chunks produced by the last source returned by the server. */
+    private final AtomicInteger produced = new AtomicInteger();
+    /** Whether the last source returned by the server has been closed. */
+    private volatile boolean    closed;
+    /** Number of chunks produced by the source passed to the server. */
+    private final AtomicInteger sent = new AtomicInteger();
+    /** Largest number of chunks by which the source passed to the server got
+        ahead of the server. */
+    private volatile int        server_lag;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        try
+        {
+            relay = new Relay(PORT);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start relay", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StreamInterface     stub;
+
+        try
+        {
+            stub = Stub.create(StreamInterface.class, relay.address());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        checkDownstream(stub);
+        checkUpstream(stub);
+        checkClose(stub);
+    }
+
+    /** Checks a stream returned by the server.
+
+        @param stub Stub through which the server is called.
+        @throws TestFailed If the stream is received wrongly, or its sender
+                           gets too far ahead.
+     */
+    private void checkDownstream(StreamInterface stub) throws TestFailed
+    {
+        ChunkSource<byte[]>     source;
+
+        try
+        {
+            source = stub.produce(COUNT);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call produce", t);
+        }
+
+        try
+        {
+            for(int index = 0; index < COUNT; ++index)
+            {
+                check(source.next(), index);
+
+                if(produced.get() - (index + 1) > WINDOW + 1)
+                    throw new TestFailed("server got too far ahead of reader");
+
+                pause();
+            }
+
+            if(source.next() != null)
+                throw new TestFailed("stream longer than produced");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read stream returned by server",
+                                 t);
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+
+    /** Checks a stream passed to the server.
+
+        @param stub Stub through which the server is called.
+        @throws TestFailed If the stream is received wrongly, or its sender
+                           gets too far ahead.
+     */
+    private void checkUpstream(StreamInterface stub) throws TestFailed
+    {
+        ChunkSource<byte[]>     source = new ChunkSource<byte[]>()
+        {
+            @Override
+            public byte[] next()
+            {
+                int     index = sent.get();
+
+                if(index == COUNT)
+                    return null;
+
+                sent.incrementAndGet();
+
+                return chunk(index);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+
+        int                     count;
+
+        try
+        {
+            count = stub.consume(source);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to pass stream to server", t);
+        }
+
+        if(count != COUNT)
+            throw new TestFailed("server read " + count + " chunks");
+
+        if(server_lag > WINDOW + 1)
+            throw new TestFailed("stub got too far ahead of server");
+    }
+
+    /** Checks that closing a stream returned by the server before its end
+        stops the server.
+
+        @param stub Stub through which the server is called.
+        @throws TestFailed If the server keeps producing chunks.
+     */
+    private void checkClose(StreamInterface stub) throws TestFailed
+    {
+        try
+        {
+            ChunkSource<byte[]> source = stub.produce(Integer.MAX_VALUE);
+
+            for(int index = 0; index < READ; ++index)
+                check(source.next(), index);
+
+            source.close();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read stream returned by server",
+                                 t);
+        }
+
+        long            deadline = System.currentTimeMillis() + 1000;
+
+        while(!closed)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("server source not closed");
+
+            pause();
+        }
+
+        int             count = produced.get();
+
+        for(int wait = 0; wait < 10; ++wait)
+            pause();
+
+        if(produced.get() != count || count > READ + WINDOW + 1)
+            throw new TestFailed("server kept producing chunks after close");
+    }
+
+    /** Returns the chunk of the given index. */
+    private static byte[] chunk(int index)
+    {
+        byte[]      chunk = new byte[LENGTH];
+
+        Arrays.fill(chunk, (byte)index);
+
+        return chunk;
+    }
+
+    /** Checks that a chunk received is the chunk of the given index.
+
+        @throws TestFailed If it is not.
+     */
+    private static void check(byte[] chunk, int index) throws TestFailed
+    {
+        if(chunk == null)
+            throw new TestFailed("stream ended after " + index + " chunks");
+
+        if(!Arrays.equals(chunk, chunk(index)))
+            throw new TestFailed("chunk " + index + " received wrongly");
+    }
+
+    /** Waits as a slow reader does after each chunk.
+
+        @throws TestFailed If the thread is interrupted.
+     */
+    private static void pause() throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(DELAY);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while reading stream", e);
+        }
+    }
+
+    /** Stops the relay and the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Server streaming chunks, and recording how far ahead of the reader each
+        stream gets. */
+    private class StreamServer implements StreamInterface
+    {
+        @Override
+        public ChunkSource<byte[]> produce(final int count)
+        {
+            produced.set(0);
+            closed = false;
+
+            return new ChunkSource<byte[]>()
+            {
+                @Override
+                public byte[] next()
+                {
+                    int     index = produced.get();
+
+                    if(index == count)
+                        return null;
+
+                    produced.incrementAndGet();
+
+                    return chunk(index);
+                }
+
+                @Override
+                public void close()
+                {
+                    closed = true;
+                }
+            };
+        }
+
+        @Override
+        public int consume(ChunkSource<byte[]> chunks) throws IOException
+        {
+            int         count = 0;
+
+            try
+            {
+                byte[]  chunk;
+
+                while((chunk = chunks.next()) != null)
+                {
+                    check(chunk, count);
+                    ++count;
+                    server_lag = Math.max(server_lag, sent.get() - count);
+                    pause();
+                }
+            }
+            catch(TestFailed e)
+            {
+                throw new IOException(e.getMessage());
+            }
+            finally
+            {
+                chunks.close();
+            }
+
+            return count;
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<StreamInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> with a new server object. */
+        TestSkeleton()
+        {
+            super(StreamInterface.class, new StreamServer());
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
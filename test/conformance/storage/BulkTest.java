@@ -0,0 +1,201 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/** Tests the transfer of file contents over the storage server bulk data
+    channel.
+
+    <p>
+    This test starts a storage server, uploads the contents of a local file to
+    one of its files, and downloads them back into another local file. It then
+    presents the ticket of a transfer that has already been carried out, and
+    carries out a download offered before the file was changed.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Contents uploaded are stored in the file, and downloaded back
+        unchanged.</li>
+    <li>A ticket the storage server does not know, such as that of a transfer
+        already carried out, is refused.</li>
+    <li>A download of a file changed since it was offered fails, rather than
+        sending the new contents in part.</li>
+    </ul>
+ */
+public class BulkTest extends StorageServerTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server bulk data channel";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {conformance.rmi.SkeletonTest.class,
+                     conformance.rmi.StubTest.class};
+
+    /** Length of the contents transferred. */
+    private static final int    LENGTH = 1024 * 1024;
+
+    /** File transferred. */
+    private final Path          file = new Path("/file");
+
+    /** Local file uploaded. */
+    private File                source = null;
+    /** Local file receiving downloads. */
+    private File                destination = null;
+
+    /** Creates the <code>BulkTest</code> object. */
+    public BulkTest()
+    {
+        super(new String[][] {new String[] {"file", ""}});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        startServer(createServer(false), new Path[] {file});
+
+        Storage         client_stub = naming_server.clientInterface();
+        byte[]          contents = new byte[LENGTH];
+
+        new Random(1).nextBytes(contents);
+
+        try
+        {
+            source = File.createTempFile("bulk", ".source");
+            destination = File.createTempFile("bulk", ".destination");
+            Files.write(source.toPath(), contents);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create local files", t);
+        }
+
+        // Upload the contents, and check them through the stub.
+        Transfer        upload;
+
+        try
+        {
+            upload = client_stub.upload(file, LENGTH);
+            upload.send(source);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to upload file", t);
+        }
+
+        try
+        {
+            if(!Arrays.equals(client_stub.read(file), contents))
+                throw new TestFailed("uploaded file read back wrongly");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read uploaded file", t);
+        }
+
+        // Download the contents back.
+        Transfer        download;
+
+        try
+        {
+            download = client_stub.download(file);
+
+            if(download.length() != LENGTH)
+                throw new TestFailed("download has wrong length");
+
+            download.receive(destination);
+
+            if(!Arrays.equals(Files.readAllBytes(destination.toPath()),
+                              contents))
+            {
+                throw new TestFailed("file downloaded wrongly");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to download file", t);
+        }
+
+        // Each ticket is valid for one transfer only.
+        try
+        {
+            download.receive(destination);
+            throw new TestFailed("download carried out twice");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when carrying out " +
+                                 "download twice", t);
+        }
+
+        try
+        {
+            upload.send(source);
+            throw new TestFailed("upload carried out twice");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when carrying out " +
+                                 "upload twice", t);
+        }
+
+        // A file changed between the offer and the transfer is not sent.
+        try
+        {
+            download = client_stub.download(file);
+            client_stub.write(file, 0, "changed".getBytes());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to change file offered for " +
+                                 "download", t);
+        }
+
+        try
+        {
+            download.receive(destination);
+            throw new TestFailed("download of changed file carried out");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when downloading " +
+                                 "changed file", t);
+        }
+    }
+
+    /** Removes the local files, and stops the servers. */
+    @Override
+    protected void clean()
+    {
+        if(source != null)
+        {
+            source.delete();
+            source = null;
+        }
+
+        if(destination != null)
+        {
+            destination.delete();
+            destination = null;
+        }
+
+        super.clean();
+    }
+}
@@ -0,0 +1,146 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.util.*;
+
+/** Tests the storage of file contents as chunks shared between files.
+
+    <p>
+    This test starts a storage server keeping its files in a chunk store, and
+    writes two files whose contents differ only in a few bytes. It then deletes
+    one of the files and collects the chunks no longer used.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The chunks the two files have in common are stored once.</li>
+    <li>The files on disk are left empty, their contents being kept in the chunk
+        store.</li>
+    <li>Both files are read back with the contents written.</li>
+    <li>Collection deletes the chunks used only by the deleted file, and keeps
+        those of the remaining file.</li>
+    </ul>
+ */
+public class ChunkStoreTest extends StorageServerTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server chunk store deduplication and collection";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {conformance.rmi.SkeletonTest.class,
+                     conformance.rmi.StubTest.class};
+
+    /** Length of the contents of each file, spanning many chunks. */
+    private static final int    LENGTH = 256 * 1024;
+
+    /** File kept until the end of the test. */
+    private final Path          kept_file = new Path("/kept");
+    /** File deleted before chunks are collected. */
+    private final Path          deleted_file = new Path("/deleted");
+
+    /** Creates the <code>ChunkStoreTest</code> object. */
+    public ChunkStoreTest()
+    {
+        super(new String[][] {new String[] {"kept", ""},
+                              new String[] {"deleted", ""}});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageServer   server = createServer(true);
+
+        startServer(server, new Path[] {kept_file, deleted_file});
+
+        Storage         client_stub = naming_server.clientInterface();
+        Command         command_stub = naming_server.commandInterface();
+        ChunkStore      store = server.chunkStore();
+
+        if(store == null)
+            throw new TestFailed("storage server has no chunk store");
+
+        // The second file is a copy of the first with a few bytes changed in
+        // the middle, so that only the chunks around the change differ.
+        byte[]          kept_data = new byte[LENGTH];
+        byte[]          deleted_data;
+
+        new Random(1).nextBytes(kept_data);
+        deleted_data = kept_data.clone();
+        for(int index = LENGTH / 2; index < LENGTH / 2 + 16; ++index)
+            deleted_data[index] ^= 0xff;
+
+        try
+        {
+            client_stub.write(kept_file, kept_data);
+            client_stub.write(deleted_file, deleted_data);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write files", t);
+        }
+
+        if(store.duplicateBytes() < LENGTH / 2)
+            throw new TestFailed("chunks shared by files stored again");
+
+        if(kept_file.toFile(directory.root()).length() != 0 ||
+           deleted_file.toFile(directory.root()).length() != 0)
+        {
+            throw new TestFailed("contents of files kept on disk");
+        }
+
+        checkContents(client_stub, kept_file, kept_data);
+        checkContents(client_stub, deleted_file, deleted_data);
+
+        try
+        {
+            if(!command_stub.delete(deleted_file))
+                throw new TestFailed("unable to delete file");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to delete file", t);
+        }
+
+        // Collection is otherwise scheduled well after the end of the test.
+        server.collectChunks();
+
+        if(store.collectedChunks() == 0)
+            throw new TestFailed("chunks of deleted file not collected");
+
+        checkContents(client_stub, kept_file, kept_data);
+    }
+
+    /** Checks that a file is read back with the expected contents.
+
+        @param client_stub Stub for the storage server client service.
+        @param file The file to be read.
+        @param expected The expected contents of the file.
+        @throws TestFailed If the file cannot be read, or is read with other
+                           contents.
+     */
+    private void checkContents(Storage client_stub, Path file, byte[] expected)
+        throws TestFailed
+    {
+        try
+        {
+            if(client_stub.size(file) != expected.length)
+                throw new TestFailed("file " + file + " has the wrong size");
+
+            if(!Arrays.equals(client_stub.read(file), expected))
+                throw new TestFailed("file " + file + " read back wrongly");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file " + file, t);
+        }
+    }
+}
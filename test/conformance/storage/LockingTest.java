@@ -0,0 +1,227 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/** Tests that the files of a storage server are locked independently.
+
+    <p>
+    This test starts a storage server and takes the write lock of one of its
+    files, as a call writing the file would. While the lock is held, it writes
+    the file through the storage server stub, and reads another file.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Reading a file is not blocked while another file is being written.</li>
+    <li>Writing a file waits for the file to be unlocked, and then completes.
+        </li>
+    <li>The write that had to wait is counted as contended.</li>
+    </ul>
+ */
+public class LockingTest extends StorageServerTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server per-file locking";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {conformance.rmi.SkeletonTest.class,
+                     conformance.rmi.StubTest.class};
+
+    /** Time given to a call to complete, in milliseconds. */
+    private static final long   WAIT = 1000;
+
+    /** File locked for writing. The two files are guarded by different
+        stripes of the default lock table. */
+    private final Path          written_file = new Path("/written");
+    /** File read while the other file is locked. */
+    private final Path          read_file = new Path("/read");
+
+    /** Contents of the file read. */
+    private final byte[]        read_data = "read data".getBytes();
+    /** Contents written to the locked file. */
+    private final byte[]        write_data = "write data".getBytes();
+
+    /** Creates the <code>LockingTest</code> object. */
+    public LockingTest()
+    {
+        super(new String[][] {new String[] {"written", ""},
+                              new String[] {"read", "read data"}});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageServer   server = createServer(false);
+
+        startServer(server, new Path[] {written_file, read_file});
+
+        final Storage   client_stub = naming_server.clientInterface();
+        FileLocks       locks = server.locks();
+        Call            write;
+        Call            read;
+
+        locks.reset();
+
+        Lock            lock = locks.write(written_file);
+
+        try
+        {
+            write = new Call()
+            {
+                @Override
+                protected Object call() throws Throwable
+                {
+                    client_stub.write(written_file, write_data);
+                    return null;
+                }
+            };
+
+            read = new Call()
+            {
+                @Override
+                protected Object call() throws Throwable
+                {
+                    return client_stub.read(read_file);
+                }
+            };
+
+            if(!read.await(WAIT))
+                throw new TestFailed("read blocked by write to other file");
+
+            if(!Arrays.equals((byte[])read.result(), read_data))
+                throw new TestFailed("file read back wrongly");
+
+            // The write is only known to be waiting for the lock once it has
+            // been counted as contended.
+            long    deadline = System.currentTimeMillis() + WAIT;
+
+            while(locks.contendedCount() == 0 &&
+                  System.currentTimeMillis() < deadline)
+            {
+                pause();
+            }
+
+            if(write.await(0))
+                throw new TestFailed("file written while locked");
+
+            if(locks.contendedCount() == 0)
+                throw new TestFailed("write waiting for lock not counted");
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if(!write.await(WAIT))
+            throw new TestFailed("write not completed once file unlocked");
+
+        write.result();
+
+        try
+        {
+            if(!Arrays.equals(client_stub.read(written_file), write_data))
+                throw new TestFailed("file written wrongly");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read written file", t);
+        }
+    }
+
+    /** Pauses briefly while waiting for a call.
+
+        @throws TestFailed If the test is interrupted.
+     */
+    private static void pause() throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(10);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+    }
+
+    /** Call to the storage server made in a thread of its own. */
+    private abstract static class Call extends Thread
+    {
+        /** Value returned by the call. */
+        private Object      result = null;
+        /** Exception thrown by the call, if any. */
+        private Throwable   error = null;
+
+        /** Starts the call. */
+        Call()
+        {
+            setDaemon(true);
+            start();
+        }
+
+        /** Makes the call.
+
+            @return The value returned by the call.
+            @throws Throwable If the call fails.
+         */
+        protected abstract Object call() throws Throwable;
+
+        /** Makes the call and records its outcome. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                result = call();
+            }
+            catch(Throwable t)
+            {
+                error = t;
+            }
+        }
+
+        /** Waits for the call to complete.
+
+            @param timeout Time to wait, in milliseconds, or zero to return
+                           at once.
+            @return <code>true</code> if the call has completed.
+            @throws TestFailed If the test is interrupted while waiting.
+         */
+        boolean await(long timeout) throws TestFailed
+        {
+            try
+            {
+                if(timeout > 0)
+                    join(timeout);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+
+            return !isAlive();
+        }
+
+        /** Returns the value returned by the completed call.
+
+            @throws TestFailed If the call failed.
+         */
+        Object result() throws TestFailed
+        {
+            if(error != null)
+                throw new TestFailed("call to storage server failed", error);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.util.*;
+
+/** Tests storage server access to files at given offsets.
+
+    <p>
+    This test starts a storage server and writes a file longer than the buffers
+    the server reads files through. It then reads parts of the file at several
+    offsets, overwrites part of the middle of the file, and writes past its end.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li><code>read</code> and <code>randomRead</code> return the bytes at the
+        offset given, rather than those at the start of the file.</li>
+    <li>Reads spanning several buffers, and reads ending at the end of the
+        file, return the whole range asked for.</li>
+    <li>Writing in the middle of the file changes only the bytes written, and
+        preserves the rest of the file.</li>
+    <li>Writing past the end of the file extends it to the end of the data
+        written, and the gap left reads as zeros.</li>
+    </ul>
+ */
+public class PositionalTest extends StorageServerTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server access at offsets";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {conformance.rmi.SkeletonTest.class,
+                     conformance.rmi.StubTest.class};
+
+    /** Length of the file, spanning several read buffers. */
+    private static final int    LENGTH = 200 * 1024;
+
+    /** File accessed by the test. */
+    private final Path          file = new Path("/file");
+
+    /** Stub for the storage server client service. */
+    private Storage             client_stub;
+    /** Expected contents of the file. */
+    private byte[]              contents;
+
+    /** Creates the <code>PositionalTest</code> object. */
+    public PositionalTest()
+    {
+        super(new String[][] {new String[] {"file", ""}});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        startServer(createServer(false), new Path[] {file});
+
+        client_stub = naming_server.clientInterface();
+
+        contents = new byte[LENGTH];
+        new Random(1).nextBytes(contents);
+
+        try
+        {
+            client_stub.write(file, contents);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write file", t);
+        }
+
+        testRead();
+        testWrite();
+    }
+
+    /** Tests <code>read</code> and <code>randomRead</code> at nonzero
+        offsets.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testRead() throws TestFailed
+    {
+        checkRead(5, 10);
+        checkRead(1000, 150 * 1024);
+        checkRead(LENGTH - 100, 100);
+        checkRead(LENGTH, 0);
+
+        try
+        {
+            byte[]      data = client_stub.randomRead(file, 70000, 30);
+
+            if(!Arrays.equals(data, Arrays.copyOfRange(contents, 70000,
+                                                       70000 + 30)))
+            {
+                throw new TestFailed("randomRead returned wrong bytes at " +
+                                     "offset");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file at offset with " +
+                                 "randomRead", t);
+        }
+    }
+
+    /** Tests <code>write</code> at offsets inside and past the end of the
+        file.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testWrite() throws TestFailed
+    {
+        byte[]      middle = new byte[16];
+        byte[]      end = "end of file".getBytes();
+        int         gap = 4096;
+
+        // Overwrite part of the middle of the file.
+        Arrays.fill(middle, (byte)0x7f);
+        System.arraycopy(middle, 0, contents, 100000, middle.length);
+
+        try
+        {
+            client_stub.write(file, 100000, middle);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write in the middle of file", t);
+        }
+
+        checkContents("after writing in the middle of file");
+
+        // Write past the end of the file, leaving a gap that is expected to
+        // read as zeros.
+        int         offset = contents.length + gap;
+
+        contents = Arrays.copyOf(contents, offset + end.length);
+        System.arraycopy(end, 0, contents, offset, end.length);
+
+        try
+        {
+            client_stub.write(file, offset, end);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write past end of file", t);
+        }
+
+        checkContents("after writing past end of file");
+        checkRead(LENGTH, gap);
+    }
+
+    /** Checks the size and whole contents of the file.
+
+        @param when Description of the step after which the file is checked.
+        @throws TestFailed If the file has the wrong size or contents.
+     */
+    private void checkContents(String when) throws TestFailed
+    {
+        try
+        {
+            if(client_stub.size(file) != contents.length)
+                throw new TestFailed("file has wrong size " + when);
+
+            if(!Arrays.equals(client_stub.read(file), contents))
+                throw new TestFailed("file read back wrongly " + when);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file " + when, t);
+        }
+    }
+
+    /** Reads part of the file and checks the bytes returned.
+
+        @param offset Offset of the part.
+        @param length Length of the part.
+        @throws TestFailed If the part cannot be read, or is read wrongly.
+     */
+    private void checkRead(long offset, int length) throws TestFailed
+    {
+        byte[]      data;
+
+        try
+        {
+            data = client_stub.read(file, offset, length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read " + length + " bytes at " +
+                                 "offset " + offset, t);
+        }
+
+        if(!Arrays.equals(data, Arrays.copyOfRange(contents, (int)offset,
+                                                   (int)offset + length)))
+        {
+            throw new TestFailed("wrong bytes read at offset " + offset);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/** Tests the recovery of insertions left pending by a storage server that did
+    not stop.
+
+    <p>
+    This test creates a storage server, without starting it, and inserts data
+    into a file with <code>randomWrite</code>. The insertions are kept in a
+    journal until the file is compacted, which the test does not wait for. The
+    first server is then abandoned, as if it had crashed, and a second server
+    is started on the same directory.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The second server registers the files of the directory, and none of
+        the journals of the first.</li>
+    <li>The file holds the inserted data on disk once the second server has
+        started.</li>
+    <li>The second server reads the file with the inserted data.</li>
+    </ul>
+ */
+public class RecoveryTest extends StorageServerTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server recovery of pending insertions";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {conformance.rmi.SkeletonTest.class,
+                     conformance.rmi.StubTest.class};
+
+    /** File receiving the insertions. */
+    private final Path          file = new Path("/subdirectory/file");
+    /** Other file in the directory, which is left as it is. */
+    private final Path          other_file = new Path("/other");
+
+    /** Creates the <code>RecoveryTest</code> object. */
+    public RecoveryTest()
+    {
+        super(new String[][] {new String[] {"subdirectory", "file", "abcdef"},
+                              new String[] {"other", "ghi"}});
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageServer   crashed = createServer(false);
+
+        try
+        {
+            crashed.randomWrite(file, 3, "XYZ".getBytes());
+            crashed.randomWrite(file, 0, "01".getBytes());
+            crashed.randomWrite(file, 11, "89".getBytes());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to insert data into file", t);
+        }
+
+        byte[]          expected = "01abcXYZdef89".getBytes();
+
+        // The insertions are read back before the crash, while the file on
+        // disk still holds its original contents.
+        try
+        {
+            if(!Arrays.equals(crashed.randomRead(file, 0, expected.length),
+                              expected))
+            {
+                throw new TestFailed("insertions not read back before crash");
+            }
+
+            if(!Arrays.equals(Files.readAllBytes(
+                                  file.toFile(directory.root()).toPath()),
+                              "abcdef".getBytes()))
+            {
+                throw new TestFailed("file on disk changed before " +
+                                     "compaction");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file before crash", t);
+        }
+
+        StorageServer   recovered = createServer(false);
+
+        startServer(recovered, new Path[] {file, other_file});
+
+        try
+        {
+            if(!Arrays.equals(Files.readAllBytes(
+                                  file.toFile(directory.root()).toPath()),
+                              expected))
+            {
+                throw new TestFailed("file on disk does not hold insertions " +
+                                     "after recovery");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file on disk", t);
+        }
+
+        Storage         client_stub = naming_server.clientInterface();
+
+        try
+        {
+            if(!Arrays.equals(client_stub.read(file), expected))
+            {
+                throw new TestFailed("storage server does not read insertions " +
+                                     "after recovery");
+            }
+
+            if(!Arrays.equals(client_stub.read(other_file), "ghi".getBytes()))
+                throw new TestFailed("other file changed by recovery");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read file after recovery", t);
+        }
+    }
+}
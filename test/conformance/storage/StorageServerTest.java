@@ -0,0 +1,228 @@
+package conformance.storage;
+
+import test.*;
+import common.*;
+import storage.*;
+import naming.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Base class for tests creating their own storage servers.
+
+    <p>
+    This class creates a temporary directory for the storage servers to serve
+    and starts a test naming server on startup. Unlike <code>StorageTest</code>,
+    it leaves the creation and starting of storage servers to the test, so that
+    a test may create several servers over the same directory, in turn, or
+    create a server without starting it. Each server is given ports of its own.
+    On exit, the servers are stopped in the order in which they were created,
+    and the directory is removed, together with the directories the servers
+    keep next to it.
+ */
+abstract class StorageServerTest extends Test
+{
+    /** Temporary directory served by the storage servers. */
+    protected TemporaryDirectory    directory = null;
+    /** Testing naming server. */
+    protected TestNamingServer      naming_server = null;
+    /** Naming server registration service. */
+    protected Registration          naming_stub = null;
+
+    /** Storage servers created by the test. */
+    private final List<StorageServer>   servers =
+        new ArrayList<StorageServer>();
+
+    /** Suffixes of the names of the directories a storage server keeps next to
+        the directory it serves. */
+    private static final String[]   private_directories =
+        new String[] {".chunks", ".uploads", ".journals"};
+
+    /** Files to be created in the temporary directory. */
+    private final String[][]        test_files;
+
+    /** Creates a <code>StorageServerTest</code> object.
+
+        @param test_files Files to be created in the temporary directory, each
+                          given as an array of path components and followed by
+                          its contents.
+     */
+    protected StorageServerTest(String[][] test_files)
+    {
+        this.test_files = test_files;
+    }
+
+    /** Initializes the temporary directory and the test naming server.
+
+        @throws TestFailed If the test objects cannot be initialized.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        try
+        {
+            for(String[] file : test_files)
+            {
+                directory.add(Arrays.copyOf(file, file.length - 1),
+                              file[file.length - 1]);
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to add file to temporary " +
+                                 "directory", t);
+        }
+
+        try
+        {
+            naming_server = new TestNamingServer(this);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create test naming server", t);
+        }
+
+        naming_server.start();
+        naming_stub = naming_server.stub();
+    }
+
+    /** Creates a storage server serving the temporary directory, without
+        starting it.
+
+        @param chunk_store Whether the server keeps the contents of its files
+                           in a chunk store.
+        @return The storage server.
+        @throws TestFailed If the server cannot be created.
+     */
+    protected StorageServer createServer(boolean chunk_store) throws TestFailed
+    {
+        StorageServer   server;
+        String          previous = System.getProperty(ChunkStore.PROPERTY);
+
+        // The chunk store is chosen when the server is created, so the property
+        // is only set for the time it takes to create it.
+        System.setProperty(ChunkStore.PROPERTY, String.valueOf(chunk_store));
+
+        try
+        {
+            server = new StorageServer(directory.root(), freePort(),
+                                       freePort());
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage server", t);
+        }
+        finally
+        {
+            if(previous == null)
+                System.clearProperty(ChunkStore.PROPERTY);
+            else
+                System.setProperty(ChunkStore.PROPERTY, previous);
+        }
+
+        servers.add(server);
+
+        return server;
+    }
+
+    /** Starts a storage server, registering it with the test naming server.
+
+        @param server The server to be started.
+        @param expect_files Files the server is expected to register, or
+                            <code>null</code> if the list is not to be checked.
+        @throws TestFailed If the server cannot be started.
+     */
+    protected void startServer(StorageServer server, Path[] expect_files)
+        throws TestFailed
+    {
+        naming_server.expectFiles(expect_files);
+
+        try
+        {
+            server.start("127.0.0.1", naming_stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("cannot start storage server", t);
+        }
+    }
+
+    /** Returns a port on which no socket is listening.
+
+        @throws TestFailed If no port can be found.
+     */
+    private static int freePort() throws TestFailed
+    {
+        try
+        {
+            ServerSocket    socket = new ServerSocket(0);
+            int             port = socket.getLocalPort();
+
+            socket.close();
+
+            return port;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to find a free port", t);
+        }
+    }
+
+    /** Stops the storage servers and the test naming server, and removes the
+        temporary directory. */
+    @Override
+    protected void clean()
+    {
+        for(StorageServer server : servers)
+            server.stop();
+
+        servers.clear();
+
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+
+        if(directory != null)
+        {
+            File    root = directory.root().getAbsoluteFile();
+
+            directory.remove();
+            directory = null;
+
+            for(String suffix : private_directories)
+            {
+                remove(new File(root.getParentFile(),
+                                "." + root.getName() + suffix));
+            }
+        }
+    }
+
+    /** Recursively deletes a file or directory.
+
+        @param file The file or directory to be deleted.
+     */
+    private static void remove(File file)
+    {
+        File[]      children = file.listFiles();
+
+        if(children != null)
+        {
+            for(File child : children)
+                remove(child);
+        }
+
+        file.delete();
+    }
+}